@@ -0,0 +1,77 @@
+package albite.net.rtp;
+
+// Picks the rendition a session should get from its receiver reports.
+// Renditions go from 0, the best, down to the most modest one.
+//
+// It steps down as soon as a report shows too much loss or jitter, and
+// steps up only after the reports have been clean for a while, one step
+// at a time. The gap between the two loss thresholds and the wait before
+// stepping up keep a session from flapping between renditions.
+//
+// Not thread-safe, each session needs its own.
+public class AdaptationController {
+
+    public static final double DEFAULT_STEP_DOWN_LOSS = 0.05;
+    public static final double DEFAULT_STEP_UP_LOSS = 0.01;
+    public static final long DEFAULT_STEP_UP_DELAY_MS = 10000;
+    public static final long DEFAULT_MAX_JITTER_MS = 100;
+
+    private final double mStepDownLoss;
+    private final double mStepUpLoss;
+    private final long mStepUpDelayNanos;
+    private final long mMaxJitterMs;
+    private final int mClockRate;
+
+    // Since when the reports have been clean, or -1
+    private long mCleanSince = -1;
+
+    // The clock rate of the stream is for telling the jitter in time.
+    // Jitter is ignored if it's 0.
+    public AdaptationController(int clockRate) {
+        this(DEFAULT_STEP_DOWN_LOSS, DEFAULT_STEP_UP_LOSS,
+                DEFAULT_STEP_UP_DELAY_MS, DEFAULT_MAX_JITTER_MS, clockRate);
+    }
+
+    public AdaptationController(double stepDownLoss, double stepUpLoss,
+            long stepUpDelayMs, long maxJitterMs, int clockRate) {
+        if (stepUpLoss > stepDownLoss) {
+            throw new IllegalArgumentException("Stepping up at more loss than stepping down");
+        }
+
+        mStepDownLoss = stepDownLoss;
+        mStepUpLoss = stepUpLoss;
+        mStepUpDelayNanos = stepUpDelayMs * 1000000L;
+        mMaxJitterMs = maxJitterMs;
+        mClockRate = clockRate;
+    }
+
+    // Returns the rendition to switch to, or current to stay
+    public int update(RtcpReport report, int current, int count) {
+        double loss = report.getFractionLost() / 256.0;
+        boolean jittery = mClockRate > 0
+                && report.getJitter() * 1000 / mClockRate > mMaxJitterMs;
+
+        if (loss >= mStepDownLoss || jittery) {
+            mCleanSince = -1;
+            return Math.min(current + 1, count - 1);
+        }
+
+        if (loss > mStepUpLoss) {
+            mCleanSince = -1;
+            return current;
+        }
+
+        long now = System.nanoTime();
+        if (mCleanSince < 0) {
+            mCleanSince = now;
+        }
+
+        if (current > 0 && now - mCleanSince >= mStepUpDelayNanos) {
+            // The next step up has to wait as long
+            mCleanSince = now;
+            return current - 1;
+        }
+
+        return current;
+    }
+}
@@ -0,0 +1,242 @@
+package albite.net.rtp;
+
+import albite.util.BufferPool;
+import albite.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Plays one of several renditions of a stream, from the best to the most
+// modest, and switches between them as the controller decides from the
+// client's receiver reports.
+//
+// A switch starts the new rendition alongside the current one, and cuts
+// over on its first keyframe not behind what was sent, so the client can
+// decode straight on. Keyframes from before (e.g. of a GOP burst) are
+// skipped. The client sees a single stream: the SSRC and sequence
+// numbers are rewritten, while the timestamps are kept, so the
+// renditions must share their RTP clock (e.g. be encoded from the same
+// live input).
+public class AdaptiveSource implements RtpSource, RtpSource.Adaptive {
+
+    private static final String TAG = "AdaptiveSource";
+
+    // Starts the renditions switched to, as starting may take a while
+    // (e.g. a GOP burst) and the reports come in on a receive thread
+    private static final ExecutorService STARTER = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(BufferPool.flushingCaches(r), TAG);
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final RtpSource[] mRenditions;
+    private final KeyframeDetector mDetector;
+    private final AdaptationController mController;
+    private final int mSsrc = ThreadLocalRandom.current().nextInt();
+
+    private RtpSink mSink;
+    private int mCurrent = 0;
+    private int mPending = -1;
+    private int mSequenceNumber = ThreadLocalRandom.current().nextInt(0x10000);
+    private int mSwitches;
+
+    // Of the last packet sent, if any
+    private boolean mSent = false;
+    private long mTimestamp;
+
+    public AdaptiveSource(List<? extends RtpSource> renditions,
+            KeyframeDetector detector, AdaptationController controller) {
+        if (renditions.isEmpty()) {
+            throw new IllegalArgumentException("No renditions");
+        }
+
+        mRenditions = renditions.toArray(new RtpSource[renditions.size()]);
+        mDetector = detector;
+        mController = controller;
+    }
+
+    // For live renditions, best first
+    public static AdaptiveSource of(KeyframeDetector detector,
+            AdaptationController controller, LiveStream... renditions) {
+        List<RtpSource> sources = new ArrayList<>();
+        for (LiveStream stream : renditions) {
+            sources.add(stream.newSource());
+        }
+        return new AdaptiveSource(sources, detector, controller);
+    }
+
+    // Passes on the packets of one rendition, while it's the current one,
+    // or from its first keyframe, if it's being switched to
+    private class Gate implements RtpSink {
+
+        private final int mIndex;
+
+        Gate(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void send(RtpPacket packet) throws IOException {
+            RtpSource previous = null;
+            RtpPacket out;
+            RtpSink sink;
+
+            synchronized (AdaptiveSource.this) {
+                if (mIndex == mPending && mDetector.isKeyframe(packet) && isNew(packet)) {
+                    previous = mRenditions[mCurrent];
+                    Log.i(TAG, "Switched from rendition " + mCurrent + " to " + mIndex);
+                    mCurrent = mIndex;
+                    mPending = -1;
+                    mSwitches++;
+                }
+
+                if (mIndex != mCurrent || mSink == null) {
+                    return;
+                }
+
+                out = packet.rewrite(mSequenceNumber, mSsrc);
+                mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+                mSent = true;
+                mTimestamp = packet.getTimestamp();
+                sink = mSink;
+            }
+
+            if (previous != null) {
+                previous.pause();
+            }
+
+            try {
+                sink.send(out);
+            } finally {
+                out.release();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Whether the packet is not behind the last one sent, in RTP time.
+    // The same frame of the other rendition may well have gone out
+    // already.
+    private boolean isNew(RtpPacket packet) {
+        return !mSent || (int) (packet.getTimestamp() - mTimestamp) >= 0;
+    }
+
+    @Override
+    public void start(RtpSink sink) throws IOException {
+        RtpSource current;
+        int index;
+
+        synchronized (this) {
+            mSink = sink;
+            index = mCurrent;
+            current = mRenditions[index];
+        }
+
+        current.start(new Gate(index));
+    }
+
+    @Override
+    public void pause() {
+        List<RtpSource> playing = new ArrayList<>();
+
+        synchronized (this) {
+            mSink = null;
+            playing.add(mRenditions[mCurrent]);
+            if (mPending >= 0) {
+                playing.add(mRenditions[mPending]);
+                mPending = -1;
+            }
+        }
+
+        for (RtpSource source : playing) {
+            source.pause();
+        }
+    }
+
+    // Reports are ignored while a switch is under way, until the new
+    // rendition has had its keyframe
+    @Override
+    public void onReport(RtcpReport report) {
+        int target;
+
+        synchronized (this) {
+            if (mSink == null || mPending >= 0) {
+                return;
+            }
+
+            target = mController.update(report, mCurrent, mRenditions.length);
+            if (target == mCurrent) {
+                return;
+            }
+
+            mPending = target;
+        }
+
+        STARTER.execute(() -> startPending(target));
+    }
+
+    private void startPending(int target) {
+        RtpSource rendition = mRenditions[target];
+
+        synchronized (this) {
+            if (mPending != target) {
+                // Paused meanwhile
+                return;
+            }
+        }
+
+        try {
+            rendition.start(new Gate(target));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed starting rendition " + target, e);
+            synchronized (this) {
+                if (mPending == target) {
+                    mPending = -1;
+                }
+            }
+            return;
+        }
+
+        boolean stale;
+        synchronized (this) {
+            stale = mPending != target && mCurrent != target;
+        }
+
+        if (stale) {
+            // Paused while starting
+            rendition.pause();
+        }
+    }
+
+    public synchronized int getCurrent() {
+        return mCurrent;
+    }
+
+    // The rendition being switched to, or -1
+    public synchronized int getPending() {
+        return mPending;
+    }
+
+    public synchronized int getSwitchCount() {
+        return mSwitches;
+    }
+
+    public int getRenditionCount() {
+        return mRenditions.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pause();
+
+        for (RtpSource source : mRenditions) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package albite.net.rtp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts the packets that go through to another sink. The counters take
+// no locks, so they may be read at any time without holding up senders.
+public final class CountingSink implements RtpSink {
+
+    private final RtpSink mSink;
+
+    private final LongAdder mPacketsSent = new LongAdder();
+    private final LongAdder mBytesSent = new LongAdder();
+    private final LongAdder mPacketsFailed = new LongAdder();
+
+    public CountingSink(RtpSink sink) {
+        mSink = sink;
+    }
+
+    // Failures are what the sink throws, and the packets a UdpSink loses
+    // to a closed port, which it doesn't throw for
+    @Override
+    public void send(RtpPacket packet) throws IOException {
+        boolean sent = true;
+
+        try {
+            if (mSink instanceof UdpSink) {
+                sent = ((UdpSink) mSink).write(packet);
+            } else {
+                mSink.send(packet);
+            }
+        } catch (IOException e) {
+            mPacketsFailed.increment();
+            throw e;
+        }
+
+        if (!sent) {
+            mPacketsFailed.increment();
+            return;
+        }
+
+        mPacketsSent.increment();
+        mBytesSent.add(packet.getLength());
+    }
+
+    public long getPacketsSent() {
+        return mPacketsSent.sum();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.sum();
+    }
+
+    public long getPacketsFailed() {
+        return mPacketsFailed.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSink.close();
+    }
+}
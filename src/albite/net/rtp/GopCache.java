@@ -0,0 +1,95 @@
+package albite.net.rtp;
+
+// The packets of a stream since its last keyframe. Packets are shared,
+// not copied: the cache holds a reference to each of them. The cache is
+// bounded in bytes; if a GOP doesn't fit, it is dropped altogether, as
+// a partial GOP is of no use to a new viewer.
+//
+// Not thread-safe: the owner must synchronize.
+public final class GopCache {
+
+    private final KeyframeDetector mDetector;
+    private final long mMaxBytes;
+
+    private RtpPacket[] mPackets = new RtpPacket[256];
+    private int mCount = 0;
+    private long mBytes = 0;
+
+    // Whether the cache holds a GOP from its keyframe on
+    private boolean mValid = false;
+    private long mKeyframeTimestamp;
+
+    private long mOverflows = 0;
+
+    public GopCache(KeyframeDetector detector, long maxBytes) {
+        mDetector = detector;
+        mMaxBytes = maxBytes;
+    }
+
+    public void add(RtpPacket packet) {
+        // A keyframe may span several packets (e.g. SPS, PPS, IDR fragments),
+        // all with the same timestamp
+        if (mDetector.isKeyframe(packet)
+                && !(mValid && mCount > 0 && packet.getTimestamp() == mKeyframeTimestamp)) {
+            clear();
+            mValid = true;
+            mKeyframeTimestamp = packet.getTimestamp();
+        }
+
+        if (!mValid) {
+            return;
+        }
+
+        if (mBytes + packet.getLength() > mMaxBytes) {
+            mOverflows++;
+            clear();
+            return;
+        }
+
+        if (mCount == mPackets.length) {
+            RtpPacket[] grown = new RtpPacket[mPackets.length * 2];
+            System.arraycopy(mPackets, 0, grown, 0, mCount);
+            mPackets = grown;
+        }
+
+        mPackets[mCount++] = packet.retain();
+        mBytes += packet.getLength();
+    }
+
+    // Returns the cached packets, each of them retained for the caller
+    public RtpPacket[] snapshot() {
+        RtpPacket[] packets = new RtpPacket[mCount];
+        for (int i = 0; i < mCount; i++) {
+            packets[i] = mPackets[i].retain();
+        }
+        return packets;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mPackets[i].release();
+            mPackets[i] = null;
+        }
+
+        mCount = 0;
+        mBytes = 0;
+        mValid = false;
+    }
+
+    public int getPacketCount() {
+        return mCount;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    // How many GOPs were too large to be cached
+    public long getOverflows() {
+        return mOverflows;
+    }
+}
@@ -0,0 +1,86 @@
+package albite.net.rtp;
+
+import java.nio.ByteBuffer;
+
+// Tells whether an RTP packet starts a point a decoder may start from
+public interface KeyframeDetector {
+
+    boolean isKeyframe(RtpPacket packet);
+
+    // H.264 (RFC 6184): SPS or IDR NAL units, whether single, aggregated
+    // in STAP-A or the first fragment of FU-A
+    KeyframeDetector H264 = packet -> {
+        ByteBuffer payload = packet.getPayload();
+        if (payload == null || !payload.hasRemaining()) {
+            return false;
+        }
+
+        int p = payload.position();
+        int type = payload.get(p) & 0x1f;
+
+        switch (type) {
+            case 5: // IDR
+            case 7: // SPS
+                return true;
+
+            case 24: // STAP-A: 16 bit size + NAL unit, repeated
+                for (int i = p + 1; i + 2 < payload.limit();) {
+                    int size = payload.getShort(i) & 0xffff;
+                    int nal = payload.get(i + 2) & 0x1f;
+                    if (nal == 5 || nal == 7) {
+                        return true;
+                    }
+                    i += 2 + size;
+                }
+                return false;
+
+            case 28: // FU-A: indicator, header (S, E, R, type)
+                if (payload.remaining() < 2) {
+                    return false;
+                }
+                int header = payload.get(p + 1);
+                int nal = header & 0x1f;
+                return (header & 0x80) != 0 && (nal == 5 || nal == 7);
+
+            default:
+                return false;
+        }
+    };
+
+    // MPEG-TS (RFC 2250): any TS packet with the random access indicator
+    KeyframeDetector MPEG_TS = packet -> {
+        ByteBuffer payload = packet.getPayload();
+        if (payload == null) {
+            return false;
+        }
+
+        for (int p = payload.position(); p + 6 <= payload.limit(); p += TsFile.PACKET_SIZE) {
+            int control = (payload.get(p + 3) >> 4) & 0x03;
+            if ((control & 0x02) != 0 && payload.get(p + 4) != 0
+                    && (payload.get(p + 5) & 0x40) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    };
+
+    // The detector for an rtpmap encoding name, or null for media that
+    // need none (e.g. audio) or that aren't known
+    static KeyframeDetector forEncoding(String encoding) {
+        if (encoding == null) {
+            return null;
+        }
+
+        switch (encoding.toUpperCase()) {
+            case "H264":
+                return H264;
+
+            case "MP2T":
+                return MPEG_TS;
+
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// A live stream fanned out to many sessions. Each published packet is
+// sent to every subscribed sink as is, without a per-session copy.
+//
+// With a GOP cache, a session that starts playing is first sent the
+// packets since the last keyframe, so that it can start decoding at
+// once instead of waiting for the next keyframe. The burst is sent by
+// the subscribing thread, outside the lock, while the live packets are
+// queued behind it for that sink only, so a slow sink doesn't hold up
+// the publisher.
+public class LiveStream implements Closeable {
+
+    private static final String TAG = "LiveStream";
+
+    public static final long DEFAULT_GOP_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private final String mName;
+    private final GopCache mGopCache;
+
+    // Subscribers are only changed under the lock, but are read without
+    // it while fanning out
+    private volatile RtpSink[] mSinks = new RtpSink[0];
+    private boolean mClosed = false;
+
+    private long mPacketsPublished;
+    private long mBytesPublished;
+
+    public LiveStream(String name) {
+        this(name, null, 0);
+    }
+
+    // detector may be null for no GOP cache
+    public LiveStream(String name, KeyframeDetector detector, long gopCacheSize) {
+        mName = name;
+        mGopCache = detector == null ? null : new GopCache(detector, gopCacheSize);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // The caller keeps its reference to the packet
+    public void publish(RtpPacket packet) {
+        RtpSink[] sinks;
+
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mPacketsPublished++;
+            mBytesPublished += packet.getLength();
+
+            if (mGopCache != null) {
+                mGopCache.add(packet);
+            }
+
+            sinks = mSinks;
+        }
+
+        for (RtpSink sink : sinks) {
+            try {
+                sink.send(packet);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed sending to a subscriber of " + mName, e);
+            }
+        }
+    }
+
+    // Sends the cached GOP (if any) to the sink and subscribes it. The
+    // sink gets no live packet before the burst is over.
+    public void subscribe(RtpSink sink) throws IOException {
+        RtpPacket[] packets;
+        Joining joining;
+
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Stream is closed: " + mName);
+            }
+
+            packets = mGopCache == null ? new RtpPacket[0] : mGopCache.snapshot();
+            if (packets.length == 0) {
+                mSinks = added(mSinks, sink);
+                return;
+            }
+
+            joining = new Joining(sink, mGopCache.getMaxBytes());
+            mSinks = added(mSinks, joining);
+        }
+
+        boolean joined = false;
+        try {
+            joined = joining.burst(packets);
+        } finally {
+            synchronized (this) {
+                // From now on the live packets go straight to the sink
+                mSinks = joined && contains(mSinks, joining)
+                        ? replaced(mSinks, joining, sink) : removed(mSinks, joining);
+            }
+        }
+    }
+
+    public synchronized void unsubscribe(RtpSink sink) {
+        for (RtpSink s : mSinks) {
+            if (s instanceof Joining && ((Joining) s).mSink == sink) {
+                // Ends the burst
+                ((Joining) s).cancel();
+                mSinks = removed(mSinks, s);
+                return;
+            }
+        }
+
+        mSinks = removed(mSinks, sink);
+    }
+
+    private static boolean contains(RtpSink[] sinks, RtpSink sink) {
+        for (RtpSink s : sinks) {
+            if (s == sink) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static RtpSink[] added(RtpSink[] sinks, RtpSink sink) {
+        RtpSink[] result = new RtpSink[sinks.length + 1];
+        System.arraycopy(sinks, 0, result, 0, sinks.length);
+        result[sinks.length] = sink;
+        return result;
+    }
+
+    private static RtpSink[] removed(RtpSink[] sinks, RtpSink sink) {
+        List<RtpSink> result = new ArrayList<>(sinks.length);
+        for (RtpSink s : sinks) {
+            if (s != sink) {
+                result.add(s);
+            }
+        }
+        return result.toArray(new RtpSink[result.size()]);
+    }
+
+    private static RtpSink[] replaced(RtpSink[] sinks, RtpSink sink, RtpSink with) {
+        RtpSink[] result = sinks.clone();
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] == sink) {
+                result[i] = with;
+            }
+        }
+        return result;
+    }
+
+    // Stands in for a sink while it is sent the GOP burst, and queues the
+    // live packets published in the meantime. The queue is bounded like
+    // the GOP cache; a sink that can't keep up with that loses the rest.
+    private final class Joining implements RtpSink {
+
+        final RtpSink mSink;
+        private final long mMaxBytes;
+
+        private final ArrayDeque<RtpPacket> mQueue = new ArrayDeque<>();
+        private long mQueuedBytes = 0;
+        private boolean mBursting = true;
+        private boolean mCancelled = false;
+        private long mDropped = 0;
+
+        Joining(RtpSink sink, long maxBytes) {
+            mSink = sink;
+            mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public void send(RtpPacket packet) throws IOException {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+
+                if (mBursting) {
+                    if (mQueuedBytes + packet.getLength() > mMaxBytes) {
+                        mDropped++;
+                    } else {
+                        mQueue.add(packet.retain());
+                        mQueuedBytes += packet.getLength();
+                    }
+                    return;
+                }
+            }
+
+            mSink.send(packet);
+        }
+
+        // Sends the packets (and releases them), then what was queued
+        // behind them. Returns false if cancelled on the way.
+        boolean burst(RtpPacket[] packets) throws IOException {
+            try {
+                for (int i = 0; i < packets.length; i++) {
+                    if (isCancelled()) {
+                        return false;
+                    }
+                    mSink.send(packets[i]);
+                }
+
+                while (true) {
+                    RtpPacket packet;
+                    synchronized (this) {
+                        if (mCancelled) {
+                            return false;
+                        }
+
+                        packet = mQueue.poll();
+                        if (packet == null) {
+                            mBursting = false;
+                            if (mDropped > 0) {
+                                Log.w(TAG, "Dropped " + mDropped + " packets of " + mName
+                                        + " behind the GOP of a slow subscriber");
+                            }
+                            return true;
+                        }
+                        mQueuedBytes -= packet.getLength();
+                    }
+
+                    try {
+                        mSink.send(packet);
+                    } finally {
+                        packet.release();
+                    }
+                }
+            } catch (IOException e) {
+                cancel();
+                throw e;
+            } finally {
+                for (RtpPacket packet : packets) {
+                    packet.release();
+                }
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            for (RtpPacket packet : mQueue) {
+                packet.release();
+            }
+            mQueue.clear();
+            mQueuedBytes = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSink.close();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSinks.length;
+    }
+
+    public synchronized long getPacketsPublished() {
+        return mPacketsPublished;
+    }
+
+    public synchronized long getBytesPublished() {
+        return mBytesPublished;
+    }
+
+    public synchronized int getCachedPackets() {
+        return mGopCache == null ? 0 : mGopCache.getPacketCount();
+    }
+
+    public synchronized long getCachedBytes() {
+        return mGopCache == null ? 0 : mGopCache.getBytes();
+    }
+
+    // A source for a single session
+    public RtpSource newSource() {
+        return new RtpSource() {
+            private RtpSink mSink;
+
+            @Override
+            public synchronized void start(RtpSink sink) throws IOException {
+                if (mSink != null) {
+                    // Already playing
+                    return;
+                }
+
+                subscribe(sink);
+                mSink = sink;
+            }
+
+            @Override
+            public synchronized void pause() {
+                if (mSink != null) {
+                    unsubscribe(mSink);
+                    mSink = null;
+                }
+            }
+
+            @Override
+            public void close() {
+                pause();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        for (RtpSink sink : mSinks) {
+            if (sink instanceof Joining) {
+                ((Joining) sink).cancel();
+            }
+        }
+        mSinks = new RtpSink[0];
+
+        if (mGopCache != null) {
+            mGopCache.clear();
+        }
+    }
+}
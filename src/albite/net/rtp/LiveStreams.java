@@ -0,0 +1,43 @@
+package albite.net.rtp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Live streams by path, e.g. rtsp://host/live/cam1 -> /live/cam1
+public class LiveStreams implements RtpSource.Factory {
+
+    private final Map<String, LiveStream> mStreams = new ConcurrentHashMap<>();
+
+    public void add(String path, LiveStream stream) {
+        mStreams.put(path, stream);
+    }
+
+    public LiveStream get(String path) {
+        return mStreams.get(path);
+    }
+
+    public LiveStream get(URI uri) {
+        return mStreams.get(uri.getPath());
+    }
+
+    public LiveStream remove(String path) {
+        return mStreams.remove(path);
+    }
+
+    public int size() {
+        return mStreams.size();
+    }
+
+    @Override
+    public RtpSource createSource(URI uri) throws IOException {
+        LiveStream stream = get(uri);
+        if (stream == null) {
+            throw new FileNotFoundException("No live stream: " + uri.getPath());
+        }
+
+        return stream.newSource();
+    }
+}
@@ -0,0 +1,251 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Finds the gaps in the RTP packets a client receives, and asks the sender
+// for the missing ones with generic NACKs (RFC 4585).
+//
+// A gap isn't NACKed at once, as the packets may only be reordered. If a
+// packet is still missing a round trip after it was NACKed, it's NACKed
+// again, up to MAX_NACKS times, after which it's given up on.
+//
+// The receiver hands each packet to onPacket(), and the NACKs are sent
+// from the scheduler's thread.
+public class NackGenerator extends Scheduler.Task implements Closeable {
+
+    private static final String TAG = "NackGenerator";
+
+    public static final int MAX_NACKS = 3;
+    public static final long DEFAULT_ROUND_TRIP_NANOS = 100000000L;
+    public static final long DEFAULT_REORDER_NANOS = 10000000L;
+
+    // Retries never come quicker than this, however short the round trip
+    private static final long MIN_RETRY_NANOS = 10000000L;
+
+    // Missing packets tracked at most, the oldest being given up first
+    private static final int MAX_MISSING = 256;
+
+    // A jump larger than this is taken for the sender starting over
+    private static final int MAX_GAP = 1000;
+
+    private final DatagramChannel mChannel;
+    private final InetSocketAddress mTarget;
+    private final Scheduler mScheduler;
+    private final int mSsrc = ThreadLocalRandom.current().nextInt();
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(RtcpNack.getMaxSize(MAX_MISSING));
+
+    private volatile long mRoundTripNanos = DEFAULT_ROUND_TRIP_NANOS;
+    private volatile long mReorderNanos = DEFAULT_REORDER_NANOS;
+
+    // The missing sequence numbers, in the order they were sent, when they
+    // are to be NACKed next and how many times they have been
+    private final int[] mMissing = new int[MAX_MISSING];
+    private final long[] mDue = new long[MAX_MISSING];
+    private final int[] mNacks = new int[MAX_MISSING];
+    private int mMissingCount = 0;
+
+    private int mHighest = -1;
+    private int mMediaSsrc;
+    private boolean mClosed = false;
+
+    private long mNacksSent;
+    private long mPacketsNacked;
+    private long mPacketsRecovered;
+    private long mPacketsLost;
+
+    // The NACKs are sent from the channel to the sender's RTCP address
+    public NackGenerator(DatagramChannel channel, InetSocketAddress target, Scheduler scheduler) {
+        mChannel = channel;
+        mTarget = target;
+        mScheduler = scheduler;
+    }
+
+    // How long before a NACK is sent again
+    public void setRoundTripNanos(long nanos) {
+        mRoundTripNanos = nanos;
+    }
+
+    public long getRoundTripNanos() {
+        return mRoundTripNanos;
+    }
+
+    // How long a gap may wait to be filled by reordered packets
+    public void setReorderNanos(long nanos) {
+        mReorderNanos = nanos;
+    }
+
+    public void onPacket(RtpPacket packet) {
+        onPacket(packet.getSequenceNumber(), packet.getSsrc());
+    }
+
+    public void onPacket(int sequenceNumber, int ssrc) {
+        long delay;
+
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            if (mHighest < 0 || ssrc != mMediaSsrc) {
+                reset(sequenceNumber, ssrc);
+                return;
+            }
+
+            int delta = (short) (sequenceNumber - mHighest);
+
+            if (delta <= 0) {
+                // Late, or sent again
+                if (remove(sequenceNumber)) {
+                    mPacketsRecovered++;
+                }
+                return;
+            }
+
+            if (delta > MAX_GAP) {
+                reset(sequenceNumber, ssrc);
+                return;
+            }
+
+            long due = System.nanoTime() + mReorderNanos;
+            for (int i = 1; i < delta; i++) {
+                add((mHighest + i) & 0xffff, due);
+            }
+
+            mHighest = sequenceNumber;
+            if (delta == 1) {
+                return;
+            }
+
+            delay = mReorderNanos;
+        }
+
+        mScheduler.schedule(this, delay);
+    }
+
+    private void reset(int sequenceNumber, int ssrc) {
+        mHighest = sequenceNumber;
+        mMediaSsrc = ssrc;
+        mPacketsLost += mMissingCount;
+        mMissingCount = 0;
+    }
+
+    private void add(int sequenceNumber, long due) {
+        if (mMissingCount == MAX_MISSING) {
+            drop(0);
+            mPacketsLost++;
+        }
+
+        mMissing[mMissingCount] = sequenceNumber;
+        mDue[mMissingCount] = due;
+        mNacks[mMissingCount] = 0;
+        mMissingCount++;
+    }
+
+    private boolean remove(int sequenceNumber) {
+        for (int i = 0; i < mMissingCount; i++) {
+            if (mMissing[i] == sequenceNumber) {
+                drop(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(int index) {
+        int moved = mMissingCount - index - 1;
+        System.arraycopy(mMissing, index + 1, mMissing, index, moved);
+        System.arraycopy(mDue, index + 1, mDue, index, moved);
+        System.arraycopy(mNacks, index + 1, mNacks, index, moved);
+        mMissingCount--;
+    }
+
+    // NACKs everything that is due in one packet
+    @Override
+    protected synchronized long run(long now) {
+        if (mClosed) {
+            return -1;
+        }
+
+        long retry = Math.max(MIN_RETRY_NANOS, mRoundTripNanos + mRoundTripNanos / 2);
+        int[] due = new int[mMissingCount];
+        int count = 0;
+        long next = Long.MAX_VALUE;
+
+        for (int i = 0; i < mMissingCount;) {
+            if (mDue[i] - now > 0) {
+                next = Math.min(next, mDue[i] - now);
+                i++;
+                continue;
+            }
+
+            if (mNacks[i] == MAX_NACKS) {
+                drop(i);
+                mPacketsLost++;
+                continue;
+            }
+
+            due[count++] = mMissing[i];
+            mNacks[i]++;
+            mDue[i] = now + retry;
+            next = Math.min(next, retry);
+            i++;
+        }
+
+        if (count > 0) {
+            mBuffer.clear();
+            RtcpNack.write(mBuffer, mSsrc, mMediaSsrc, due, count);
+            mBuffer.flip();
+
+            try {
+                mChannel.send(mBuffer, mTarget);
+                mNacksSent++;
+                mPacketsNacked += count;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed sending a NACK to " + mTarget, e);
+            }
+        }
+
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    // Packets missing right now
+    public synchronized int getMissingCount() {
+        return mMissingCount;
+    }
+
+    // NACK packets, each for one or more RTP packets
+    public synchronized long getNacksSent() {
+        return mNacksSent;
+    }
+
+    // Each time an RTP packet was NACKed
+    public synchronized long getPacketsNacked() {
+        return mPacketsNacked;
+    }
+
+    // Received after they had been found missing
+    public synchronized long getPacketsRecovered() {
+        return mPacketsRecovered;
+    }
+
+    // Given up on
+    public synchronized long getPacketsLost() {
+        return mPacketsLost;
+    }
+
+    // Leaves the channel open
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+
+        mScheduler.cancel(this);
+    }
+}
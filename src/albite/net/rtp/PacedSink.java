@@ -0,0 +1,201 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.IOException;
+
+// Spreads the packets of a session according to a token bucket, so that
+// e.g. all packets of a video frame are not pushed out at once. Packets
+// that can't go out immediately are queued and sent by the shared
+// scheduler thread when enough tokens have accumulated.
+//
+// The queue is bounded in packets and bytes. The default takes a full
+// GOP burst (see LiveStream) with the live packets queued behind it, so
+// that a new viewer doesn't lose the tail of the GOP.
+public class PacedSink extends Scheduler.Task implements RtpSink {
+
+    private static final String TAG = "PacedSink";
+
+    public static final int DEFAULT_QUEUE_SIZE = 16384;
+    public static final long DEFAULT_QUEUE_BYTES = 2 * LiveStream.DEFAULT_GOP_CACHE_SIZE;
+
+    private static final int INITIAL_QUEUE_SIZE = 64;
+
+    private final RtpSink mSink;
+    private final Scheduler mScheduler;
+    private final TokenBucket mBucket;
+
+    private final int mMaxPackets;
+    private final long mMaxBytes;
+
+    // Ring of queued packets and the time they were queued at, grown as
+    // needed up to the maximum
+    private RtpPacket[] mPackets;
+    private long[] mQueuedAt;
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mQueuedBytes = 0;
+
+    private boolean mClosed = false;
+
+    private long mPacketsSent;
+    private long mPacketsDelayed;
+    private long mPacketsDropped;
+    private long mTotalDelayNanos;
+    private long mMaxDelayNanos;
+
+    public PacedSink(RtpSink sink, Scheduler scheduler, long bitsPerSecond, int burstBytes) {
+        this(sink, scheduler, bitsPerSecond, burstBytes, DEFAULT_QUEUE_SIZE);
+    }
+
+    public PacedSink(RtpSink sink, Scheduler scheduler,
+            long bitsPerSecond, int burstBytes, int queueSize) {
+        this(sink, scheduler, bitsPerSecond, burstBytes, queueSize, DEFAULT_QUEUE_BYTES);
+    }
+
+    public PacedSink(RtpSink sink, Scheduler scheduler,
+            long bitsPerSecond, int burstBytes, int queueSize, long queueBytes) {
+        if (queueSize < 1 || queueBytes < 1) {
+            throw new IllegalArgumentException("Invalid queue size: " + queueSize + ", " + queueBytes);
+        }
+
+        mSink = sink;
+        mScheduler = scheduler;
+        mBucket = new TokenBucket(bitsPerSecond / 8, burstBytes);
+        mMaxPackets = queueSize;
+        mMaxBytes = queueBytes;
+
+        int initial = Math.min(queueSize, INITIAL_QUEUE_SIZE);
+        mPackets = new RtpPacket[initial];
+        mQueuedAt = new long[initial];
+    }
+
+    @Override
+    public synchronized void send(RtpPacket packet) throws IOException {
+        if (mClosed) {
+            throw new IOException("Sink is closed");
+        }
+
+        long now = System.nanoTime();
+
+        // Fast path: nothing is waiting and the bucket allows it
+        if (mSize == 0 && mBucket.tryConsume(packet.getLength(), now)) {
+            mPacketsSent++;
+            mSink.send(packet);
+            return;
+        }
+
+        if (mSize == mMaxPackets || mQueuedBytes + packet.getLength() > mMaxBytes) {
+            // Dropping is better than growing without bounds
+            mPacketsDropped++;
+            return;
+        }
+
+        if (mSize == mPackets.length) {
+            grow();
+        }
+
+        int tail = (mHead + mSize) % mPackets.length;
+        mPackets[tail] = packet.retain();
+        mQueuedAt[tail] = now;
+        mSize++;
+        mQueuedBytes += packet.getLength();
+
+        if (mSize == 1) {
+            mScheduler.schedule(this, mBucket.delayFor(packet.getLength(), now));
+        }
+    }
+
+    @Override
+    protected synchronized long run(long now) {
+        while (mSize > 0 && !mClosed) {
+            RtpPacket packet = mPackets[mHead];
+
+            long delay = mBucket.delayFor(packet.getLength(), now);
+            if (delay > 0) {
+                return delay;
+            }
+
+            mBucket.tryConsume(packet.getLength(), now);
+            long waited = now - mQueuedAt[mHead];
+
+            mPackets[mHead] = null;
+            mHead = (mHead + 1) % mPackets.length;
+            mSize--;
+            mQueuedBytes -= packet.getLength();
+
+            mPacketsSent++;
+            mPacketsDelayed++;
+            mTotalDelayNanos += waited;
+            mMaxDelayNanos = Math.max(mMaxDelayNanos, waited);
+
+            try {
+                mSink.send(packet);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed sending paced packet", e);
+            } finally {
+                packet.release();
+            }
+        }
+
+        return -1;
+    }
+
+    private void grow() {
+        int size = (int) Math.min(mMaxPackets, 2L * mPackets.length);
+        RtpPacket[] packets = new RtpPacket[size];
+        long[] queuedAt = new long[size];
+
+        for (int i = 0; i < mSize; i++) {
+            int index = (mHead + i) % mPackets.length;
+            packets[i] = mPackets[index];
+            queuedAt[i] = mQueuedAt[index];
+        }
+
+        mPackets = packets;
+        mQueuedAt = queuedAt;
+        mHead = 0;
+    }
+
+    public synchronized int getQueuedPackets() {
+        return mSize;
+    }
+
+    public synchronized long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    public synchronized long getPacketsDropped() {
+        return mPacketsDropped;
+    }
+
+    // The pacing delay is averaged over all sent packets, including the
+    // ones that went out immediately
+    public synchronized long getAveragePacingDelayNanos() {
+        return mPacketsSent == 0 ? 0 : mTotalDelayNanos / mPacketsSent;
+    }
+
+    public synchronized long getMaxPacingDelayNanos() {
+        return mMaxDelayNanos;
+    }
+
+    public synchronized long getPacketsDelayed() {
+        return mPacketsDelayed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+            while (mSize > 0) {
+                mPackets[mHead].release();
+                mPackets[mHead] = null;
+                mHead = (mHead + 1) % mPackets.length;
+                mSize--;
+            }
+            mQueuedBytes = 0;
+        }
+
+        mScheduler.cancel(this);
+        mSink.close();
+    }
+}
@@ -0,0 +1,58 @@
+package albite.net.rtp;
+
+// The packets last sent on a stream, by sequence number, for sending
+// again. The history is a ring indexed by the low bits of the sequence
+// number, so a packet is overwritten by the one that many packets later.
+// Packets are kept as they are, with a reference, not copied.
+//
+// Not thread-safe.
+public final class PacketHistory {
+
+    private final RtpPacket[] mPackets;
+    private final int mMask;
+
+    // The size is rounded up to a power of two
+    public PacketHistory(int size) {
+        if (size <= 0 || size > 0x10000) {
+            throw new IllegalArgumentException("Invalid history size: " + size);
+        }
+
+        int capacity = Integer.highestOneBit(size - 1) << 1;
+        mPackets = new RtpPacket[Math.max(1, capacity)];
+        mMask = mPackets.length - 1;
+    }
+
+    public int getCapacity() {
+        return mPackets.length;
+    }
+
+    // Keeps a reference to the packet
+    public void add(RtpPacket packet) {
+        int i = packet.getSequenceNumber() & mMask;
+        RtpPacket old = mPackets[i];
+        mPackets[i] = packet.retain();
+
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    // The packet with the sequence number, if it's still there, which the
+    // caller has to release, or null
+    public RtpPacket get(int sequenceNumber) {
+        RtpPacket packet = mPackets[sequenceNumber & mMask];
+        if (packet == null || packet.getSequenceNumber() != (sequenceNumber & 0xffff)) {
+            return null;
+        }
+        return packet.retain();
+    }
+
+    public void clear() {
+        for (int i = 0; i < mPackets.length; i++) {
+            if (mPackets[i] != null) {
+                mPackets[i].release();
+                mPackets[i] = null;
+            }
+        }
+    }
+}
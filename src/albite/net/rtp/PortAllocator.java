@@ -0,0 +1,178 @@
+package albite.net.rtp;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Hands out RTP / RTCP (even / odd) port pairs from a range. Each pair is
+// a bit in a bitmap, which is claimed with a compare-and-set, so there
+// are no locks. The search starts at the word of the last allocation and
+// takes the lowest free bit of a word at once, so it rarely looks further
+// than one or two words.
+public final class PortAllocator {
+
+    // Ports taken by someone else are skipped, up to this many in a row
+    private static final int MAX_BIND_ATTEMPTS = 16;
+
+    private final int mFirstPort;
+    private final int mPairCount;
+    private final AtomicLongArray mBits;
+    private final AtomicInteger mHint = new AtomicInteger();
+
+    private final AtomicInteger mAllocated = new AtomicInteger();
+    private final AtomicInteger mPeakAllocated = new AtomicInteger();
+    private final AtomicLong mAllocations = new AtomicLong();
+    private final AtomicLong mExhausted = new AtomicLong();
+    private final AtomicLong mBindFailures = new AtomicLong();
+
+    // Both ports are inclusive. The range is narrowed to whole pairs.
+    public PortAllocator(int firstPort, int lastPort) {
+        if (firstPort % 2 != 0) {
+            firstPort++;
+        }
+
+        if (firstPort <= 0 || lastPort > 0xffff || lastPort <= firstPort) {
+            throw new IllegalArgumentException(
+                    "Invalid port range: " + firstPort + "-" + lastPort);
+        }
+
+        mFirstPort = firstPort;
+        mPairCount = (lastPort - firstPort + 1) / 2;
+        mBits = new AtomicLongArray((mPairCount + 63) / 64);
+    }
+
+    public int getFirstPort() {
+        return mFirstPort;
+    }
+
+    public int getLastPort() {
+        return mFirstPort + 2 * mPairCount - 1;
+    }
+
+    // The bits past the last pair are never free
+    private long usable(int word) {
+        int pairs = mPairCount - 64 * word;
+        return pairs >= 64 ? -1L : (1L << pairs) - 1;
+    }
+
+    // Claims a pair without binding it. Returns its RTP port, or -1 if
+    // all pairs are taken.
+    public int reserve() {
+        int words = mBits.length();
+        int start = mHint.get();
+
+        for (int i = 0; i < words; i++) {
+            int w = (start + i) % words;
+
+            while (true) {
+                long bits = mBits.get(w);
+                long free = ~bits & usable(w);
+                if (free == 0) {
+                    break;
+                }
+
+                long bit = Long.lowestOneBit(free);
+                if (mBits.compareAndSet(w, bits, bits | bit)) {
+                    if (w != start) {
+                        mHint.lazySet(w);
+                    }
+
+                    int allocated = mAllocated.incrementAndGet();
+                    mPeakAllocated.accumulateAndGet(allocated, Math::max);
+                    mAllocations.incrementAndGet();
+                    return mFirstPort + 2 * (64 * w + Long.numberOfTrailingZeros(bit));
+                }
+            }
+        }
+
+        mExhausted.incrementAndGet();
+        return -1;
+    }
+
+    public void release(int rtpPort) {
+        int pair = (rtpPort - mFirstPort) / 2;
+        if (rtpPort % 2 != 0 || pair < 0 || pair >= mPairCount) {
+            throw new IllegalArgumentException("Not a pair of this range: " + rtpPort);
+        }
+
+        int w = pair / 64;
+        long bit = 1L << (pair % 64);
+
+        while (true) {
+            long bits = mBits.get(w);
+            if ((bits & bit) == 0) {
+                throw new IllegalStateException("Pair not allocated: " + rtpPort);
+            }
+
+            if (mBits.compareAndSet(w, bits, bits & ~bit)) {
+                mAllocated.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    // Claims a pair and binds it. Closing the pair gives it back.
+    public UdpPortPair allocate() throws IOException {
+        // Pairs in use outside of the allocator stay reserved until the
+        // search is over, so that it moves past them. They're given back
+        // then, as they may be free next time around.
+        int[] failed = new int[MAX_BIND_ATTEMPTS];
+        int failures = 0;
+
+        try {
+            while (failures < MAX_BIND_ATTEMPTS) {
+                int port = reserve();
+                if (port < 0) {
+                    throw new BindException("No free port pairs in " + this);
+                }
+
+                try {
+                    return UdpPortPair.open(port, this);
+                } catch (BindException e) {
+                    mBindFailures.incrementAndGet();
+                    failed[failures++] = port;
+                }
+            }
+        } finally {
+            for (int i = 0; i < failures; i++) {
+                release(failed[i]);
+            }
+        }
+
+        throw new BindException("Could not bind a port pair in " + this);
+    }
+
+    public int getCapacity() {
+        return mPairCount;
+    }
+
+    public int getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    public int getPeakAllocatedCount() {
+        return mPeakAllocated.get();
+    }
+
+    public long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    // How many times there was no free pair at all
+    public long getExhaustedCount() {
+        return mExhausted.get();
+    }
+
+    // How many pairs were found taken outside of the allocator
+    public long getBindFailureCount() {
+        return mBindFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d-%d (%d / %d pairs)",
+                getFirstPort(), getLastPort(), getAllocatedCount(), getCapacity());
+    }
+}
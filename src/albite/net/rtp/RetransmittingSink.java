@@ -0,0 +1,111 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.IOException;
+
+// Keeps the packets going through to another sink in a history, and sends
+// them again when the client NACKs them. Retransmissions are limited by a
+// token bucket of their own, so that a client losing a lot doesn't get
+// twice the stream on a path that is already congested.
+//
+// The packets are sent again as they were, in the same stream, rather
+// than in a separate retransmission stream (RFC 4588).
+public final class RetransmittingSink implements RtpSink {
+
+    private static final String TAG = "RetransmittingSink";
+
+    public static final int DEFAULT_HISTORY_SIZE = 1024;
+
+    private final RtpSink mSink;
+    private final PacketHistory mHistory;
+    private final TokenBucket mBucket;
+
+    private boolean mClosed = false;
+
+    private long mPacketsRetransmitted;
+    private long mPacketsMissed;
+    private long mPacketsLimited;
+
+    public RetransmittingSink(RtpSink sink, int historySize, long bitsPerSecond, int burstBytes) {
+        mSink = sink;
+        mHistory = new PacketHistory(historySize);
+        mBucket = new TokenBucket(bitsPerSecond / 8, burstBytes);
+    }
+
+    @Override
+    public void send(RtpPacket packet) throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Sink is closed");
+            }
+
+            mHistory.add(packet);
+        }
+
+        mSink.send(packet);
+    }
+
+    // Sends again the packets that are still in the history, as far as
+    // the rate allows
+    public void onNack(int[] sequenceNumbers) {
+        for (int seq : sequenceNumbers) {
+            RtpPacket packet;
+
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+
+                packet = mHistory.get(seq);
+                if (packet == null) {
+                    mPacketsMissed++;
+                    continue;
+                }
+
+                if (!mBucket.tryConsume(packet.getLength(), System.nanoTime())) {
+                    mPacketsLimited++;
+                    packet.release();
+                    continue;
+                }
+
+                mPacketsRetransmitted++;
+            }
+
+            try {
+                mSink.send(packet);
+            } catch (IOException e) {
+                Log.v(TAG, "Failed retransmitting " + seq + ": " + e);
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    public synchronized long getPacketsRetransmitted() {
+        return mPacketsRetransmitted;
+    }
+
+    // NACKed too late, or never sent
+    public synchronized long getPacketsMissed() {
+        return mPacketsMissed;
+    }
+
+    // Not sent again because of the rate limit
+    public synchronized long getPacketsLimited() {
+        return mPacketsLimited;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            mHistory.clear();
+        }
+
+        mSink.close();
+    }
+}
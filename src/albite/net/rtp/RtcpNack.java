@@ -0,0 +1,105 @@
+package albite.net.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Generic NACKs (RFC 4585, section 6.2.1): transport layer feedback with
+// the sequence numbers of lost RTP packets. Each entry is a packet ID and
+// a bitmask of the 16 packets after it that were lost as well.
+public final class RtcpNack {
+
+    public static final int TYPE_TRANSPORT_FEEDBACK = 205;
+    public static final int FORMAT_GENERIC_NACK = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 4;
+
+    // An empty receiver report is the least a compound packet may start
+    // with (RFC 3550, section 6.1)
+    private static final int EMPTY_REPORT_SIZE = 8;
+
+    private RtcpNack() {
+    }
+
+    // The sequence numbers in all generic NACKs of a compound packet,
+    // or an empty array if there aren't any or the packet is malformed.
+    // The buffer's position is not changed.
+    public static int[] parse(ByteBuffer packet) {
+        ByteBuffer b = packet.duplicate();
+        int[] lost = new int[0];
+        int count = 0;
+
+        while (b.remaining() >= HEADER_SIZE - 4) {
+            int p = b.position();
+            int first = b.get(p) & 0xff;
+            int type = b.get(p + 1) & 0xff;
+            int length = 4 * ((b.getShort(p + 2) & 0xffff) + 1);
+
+            if (first >> 6 != RtpPacket.VERSION || length > b.remaining()) {
+                return new int[0];
+            }
+
+            if (type == TYPE_TRANSPORT_FEEDBACK && (first & 0x1f) == FORMAT_GENERIC_NACK) {
+                for (int e = p + HEADER_SIZE; e + ENTRY_SIZE <= p + length; e += ENTRY_SIZE) {
+                    int id = b.getShort(e) & 0xffff;
+                    int mask = b.getShort(e + 2) & 0xffff;
+
+                    if (lost.length < count + 17) {
+                        lost = Arrays.copyOf(lost, 2 * (count + 17));
+                    }
+
+                    lost[count++] = id;
+                    for (int i = 0; i < 16; i++) {
+                        if ((mask & (1 << i)) != 0) {
+                            lost[count++] = (id + i + 1) & 0xffff;
+                        }
+                    }
+                }
+            }
+
+            b.position(p + length);
+        }
+
+        return Arrays.copyOf(lost, count);
+    }
+
+    // The size of the compound packet for these sequence numbers, at most
+    public static int getMaxSize(int count) {
+        return EMPTY_REPORT_SIZE + HEADER_SIZE + ENTRY_SIZE * count;
+    }
+
+    // Writes a compound packet of an empty receiver report and a generic
+    // NACK for the sequence numbers, which have to be sorted in the order
+    // they were sent (e.g. 65534, 65535, 0, 1). The buffer needs
+    // getMaxSize(count) bytes remaining.
+    public static void write(ByteBuffer b, int senderSsrc, int mediaSsrc,
+            int[] sequenceNumbers, int count) {
+        b.put((byte) (RtpPacket.VERSION << 6)).put((byte) RtcpReport.TYPE_RECEIVER_REPORT)
+                .putShort((short) 1).putInt(senderSsrc);
+
+        int start = b.position();
+        b.put((byte) ((RtpPacket.VERSION << 6) | FORMAT_GENERIC_NACK))
+                .put((byte) TYPE_TRANSPORT_FEEDBACK)
+                .putShort((short) 0)
+                .putInt(senderSsrc)
+                .putInt(mediaSsrc);
+
+        for (int i = 0; i < count;) {
+            int id = sequenceNumbers[i++];
+            int mask = 0;
+
+            while (i < count) {
+                int offset = (sequenceNumbers[i] - id - 1) & 0xffff;
+                if (offset >= 16) {
+                    break;
+                }
+                mask |= 1 << offset;
+                i++;
+            }
+
+            b.putShort((short) id).putShort((short) mask);
+        }
+
+        b.putShort(start + 2, (short) ((b.position() - start) / 4 - 1));
+    }
+}
@@ -0,0 +1,109 @@
+package albite.net.rtp;
+
+import java.nio.ByteBuffer;
+
+// A reception report block of an RTCP sender or receiver report, i.e. how
+// a receiver is doing with one source (RFC 3550, section 6.4)
+public final class RtcpReport {
+
+    public static final int TYPE_SENDER_REPORT = 200;
+    public static final int TYPE_RECEIVER_REPORT = 201;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int SENDER_INFO_SIZE = 20;
+    private static final int BLOCK_SIZE = 24;
+
+    private final int mSsrc;
+    private final int mFractionLost;
+    private final int mCumulativeLost;
+    private final long mHighestSequence;
+    private final long mJitter;
+    private final long mReceivedNanos = System.nanoTime();
+
+    private RtcpReport(int ssrc, int fractionLost, int cumulativeLost,
+            long highestSequence, long jitter) {
+        mSsrc = ssrc;
+        mFractionLost = fractionLost;
+        mCumulativeLost = cumulativeLost;
+        mHighestSequence = highestSequence;
+        mJitter = jitter;
+    }
+
+    // The first report block of the first SR / RR in a compound packet,
+    // or null if there isn't any or the packet is malformed. The buffer's
+    // position is not changed.
+    public static RtcpReport parse(ByteBuffer packet) {
+        ByteBuffer b = packet.duplicate();
+
+        while (b.remaining() >= HEADER_SIZE) {
+            int p = b.position();
+            int first = b.get(p) & 0xff;
+            int type = b.get(p + 1) & 0xff;
+            int length = 4 * ((b.getShort(p + 2) & 0xffff) + 1);
+
+            if (first >> 6 != RtpPacket.VERSION || length > b.remaining()) {
+                return null;
+            }
+
+            int count = first & 0x1f;
+            int blocks = p + HEADER_SIZE;
+            if (type == TYPE_SENDER_REPORT) {
+                blocks += SENDER_INFO_SIZE;
+            }
+
+            if ((type == TYPE_SENDER_REPORT || type == TYPE_RECEIVER_REPORT) && count > 0) {
+                if (blocks + BLOCK_SIZE > p + length) {
+                    return null;
+                }
+
+                int lost = b.getInt(blocks + 4);
+                return new RtcpReport(
+                        b.getInt(blocks),
+                        lost >>> 24,
+                        // 24 bit signed
+                        (lost << 8) >> 8,
+                        b.getInt(blocks + 8) & 0xffffffffL,
+                        b.getInt(blocks + 12) & 0xffffffffL);
+            }
+
+            b.position(p + length);
+        }
+
+        return null;
+    }
+
+    // Of the source reported on
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    // Since the previous report, out of 256
+    public int getFractionLost() {
+        return mFractionLost;
+    }
+
+    // Since the beginning, may be negative with duplicates
+    public int getCumulativeLost() {
+        return mCumulativeLost;
+    }
+
+    // With the count of sequence number cycles in the upper 16 bits
+    public long getHighestSequence() {
+        return mHighestSequence;
+    }
+
+    // Interarrival jitter in RTP timestamp units
+    public long getJitter() {
+        return mJitter;
+    }
+
+    public long getAgeNanos() {
+        return System.nanoTime() - mReceivedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ssrc %08x: lost %d (%d/256), jitter %d",
+                mSsrc, mCumulativeLost, mFractionLost, mJitter);
+    }
+}
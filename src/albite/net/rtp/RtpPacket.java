@@ -0,0 +1,199 @@
+package albite.net.rtp;
+
+import albite.util.PooledBuffer;
+import java.nio.ByteBuffer;
+
+// Packets may be shared by several sessions, so they are reference counted
+// through the buffer that holds them (if any). A sink that keeps a packet
+// after send() returns must retain() it and release() it when done.
+public final class RtpPacket {
+
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 12;
+
+    // The packet may be gathered from several segments (e.g. a header
+    // and a payload sliced out of a bigger buffer). The fixed header
+    // must be entirely in the first segment.
+    private final PooledBuffer mOwner;
+    private final ByteBuffer[] mSegments;
+    private final int mLength;
+
+    public RtpPacket(ByteBuffer... segments) {
+        this(null, segments);
+    }
+
+    public RtpPacket(PooledBuffer owner, ByteBuffer... segments) {
+        if (segments.length == 0 || segments[0].remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("RTP header missing");
+        }
+
+        int length = 0;
+        for (ByteBuffer segment : segments) {
+            length += segment.remaining();
+        }
+
+        mOwner = owner;
+        mSegments = segments;
+        mLength = length;
+    }
+
+    // The packet is the buffer's content between its position and limit
+    public static RtpPacket wrap(PooledBuffer buffer) {
+        return new RtpPacket(buffer, buffer.buffer().slice());
+    }
+
+    public RtpPacket retain() {
+        if (mOwner != null) {
+            mOwner.retain();
+        }
+        return this;
+    }
+
+    public void release() {
+        if (mOwner != null) {
+            mOwner.release();
+        }
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getSegmentCount() {
+        return mSegments.length;
+    }
+
+    // The same packet may be written by several sinks at once, so each
+    // writer gets its own view of the segments
+    public ByteBuffer[] getSegments() {
+        ByteBuffer[] segments = new ByteBuffer[mSegments.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = mSegments[i].duplicate();
+        }
+        return segments;
+    }
+
+    public ByteBuffer getSegment(int index) {
+        return mSegments[index].duplicate();
+    }
+
+    // Writes a fixed header (no CSRCs, no extension) at the buffer's
+    // position, without changing it
+    public static void writeHeader(ByteBuffer buffer, boolean marker,
+            int payloadType, int sequenceNumber, long timestamp, int ssrc) {
+        int p = buffer.position();
+        buffer.put(p, (byte) (VERSION << 6));
+        buffer.put(p + 1, (byte) ((marker ? 0x80 : 0) | (payloadType & 0x7f)));
+        buffer.putShort(p + 2, (short) sequenceNumber);
+        buffer.putInt(p + 4, (int) timestamp);
+        buffer.putInt(p + 8, ssrc);
+    }
+
+    // A view of the payload, skipping CSRCs, header extension and
+    // padding. Packets made of several segments are expected to have
+    // the whole header in the segments before the last one.
+    // Returns null for malformed packets.
+    public ByteBuffer getPayload() {
+        int count = mSegments.length;
+        ByteBuffer b = mSegments[count - 1].duplicate();
+
+        int first = header().get(header().position()) & 0xff;
+
+        if (count == 1) {
+            int offset = HEADER_SIZE + 4 * (first & 0x0f);
+
+            if ((first & 0x10) != 0) {
+                // Header extension: 16 bit profile, 16 bit length in words
+                if (b.remaining() < offset + 4) {
+                    return null;
+                }
+                offset += 4 + 4 * (b.getShort(b.position() + offset + 2) & 0xffff);
+            }
+
+            if (b.remaining() < offset) {
+                return null;
+            }
+
+            b.position(b.position() + offset);
+        }
+
+        if ((first & 0x20) != 0 && b.hasRemaining()) {
+            // The last octet is the padding count, including itself
+            int padding = b.get(b.limit() - 1) & 0xff;
+            if (padding > b.remaining()) {
+                return null;
+            }
+            b.limit(b.limit() - padding);
+        }
+
+        return b.slice();
+    }
+
+    // The same packet with another sequence number and SSRC, e.g. for
+    // splicing streams into one. The header is copied and the payload
+    // shared, so the copy holds its own reference to the buffer (if any)
+    // and has to be released as well.
+    public RtpPacket rewrite(int sequenceNumber, int ssrc) {
+        ByteBuffer first = mSegments[0].duplicate();
+
+        // The whole header, with CSRCs and extension, if the first segment
+        // has it all
+        int b = first.get(first.position()) & 0xff;
+        int headerSize = HEADER_SIZE + 4 * (b & 0x0f);
+        if ((b & 0x10) != 0 && first.remaining() >= headerSize + 4) {
+            headerSize += 4 + 4 * (first.getShort(first.position() + headerSize + 2) & 0xffff);
+        }
+        if (first.remaining() < headerSize) {
+            headerSize = HEADER_SIZE;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        ByteBuffer source = first.duplicate();
+        source.limit(source.position() + headerSize);
+        header.put(source);
+        header.flip();
+        header.putShort(2, (short) sequenceNumber);
+        header.putInt(8, ssrc);
+
+        first.position(first.position() + headerSize);
+        ByteBuffer[] segments = new ByteBuffer[mSegments.length + 1];
+        segments[0] = header;
+        segments[1] = first.slice();
+        for (int i = 1; i < mSegments.length; i++) {
+            segments[i + 1] = mSegments[i].duplicate();
+        }
+
+        retain();
+        return new RtpPacket(mOwner, segments);
+    }
+
+    private ByteBuffer header() {
+        return mSegments[0];
+    }
+
+    public boolean isMarker() {
+        return (header().get(header().position() + 1) & 0x80) != 0;
+    }
+
+    public int getPayloadType() {
+        return header().get(header().position() + 1) & 0x7f;
+    }
+
+    public int getSequenceNumber() {
+        return header().getShort(header().position() + 2) & 0xffff;
+    }
+
+    public long getTimestamp() {
+        return header().getInt(header().position() + 4) & 0xffffffffL;
+    }
+
+    public int getSsrc() {
+        return header().getInt(header().position() + 8);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RTP pt=%d seq=%d ts=%d len=%d",
+                getPayloadType(), getSequenceNumber(), getTimestamp(), mLength);
+    }
+}
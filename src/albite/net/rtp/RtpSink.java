@@ -0,0 +1,9 @@
+package albite.net.rtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface RtpSink extends Closeable {
+
+    void send(RtpPacket packet) throws IOException;
+}
@@ -0,0 +1,45 @@
+package albite.net.rtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+// Produces the RTP packets of a single track for a single session.
+// The source is free to share the underlying media with other sources.
+public interface RtpSource extends Closeable {
+
+    interface Factory {
+
+        // Throws FileNotFoundException if there is no media for the URI
+        RtpSource createSource(URI uri) throws IOException;
+    }
+
+    // Sources that support PLAY with a Range
+    interface Seekable {
+
+        // Moves to the closest point at or before the time (in seconds)
+        // a player may start from, and returns its time
+        double seek(double seconds) throws IOException;
+
+        // Stops at the closest point at or after the time (in seconds),
+        // as if paused there, and returns its time. A negative time plays
+        // to the end, and returns -1.
+        double setEnd(double seconds) throws IOException;
+
+        // In seconds
+        double getDuration() throws IOException;
+    }
+
+    // Sources that adapt to how well the client receives them
+    interface Adaptive {
+
+        // Called with each receiver report from the client
+        void onReport(RtcpReport report);
+    }
+
+    // Starts or resumes sending to the sink
+    void start(RtpSink sink) throws IOException;
+
+    // Stops sending, keeping the position (if any) for a following start()
+    void pause();
+}
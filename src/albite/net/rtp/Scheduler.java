@@ -0,0 +1,220 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.Closeable;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A single thread running time-critical tasks for many sessions.
+// Tasks are kept ordered by their deadline (System.nanoTime()), and the
+// thread only waits until the earliest one, so there is no need for
+// a sleeping thread per session.
+public class Scheduler implements Closeable {
+
+    private static final String TAG = "Scheduler";
+
+    public static abstract class Task {
+
+        // All guarded by the scheduler lock
+        private long mDeadline;
+        private boolean mQueued;
+        private boolean mRunning;
+        private boolean mRescheduled;
+        private long mRescheduledDeadline;
+
+        // Returns the delay in nanoseconds until the next run,
+        // or a negative number if the task has nothing more to do.
+        protected abstract long run(long now);
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mCondition = mLock.newCondition();
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>(64,
+            (a, b) -> Long.signum(a.mDeadline - b.mDeadline));
+
+    private final SchedulerThread mThread;
+    private volatile boolean mExitRequested = false;
+
+    public Scheduler() {
+        this(TAG);
+    }
+
+    public Scheduler(String name) {
+        mThread = new SchedulerThread(name);
+        mThread.start();
+    }
+
+    public void schedule(Task task) {
+        schedule(task, 0);
+    }
+
+    // Makes sure the task runs after the delay at the latest.
+    // If it is already due earlier, this does nothing.
+    public void schedule(Task task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+
+        mLock.lock();
+        try {
+            if (task.mRunning) {
+                if (!task.mRescheduled || deadline - task.mRescheduledDeadline < 0) {
+                    task.mRescheduled = true;
+                    task.mRescheduledDeadline = deadline;
+                }
+                return;
+            }
+
+            if (task.mQueued) {
+                if (deadline - task.mDeadline >= 0) {
+                    return;
+                }
+
+                mQueue.remove(task);
+            }
+
+            enqueue(task, deadline);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void cancel(Task task) {
+        mLock.lock();
+        try {
+            if (task.mQueued) {
+                mQueue.remove(task);
+                task.mQueued = false;
+            }
+
+            task.mRescheduled = false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getTaskCount() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void enqueue(Task task, long deadline) {
+        task.mDeadline = deadline;
+        task.mQueued = true;
+        mQueue.add(task);
+
+        if (mQueue.peek() == task) {
+            // The new task is the earliest, so the thread must wake up
+            mCondition.signal();
+        }
+    }
+
+    @Override
+    public void close() {
+        mExitRequested = true;
+
+        mLock.lock();
+        try {
+            mCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class SchedulerThread extends Thread {
+
+        SchedulerThread(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        private Task next() throws InterruptedException {
+            mLock.lock();
+            try {
+                while (!mExitRequested) {
+                    Task task = mQueue.peek();
+
+                    if (task == null) {
+                        mCondition.await();
+                        continue;
+                    }
+
+                    long wait = task.mDeadline - System.nanoTime();
+                    if (wait > 0) {
+                        mCondition.awaitNanos(wait);
+                        continue;
+                    }
+
+                    mQueue.poll();
+                    task.mQueued = false;
+                    task.mRunning = true;
+                    return task;
+                }
+
+                return null;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        private void finish(Task task, long delay) {
+            mLock.lock();
+            try {
+                task.mRunning = false;
+
+                long deadline = System.nanoTime() + delay;
+                boolean again = delay >= 0;
+
+                if (task.mRescheduled) {
+                    task.mRescheduled = false;
+                    if (!again || task.mRescheduledDeadline - deadline < 0) {
+                        deadline = task.mRescheduledDeadline;
+                    }
+                    again = true;
+                }
+
+                if (again) {
+                    enqueue(task, deadline);
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+
+                try {
+                    task = next();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (task == null) {
+                    Log.i(TAG, "Exiting");
+                    return;
+                }
+
+                long delay = -1;
+                try {
+                    delay = task.run(System.nanoTime());
+                } catch (Throwable tr) {
+                    Log.e(TAG, "Task failed", tr);
+                } finally {
+                    finish(task, delay);
+                }
+            }
+        }
+    }
+}
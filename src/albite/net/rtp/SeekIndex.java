@@ -0,0 +1,223 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+// Maps time to the packet a player may start from. The index is built
+// once by scanning the stream, stored next to it (<file>.idx) and mapped
+// on later use. Lookups are a binary search over the mapping.
+//
+// Layout (little endian):
+//   int magic, int version, long source size, long source modified,
+//   long duration, int entry count, int reserved
+//   entries: long time (90 kHz since the first PCR), long packet index
+public final class SeekIndex {
+
+    private static final String TAG = "SeekIndex";
+
+    public static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x58535441; // ATSX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int OFFSET_SIZE = 8;
+    private static final int OFFSET_MODIFIED = 16;
+    private static final int OFFSET_DURATION = 24;
+    private static final int OFFSET_COUNT = 32;
+
+    // PCR jumps larger than this are discontinuities, not elapsed time
+    private static final long MAX_PCR_GAP = 10 * TsFileSource.CLOCK_RATE;
+
+    private final ByteBuffer mIndex;
+    private final int mCount;
+    private final long mDuration;
+
+    private SeekIndex(ByteBuffer index) {
+        mIndex = index;
+        mCount = index.getInt(OFFSET_COUNT);
+        mDuration = index.getLong(OFFSET_DURATION);
+    }
+
+    public static SeekIndex open(TsFile ts) throws IOException {
+        File file = new File(ts.getPath());
+        File indexFile = new File(file.getPath() + EXTENSION);
+
+        if (indexFile.isFile()) {
+            ByteBuffer index = map(indexFile);
+            if (isValid(index, file)) {
+                return new SeekIndex(index);
+            }
+            Log.i(TAG, "Index is stale: " + indexFile);
+        }
+
+        ByteBuffer index = build(ts, file);
+
+        try {
+            store(index, indexFile);
+        } catch (IOException e) {
+            // E.g. a read-only media directory. Keep it in memory.
+            Log.w(TAG, "Failed storing index " + indexFile, e);
+        }
+
+        return new SeekIndex(index);
+    }
+
+    private static ByteBuffer map(File indexFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                return ByteBuffer.allocate(0);
+            }
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return index.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static boolean isValid(ByteBuffer index, File file) {
+        return index.capacity() >= HEADER_SIZE
+                && index.getInt(0) == MAGIC
+                && index.getInt(4) == VERSION
+                && index.getLong(OFFSET_SIZE) == file.length()
+                && index.getLong(OFFSET_MODIFIED) == file.lastModified()
+                && index.capacity() == HEADER_SIZE + (long) index.getInt(OFFSET_COUNT) * ENTRY_SIZE;
+    }
+
+    private static ByteBuffer build(TsFile ts, File file) {
+        long start = System.nanoTime();
+
+        // Random access points are the entries of choice. If the stream
+        // doesn't mark them, fall back to packets with a PCR.
+        long[] access = new long[256];
+        int accessCount = 0;
+        long[] pcrs = new long[256];
+        int pcrCount = 0;
+
+        long last = TsFile.NO_PCR;
+        long time = 0;
+
+        for (long i = 0; i < ts.getPacketCount(); i++) {
+            long pcr = ts.getPcr(i);
+
+            if (pcr != TsFile.NO_PCR) {
+                if (last != TsFile.NO_PCR) {
+                    long delta = (pcr - last) & TsFile.PCR_MASK;
+                    if (delta <= MAX_PCR_GAP) {
+                        time += delta;
+                    }
+                }
+                last = pcr;
+
+                if (pcrCount == 0 || pcrs[2 * pcrCount - 2] < time) {
+                    pcrs = add(pcrs, pcrCount++, time, i);
+                }
+            }
+
+            if (ts.isRandomAccessPoint(i)
+                    && (accessCount == 0 || access[2 * accessCount - 2] < time)) {
+                access = add(access, accessCount++, time, i);
+            }
+        }
+
+        long[] entries = accessCount > 0 ? access : pcrs;
+        int count = accessCount > 0 ? accessCount : pcrCount;
+
+        ByteBuffer index = ByteBuffer.allocateDirect(HEADER_SIZE + count * ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        index.putLong(OFFSET_SIZE, file.length());
+        index.putLong(OFFSET_MODIFIED, file.lastModified());
+        index.putLong(OFFSET_DURATION, time);
+        index.putInt(OFFSET_COUNT, count);
+
+        for (int i = 0; i < count; i++) {
+            index.putLong(HEADER_SIZE + i * ENTRY_SIZE, entries[2 * i]);
+            index.putLong(HEADER_SIZE + i * ENTRY_SIZE + 8, entries[2 * i + 1]);
+        }
+
+        Log.i(TAG, String.format("Indexed %s: %d entries in %d ms",
+                file, count, (System.nanoTime() - start) / 1000000));
+
+        return index;
+    }
+
+    private static long[] add(long[] entries, int count, long time, long packet) {
+        if (2 * count == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+
+        entries[2 * count] = time;
+        entries[2 * count + 1] = packet;
+        return entries;
+    }
+
+    private static void store(ByteBuffer index, File indexFile) throws IOException {
+        // Write a temporary file and move it over, so that other
+        // servers never map a half written index
+        File temp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                ByteBuffer b = index.duplicate();
+                b.clear();
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+            }
+
+            Files.move(temp.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    // In 90 kHz units
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public long getTime(int entry) {
+        return mIndex.getLong(HEADER_SIZE + entry * ENTRY_SIZE);
+    }
+
+    public long getPacket(int entry) {
+        return mIndex.getLong(HEADER_SIZE + entry * ENTRY_SIZE + 8);
+    }
+
+    // The last entry at or before the time (in 90 kHz units),
+    // or -1 if the index is empty
+    public int find(long time) {
+        int low = 0;
+        int high = mCount - 1;
+        int found = mCount > 0 ? 0 : -1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,479 @@
+package albite.net.rtp;
+
+import albite.util.BufferPool;
+import albite.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Writes the payloads of the RTP packets it's sent to files, one segment
+// after another, e.g. the transport stream of MP2T packets (payload type
+// 33). Payloads are written as they are, so media that need more than
+// stripping the RTP header (e.g. H.264 fragments) have to be
+// depacketized before.
+//
+// Packets are not copied: the recorder keeps them until it has a batch
+// worth writing, and writes the payloads straight from the packets'
+// buffers, with one gathering write.
+//
+// The files are written by a writer thread, in the order the batches
+// were made, so the thread sending the packets (e.g. a UdpIngest) never
+// waits on the disk. If the disk falls behind by more than a few batches,
+// packets are dropped.
+//
+// A new segment is started once the current one is long enough, on the
+// next keyframe if there is a detector. Each finished segment is added
+// to an index next to them, with the times it spans.
+public class SegmentRecorder implements RtpSink {
+
+    private static final String TAG = "SegmentRecorder";
+
+    public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+    // Packets per batch at most, however small they are
+    private static final int MAX_BATCH_PACKETS = 1024;
+
+    // A batch is written by then at the latest, so that a slow stream
+    // doesn't sit in memory
+    private static final long MAX_BATCH_DELAY_MS = 1000;
+
+    // Batches waiting for the writer at most
+    private static final int MAX_PENDING_BATCHES = 8;
+
+    // Shared by all recorders, so a slow disk holds up a few of the
+    // threads, not the ingest
+    private static final int WRITER_THREADS = 4;
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(WRITER_THREADS, r -> {
+        Thread t = new Thread(BufferPool.flushingCaches(r), TAG);
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static final String INDEX_SUFFIX = ".idx";
+
+    public static final class Segment {
+
+        private final File mFile;
+        private final long mStartMillis;
+        private final long mEndMillis;
+        private final long mSize;
+
+        Segment(File file, long startMillis, long endMillis, long size) {
+            mFile = file;
+            mStartMillis = startMillis;
+            mEndMillis = endMillis;
+            mSize = size;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        // Wall clock, of the first packet in the segment
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        // Of the first packet after the segment
+        public long getEndMillis() {
+            return mEndMillis;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        @Override
+        public String toString() {
+            return mStartMillis + " " + mEndMillis + " " + mSize + " " + mFile.getName();
+        }
+    }
+
+    private final File mDirectory;
+    private final String mName;
+    private final String mExtension;
+    private final long mSegmentMillis;
+    private final KeyframeDetector mDetector;
+    private final int mBatchSize;
+    private final Executor mWriter;
+
+    // The batch being filled, and when the segment it belongs to started
+    // (if there is one)
+    private Batch mBatch;
+    private boolean mSegmentOpen = false;
+    private long mSegmentStarted;
+
+    // For the writer, in order
+    private final ArrayDeque<Op> mOps = new ArrayDeque<>();
+    private boolean mWriting = false;
+    private int mPendingBatches = 0;
+    private IOException mFailure;
+
+    // Only touched by the writer
+    private FileChannel mChannel;
+    private File mFile;
+    private long mFileStarted;
+    private long mSegmentSize;
+
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    private boolean mClosed = false;
+    private long mPacketsWritten;
+    private long mBytesWritten;
+    private long mWrites;
+    private long mPacketsDropped;
+
+    // Segments are named <name>-<start millis><extension>, e.g.
+    // cam1-1700000000000.ts. detector may be null to cut the segments
+    // anywhere.
+    public SegmentRecorder(File directory, String name, String extension,
+            long segmentMillis, KeyframeDetector detector) {
+        this(directory, name, extension, segmentMillis, detector, DEFAULT_BATCH_SIZE);
+    }
+
+    public SegmentRecorder(File directory, String name, String extension,
+            long segmentMillis, KeyframeDetector detector, int batchSize) {
+        this(directory, name, extension, segmentMillis, detector, batchSize, WRITERS);
+    }
+
+    // The files are written on the executor, one task at a time
+    public SegmentRecorder(File directory, String name, String extension,
+            long segmentMillis, KeyframeDetector detector, int batchSize, Executor writer) {
+        // Segments are named after their start, so two can't start at once
+        if (segmentMillis <= 0) {
+            throw new IllegalArgumentException("Invalid segment length: " + segmentMillis);
+        }
+
+        mDirectory = directory;
+        mName = name;
+        mExtension = extension;
+        mSegmentMillis = segmentMillis;
+        mDetector = detector;
+        mBatchSize = batchSize;
+        mWriter = writer;
+    }
+
+    public File getIndexFile() {
+        return new File(mDirectory, mName + INDEX_SUFFIX);
+    }
+
+    @Override
+    public void send(RtpPacket packet) throws IOException {
+        ByteBuffer payload = packet.getPayload();
+
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Recorder is closed");
+            }
+
+            if (mFailure != null) {
+                throw new IOException("Recording failed", mFailure);
+            }
+
+            if (payload == null) {
+                mPacketsDropped++;
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if (!mSegmentOpen) {
+                // Segments start on a keyframe, the first one too
+                if (mDetector != null && !mDetector.isKeyframe(packet)) {
+                    mPacketsDropped++;
+                    return;
+                }
+                startSegment(now);
+            } else if (now - mSegmentStarted >= mSegmentMillis
+                    && (mDetector == null || mDetector.isKeyframe(packet)
+                            // Too long without a keyframe
+                            || now - mSegmentStarted >= 2 * mSegmentMillis)) {
+                finishSegment(now);
+                startSegment(now);
+            }
+
+            if (mBatch == null) {
+                if (mPendingBatches >= MAX_PENDING_BATCHES) {
+                    // The disk can't keep up
+                    mPacketsDropped++;
+                    return;
+                }
+                mBatch = new Batch(now);
+            }
+
+            mBatch.add(packet, payload);
+
+            if (mBatch.mBytes >= mBatchSize || mBatch.mCount == MAX_BATCH_PACKETS
+                    || now - mBatch.mStarted >= MAX_BATCH_DELAY_MS) {
+                flush();
+            }
+        }
+    }
+
+    private void startSegment(long now) {
+        mSegmentOpen = true;
+        mSegmentStarted = now;
+        submit(() -> openFile(now));
+    }
+
+    private void finishSegment(long now) {
+        flush();
+        mSegmentOpen = false;
+        submit(() -> closeFile(now));
+    }
+
+    // Hands the batch to the writer
+    private void flush() {
+        if (mBatch != null) {
+            mPendingBatches++;
+            submit(mBatch);
+            mBatch = null;
+        }
+    }
+
+    private void submit(Op op) {
+        mOps.add(op);
+        if (!mWriting) {
+            mWriting = true;
+            mWriter.execute(this::write);
+        }
+    }
+
+    // Runs the ops queued so far, on the writer. After a failure the rest
+    // are only discarded.
+    private void write() {
+        while (true) {
+            Op op;
+            IOException failure;
+            synchronized (this) {
+                op = mOps.poll();
+                if (op == null) {
+                    mWriting = false;
+                    notifyAll();
+                    return;
+                }
+                failure = mFailure;
+            }
+
+            try {
+                if (failure == null) {
+                    op.run();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed recording " + mName, e);
+                synchronized (this) {
+                    mFailure = e;
+                }
+                closeQuietly();
+            } finally {
+                op.discard();
+            }
+        }
+    }
+
+    private void openFile(long now) throws IOException {
+        mFile = new File(mDirectory, mName + "-" + now + mExtension);
+        mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        mFileStarted = now;
+        mSegmentSize = 0;
+    }
+
+    private void closeQuietly() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing " + mFile, e);
+            }
+            mChannel = null;
+        }
+    }
+
+    private void closeFile(long now) throws IOException {
+        mChannel.close();
+        mChannel = null;
+
+        Segment segment = new Segment(mFile, mFileStarted, now, mSegmentSize);
+        synchronized (this) {
+            mSegments.add(segment);
+        }
+
+        try (Writer index = new OutputStreamWriter(
+                new FileOutputStream(getIndexFile(), true), StandardCharsets.UTF_8)) {
+            index.write(segment + "\n");
+        }
+
+        Log.i(TAG, "Recorded " + segment);
+    }
+
+    // Work for the writer
+    private interface Op {
+
+        void run() throws IOException;
+
+        // Called after run(), or instead of it
+        default void discard() {
+        }
+    }
+
+    // Packets kept until written, and their payloads
+    private final class Batch implements Op {
+
+        final long mStarted;
+        private final RtpPacket[] mPackets = new RtpPacket[MAX_BATCH_PACKETS];
+        private final ByteBuffer[] mPayloads = new ByteBuffer[MAX_BATCH_PACKETS];
+        int mCount = 0;
+        int mBytes = 0;
+
+        Batch(long started) {
+            mStarted = started;
+        }
+
+        void add(RtpPacket packet, ByteBuffer payload) {
+            mPackets[mCount] = packet.retain();
+            mPayloads[mCount] = payload;
+            mCount++;
+            mBytes += payload.remaining();
+        }
+
+        @Override
+        public void run() throws IOException {
+            long remaining = mBytes;
+            int first = 0;
+            int writes = 0;
+            while (remaining > 0) {
+                remaining -= mChannel.write(mPayloads, first, mCount - first);
+                writes++;
+                while (first < mCount && !mPayloads[first].hasRemaining()) {
+                    first++;
+                }
+            }
+
+            mSegmentSize += mBytes;
+            synchronized (SegmentRecorder.this) {
+                mWrites += writes;
+                mPacketsWritten += mCount;
+                mBytesWritten += mBytes;
+            }
+        }
+
+        @Override
+        public void discard() {
+            for (int i = 0; i < mCount; i++) {
+                mPackets[i].release();
+                mPackets[i] = null;
+                mPayloads[i] = null;
+            }
+
+            synchronized (SegmentRecorder.this) {
+                mPendingBatches--;
+            }
+        }
+    }
+
+    // The segments finished so far
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(mSegments);
+    }
+
+    // The segments in a recorder's index file, in the order they were
+    // recorded
+    public static List<Segment> readIndex(File indexFile) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        File directory = indexFile.getParentFile();
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split(" ", 4);
+                if (fields.length < 4) {
+                    continue;
+                }
+
+                try {
+                    segments.add(new Segment(new File(directory, fields[3]),
+                            Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid index entry in " + indexFile + ": " + line);
+                }
+            }
+        }
+
+        return segments;
+    }
+
+    // The segment recorded at the time, or null
+    public static Segment find(List<Segment> segments, long millis) {
+        int i = Collections.binarySearch(segments, null, (segment, unused) ->
+                segment.mEndMillis <= millis ? -1 : segment.mStartMillis > millis ? 1 : 0);
+        return i < 0 ? null : segments.get(i);
+    }
+
+    public synchronized long getPacketsWritten() {
+        return mPacketsWritten;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    // Gathering writes, each of a whole batch unless the file system
+    // took less
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    // Malformed, before the first keyframe, or behind a slow disk
+    public synchronized long getPacketsDropped() {
+        return mPacketsDropped;
+    }
+
+    // Writes what's left and finishes the last segment, and waits for the
+    // writer to be done
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            if (mSegmentOpen) {
+                finishSegment(System.currentTimeMillis());
+            }
+        }
+
+        try {
+            while (mWriting) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (mFailure != null) {
+            throw new IOException("Recording failed", mFailure);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
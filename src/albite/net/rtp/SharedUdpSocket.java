@@ -0,0 +1,287 @@
+package albite.net.rtp;
+
+import albite.util.BufferPool;
+import albite.util.Log;
+import albite.util.LongHashMap;
+import albite.util.PooledBuffer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A single RTP / RTCP port pair that many sessions send from, instead of
+// each binding its own. Every session gets a sink that addresses its
+// client, and RTCP from clients is handed to the session that registered
+// the client's address.
+//
+// Sends are combined: a sink queues its packet, and whichever thread finds
+// the socket idle sends everything queued, so the sessions of a busy
+// socket go out in batches from one thread rather than contending for it.
+// (Java has no sendmmsg(), so a batch is still one system call per packet.)
+public final class SharedUdpSocket implements Closeable {
+
+    private static final String TAG = "SharedUdpSocket";
+
+    private static final BufferPool POOL = BufferPool.direct();
+
+    public interface RtcpHandler {
+
+        // The packet is only valid during the call
+        void onRtcp(InetSocketAddress source, ByteBuffer packet);
+    }
+
+    private static final class Pending {
+
+        final RtpPacket mPacket;
+        final InetSocketAddress mTarget;
+
+        Pending(RtpPacket packet, InetSocketAddress target) {
+            mPacket = packet;
+            mTarget = target;
+        }
+    }
+
+    private final UdpPortPair mPorts;
+    private final Thread mRtcpThread;
+
+    private final ConcurrentLinkedQueue<Pending> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mSending = new AtomicBoolean();
+
+    // IPv4 sources are keyed by address and port packed in a long, the
+    // rest (IPv6) by their socket address
+    private final LongHashMap<RtcpHandler> mHandlers = new LongHashMap<>();
+    private final Map<InetSocketAddress, RtcpHandler> mOtherHandlers = new HashMap<>();
+
+    private final AtomicLong mPacketsSent = new AtomicLong();
+    private final AtomicLong mPacketsFailed = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    private volatile long mRtcpReceived;
+    private volatile long mRtcpUnknown;
+
+    private SharedUdpSocket(UdpPortPair ports) {
+        mPorts = ports;
+        mRtcpThread = new Thread(this::receiveRtcp, TAG + "-" + ports);
+        mRtcpThread.setDaemon(true);
+        mRtcpThread.start();
+    }
+
+    public static SharedUdpSocket open(int rtpPort) throws IOException {
+        return new SharedUdpSocket(UdpPortPair.open(rtpPort));
+    }
+
+    public static SharedUdpSocket openEphemeral() throws IOException {
+        return new SharedUdpSocket(UdpPortPair.openEphemeral());
+    }
+
+    public int getRtpPort() {
+        return mPorts.getRtpPort();
+    }
+
+    public int getRtcpPort() {
+        return mPorts.getRtcpPort();
+    }
+
+    // A sink sending from the shared RTP port to the target. Closing it
+    // leaves the socket open.
+    public RtpSink newSink(InetSocketAddress target) {
+        return newSink(target, null, null);
+    }
+
+    // Also hands the RTCP from rtcpSource to the handler, until the sink
+    // is closed
+    public RtpSink newSink(InetSocketAddress target,
+            InetSocketAddress rtcpSource, RtcpHandler handler) {
+
+        Closeable registration = handler == null ? null : addRtcpHandler(rtcpSource, handler);
+
+        return new RtpSink() {
+            @Override
+            public void send(RtpPacket packet) throws IOException {
+                mQueue.add(new Pending(packet.retain(), target));
+                flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (registration != null) {
+                    registration.close();
+                }
+            }
+        };
+    }
+
+    private void flush() {
+        // Someone may have queued more just as the previous sender was done
+        while (!mQueue.isEmpty() && mSending.compareAndSet(false, true)) {
+            try {
+                int count = 0;
+                PooledBuffer scratch = null;
+
+                for (Pending p = mQueue.poll(); p != null; p = mQueue.poll()) {
+                    try {
+                        if (p.mPacket.getSegmentCount() == 1) {
+                            mPorts.getRtpChannel().send(p.mPacket.getSegment(0), p.mTarget);
+                        } else {
+                            // Unconnected sends can't gather
+                            if (scratch == null) {
+                                scratch = POOL.allocate(BufferPool.SIZE_CHUNK);
+                            }
+
+                            ByteBuffer b = scratch.buffer();
+                            b.clear();
+                            for (ByteBuffer segment : p.mPacket.getSegments()) {
+                                b.put(segment);
+                            }
+                            b.flip();
+                            mPorts.getRtpChannel().send(b, p.mTarget);
+                        }
+
+                        mPacketsSent.incrementAndGet();
+                    } catch (IOException e) {
+                        mPacketsFailed.incrementAndGet();
+                        Log.v(TAG, "Failed sending to " + p.mTarget + ": " + e);
+                    } finally {
+                        p.mPacket.release();
+                    }
+
+                    count++;
+                }
+
+                if (scratch != null) {
+                    scratch.release();
+                }
+
+                if (count > 0) {
+                    mBatches.incrementAndGet();
+                }
+            } finally {
+                mSending.set(false);
+            }
+        }
+    }
+
+    private static long key(InetSocketAddress address) {
+        long ip = ByteBuffer.wrap(address.getAddress().getAddress()).getInt() & 0xffffffffL;
+        return (ip << 16) | address.getPort();
+    }
+
+    // RTCP from source is given to the handler until the returned
+    // registration is closed
+    public Closeable addRtcpHandler(InetSocketAddress source, RtcpHandler handler) {
+        boolean v4 = source.getAddress() instanceof Inet4Address;
+
+        synchronized (mHandlers) {
+            if (v4) {
+                mHandlers.put(key(source), handler);
+            } else {
+                mOtherHandlers.put(source, handler);
+            }
+        }
+
+        return () -> {
+            synchronized (mHandlers) {
+                if (v4) {
+                    if (mHandlers.get(key(source)) == handler) {
+                        mHandlers.remove(key(source));
+                    }
+                } else {
+                    mOtherHandlers.remove(source, handler);
+                }
+            }
+        };
+    }
+
+    private RtcpHandler getRtcpHandler(InetSocketAddress source) {
+        synchronized (mHandlers) {
+            return source.getAddress() instanceof Inet4Address
+                    ? mHandlers.get(key(source))
+                    : mOtherHandlers.get(source);
+        }
+    }
+
+    public int getRtcpHandlerCount() {
+        synchronized (mHandlers) {
+            return mHandlers.size() + mOtherHandlers.size();
+        }
+    }
+
+    private void receiveRtcp() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BufferPool.SIZE_PACKET);
+
+        while (true) {
+            try {
+                buffer.clear();
+                InetSocketAddress source = (InetSocketAddress) mPorts.getRtcpChannel().receive(buffer);
+                buffer.flip();
+                mRtcpReceived++;
+
+                RtcpHandler handler = getRtcpHandler(source);
+                if (handler == null) {
+                    mRtcpUnknown++;
+                    continue;
+                }
+
+                handler.onRtcp(source, buffer);
+            } catch (AsynchronousCloseException e) {
+                return;
+            } catch (IOException e) {
+                if (!mPorts.getRtcpChannel().isOpen()) {
+                    return;
+                }
+                Log.w(TAG, "Failed receiving RTCP", e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "RTCP handler failed", e);
+            }
+        }
+    }
+
+    public long getPacketsSent() {
+        return mPacketsSent.get();
+    }
+
+    public long getPacketsFailed() {
+        return mPacketsFailed.get();
+    }
+
+    // Average packets per batch = packets sent / batches
+    public long getBatchCount() {
+        return mBatches.get();
+    }
+
+    public long getRtcpReceived() {
+        return mRtcpReceived;
+    }
+
+    // RTCP from sources no session registered
+    public long getRtcpUnknown() {
+        return mRtcpUnknown;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPorts.close();
+
+        try {
+            mRtcpThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Anything queued after the socket was closed
+        for (Pending p = mQueue.poll(); p != null; p = mQueue.poll()) {
+            p.mPacket.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mPorts.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package albite.net.rtp;
+
+// A token bucket in bytes. Not thread-safe: the owner must synchronize.
+public final class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final double mRate; // bytes per nanosecond
+    private final long mBurst;
+
+    private double mTokens;
+    private long mLastRefill;
+
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        this(bytesPerSecond, burstBytes, System.nanoTime());
+    }
+
+    public TokenBucket(long bytesPerSecond, long burstBytes, long now) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid rate / burst: %d / %d", bytesPerSecond, burstBytes));
+        }
+
+        mRate = bytesPerSecond / NANOS_PER_SECOND;
+        mBurst = burstBytes;
+        mTokens = burstBytes;
+        mLastRefill = now;
+    }
+
+    public long getBytesPerSecond() {
+        return Math.round(mRate * NANOS_PER_SECOND);
+    }
+
+    public long getBurst() {
+        return mBurst;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - mLastRefill;
+        if (elapsed > 0) {
+            mTokens = Math.min(mBurst, mTokens + elapsed * mRate);
+            mLastRefill = now;
+        }
+    }
+
+    // Nanoseconds until there are enough tokens for sending the bytes.
+    // Packets larger than the burst wait for a full bucket.
+    public long delayFor(int bytes, long now) {
+        refill(now);
+
+        double missing = Math.min(bytes, mBurst) - mTokens;
+        if (missing <= 0) {
+            return 0;
+        }
+
+        return (long) Math.ceil(missing / mRate);
+    }
+
+    public boolean tryConsume(int bytes, long now) {
+        if (delayFor(bytes, now) > 0) {
+            return false;
+        }
+
+        mTokens -= bytes;
+        return true;
+    }
+}
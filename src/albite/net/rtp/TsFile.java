@@ -0,0 +1,169 @@
+package albite.net.rtp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+// An MPEG transport stream file, mapped into memory. Mapped files are
+// shared, so all viewers of the same file read the same pages from the
+// page cache instead of each one going through its own stream.
+public final class TsFile implements Closeable {
+
+    public static final int PACKET_SIZE = 188;
+    public static final int SYNC_BYTE = 0x47;
+    public static final long NO_PCR = -1;
+
+    // PCR base (90 kHz) is 33 bits
+    public static final long PCR_MASK = (1L << 33) - 1;
+
+    // A single mapping can't be larger than 2 GB. Mappings are aligned to
+    // packets, so a packet never crosses two of them.
+    private static final long CHUNK_PACKETS = 1L << 22;
+    private static final long CHUNK_SIZE = CHUNK_PACKETS * PACKET_SIZE;
+
+    private static final Map<String, TsFile> FILES = new HashMap<>();
+
+    private final String mPath;
+    private final MappedByteBuffer[] mChunks;
+    private final long mPacketCount;
+    private int mReferences = 1;
+    private SeekIndex mSeekIndex;
+
+    private TsFile(String path, MappedByteBuffer[] chunks, long packetCount) {
+        mPath = path;
+        mChunks = chunks;
+        mPacketCount = packetCount;
+    }
+
+    public static TsFile open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+
+        synchronized (FILES) {
+            TsFile ts = FILES.get(path);
+            if (ts != null) {
+                ts.mReferences++;
+                return ts;
+            }
+
+            ts = map(path);
+            FILES.put(path, ts);
+            return ts;
+        }
+    }
+
+    private static TsFile map(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+                FileChannel channel = raf.getChannel()) {
+
+            // Ignore any trailing partial packet
+            long packetCount = channel.size() / PACKET_SIZE;
+            if (packetCount == 0) {
+                throw new IOException("Empty transport stream: " + path);
+            }
+
+            int chunkCount = (int) ((packetCount + CHUNK_PACKETS - 1) / CHUNK_PACKETS);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+
+            for (int i = 0; i < chunkCount; i++) {
+                long position = i * CHUNK_SIZE;
+                long size = Math.min(CHUNK_SIZE, packetCount * PACKET_SIZE - position);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+
+            if ((chunks[0].get(0) & 0xff) != SYNC_BYTE) {
+                throw new IOException("Not a transport stream: " + path);
+            }
+
+            // The mappings stay valid after the channel is closed
+            return new TsFile(path, chunks, packetCount);
+        }
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    private MappedByteBuffer chunk(long index) {
+        return mChunks[(int) (index / CHUNK_PACKETS)];
+    }
+
+    private static int offset(long index) {
+        return (int) (index % CHUNK_PACKETS) * PACKET_SIZE;
+    }
+
+    // Returns up to count packets starting at index as a read-only view
+    // into the mapping. Fewer packets are returned at the end of a chunk.
+    public ByteBuffer getPackets(long index, int count) {
+        long inChunk = CHUNK_PACKETS - index % CHUNK_PACKETS;
+        count = (int) Math.min(count, Math.min(inChunk, mPacketCount - index));
+
+        ByteBuffer b = chunk(index).asReadOnlyBuffer();
+        int offset = offset(index);
+        b.limit(offset + count * PACKET_SIZE);
+        b.position(offset);
+        return b.slice();
+    }
+
+    // The adaptation field flags of a packet or 0 if there are none
+    private int adaptationFlags(ByteBuffer chunk, int offset) {
+        int control = (chunk.get(offset + 3) >> 4) & 0x03;
+        if ((control & 0x02) == 0 || (chunk.get(offset + 4) & 0xff) == 0) {
+            return 0;
+        }
+
+        return chunk.get(offset + 5) & 0xff;
+    }
+
+    // The PCR base (90 kHz) of a packet or NO_PCR
+    public long getPcr(long index) {
+        ByteBuffer chunk = chunk(index);
+        int offset = offset(index);
+
+        if ((adaptationFlags(chunk, offset) & 0x10) == 0) {
+            return NO_PCR;
+        }
+
+        return ((long) (chunk.get(offset + 6) & 0xff) << 25)
+                | ((chunk.get(offset + 7) & 0xff) << 17)
+                | ((chunk.get(offset + 8) & 0xff) << 9)
+                | ((chunk.get(offset + 9) & 0xff) << 1)
+                | ((chunk.get(offset + 10) & 0xff) >> 7);
+    }
+
+    // Whether the packet has the random access indicator set,
+    // i.e. a decoder may start from it
+    public boolean isRandomAccessPoint(long index) {
+        return (adaptationFlags(chunk(index), offset(index)) & 0x40) != 0;
+    }
+
+    // Built (or loaded) on first use and shared by all viewers
+    public SeekIndex getSeekIndex() throws IOException {
+        synchronized (this) {
+            if (mSeekIndex == null) {
+                mSeekIndex = SeekIndex.open(this);
+            }
+            return mSeekIndex;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (FILES) {
+            if (--mReferences == 0) {
+                // There is no way to unmap explicitly, the pages
+                // are released once the buffers are collected
+                FILES.remove(mPath);
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package albite.net.rtp;
+
+import albite.util.BufferPool;
+import albite.util.Log;
+import albite.util.PooledBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+// Streams an MPEG-TS file as RTP payload type 33 (RFC 2250). Each RTP
+// packet carries 7 TS packets, sent as a view into the mapped file along
+// with a pooled header. Packets are sent in real time according to the
+// PCR, which also provides the RTP timestamps, as both run at 90 kHz.
+public class TsFileSource extends Scheduler.Task implements RtpSource, RtpSource.Seekable {
+
+    private static final String TAG = "TsFileSource";
+
+    public static final int PAYLOAD_TYPE = 33;
+    public static final int CLOCK_RATE = 90000;
+    public static final int PACKETS_PER_RTP = 7;
+
+    // Don't hog the scheduler thread if we are behind
+    private static final int MAX_BURST = 32;
+
+    // A PCR jump larger than this is treated as a discontinuity
+    private static final long MAX_PCR_GAP = 10 * CLOCK_RATE;
+
+    private static final Random RANDOM = new Random();
+
+    private final TsFile mFile;
+    private final Scheduler mScheduler;
+    private final int mSsrc;
+    private final long mTimestampOffset;
+    private int mSequenceNumber;
+
+    private RtpSink mSink;
+    private boolean mRunning = false;
+    private boolean mClosed = false;
+    private long mPosition = 0;
+
+    // The packet to stop before, or -1 for the end of the file
+    private long mEndPosition = -1;
+
+    // The PCR of the last sent packet, and the PCR / time
+    // the wall clock was anchored at
+    private long mLastPcr = 0;
+    private long mAnchorPcr = TsFile.NO_PCR;
+    private long mAnchorTime;
+
+    public TsFileSource(File file, Scheduler scheduler) throws IOException {
+        this(TsFile.open(file), scheduler);
+    }
+
+    // Takes ownership of the (reference to the) file
+    public TsFileSource(TsFile file, Scheduler scheduler) {
+        mFile = file;
+        mScheduler = scheduler;
+
+        synchronized (RANDOM) {
+            mSsrc = RANDOM.nextInt();
+            mTimestampOffset = RANDOM.nextInt() & 0xffffffffL;
+            mSequenceNumber = RANDOM.nextInt(0x10000);
+        }
+    }
+
+    public TsFile getFile() {
+        return mFile;
+    }
+
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    public synchronized long getPosition() {
+        return mPosition;
+    }
+
+    public synchronized boolean isFinished() {
+        return mPosition >= mFile.getPacketCount();
+    }
+
+    @Override
+    public synchronized void start(RtpSink sink) throws IOException {
+        if (mClosed) {
+            throw new IOException("Source is closed");
+        }
+
+        mSink = sink;
+        mRunning = true;
+
+        // Re-anchor the clock on the next PCR
+        mAnchorPcr = TsFile.NO_PCR;
+        mScheduler.schedule(this);
+    }
+
+    @Override
+    public synchronized double seek(double seconds) throws IOException {
+        SeekIndex index = mFile.getSeekIndex();
+
+        int entry = index.find((long) (seconds * CLOCK_RATE));
+        if (entry < 0) {
+            mPosition = 0;
+            return 0;
+        }
+
+        mPosition = index.getPacket(entry);
+
+        // Re-anchor the clock on the next PCR
+        mAnchorPcr = TsFile.NO_PCR;
+        return (double) index.getTime(entry) / CLOCK_RATE;
+    }
+
+    @Override
+    public synchronized double setEnd(double seconds) throws IOException {
+        if (seconds < 0) {
+            mEndPosition = -1;
+            return -1;
+        }
+
+        // The random access point at or after the time
+        SeekIndex index = mFile.getSeekIndex();
+        long time = (long) Math.ceil(seconds * CLOCK_RATE);
+        int entry = index.find(time);
+        if (entry < 0 || index.getTime(entry) < time) {
+            entry++;
+        }
+
+        if (entry >= index.size()) {
+            mEndPosition = -1;
+            return getDuration();
+        }
+
+        mEndPosition = index.getPacket(entry);
+        return (double) index.getTime(entry) / CLOCK_RATE;
+    }
+
+    @Override
+    public double getDuration() throws IOException {
+        return (double) mFile.getSeekIndex().getDuration() / CLOCK_RATE;
+    }
+
+    @Override
+    public void pause() {
+        synchronized (this) {
+            mRunning = false;
+        }
+
+        mScheduler.cancel(this);
+    }
+
+    private long firstPcr(long index, int count) {
+        for (int i = 0; i < count; i++) {
+            long pcr = mFile.getPcr(index + i);
+            if (pcr != TsFile.NO_PCR) {
+                return pcr;
+            }
+        }
+
+        return TsFile.NO_PCR;
+    }
+
+    @Override
+    protected synchronized long run(long now) {
+        for (int burst = 0; burst < MAX_BURST; burst++) {
+            if (!mRunning) {
+                return -1;
+            }
+
+            long end = mEndPosition < 0 ? mFile.getPacketCount() : mEndPosition;
+            long remaining = end - mPosition;
+            if (remaining <= 0) {
+                Log.i(TAG, (mEndPosition < 0 ? "End of stream: " : "End of range: ") + mFile.getPath());
+                mRunning = false;
+                return -1;
+            }
+
+            int count = (int) Math.min(PACKETS_PER_RTP, remaining);
+            long pcr = firstPcr(mPosition, count);
+
+            if (pcr != TsFile.NO_PCR) {
+                long elapsed = (pcr - mAnchorPcr) & TsFile.PCR_MASK;
+
+                if (mAnchorPcr == TsFile.NO_PCR || elapsed > MAX_PCR_GAP) {
+                    mAnchorPcr = pcr;
+                    mAnchorTime = now;
+                } else {
+                    long due = mAnchorTime + elapsed * 1000000000L / CLOCK_RATE;
+                    if (due - now > 0) {
+                        return due - now;
+                    }
+                }
+
+                mLastPcr = pcr;
+            }
+
+            send(count);
+        }
+
+        return 0;
+    }
+
+    private void send(int count) {
+        PooledBuffer header = BufferPool.direct().allocate(RtpPacket.HEADER_SIZE);
+        RtpPacket.writeHeader(header.buffer(), false, PAYLOAD_TYPE,
+                mSequenceNumber, (mLastPcr + mTimestampOffset) & 0xffffffffL, mSsrc);
+
+        // The payload is straight from the mapping
+        RtpPacket packet = new RtpPacket(header,
+                header.buffer(), mFile.getPackets(mPosition, count));
+
+        mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+        mPosition += count;
+
+        try {
+            mSink.send(packet);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed sending packet", e);
+        } finally {
+            packet.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            mRunning = false;
+        }
+
+        mScheduler.cancel(this);
+        mFile.close();
+    }
+}
@@ -0,0 +1,38 @@
+package albite.net.rtp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+
+// Maps request URIs to .ts files under a root directory,
+// e.g. rtsp://host/movies/a.ts -> <root>/movies/a.ts
+public class TsFileSourceFactory implements RtpSource.Factory {
+
+    private final File mRoot;
+    private final Scheduler mScheduler;
+
+    public TsFileSourceFactory(File root, Scheduler scheduler) {
+        mRoot = root;
+        mScheduler = scheduler;
+    }
+
+    public File getFile(URI uri) throws IOException {
+        String path = uri.getPath();
+        if (path == null || path.isEmpty() || path.contains("..")) {
+            throw new FileNotFoundException("Invalid path: " + uri);
+        }
+
+        File file = new File(mRoot, path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+
+        return file;
+    }
+
+    @Override
+    public TsFileSource createSource(URI uri) throws IOException {
+        return new TsFileSource(getFile(uri), mScheduler);
+    }
+}
@@ -0,0 +1,210 @@
+package albite.net.rtp;
+
+import albite.util.BufferPool;
+import albite.util.Log;
+import albite.util.PooledBuffer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+// Receives the RTP of many publishers on a single thread and publishes
+// each packet to its stream (or hands it to a sink, e.g. a recorder).
+// Packets are read straight into pooled buffers, which the stream shares
+// with its viewers.
+//
+// Buffering is bounded by the socket receive buffer: a publisher sending
+// faster than it can be taken in loses packets in the kernel, without
+// affecting any other.
+public final class UdpIngest implements Closeable {
+
+    private static final String TAG = "UdpIngest";
+
+    public static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+    // Packets taken from a channel before moving on to the next, so that
+    // a publisher that never lets up doesn't keep the others waiting
+    public static final int MAX_BURST = 32;
+
+    private static final BufferPool POOL = BufferPool.direct();
+
+    private static class Channel {
+
+        final DatagramChannel mChannel;
+        final LiveStream mStream;
+        final RtpSink mSink;
+
+        Channel(DatagramChannel channel, LiveStream stream, RtpSink sink) {
+            mChannel = channel;
+            mStream = stream;
+            mSink = sink;
+        }
+
+        String getName() {
+            return mStream != null ? mStream.getName() : mSink.toString();
+        }
+    }
+
+    private final Selector mSelector;
+    private final Thread mThread;
+
+    // Registrations must happen on the selector thread
+    private final List<Channel> mPending = new ArrayList<>();
+    private volatile boolean mClosed = false;
+
+    private volatile long mPackets;
+    private volatile long mBytes;
+
+    public UdpIngest() throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this::run, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    // Starts publishing what's received on the channel, until remove()
+    public void add(DatagramChannel channel, LiveStream stream) throws IOException {
+        add(new Channel(channel, stream, null));
+    }
+
+    // Sends what's received on the channel to the sink, until remove().
+    // The sink is called on the ingest thread, so it must not block.
+    public void add(DatagramChannel channel, RtpSink sink) throws IOException {
+        add(new Channel(channel, null, sink));
+    }
+
+    private void add(Channel c) throws IOException {
+        DatagramChannel channel = c.mChannel;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+
+        synchronized (mPending) {
+            if (mClosed) {
+                throw new IOException("Ingest is closed");
+            }
+            mPending.add(c);
+        }
+
+        mSelector.wakeup();
+    }
+
+    // Closes the channel. A registered channel is only really closed
+    // (its port freed) once the selector goes around, so wake it up.
+    public void remove(DatagramChannel channel) throws IOException {
+        try {
+            channel.close();
+        } finally {
+            mSelector.wakeup();
+        }
+    }
+
+    private void run() {
+        List<Channel> pending = new ArrayList<>();
+
+        while (!mClosed) {
+            try {
+                mSelector.select();
+
+                synchronized (mPending) {
+                    pending.addAll(mPending);
+                    mPending.clear();
+                }
+
+                for (Channel c : pending) {
+                    try {
+                        c.mChannel.register(mSelector, SelectionKey.OP_READ, c);
+                    } catch (ClosedChannelException e) {
+                        // Closed before it got here
+                    }
+                }
+                pending.clear();
+
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    Channel c = (Channel) key.attachment();
+                    try {
+                        drain(c);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed receiving for " + c.getName(), e);
+                        key.cancel();
+                    }
+                }
+                mSelector.selectedKeys().clear();
+            } catch (IOException e) {
+                Log.e(TAG, "Selector failed", e);
+                return;
+            }
+        }
+
+        Log.i(TAG, "Exiting");
+    }
+
+    // What's left is picked up on the next select
+    private void drain(Channel c) throws IOException {
+        for (int i = 0; i < MAX_BURST; i++) {
+            PooledBuffer buffer = POOL.allocate(BufferPool.SIZE_PACKET);
+
+            try {
+                if (c.mChannel.receive(buffer.buffer()) == null) {
+                    return;
+                }
+
+                buffer.buffer().flip();
+                int length = buffer.buffer().remaining();
+                mPackets++;
+                mBytes += length;
+
+                if (length < RtpPacket.HEADER_SIZE) {
+                    continue;
+                }
+
+                if (c.mStream != null) {
+                    c.mStream.publish(RtpPacket.wrap(buffer));
+                } else {
+                    try {
+                        c.mSink.send(RtpPacket.wrap(buffer));
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed sending to " + c.getName(), e);
+                    }
+                }
+            } finally {
+                // The stream / sink retains whatever it keeps
+                buffer.release();
+            }
+        }
+    }
+
+    public int getChannelCount() {
+        return mSelector.keys().size();
+    }
+
+    public long getPacketsReceived() {
+        return mPackets;
+    }
+
+    public long getBytesReceived() {
+        return mBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mPending) {
+            mClosed = true;
+            mPending.clear();
+        }
+
+        mSelector.wakeup();
+
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        mSelector.close();
+    }
+}
@@ -0,0 +1,127 @@
+package albite.net.rtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+// A bound RTP / RTCP channel pair on an even / odd port pair
+public final class UdpPortPair implements Closeable {
+
+    private static final int MAX_ATTEMPTS = 32;
+
+    private final DatagramChannel mRtp;
+    private final DatagramChannel mRtcp;
+    private final int mRtpPort;
+
+    // Given the pair back on close, if any
+    private final PortAllocator mAllocator;
+    private boolean mClosed = false;
+
+    private UdpPortPair(DatagramChannel rtp, DatagramChannel rtcp, int rtpPort,
+            PortAllocator allocator) {
+        mRtp = rtp;
+        mRtcp = rtcp;
+        mRtpPort = rtpPort;
+        mAllocator = allocator;
+    }
+
+    public static UdpPortPair open(int rtpPort) throws IOException {
+        return open(rtpPort, null);
+    }
+
+    static UdpPortPair open(int rtpPort, PortAllocator allocator) throws IOException {
+        if (rtpPort % 2 != 0) {
+            throw new IllegalArgumentException("RTP port must be even: " + rtpPort);
+        }
+
+        DatagramChannel rtp = DatagramChannel.open();
+        DatagramChannel rtcp = null;
+
+        try {
+            rtp.bind(new InetSocketAddress(rtpPort));
+            rtcp = DatagramChannel.open();
+            rtcp.bind(new InetSocketAddress(rtpPort + 1));
+            return new UdpPortPair(rtp, rtcp, rtpPort, allocator);
+        } catch (IOException e) {
+            rtp.close();
+            if (rtcp != null) {
+                rtcp.close();
+            }
+            throw e;
+        }
+    }
+
+    // Lets the system pick the RTP port, retrying until it is even
+    // and the following one is free
+    public static UdpPortPair openEphemeral() throws IOException {
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            DatagramChannel rtp = DatagramChannel.open();
+            DatagramChannel rtcp = null;
+
+            try {
+                rtp.bind(new InetSocketAddress(0));
+                int port = ((InetSocketAddress) rtp.getLocalAddress()).getPort();
+
+                if (port % 2 == 0 && port < 0xffff) {
+                    rtcp = DatagramChannel.open();
+                    rtcp.bind(new InetSocketAddress(port + 1));
+                    return new UdpPortPair(rtp, rtcp, port, null);
+                }
+            } catch (BindException e) {
+                // The odd port is taken, try again
+            }
+
+            rtp.close();
+            if (rtcp != null) {
+                rtcp.close();
+            }
+        }
+
+        throw new BindException("Could not find a free RTP / RTCP port pair");
+    }
+
+    public int getRtpPort() {
+        return mRtpPort;
+    }
+
+    public int getRtcpPort() {
+        return mRtpPort + 1;
+    }
+
+    public DatagramChannel getRtpChannel() {
+        return mRtp;
+    }
+
+    public DatagramChannel getRtcpChannel() {
+        return mRtcp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+
+        try {
+            mRtp.close();
+        } finally {
+            try {
+                mRtcp.close();
+            } finally {
+                if (mAllocator != null) {
+                    mAllocator.release(mRtpPort);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d-%d", getRtpPort(), getRtcpPort());
+    }
+}
@@ -0,0 +1,88 @@
+package albite.net.rtp;
+
+import albite.util.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.channels.DatagramChannel;
+
+public class UdpSink implements RtpSink {
+
+    private static final String TAG = "UdpSink";
+
+    private final DatagramChannel mChannel;
+    private final InetSocketAddress mTarget;
+
+    private long mPacketsSent;
+    private long mBytesSent;
+    private long mPacketsFailed;
+
+    // The channel is connected to the target, so that packets made of
+    // several segments may be sent with a single gathering write
+    public UdpSink(DatagramChannel channel, InetSocketAddress target) throws IOException {
+        mChannel = channel;
+        mTarget = target;
+
+        if (!channel.isConnected()) {
+            channel.connect(target);
+        }
+    }
+
+    public static UdpSink open(int localPort, InetSocketAddress target) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(localPort));
+            return new UdpSink(channel, target);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public InetSocketAddress getTarget() {
+        return mTarget;
+    }
+
+    public synchronized long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getPacketsFailed() {
+        return mPacketsFailed;
+    }
+
+    @Override
+    public void send(RtpPacket packet) throws IOException {
+        write(packet);
+    }
+
+    // Returns false if the packet was lost to a client that isn't
+    // listening, which send() doesn't throw for
+    synchronized boolean write(RtpPacket packet) throws IOException {
+        try {
+            if (packet.getSegmentCount() == 1) {
+                mChannel.write(packet.getSegment(0));
+            } else {
+                mChannel.write(packet.getSegments());
+            }
+
+            mPacketsSent++;
+            mBytesSent += packet.getLength();
+            return true;
+        } catch (PortUnreachableException e) {
+            // The client is not listening (yet). That's not fatal for UDP.
+            mPacketsFailed++;
+            Log.v(TAG, "Destination unreachable: " + mTarget);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
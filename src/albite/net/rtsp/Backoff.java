@@ -0,0 +1,43 @@
+package albite.net.rtsp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Exponential backoff with jitter: each delay is twice the previous one,
+// up to a maximum, and randomly cut by up to half, so that many clients
+// that lost the same server don't all come back to it at the same time.
+//
+// Not thread-safe.
+public final class Backoff {
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private int mAttempts = 0;
+
+    public Backoff(long baseMillis, long maxMillis) {
+        if (baseMillis <= 0 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid base / max: %d / %d", baseMillis, maxMillis));
+        }
+
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+    }
+
+    // The delay before the next attempt
+    public long next() {
+        // Shifting by more than this overflows
+        long delay = mAttempts >= 30 ? mMaxMillis : Math.min(mMaxMillis, mBaseMillis << mAttempts);
+        mAttempts++;
+
+        long half = delay / 2;
+        return delay - half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    public void reset() {
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,569 @@
+package albite.net.rtsp;
+
+import albite.net.rtp.Scheduler;
+import albite.util.BufferPool;
+import albite.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Opens and keeps open the sessions of many cameras at once.
+//
+// Everything that talks to the cameras (handshakes, keep-alives,
+// reconnects) is a job, and jobs run with bounded concurrency, both in
+// all and per host, so that a cold start doesn't flood DNS, the NAT table
+// or the cameras themselves. The handshakes of a start are spread at
+// random over a window on top of that. Clients are only created (and
+// their host names resolved) when their handshake runs.
+//
+// All timers are tasks of one scheduler thread, however many sessions
+// there are. A session that fails is tried again with exponential
+// backoff, for as long as the fleet is open.
+public class ClientFleet implements Closeable {
+
+    private static final String TAG = "ClientFleet";
+
+    public static final int DEFAULT_MAX_CONCURRENT = 32;
+    public static final int DEFAULT_MAX_PER_HOST = 2;
+    public static final long DEFAULT_START_SPREAD_MS = 10000;
+
+    // Used when the server gives no session timeout
+    public static final long DEFAULT_KEEP_ALIVE_MS = ClientSession.DEFAULT_KEEP_ALIVE_MS;
+
+    public interface Listener {
+
+        // The session is playing, from the start or after a reconnect,
+        // when it may have been set up again
+        default void onOpened(Member member, ClientSession session) {
+        }
+
+        // The session failed and is being tried again
+        default void onLost(Member member, IOException e) {
+        }
+    }
+
+    public enum State {
+        // Waiting to start
+        PENDING,
+        CONNECTING,
+        PLAYING,
+        // Waiting to try again
+        RETRYING,
+        CLOSED,
+    }
+
+    // A camera of the fleet. Its timers go through the fleet's scheduler,
+    // and its jobs through the fleet's queue.
+    public final class Member extends Scheduler.Task {
+
+        private final URI mUri;
+        private final String mHost;
+        private final Backoff mBackoff;
+
+        // Guarded by the fleet
+        private State mState = State.PENDING;
+        private ClientSession mSession;
+        private boolean mUseOptions = false;
+        private IOException mLastError;
+        private long mKeepAlives;
+
+        private Member(URI uri) {
+            mUri = uri;
+            mHost = uri.getHost();
+            mBackoff = new Backoff(mRetryBaseMillis, mRetryMaxMillis);
+        }
+
+        public URI getUri() {
+            return mUri;
+        }
+
+        public State getState() {
+            synchronized (ClientFleet.this) {
+                return mState;
+            }
+        }
+
+        // Null unless the session is playing
+        public ClientSession getSession() {
+            synchronized (ClientFleet.this) {
+                return mState == State.PLAYING ? mSession : null;
+            }
+        }
+
+        public IOException getLastError() {
+            synchronized (ClientFleet.this) {
+                return mLastError;
+            }
+        }
+
+        public long getKeepAliveCount() {
+            synchronized (ClientFleet.this) {
+                return mKeepAlives;
+            }
+        }
+
+        // The timer is up: whatever is next is queued
+        @Override
+        protected long run(long now) {
+            submit(this);
+            return -1;
+        }
+
+        // Runs on the fleet's executor
+        private void runJob() {
+            ClientSession session;
+            State state;
+
+            synchronized (ClientFleet.this) {
+                if (mClosed) {
+                    return;
+                }
+                session = mSession;
+                state = mState;
+                if (state == State.PENDING || state == State.RETRYING && session == null) {
+                    setState(this, State.CONNECTING);
+                }
+            }
+
+            if (session == null) {
+                open();
+            } else if (state == State.PLAYING) {
+                keepAlive(session);
+            } else {
+                reconnect(session);
+            }
+        }
+
+        private void open() {
+            long start = System.nanoTime();
+
+            try {
+                RtspClient client = new RtspClient(mUri);
+                client.setDescriptionCache(mDescriptionCache);
+                ClientSession session = client.open();
+
+                mHandshakes.increment();
+                mHandshakeNanos.add(System.nanoTime() - start);
+                opened(session);
+            } catch (IOException | RuntimeException e) {
+                mHandshakeFailures.increment();
+                failed(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        private void keepAlive(ClientSession session) {
+            try {
+                boolean options;
+                synchronized (ClientFleet.this) {
+                    options = mUseOptions;
+                }
+
+                if (options) {
+                    session.getClient().requestOptions();
+                } else {
+                    try {
+                        session.getClient().requestKeepAlive();
+                    } catch (RtspException e) {
+                        int code = e.getStatus().getCode();
+                        if (code != Response.Status.METHOD_NOT_ALLOWED.getCode()
+                                && code != Response.Status.NOT_IMPLEMENTED.getCode()) {
+                            throw e;
+                        }
+
+                        // Some cameras only take OPTIONS
+                        synchronized (ClientFleet.this) {
+                            mUseOptions = true;
+                        }
+                        session.getClient().requestOptions();
+                    }
+                }
+
+                synchronized (ClientFleet.this) {
+                    mKeepAlives++;
+                }
+                mFleetKeepAlives.increment();
+                scheduleKeepAlive(session);
+            } catch (IOException e) {
+                mKeepAliveFailures.increment();
+                failed(e);
+            }
+        }
+
+        private void reconnect(ClientSession session) {
+            try {
+                session.reconnect(1);
+                mReconnects.increment();
+                opened(session);
+            } catch (RtspException e) {
+                // The server won't take the session back: start over
+                Log.i(TAG, mUri + " refused the session back, opening anew: " + e);
+                closeQuietly(session);
+                synchronized (ClientFleet.this) {
+                    mSession = null;
+                    if (mClosed) {
+                        return;
+                    }
+                    setState(this, State.CONNECTING);
+                }
+                open();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+
+        private void opened(ClientSession session) {
+            synchronized (ClientFleet.this) {
+                if (mClosed) {
+                    // Closed during the handshake
+                    closeQuietly(session);
+                    return;
+                }
+
+                mSession = session;
+                mLastError = null;
+                mBackoff.reset();
+                setState(this, State.PLAYING);
+            }
+
+            scheduleKeepAlive(session);
+
+            for (Listener listener : mListeners) {
+                listener.onOpened(this, session);
+            }
+        }
+
+        private void failed(IOException e) {
+            long delay;
+
+            synchronized (ClientFleet.this) {
+                if (mClosed) {
+                    return;
+                }
+
+                mLastError = e;
+                delay = mBackoff.next();
+                setState(this, State.RETRYING);
+            }
+
+            Log.i(TAG, mUri + " failed, retrying in " + delay + " ms: " + e);
+            mScheduler.schedule(this, TimeUnit.MILLISECONDS.toNanos(delay));
+
+            for (Listener listener : mListeners) {
+                listener.onLost(this, e);
+            }
+        }
+
+        // At half the session timeout, give or take a tenth, so that the
+        // keep-alives of sessions started together drift apart
+        private void scheduleKeepAlive(ClientSession session) {
+            int timeout = session.getClient().getSessionTimeout();
+            long interval = mKeepAliveMillis > 0 ? mKeepAliveMillis
+                    : timeout > 0 ? timeout * 1000L / 2 : DEFAULT_KEEP_ALIVE_MS;
+            long jitter = interval / 10;
+            interval += ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+
+            mScheduler.schedule(this, TimeUnit.MILLISECONDS.toNanos(interval));
+        }
+
+        @Override
+        public String toString() {
+            return mUri + " " + getState();
+        }
+    }
+
+    private final int mMaxConcurrent;
+    private final int mMaxPerHost;
+    private final ExecutorService mExecutor;
+    private final Scheduler mScheduler = new Scheduler(TAG);
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile long mStartSpreadMillis = DEFAULT_START_SPREAD_MS;
+    private volatile long mKeepAliveMillis = 0;
+    private volatile long mRetryBaseMillis = ClientSession.RECONNECT_BASE_DELAY_MS;
+    private volatile long mRetryMaxMillis = 60000;
+    private volatile DescriptionCache mDescriptionCache = DescriptionCache.shared();
+
+    // All guarded by this
+    private final List<Member> mMembers = new ArrayList<>();
+    private final Map<String, Host> mHosts = new HashMap<>();
+    private final ArrayDeque<Host> mReadyHosts = new ArrayDeque<>();
+    private int mQueued = 0;
+    private final Map<State, Integer> mStateCounts = new EnumMap<>(State.class);
+    private int mRunning = 0;
+    private int mPeakRunning = 0;
+    private boolean mClosed = false;
+
+    private final LongAdder mHandshakes = new LongAdder();
+    private final LongAdder mHandshakeNanos = new LongAdder();
+    private final LongAdder mHandshakeFailures = new LongAdder();
+    private final LongAdder mFleetKeepAlives = new LongAdder();
+    private final LongAdder mKeepAliveFailures = new LongAdder();
+    private final LongAdder mReconnects = new LongAdder();
+
+    public ClientFleet() {
+        this(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_PER_HOST);
+    }
+
+    public ClientFleet(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent <= 0 || maxPerHost <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid concurrency: %d / %d per host", maxConcurrent, maxPerHost));
+        }
+
+        mMaxConcurrent = maxConcurrent;
+        mMaxPerHost = maxPerHost;
+        mExecutor = Executors.newFixedThreadPool(maxConcurrent, r -> {
+            Thread t = new Thread(BufferPool.flushingCaches(r), TAG);
+            t.setDaemon(true);
+            return t;
+        });
+
+        for (State state : State.values()) {
+            mStateCounts.put(state, 0);
+        }
+    }
+
+    // The handshakes of members added at once start at random over this
+    public void setStartSpread(long millis) {
+        mStartSpreadMillis = millis;
+    }
+
+    // 0 to go by the session timeouts
+    public void setKeepAliveInterval(long millis) {
+        mKeepAliveMillis = millis;
+    }
+
+    // For members added after this call
+    public void setRetryDelays(long baseMillis, long maxMillis) {
+        mRetryBaseMillis = baseMillis;
+        mRetryMaxMillis = maxMillis;
+    }
+
+    // Null to describe every time
+    public void setDescriptionCache(DescriptionCache cache) {
+        mDescriptionCache = cache;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    // Opens a session for the URI, some time within the start spread
+    public Member add(URI uri) {
+        Member member = new Member(uri);
+
+        synchronized (this) {
+            if (mClosed) {
+                throw new IllegalStateException("Fleet is closed");
+            }
+
+            mMembers.add(member);
+            mStateCounts.merge(State.PENDING, 1, Integer::sum);
+        }
+
+        long spread = mStartSpreadMillis;
+        long delay = spread > 0 ? ThreadLocalRandom.current().nextLong(spread) : 0;
+        mScheduler.schedule(member, TimeUnit.MILLISECONDS.toNanos(delay));
+        return member;
+    }
+
+    public List<Member> add(List<URI> uris) {
+        List<Member> members = new ArrayList<>(uris.size());
+        for (URI uri : uris) {
+            members.add(add(uri));
+        }
+        return members;
+    }
+
+    private void setState(Member member, State state) {
+        mStateCounts.merge(member.mState, -1, Integer::sum);
+        mStateCounts.merge(state, 1, Integer::sum);
+        member.mState = state;
+    }
+
+    // The queued jobs of a host, oldest first, and how many of its jobs
+    // are running. Guarded by the fleet.
+    private static final class Host {
+
+        final ArrayDeque<Member> mQueue = new ArrayDeque<>();
+        int mRunning = 0;
+
+        // Whether it is in the ready hosts
+        boolean mReady = false;
+    }
+
+    private synchronized void submit(Member member) {
+        if (mClosed) {
+            return;
+        }
+
+        Host host = mHosts.computeIfAbsent(member.mHost, h -> new Host());
+        host.mQueue.add(member);
+        mQueued++;
+        ready(host);
+        dispatch();
+    }
+
+    // Hosts with queued jobs and room for another one wait their turn
+    private void ready(Host host) {
+        if (!host.mReady && !host.mQueue.isEmpty() && host.mRunning < mMaxPerHost) {
+            host.mReady = true;
+            mReadyHosts.add(host);
+        }
+    }
+
+    // Starts the queued jobs that the limits allow, a job of each ready
+    // host in turn, without looking at the jobs that have to wait
+    private void dispatch() {
+        while (mRunning < mMaxConcurrent && !mReadyHosts.isEmpty()) {
+            Host host = mReadyHosts.poll();
+            host.mReady = false;
+
+            Member member = host.mQueue.poll();
+            mQueued--;
+            host.mRunning++;
+            ready(host);
+
+            mRunning++;
+            mPeakRunning = Math.max(mPeakRunning, mRunning);
+
+            mExecutor.execute(() -> {
+                try {
+                    member.runJob();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Job failed for " + member.mUri, e);
+                } finally {
+                    finished(member);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Member member) {
+        mRunning--;
+        Host host = mHosts.get(member.mHost);
+        host.mRunning--;
+        if (host.mRunning == 0 && host.mQueue.isEmpty()) {
+            mHosts.remove(member.mHost);
+        } else {
+            ready(host);
+        }
+
+        dispatch();
+    }
+
+    public synchronized List<Member> getMembers() {
+        return new ArrayList<>(mMembers);
+    }
+
+    public synchronized int getCount(State state) {
+        return mStateCounts.get(state);
+    }
+
+    // Jobs waiting for the limits
+    public synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning;
+    }
+
+    public synchronized int getPeakRunningCount() {
+        return mPeakRunning;
+    }
+
+    public long getHandshakeCount() {
+        return mHandshakes.sum();
+    }
+
+    public long getHandshakeFailureCount() {
+        return mHandshakeFailures.sum();
+    }
+
+    public long getAverageHandshakeNanos() {
+        long handshakes = mHandshakes.sum();
+        return handshakes == 0 ? 0 : mHandshakeNanos.sum() / handshakes;
+    }
+
+    public long getKeepAliveCount() {
+        return mFleetKeepAlives.sum();
+    }
+
+    public long getKeepAliveFailureCount() {
+        return mKeepAliveFailures.sum();
+    }
+
+    public long getReconnectCount() {
+        return mReconnects.sum();
+    }
+
+    private static void closeQuietly(ClientSession session) {
+        try {
+            session.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed closing " + session, e);
+        }
+    }
+
+    // Tears down all sessions, within the concurrency limit
+    @Override
+    public void close() throws IOException {
+        List<ClientSession> sessions = new ArrayList<>();
+
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+
+            mClosed = true;
+            for (Host host : mHosts.values()) {
+                host.mQueue.clear();
+                host.mReady = false;
+            }
+            mReadyHosts.clear();
+            mQueued = 0;
+
+            for (Member member : mMembers) {
+                if (member.mSession != null) {
+                    sessions.add(member.mSession);
+                }
+                setState(member, State.CLOSED);
+            }
+        }
+
+        for (Member member : getMembers()) {
+            mScheduler.cancel(member);
+        }
+        mScheduler.close();
+
+        for (ClientSession session : sessions) {
+            mExecutor.execute(() -> closeQuietly(session));
+        }
+
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d members: %s, %d queued, %d running",
+                mMembers.size(), mStateCounts, mQueued, mRunning);
+    }
+}
@@ -0,0 +1,403 @@
+package albite.net.rtsp;
+
+import albite.net.rtp.KeyframeDetector;
+import albite.net.rtp.NackGenerator;
+import albite.net.rtp.Scheduler;
+import albite.net.rtp.SegmentRecorder;
+import albite.net.rtp.UdpIngest;
+import albite.net.rtp.UdpPortPair;
+import albite.util.BufferPool;
+import albite.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A session opened with RtspClient.open(): the description, the tracks
+// that were set up with their local ports, and how long each phase of
+// the handshake took
+public class ClientSession implements Closeable {
+
+    private static final String TAG = "ClientSession";
+
+    public static final long RECONNECT_BASE_DELAY_MS = 100;
+    public static final long RECONNECT_MAX_DELAY_MS = 10000;
+
+    // Used when the server gives no session timeout
+    public static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+
+    // Told what the watcher does, on its thread
+    public interface Listener {
+
+        // A keep-alive failed, and the session is being reconnected
+        default void onLost(ClientSession session, IOException e) {
+        }
+
+        // Reconnected, after having been set up again or not
+        default void onReconnected(ClientSession session, boolean setUp) {
+        }
+
+        // The server refused the session back, and the watcher stopped.
+        // The session is to be closed and opened anew.
+        default void onFailed(ClientSession session, IOException e) {
+        }
+    }
+
+    public static class Track {
+
+        private final SessionDescription.Media mMedia;
+        private final URI mUri;
+        private final UdpPortPair mPorts;
+        private RtpTransport mServerTransport;
+
+        Track(SessionDescription.Media media, URI uri, UdpPortPair ports) {
+            mMedia = media;
+            mUri = uri;
+            mPorts = ports;
+        }
+
+        public SessionDescription.Media getMedia() {
+            return mMedia;
+        }
+
+        public URI getUri() {
+            return mUri;
+        }
+
+        // The bound channels to receive RTP / RTCP on
+        public UdpPortPair getPorts() {
+            return mPorts;
+        }
+
+        public RtpTransport getServerTransport() {
+            return mServerTransport;
+        }
+
+        void setServerTransport(RtpTransport transport) {
+            mServerTransport = transport;
+        }
+    }
+
+    // Records the payloads of a track, as received by the ingest, to
+    // segments in the directory, cut on keyframes where the encoding has
+    // them (e.g. MP2T segments for payload type 33). The caller closes
+    // the recorder once the session is closed.
+    public SegmentRecorder record(Track track, UdpIngest ingest, File directory,
+            String name, long segmentMillis) throws IOException {
+        String encoding = track.getMedia().getEncoding();
+        String extension = SessionDescription.ENCODING_MP2T.equalsIgnoreCase(encoding) ? ".ts"
+                : encoding != null ? "." + encoding.toLowerCase() : ".rtp";
+
+        SegmentRecorder recorder = new SegmentRecorder(directory, name, extension,
+                segmentMillis, KeyframeDetector.forEncoding(encoding));
+        ingest.add(track.getPorts().getRtpChannel(), recorder);
+        return recorder;
+    }
+
+    // NACKs the packets missing on a track to the server's RTCP port, from
+    // the track's own. The round trip is taken from the RTSP requests so
+    // far. The caller hands it the received packets and closes it.
+    public NackGenerator newNackGenerator(Track track, Scheduler scheduler) {
+        int[] serverPorts = track.getServerTransport().getServerRtpPortPair();
+        InetSocketAddress server = new InetSocketAddress(
+                mClient.getAddress().getAddress(), serverPorts[1]);
+
+        NackGenerator generator = new NackGenerator(
+                track.getPorts().getRtcpChannel(), server, scheduler);
+        if (mClient.getRoundTripNanos() > 0) {
+            generator.setRoundTripNanos(mClient.getRoundTripNanos());
+        }
+        return generator;
+    }
+
+    private final RtspClient mClient;
+    private final SessionDescription mDescription;
+    private final List<Track> mTracks;
+
+    private Range mRange;
+    private long mDescribeNanos;
+    private long mSetupNanos;
+    private long mPlayNanos;
+    private volatile int mReconnects;
+
+    // Whether the tracks are all set up and played. Not after a reconnect
+    // that failed half way.
+    private volatile boolean mPlaying = true;
+
+    private final Object mWatchLock = new Object();
+    private Thread mWatcher;
+    private boolean mClosed = false;
+
+    // Of the watcher thread
+    private boolean mUseOptions = false;
+
+    ClientSession(RtspClient client, SessionDescription description, List<Track> tracks) {
+        mClient = client;
+        mDescription = description;
+        mTracks = Collections.unmodifiableList(tracks);
+    }
+
+    void setTimings(long describeNanos, long setupNanos, long playNanos) {
+        mDescribeNanos = describeNanos;
+        mSetupNanos = setupNanos;
+        mPlayNanos = playNanos;
+    }
+
+    void setRange(Range range) {
+        mRange = range;
+    }
+
+    boolean isPlaying() {
+        return mPlaying;
+    }
+
+    void setPlaying(boolean playing) {
+        mPlaying = playing;
+    }
+
+    public RtspClient getClient() {
+        return mClient;
+    }
+
+    public String getSession() {
+        return mClient.getSession();
+    }
+
+    public SessionDescription getDescription() {
+        return mDescription;
+    }
+
+    public List<Track> getTracks() {
+        return mTracks;
+    }
+
+    // As reported by the server in the PLAY response, if at all
+    public Range getRange() {
+        return mRange;
+    }
+
+    public long getDescribeNanos() {
+        return mDescribeNanos;
+    }
+
+    // All SETUPs, which are done concurrently after the first one
+    public long getSetupNanos() {
+        return mSetupNanos;
+    }
+
+    public long getPlayNanos() {
+        return mPlayNanos;
+    }
+
+    public long getTotalNanos() {
+        return mDescribeNanos + mSetupNanos + mPlayNanos;
+    }
+
+    // Brings the session back after the connection to the server or the
+    // network was lost: at once, then with exponential backoff between
+    // attempts, up to maxAttempts in all. Attempts that get an answer
+    // from the server (other than the session being gone) aren't
+    // retried. Returns whether the session had to be set up again. An
+    // attempt that failed half way is set up again by the next one.
+    // watch() calls it when the session is lost.
+    public boolean reconnect(int maxAttempts) throws IOException {
+        Backoff backoff = new Backoff(RECONNECT_BASE_DELAY_MS, RECONNECT_MAX_DELAY_MS);
+        long start = System.nanoTime();
+
+        while (true) {
+            try {
+                boolean setUp = mClient.resume(this);
+                mReconnects++;
+                Log.i(TAG, String.format("Reconnected %s in %d ms%s", getSession(),
+                        (System.nanoTime() - start) / 1000000, setUp ? ", set up again" : ""));
+                return setUp;
+            } catch (RtspException e) {
+                throw e;
+            } catch (IOException e) {
+                if (backoff.getAttempts() + 1 >= maxAttempts) {
+                    throw e;
+                }
+
+                long delay = backoff.next();
+                Log.i(TAG, "Failed reconnecting " + getSession() + ", retrying in "
+                        + delay + " ms: " + e);
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted reconnecting");
+                }
+            }
+        }
+    }
+
+    public int getReconnectCount() {
+        return mReconnects;
+    }
+
+    // Keeps the session alive, and reconnects it when it is lost, on a
+    // thread of its own until the session is closed. Keep-alives go every
+    // intervalMillis, or at half the session timeout if that is 0 (or
+    // every DEFAULT_KEEP_ALIVE_MS if the server gave none), as
+    // GET_PARAMETER or as OPTIONS to servers that don't take it.
+    // Reconnecting goes on with backoff for as long as the server can't
+    // be reached, and only stops if it refuses the session back.
+    //
+    // Without a watcher, reconnecting is up to the caller. ClientFleet
+    // does the same for many sessions without a thread for each.
+    public void watch(long intervalMillis, Listener listener) {
+        synchronized (mWatchLock) {
+            if (mClosed) {
+                throw new IllegalStateException("Session is closed");
+            }
+            if (mWatcher != null) {
+                throw new IllegalStateException("Session is already watched");
+            }
+
+            mWatcher = new Thread(BufferPool.flushingCaches(() -> runWatcher(intervalMillis, listener)),
+                    TAG + "-" + getSession());
+            mWatcher.setDaemon(true);
+            mWatcher.start();
+        }
+    }
+
+    private void runWatcher(long intervalMillis, Listener listener) {
+        Backoff backoff = new Backoff(RECONNECT_BASE_DELAY_MS, RECONNECT_MAX_DELAY_MS);
+        boolean lost = false;
+        long delay = getKeepAliveInterval(intervalMillis);
+
+        while (await(delay)) {
+            boolean setUp = false;
+
+            // Not while closing, which could tear down a session being
+            // set up again
+            try {
+                synchronized (mWatchLock) {
+                    if (mClosed) {
+                        break;
+                    }
+
+                    if (lost) {
+                        setUp = mClient.resume(this);
+                    } else {
+                        keepAlive();
+                    }
+                }
+            } catch (IOException e) {
+                if (lost && e instanceof RtspException) {
+                    Log.w(TAG, "Server refused session " + getSession() + " back: " + e);
+                    listener.onFailed(this, e);
+                    break;
+                }
+
+                if (!lost) {
+                    lost = true;
+                    delay = 0;
+                    Log.i(TAG, "Lost session " + getSession() + ": " + e);
+                    listener.onLost(this, e);
+                } else {
+                    delay = backoff.next();
+                    Log.i(TAG, "Failed reconnecting " + getSession() + ", retrying in "
+                            + delay + " ms: " + e);
+                }
+                continue;
+            }
+
+            if (lost) {
+                lost = false;
+                backoff.reset();
+                mReconnects++;
+                Log.i(TAG, "Reconnected " + getSession() + (setUp ? ", set up again" : ""));
+                listener.onReconnected(this, setUp);
+            }
+            delay = getKeepAliveInterval(intervalMillis);
+        }
+
+        Log.i(TAG, "Stopped watching " + getSession());
+    }
+
+    private long getKeepAliveInterval(long intervalMillis) {
+        int timeout = mClient.getSessionTimeout();
+        return intervalMillis > 0 ? intervalMillis
+                : timeout > 0 ? timeout * 1000L / 2 : DEFAULT_KEEP_ALIVE_MS;
+    }
+
+    // Returns false once the session is closed
+    private boolean await(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        synchronized (mWatchLock) {
+            while (!mClosed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return true;
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mWatchLock, left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void keepAlive() throws IOException {
+        if (!mUseOptions) {
+            try {
+                mClient.requestKeepAlive();
+                return;
+            } catch (RtspException e) {
+                int code = e.getStatus().getCode();
+                if (code != Response.Status.METHOD_NOT_ALLOWED.getCode()
+                        && code != Response.Status.NOT_IMPLEMENTED.getCode()) {
+                    throw e;
+                }
+
+                // Some servers only take OPTIONS
+                mUseOptions = true;
+            }
+        }
+
+        mClient.requestOptions();
+    }
+
+    static void closePorts(List<Track> tracks) {
+        for (Track track : tracks) {
+            try {
+                track.mPorts.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing ports " + track.mPorts, e);
+            }
+        }
+    }
+
+    // Stops the watcher, tears down the session and releases the ports
+    @Override
+    public void close() throws IOException {
+        synchronized (mWatchLock) {
+            mClosed = true;
+            mWatchLock.notifyAll();
+        }
+
+        try {
+            mClient.close();
+        } finally {
+            closePorts(mTracks);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d tracks, describe %d us, setup %d us, play %d us",
+                getSession(), mTracks.size(), mDescribeNanos / 1000,
+                mSetupNanos / 1000, mPlayNanos / 1000);
+    }
+}
@@ -0,0 +1,47 @@
+package albite.net.rtsp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+// A connection RTSP goes over: a stream in each direction, as over TCP.
+// Servers get them from an acceptor and clients from a connector, so
+// both can run over something else than sockets (e.g. a
+// LoopbackTransport for testing).
+public interface Connection extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    InetSocketAddress getRemoteAddress();
+
+    // Reads that block for longer fail with a SocketTimeoutException.
+    // 0 waits forever.
+    void setReadTimeout(int millis) throws IOException;
+
+    // The peer reads to the end of the stream, while this end may still
+    // read what the peer sends
+    void shutdownOutput() throws IOException;
+
+    boolean isClosed();
+
+    // Hands out the connections made to a server
+    interface Acceptor extends Closeable {
+
+        // Blocks until there is a connection. Throws a
+        // ClosedChannelException once the acceptor is closed, which
+        // also ends a pending accept().
+        Connection accept() throws IOException;
+
+        InetSocketAddress getLocalAddress();
+    }
+
+    // Makes the connections of a client
+    interface Connector {
+
+        Connection connect(InetSocketAddress address, int timeoutMillis) throws IOException;
+    }
+}
@@ -0,0 +1,136 @@
+package albite.net.rtsp;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// DESCRIBE responses by URI, for clients that describe the same streams
+// over and over (e.g. on every reconnect). A response younger than the
+// TTL is used as it is. An older one is revalidated: the DESCRIBE is
+// conditional on its ETag or Last-Modified, and if the server answers
+// 304 Not Modified, it's used for another TTL without being sent again.
+// Servers that support neither just send the description again.
+//
+// The least recently used responses are evicted beyond the size.
+public final class DescriptionCache {
+
+    public static final int DEFAULT_SIZE = 1024;
+    public static final long DEFAULT_TTL_MS = 30000;
+
+    private static final DescriptionCache SHARED = new DescriptionCache(DEFAULT_SIZE, DEFAULT_TTL_MS);
+
+    static final class Cached {
+
+        final Response mResponse;
+        final long mValidated;
+
+        Cached(Response response, long validated) {
+            mResponse = response;
+            mValidated = validated;
+        }
+    }
+
+    private final int mSize;
+    private final long mTtlNanos;
+    private final Map<URI, Cached> mEntries;
+
+    private long mHits;
+    private long mRevalidations;
+    private long mMisses;
+
+    public DescriptionCache(int size, long ttlMillis) {
+        mSize = size;
+        mTtlNanos = ttlMillis * 1000000L;
+        mEntries = new LinkedHashMap<URI, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, Cached> eldest) {
+                return size() > mSize;
+            }
+        };
+    }
+
+    // The one all clients share by default
+    public static DescriptionCache shared() {
+        return SHARED;
+    }
+
+    // The response for the URI, or null if there isn't any. If it needs
+    // revalidating, the conditions are added to the request.
+    synchronized Response get(URI uri, Request request) {
+        Cached entry = mEntries.get(uri);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+
+        if (System.nanoTime() - entry.mValidated < mTtlNanos) {
+            mHits++;
+            return entry.mResponse;
+        }
+
+        String tag = entry.mResponse.getOptionalHeader(Message.HEADER_ETAG);
+        if (tag != null) {
+            request.setHeader(Message.HEADER_IF_NONE_MATCH, tag);
+        }
+
+        String modified = entry.mResponse.getOptionalHeader(Message.HEADER_LAST_MODIFIED);
+        if (modified != null) {
+            request.setHeader(Message.HEADER_IF_MODIFIED_SINCE, modified);
+        }
+
+        if (tag == null && modified == null) {
+            // Nothing to go on
+            mMisses++;
+            return null;
+        }
+
+        return entry.mResponse;
+    }
+
+    // Keeps a new response, or the one for the URI for another TTL if
+    // the response says it's not modified. Returns the response to use.
+    synchronized Response put(URI uri, Response response) {
+        long now = System.nanoTime();
+
+        if (response.getStatus().getCode() == Response.Status.NOT_MODIFIED.getCode()) {
+            Cached entry = mEntries.get(uri);
+            if (entry == null) {
+                // Evicted in the meantime
+                return null;
+            }
+
+            mRevalidations++;
+            mEntries.put(uri, new Cached(entry.mResponse, now));
+            return entry.mResponse;
+        }
+
+        mEntries.put(uri, new Cached(response, now));
+        return response;
+    }
+
+    public synchronized void remove(URI uri) {
+        mEntries.remove(uri);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    // Used without asking the server
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    // Confirmed by the server to be still valid
+    public synchronized long getRevalidationCount() {
+        return mRevalidations;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,127 @@
+package albite.net.rtsp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Picks the node for a stream by consistent hashing of its path, so that
+// the viewers of a stream end up on the same node, and only the streams
+// of a node that comes or goes move. A node busier than the average by
+// more than the load factor is passed over for the next one on the ring
+// (consistent hashing with bounded loads), so a popular stream spills
+// over instead of swamping its node.
+public class LoadBalancer {
+
+    // Points on the ring per node, for spreading streams evenly
+    public static final int DEFAULT_REPLICAS = 64;
+    public static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+    private final NodeDirectory mDirectory;
+    private final int mReplicas;
+    private final double mLoadFactor;
+
+    // Rebuilt when the nodes change
+    private List<NodeDirectory.Node> mNodes = new ArrayList<>();
+    private long[] mRing = new long[0];
+    private int[] mOwners = new int[0];
+
+    public LoadBalancer(NodeDirectory directory) {
+        this(directory, DEFAULT_REPLICAS, DEFAULT_LOAD_FACTOR);
+    }
+
+    public LoadBalancer(NodeDirectory directory, int replicas, double loadFactor) {
+        if (replicas < 1 || loadFactor < 1) {
+            throw new IllegalArgumentException("Invalid replicas or load factor");
+        }
+
+        mDirectory = directory;
+        mReplicas = replicas;
+        mLoadFactor = loadFactor;
+    }
+
+    public NodeDirectory getDirectory() {
+        return mDirectory;
+    }
+
+    // 64 bit FNV-1a, with a final mix, as neighbouring keys (e.g. /cam1,
+    // /cam2) must land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void update(List<? extends NodeDirectory.Node> nodes) {
+        if (nodes.equals(mNodes)) {
+            return;
+        }
+
+        int size = nodes.size() * mReplicas;
+        long[] points = new long[size];
+        for (int i = 0; i < nodes.size(); i++) {
+            String uri = nodes.get(i).getUri().toString();
+            for (int r = 0; r < mReplicas; r++) {
+                points[i * mReplicas + r] = hash(uri + "#" + r);
+            }
+        }
+
+        // Sorted points, each with the index of its node
+        long[] ring = points.clone();
+        Arrays.sort(ring);
+        int[] owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            owners[Arrays.binarySearch(ring, points[i])] = i / mReplicas;
+        }
+
+        mNodes = new ArrayList<>(nodes);
+        mRing = ring;
+        mOwners = owners;
+    }
+
+    // Returns null if there are no nodes
+    public synchronized NodeDirectory.Node choose(String key) {
+        update(mDirectory.getNodes());
+
+        int count = mNodes.size();
+        if (count == 0) {
+            return null;
+        }
+
+        int[] loads = new int[count];
+        long total = 1; // Counting the one being placed
+        for (int i = 0; i < count; i++) {
+            loads[i] = mNodes.get(i).getLoad();
+            total += loads[i];
+        }
+        double limit = Math.ceil(mLoadFactor * total / count);
+
+        int start = Arrays.binarySearch(mRing, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+
+        for (int i = 0; i < mRing.length; i++) {
+            int node = mOwners[(start + i) % mRing.length];
+            if (loads[node] + 1 <= limit) {
+                return mNodes.get(node);
+            }
+        }
+
+        // Can't happen with a load factor of at least 1, but just in case
+        int least = 0;
+        for (int i = 1; i < count; i++) {
+            if (loads[i] < loads[least]) {
+                least = i;
+            }
+        }
+        return mNodes.get(least);
+    }
+}
@@ -0,0 +1,58 @@
+package albite.net.rtsp;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// The servers of this process, e.g. for trying out a front door without
+// a real directory. Their load is their session count.
+public class LocalNodeDirectory implements NodeDirectory {
+
+    private static class LocalNode implements Node {
+
+        private final URI mUri;
+        private final RtspServer mServer;
+
+        LocalNode(URI uri, RtspServer server) {
+            mUri = uri;
+            mServer = server;
+        }
+
+        @Override
+        public URI getUri() {
+            return mUri;
+        }
+
+        @Override
+        public int getLoad() {
+            return mServer.getSessionCount();
+        }
+
+        @Override
+        public String toString() {
+            return mUri.toString();
+        }
+    }
+
+    private final List<LocalNode> mNodes = new CopyOnWriteArrayList<>();
+
+    public URI add(RtspServer server) throws URISyntaxException {
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        add(uri, server);
+        return uri;
+    }
+
+    public void add(URI uri, RtspServer server) {
+        mNodes.add(new LocalNode(uri, server));
+    }
+
+    public void remove(RtspServer server) {
+        mNodes.removeIf(node -> node.mServer == server);
+    }
+
+    @Override
+    public List<? extends Node> getNodes() {
+        return mNodes;
+    }
+}
@@ -0,0 +1,487 @@
+package albite.net.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Connections in memory, for running RtspServer and RtspClient against
+// each other without the network, e.g. in benchmarks:
+//
+//   LoopbackTransport transport = new LoopbackTransport(latency, bps, 0.01, 1);
+//   RtspServer server = new RtspServer(listener, transport.bind(0), 1);
+//   RtspClient client = new RtspClient(uri of port server.getLocalPort());
+//   client.setConnector(transport);
+//
+// The link can be made slower: each direction has the latency and the
+// bandwidth given, and loses the writes at the loss rate. The streams
+// are reliable as with TCP, so a loss only shows as the write arriving
+// late, after LOSS_PENALTY_NANOS. The losses come from a seeded random,
+// so a run can be repeated.
+public final class LoopbackTransport implements Connection.Connector {
+
+    // About the minimum retransmission timeout of TCP
+    public static final long LOSS_PENALTY_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    // The ports assigned to the clients, and to servers bound to 0
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+    private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
+
+    // One way, per direction
+    private final long mLatencyNanos;
+
+    // 0 for no limit
+    private final long mBytesPerSecond;
+
+    private final double mLossRate;
+    private final Random mRandom;
+
+    private final Map<Integer, Server> mServers = new HashMap<>();
+    private int mNextPort = FIRST_EPHEMERAL_PORT;
+    private long mLossCount;
+
+    // As fast as it goes
+    public LoopbackTransport() {
+        this(0, 0, 0, 0);
+    }
+
+    public LoopbackTransport(long latencyNanos, long bytesPerSecond, double lossRate, long seed) {
+        if (latencyNanos < 0) {
+            throw new IllegalArgumentException("Invalid latency: " + latencyNanos);
+        }
+
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + bytesPerSecond);
+        }
+
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("Invalid loss rate: " + lossRate);
+        }
+
+        mLatencyNanos = latencyNanos;
+        mBytesPerSecond = bytesPerSecond;
+        mLossRate = lossRate;
+        mRandom = new Random(seed);
+    }
+
+    // For a server to accept the connections made to the port. 0 picks
+    // a free one.
+    public synchronized Connection.Acceptor bind(int port) throws IOException {
+        if (port < 0 || port > 0xffff) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
+
+        if (port == 0) {
+            port = nextPort();
+        } else if (mServers.containsKey(port)) {
+            throw new BindException("Address already in use: " + port);
+        }
+
+        Server server = new Server(new InetSocketAddress(ADDRESS, port));
+        mServers.put(port, server);
+        return server;
+    }
+
+    // The connection is up after a round trip, as with a TCP handshake
+    @Override
+    public Connection connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+        Server server;
+        InetSocketAddress local;
+
+        synchronized (this) {
+            server = mServers.get(address.getPort());
+            if (server == null) {
+                throw new ConnectException("Connection refused: " + address);
+            }
+            local = new InetSocketAddress(ADDRESS, nextPort());
+        }
+
+        long handshake = 2 * mLatencyNanos;
+        if (timeoutMillis > 0 && handshake > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            sleep(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            throw new SocketTimeoutException("connect timed out");
+        }
+        sleep(handshake);
+
+        Pipe up = new Pipe();
+        Pipe down = new Pipe();
+        Endpoint client = new Endpoint(down, up, server.mAddress);
+        Endpoint accepted = new Endpoint(up, down, local);
+
+        if (!server.offer(accepted)) {
+            throw new ConnectException("Connection refused: " + address);
+        }
+        return client;
+    }
+
+    public synchronized long getLossCount() {
+        return mLossCount;
+    }
+
+    private int nextPort() {
+        while (mServers.containsKey(mNextPort)) {
+            mNextPort++;
+        }
+
+        int port = mNextPort;
+        mNextPort = mNextPort < 0xffff ? mNextPort + 1 : FIRST_EPHEMERAL_PORT;
+        return port;
+    }
+
+    private synchronized boolean lose() {
+        if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+            mLossCount++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void unbind(Server server) {
+        mServers.remove(server.mAddress.getPort(), server);
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private final class Server implements Connection.Acceptor {
+
+        final InetSocketAddress mAddress;
+
+        // Connected, but not yet accepted
+        private final ArrayDeque<Endpoint> mPending = new ArrayDeque<>();
+        private boolean mClosed;
+
+        Server(InetSocketAddress address) {
+            mAddress = address;
+        }
+
+        synchronized boolean offer(Endpoint endpoint) {
+            if (mClosed) {
+                return false;
+            }
+
+            mPending.add(endpoint);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized Connection accept() throws IOException {
+            try {
+                while (mPending.isEmpty() && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            return mPending.poll();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                notifyAll();
+            }
+
+            unbind(this);
+
+            // The clients see the end of the stream
+            Endpoint endpoint;
+            while ((endpoint = poll()) != null) {
+                endpoint.close();
+            }
+        }
+
+        private synchronized Endpoint poll() {
+            return mPending.poll();
+        }
+    }
+
+    // One direction of a connection. The writes are queued with the time
+    // they arrive at, which never goes back, so they stay in order.
+    private final class Pipe {
+
+        private final ArrayDeque<Chunk> mChunks = new ArrayDeque<>();
+
+        // When the link is done sending what was written so far
+        private long mSentAt;
+        private long mLastArrival;
+
+        private boolean mShutdown;
+        private boolean mReaderClosed;
+
+        void write(byte[] b, int off, int len) throws IOException {
+            boolean lost = lose();
+
+            synchronized (this) {
+                if (mShutdown) {
+                    throw new SocketException("Socket output is shutdown");
+                }
+
+                if (mReaderClosed) {
+                    throw new SocketException("Connection reset by peer");
+                }
+
+                byte[] data = new byte[len];
+                System.arraycopy(b, off, data, 0, len);
+                mChunks.add(new Chunk(data, arrival(len, lost)));
+                notifyAll();
+            }
+        }
+
+        synchronized void shutdown() {
+            if (!mShutdown) {
+                mShutdown = true;
+                mChunks.add(new Chunk(null, arrival(0, false)));
+                notifyAll();
+            }
+        }
+
+        synchronized void closeReader() {
+            mReaderClosed = true;
+            mChunks.clear();
+            notifyAll();
+        }
+
+        // -1 at the end of the stream
+        synchronized int read(byte[] b, int off, int len, int timeoutMillis) throws IOException {
+            long deadline = timeoutMillis > 0
+                    ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+
+            try {
+                while (true) {
+                    if (mReaderClosed) {
+                        throw new SocketException("Socket closed");
+                    }
+
+                    long now = System.nanoTime();
+                    Chunk chunk = mChunks.peek();
+                    if (chunk != null && chunk.mArrival - now <= 0) {
+                        if (chunk.mData == null) {
+                            return -1;
+                        }
+
+                        int n = Math.min(len, chunk.mData.length - chunk.mOffset);
+                        System.arraycopy(chunk.mData, chunk.mOffset, b, off, n);
+                        chunk.mOffset += n;
+                        if (chunk.mOffset == chunk.mData.length) {
+                            mChunks.poll();
+                        }
+                        return n;
+                    }
+
+                    long wait = deadline - now;
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+
+                    if (chunk != null) {
+                        wait = Math.min(wait, chunk.mArrival - now);
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized int available() {
+            Chunk chunk = mChunks.peek();
+            if (chunk == null || chunk.mData == null || chunk.mArrival - System.nanoTime() > 0) {
+                return 0;
+            }
+            return chunk.mData.length - chunk.mOffset;
+        }
+
+        private long arrival(int len, boolean lost) {
+            long now = System.nanoTime();
+            long sent = Math.max(now, mSentAt);
+            if (mBytesPerSecond > 0) {
+                sent += len * TimeUnit.SECONDS.toNanos(1) / mBytesPerSecond;
+            }
+            mSentAt = sent;
+
+            long arrival = sent + mLatencyNanos + (lost ? LOSS_PENALTY_NANOS : 0);
+            if (mLastArrival - arrival > 0) {
+                // Behind a retransmission
+                arrival = mLastArrival;
+            }
+            mLastArrival = arrival;
+            return arrival;
+        }
+    }
+
+    private static final class Chunk {
+
+        // Null for the end of the stream
+        final byte[] mData;
+        final long mArrival;
+        int mOffset;
+
+        Chunk(byte[] data, long arrival) {
+            mData = data;
+            mArrival = arrival;
+        }
+    }
+
+    private static final class Endpoint implements Connection {
+
+        private final Pipe mIn;
+        private final Pipe mOut;
+        private final InetSocketAddress mRemoteAddress;
+
+        private final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return mIn.read(b, off, len, mReadTimeout);
+            }
+
+            @Override
+            public int available() {
+                return mIn.available();
+            }
+
+            // As with a socket, closing either stream closes the connection
+            @Override
+            public void close() {
+                Endpoint.this.close();
+            }
+        };
+
+        private final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (mClosed) {
+                    throw new SocketException("Socket closed");
+                }
+
+                if (len > 0) {
+                    mOut.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void close() {
+                Endpoint.this.close();
+            }
+        };
+
+        private volatile int mReadTimeout;
+        private volatile boolean mClosed;
+
+        Endpoint(Pipe in, Pipe out, InetSocketAddress remoteAddress) {
+            mIn = in;
+            mOut = out;
+            mRemoteAddress = remoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            checkOpen();
+            return mInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            checkOpen();
+            return mOutput;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void setReadTimeout(int millis) throws IOException {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Invalid timeout: " + millis);
+            }
+            checkOpen();
+            mReadTimeout = millis;
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            checkOpen();
+            mOut.shutdown();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mOut.shutdown();
+                mIn.closeReader();
+            }
+        }
+
+        private void checkOpen() throws SocketException {
+            if (mClosed) {
+                throw new SocketException("Socket is closed");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Loopback[" + mRemoteAddress + "]";
+        }
+    }
+}
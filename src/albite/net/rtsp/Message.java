@@ -1,18 +1,16 @@
 package albite.net.rtsp;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.imageio.IIOException;
 
 public abstract class Message {
 
@@ -20,24 +18,101 @@ public abstract class Message {
     private static final Pattern PATTERN = Pattern.compile("([^:]*): *(.*)");
 
     public static final String MIME_TYPE_SDP = "application/sdp";
+    public static final String MIME_TYPE_PARAMETERS = "text/parameters";
 
     public static final String HEADER_ACCEPT = "Accept";
     public static final String HEADER_CONNECTION = "Connection";
     public static final String HEADER_CONTENT_BASE = "Content-Base";
     public static final String HEADER_CONTENT_LENGTH = "Content-Length";
     public static final String HEADER_CONTENT_TYPE = "Content-Type";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HEADER_LOCATION = "Location";
     public static final String HEADER_PUBLIC = "Public";
+    public static final String HEADER_RANGE = "Range";
     public static final String HEADER_SEQUENCE_NUMBER = "CSeq";
     public static final String HEADER_SESSION = "Session";
     public static final String HEADER_TRANSPORT = "Transport";
 
     public static final String CHARSET = "UTF-8";
 
+    private static final String SESSION_TIMEOUT = "timeout=";
+
     private static final String NEW_LINE = "\r\n";
     private static final String HEADER_SERARATOR = ": ";
-    private static final int BUFFER_SIZE = 2048;
+
+    // Bodies larger than this are refused before anything is allocated
+    public static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+    // Keeps the header section of a message bounded too
+    private static final int MAX_HEADERS = 128;
+
+    // Writes an outgoing body straight to the connection
+    public interface BodyProducer {
+
+        long getLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // An incoming body that hasn't been read yet. It is a view bounded
+    // by the Content-Length into the connection input.
+    private static class BodyInputStream extends InputStream {
+
+        private final InputStream mIn;
+        private long mRemaining;
+
+        BodyInputStream(InputStream in, long length) {
+            mIn = in;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("EOF before end of body");
+            }
+
+            mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+
+            int count = mIn.read(b, off, (int) Math.min(len, mRemaining));
+            if (count < 0) {
+                throw new EOFException("EOF before end of body");
+            }
+
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mIn.available(), mRemaining);
+        }
+
+        @Override
+        public void close() {
+            // The connection is not ours to close
+        }
+    }
 
     private byte[] mBody;
+    private BodyProducer mBodyProducer;
+    private InputStream mBodyStream;
     private final Map<String, String> mHeaders = new HashMap<>();
 
     protected Message() {
@@ -66,12 +141,34 @@ public abstract class Message {
         return Integer.parseInt(getRequiredHeader(HEADER_SEQUENCE_NUMBER));
     }
 
+    // Session: <id>[;timeout=<seconds>]
     public final String getSession() {
-        if (mHeaders.containsKey(HEADER_SESSION)) {
-            return mHeaders.get(HEADER_SESSION);
+        String session = mHeaders.get(HEADER_SESSION);
+        if (session == null) {
+            return null;
         }
 
-        return null;
+        int semicolon = session.indexOf(';');
+        return semicolon < 0 ? session : session.substring(0, semicolon).trim();
+    }
+
+    // In seconds, or -1 if not given
+    public final int getSessionTimeout() {
+        String session = mHeaders.get(HEADER_SESSION);
+        int i = session == null ? -1 : session.indexOf(SESSION_TIMEOUT);
+        if (i < 0) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(session.substring(i + SESSION_TIMEOUT.length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public final void setSession(String session, int timeout) {
+        mHeaders.put(HEADER_SESSION, session + ";" + SESSION_TIMEOUT + timeout);
     }
 
     public final boolean containsHeader(String header) {
@@ -103,80 +200,188 @@ public abstract class Message {
         mHeaders.put(HEADER_CONNECTION, "close");
     }
 
+    // The body, if it's been buffered. For messages read with a streamed
+    // body, this is null until readBody() is called.
     public final byte[] getBody() {
         return mBody;
     }
 
-    protected abstract String getTitleLine();
+    public final long getContentLength() {
+        String length = getOptionalHeader(HEADER_CONTENT_LENGTH);
+        if (length == null) {
+            return -1;
+        }
 
-    public final void send(OutputStream out) throws IOException {
-        OutputStreamWriter writer = new OutputStreamWriter(out, CHARSET);
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        // Write the request method / response message first
-        writer.write(getTitleLine());
-        writer.write(NEW_LINE);
+    public final boolean hasBody() {
+        return mBody != null || mBodyStream != null || mBodyProducer != null;
+    }
+
+    // Buffers a streamed body (if not already) and returns it
+    public final byte[] readBody() throws IOException {
+        if (mBody == null && mBodyStream != null) {
+            byte[] body = new byte[(int) getContentLength()];
+            InputStream in = mBodyStream;
+            mBodyStream = null;
+
+            int done = 0;
+            while (done < body.length) {
+                int count = in.read(body, done, body.length - done);
+                if (count < 0) {
+                    throw new EOFException("EOF before end of body");
+                }
+                done += count;
+            }
 
-        // Now write all headers
-        for (Map.Entry<String, String> entry : mHeaders.entrySet()) {
-            writer.write(entry.getKey());
-            writer.write(HEADER_SERARATOR);
-            writer.write(entry.getValue());
-            writer.write(NEW_LINE);
+            mBody = body;
         }
 
-        // Write an extra new line to specify end of header section
-        writer.write(NEW_LINE);
-        writer.flush();
+        return mBody;
+    }
+
+    // Gives access to the body without buffering it, if it's not been
+    // buffered already. The stream never reads past the body.
+    public final InputStream getBodyStream() {
+        if (mBodyStream != null) {
+            return mBodyStream;
+        }
 
-        // Write the payload if any
         if (mBody != null) {
-            out.write(mBody);
+            return new ByteArrayInputStream(mBody);
         }
+
+        return null;
     }
 
-    protected static String fill(Message message, InputStream in) throws IOException {
+    public final ReadableByteChannel getBodyChannel() {
+        InputStream in = getBodyStream();
+        return in == null ? null : Channels.newChannel(in);
+    }
 
-        // We use a combination of a buffered input stream and a non-buffered
-        // buffered reader (i.e. the buffer size being 1). That is because
-        // we need to:
-        //   - read the header section line by line
-        //   - if there's a body, read it as pure octet data
-        // In other words, the buffering is done by the BIS, while the BR
-        // is only used for parsing the lines. If we used a BR with a buffer
-        // size > 1, it would have buffered *past* the header section right
-        // somewhere into the body
-        BufferedInputStream bis = new BufferedInputStream(in, BUFFER_SIZE);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(bis), 1);
+    public final void setBody(byte[] body) {
+        mBody = body;
+        mBodyProducer = null;
+        mBodyStream = null;
+        mHeaders.put(HEADER_CONTENT_LENGTH, Integer.toString(body.length));
+    }
 
-        // Read the title line
-        String title = reader.readLine();
-        if (title == null) {
-            throw new IOException("EOF before reading the title line");
-        }
+    public final void setBody(BodyProducer body) {
+        mBody = null;
+        mBodyProducer = body;
+        mBodyStream = null;
+        mHeaders.put(HEADER_CONTENT_LENGTH, Long.toString(body.getLength()));
+    }
+
+    protected abstract String getTitleLine();
 
-        // An empty line indicates the end of the header section
-        for (String header = reader.readLine(); !"".equals(header); header = reader.readLine()) {
-            if (header == null) {
-                throw new IIOException("EOF before end of header section");
+    public final void send(OutputStream out) throws IOException {
+        // The whole message is encoded into a pooled buffer, so that it
+        // goes out in a single write most of the time
+        MessageOutput output = new MessageOutput(out);
+
+        try {
+            // Write the request method / response message first
+            output.write(getTitleLine());
+            output.write(NEW_LINE);
+
+            // Now write all headers
+            for (Map.Entry<String, String> entry : mHeaders.entrySet()) {
+                output.write(entry.getKey());
+                output.write(HEADER_SERARATOR);
+                output.write(entry.getValue());
+                output.write(NEW_LINE);
             }
 
-            // Try to parse the header
-            Matcher m = PATTERN.matcher(header);
-            if (!m.matches()) {
-                throw new IIOException("Could not parse header: " + header);
+            // Write an extra new line to specify end of header section
+            output.write(NEW_LINE);
+
+            // Write the payload if any
+            if (mBody != null) {
+                output.write(mBody, 0, mBody.length);
+            } else if (mBodyProducer != null) {
+                output.flush();
+                mBodyProducer.writeTo(out);
             }
 
-            message.mHeaders.put(m.group(1), m.group(2));
+            output.flush();
+        } finally {
+            output.release();
         }
+    }
 
-        // Read the body (if present)
-        if (message.mHeaders.containsKey(HEADER_CONTENT_LENGTH)) {
-            int size = Integer.parseInt(message.mHeaders.get(HEADER_CONTENT_LENGTH));
-            byte[] body = new byte[size];
-            new DataInputStream(bis).readFully(body);
-            message.mBody = body;
-        }
+    // Reads the title line and headers. When reading from a connection
+    // that keeps its own MessageInput, the body is left on the connection
+    // and can be streamed, otherwise it's buffered. Either way, a body
+    // larger than the maximum size is never read.
+    protected static String fill(Message message, InputStream in, int maxBodySize)
+            throws IOException {
+
+        boolean streamed = in instanceof MessageInput;
+        MessageInput input = streamed ? (MessageInput) in : new MessageInput(in);
+
+        try {
+            // Read the title line
+            String title = input.readLine();
+            if (title == null) {
+                throw new EOFException("EOF before reading the title line");
+            }
+
+            // An empty line indicates the end of the header section
+            for (String header = input.readLine(); !"".equals(header); header = input.readLine()) {
+                if (header == null) {
+                    throw new EOFException("EOF before end of header section");
+                }
 
-        return title;
+                if (message.mHeaders.size() == MAX_HEADERS) {
+                    throw new IOException("Too many headers");
+                }
+
+                // Try to parse the header
+                Matcher m = PATTERN.matcher(header);
+                if (!m.matches()) {
+                    throw new IOException("Could not parse header: " + header);
+                }
+
+                message.mHeaders.put(m.group(1), m.group(2));
+            }
+
+            // Attach the body (if present)
+            if (message.mHeaders.containsKey(HEADER_CONTENT_LENGTH)) {
+                long size = message.getContentLength();
+                if (size < 0) {
+                    throw new IOException("Invalid content length: "
+                            + message.mHeaders.get(HEADER_CONTENT_LENGTH));
+                }
+
+                if (size > maxBodySize) {
+                    if (streamed) {
+                        // The caller is expected to check the length and
+                        // respond, as the request itself is still valid
+                        return title;
+                    }
+
+                    throw new RtspException(Response.Status.REQUEST_ENTITY_TOO_LARGE,
+                            "Body too large: " + size);
+                }
+
+                message.mBodyStream = new BodyInputStream(input, size);
+
+                if (!streamed) {
+                    message.readBody();
+                }
+            }
+
+            return title;
+        } finally {
+            if (!streamed) {
+                input.release();
+            }
+        }
     }
 }
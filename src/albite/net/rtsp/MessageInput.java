@@ -0,0 +1,156 @@
+package albite.net.rtsp;
+
+import albite.util.BufferPool;
+import albite.util.PooledBuffer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+// Reads RTSP messages off a connection using a pooled buffer. Header lines
+// are parsed straight out of the buffer, while anything read past the
+// header section stays available for the body (or the next message).
+class MessageInput extends InputStream {
+
+    private static final Charset CHARSET = Charset.forName(Message.CHARSET);
+
+    private final InputStream mIn;
+    private PooledBuffer mBuffer;
+    private final byte[] mArray;
+    private final int mOffset;
+    private final int mCapacity;
+
+    // Relative to mOffset
+    private int mPosition = 0;
+    private int mLimit = 0;
+
+    MessageInput(InputStream in) {
+        mIn = in;
+        mBuffer = BufferPool.heap().allocate(BufferPool.SIZE_CONTROL);
+        mArray = mBuffer.buffer().array();
+        mOffset = mBuffer.buffer().arrayOffset();
+        mCapacity = mBuffer.buffer().capacity();
+    }
+
+    private boolean fill() throws IOException {
+        if (mPosition > 0) {
+            // Compact
+            System.arraycopy(mArray, mOffset + mPosition,
+                    mArray, mOffset, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+
+        if (mLimit == mCapacity) {
+            throw new IOException("Line too long");
+        }
+
+        int count = mIn.read(mArray, mOffset + mLimit, mCapacity - mLimit);
+        if (count < 0) {
+            return false;
+        }
+
+        mLimit += count;
+        return true;
+    }
+
+    // Reads a line terminated by LF or CRLF. Returns null on EOF.
+    String readLine() throws IOException {
+        int scanned = 0;
+
+        while (true) {
+            for (int i = mPosition + scanned; i < mLimit; i++) {
+                if (mArray[mOffset + i] == '\n') {
+                    int end = i;
+                    if (end > mPosition && mArray[mOffset + end - 1] == '\r') {
+                        end--;
+                    }
+
+                    String line = new String(mArray, mOffset + mPosition, end - mPosition, CHARSET);
+                    mPosition = i + 1;
+                    return line;
+                }
+            }
+
+            scanned = mLimit - mPosition;
+
+            if (!fill()) {
+                if (mLimit > mPosition) {
+                    throw new EOFException("EOF in the middle of a line");
+                }
+                return null;
+            }
+        }
+    }
+
+    void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int count = read(b, off + done, len - done);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            done += count;
+        }
+    }
+
+    // The next byte without consuming it, or -1 on EOF. Tells interleaved
+    // frames ('$') from messages on the same connection.
+    int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+
+        return mArray[mOffset + mPosition] & 0xff;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+
+        return mArray[mOffset + mPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int buffered = mLimit - mPosition;
+        if (buffered == 0) {
+            // Nothing is buffered, so read directly
+            return mIn.read(b, off, len);
+        }
+
+        int count = Math.min(buffered, len);
+        System.arraycopy(mArray, mOffset + mPosition, b, off, count);
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPosition) + mIn.available();
+    }
+
+    // Returns the buffer to the pool without closing the stream
+    void release() {
+        if (mBuffer != null) {
+            mBuffer.release();
+            mBuffer = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        mIn.close();
+    }
+}
@@ -0,0 +1,73 @@
+package albite.net.rtsp;
+
+import albite.util.BufferPool;
+import albite.util.PooledBuffer;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Encodes a message into a pooled buffer, only writing to the stream
+// when the buffer fills up or on flush()
+class MessageOutput {
+
+    private final OutputStream mOut;
+    private final PooledBuffer mBuffer;
+    private final byte[] mArray;
+    private final int mOffset;
+    private final int mCapacity;
+    private int mPosition = 0;
+
+    MessageOutput(OutputStream out) {
+        mOut = out;
+        mBuffer = BufferPool.heap().allocate(BufferPool.SIZE_CONTROL);
+        mArray = mBuffer.buffer().array();
+        mOffset = mBuffer.buffer().arrayOffset();
+        mCapacity = mBuffer.buffer().capacity();
+    }
+
+    void write(String s) throws IOException {
+        int length = s.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x80) {
+                // Not plain ASCII, so leave it to the encoder
+                byte[] b = s.substring(i).getBytes(Message.CHARSET);
+                write(b, 0, b.length);
+                return;
+            }
+
+            if (mPosition == mCapacity) {
+                flushBuffer();
+            }
+
+            mArray[mOffset + mPosition++] = (byte) c;
+        }
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len <= mCapacity - mPosition) {
+            System.arraycopy(b, off, mArray, mOffset + mPosition, len);
+            mPosition += len;
+        } else {
+            flushBuffer();
+            mOut.write(b, off, len);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mPosition > 0) {
+            mOut.write(mArray, mOffset, mPosition);
+            mPosition = 0;
+        }
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    void release() {
+        mBuffer.release();
+    }
+}
@@ -0,0 +1,20 @@
+package albite.net.rtsp;
+
+import java.net.URI;
+import java.util.List;
+
+// The servers a front door server may send its clients to
+public interface NodeDirectory {
+
+    interface Node {
+
+        // The base the request paths are resolved against,
+        // e.g. rtsp://node1.example.com:554
+        URI getUri();
+
+        // How busy the node is, e.g. its session count
+        int getLoad();
+    }
+
+    List<? extends Node> getNodes();
+}
@@ -0,0 +1,97 @@
+package albite.net.rtsp;
+
+import albite.net.rtp.KeyframeDetector;
+import albite.net.rtp.LiveStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+// A stream pushed to the server with ANNOUNCE and RECORD. It lasts as
+// long as the session of its publisher, and each of its media is served
+// to viewers as a live stream at <uri>/trackID=<n>.
+public class Publication {
+
+    private final URI mUri;
+    private final SessionDescription mDescription;
+    private final LiveStream[] mStreams;
+    private String mPublisher;
+
+    Publication(URI uri, SessionDescription description) {
+        mUri = uri;
+        mDescription = description;
+
+        List<SessionDescription.Media> media = description.getMedia();
+        mStreams = new LiveStream[media.size()];
+        for (int i = 0; i < mStreams.length; i++) {
+            mStreams[i] = new LiveStream(getTrackPath(i),
+                    KeyframeDetector.forEncoding(media.get(i).getEncoding()),
+                    LiveStream.DEFAULT_GOP_CACHE_SIZE);
+        }
+    }
+
+    public URI getUri() {
+        return mUri;
+    }
+
+    public String getPath() {
+        return mUri.getPath();
+    }
+
+    // The path viewers set up media i with
+    public String getTrackPath(int index) {
+        return getPath() + "/" + SessionDescription.TRACK_PREFIX + index;
+    }
+
+    // As announced, relative to the announced URI
+    public SessionDescription getDescription() {
+        return mDescription;
+    }
+
+    // As served to viewers from base
+    public byte[] describe(URI base) throws IOException {
+        return mDescription.withControls(SessionDescription.TRACK_PREFIX, base).toBytes();
+    }
+
+    public int getStreamCount() {
+        return mStreams.length;
+    }
+
+    public LiveStream getStream(int index) {
+        return mStreams[index];
+    }
+
+    // The media a publisher SETUP is for, or -1
+    int indexOf(URI uri) throws IOException {
+        for (int i = 0; i < mStreams.length; i++) {
+            URI control = mDescription.getMedia().get(i).getControlUri();
+            if (uri.equals(control) || uri.getPath().equals(getTrackPath(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The session of the publisher, once it's set up
+    public synchronized String getPublisher() {
+        return mPublisher;
+    }
+
+    synchronized boolean setPublisher(String session) {
+        if (mPublisher != null && !mPublisher.equals(session)) {
+            return false;
+        }
+        mPublisher = session;
+        return true;
+    }
+
+    void close() {
+        for (LiveStream stream : mStreams) {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d streams", getPath(), mStreams.length);
+    }
+}
@@ -0,0 +1,127 @@
+package albite.net.rtsp;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A Range header in normal play time, e.g.:
+//   Range: npt=10-
+//   Range: npt=0:01:30.5-0:02:00
+//   Range: npt=now-
+public class Range {
+
+    public static final double UNSPECIFIED = -1;
+
+    private static final String NPT = "npt";
+    private static final String NOW = "now";
+
+    // npt=start-[end], each side being now, seconds or h:mm:ss
+    private static final Pattern PATTERN
+            = Pattern.compile(NPT + "\\s*=\\s*([^-]*)-([^;]*)(;.*)?");
+
+    private final double mStart;
+    private final double mEnd;
+    private final boolean mNow;
+
+    public Range(double start) {
+        this(start, UNSPECIFIED);
+    }
+
+    public Range(double start, double end) {
+        this(start, end, false);
+    }
+
+    private Range(double start, double end, boolean now) {
+        if (end != UNSPECIFIED && start != UNSPECIFIED && end < start) {
+            throw new IllegalArgumentException(String.format(
+                    "Range end before start: %f-%f", start, end));
+        }
+
+        mStart = start;
+        mEnd = end;
+        mNow = now;
+    }
+
+    public static Range now() {
+        return new Range(UNSPECIFIED, UNSPECIFIED, true);
+    }
+
+    // Seconds or UNSPECIFIED, e.g. for "npt=-20" or "npt=now-"
+    public double getStart() {
+        return mStart;
+    }
+
+    public double getEnd() {
+        return mEnd;
+    }
+
+    public boolean hasStart() {
+        return mStart != UNSPECIFIED;
+    }
+
+    public boolean hasEnd() {
+        return mEnd != UNSPECIFIED;
+    }
+
+    public boolean isNow() {
+        return mNow;
+    }
+
+    public Range withStart(double start) {
+        return new Range(start, mEnd);
+    }
+
+    private static double parseTime(String s) {
+        s = s.trim();
+        if (s.isEmpty()) {
+            return UNSPECIFIED;
+        }
+
+        String[] parts = s.split(":");
+        if (parts.length != 1 && parts.length != 3) {
+            throw new IllegalArgumentException("Invalid npt time: " + s);
+        }
+
+        double seconds = 0;
+        for (String p : parts) {
+            seconds = seconds * 60 + Double.parseDouble(p);
+        }
+
+        if (seconds < 0 || Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+            throw new IllegalArgumentException("Invalid npt time: " + s);
+        }
+
+        return seconds;
+    }
+
+    public static Range fromString(String s) {
+        Matcher m = PATTERN.matcher(s.trim());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Unsupported range: " + s);
+        }
+
+        String start = m.group(1).trim();
+        if (start.equals(NOW)) {
+            return now();
+        }
+
+        try {
+            return new Range(parseTime(start), parseTime(m.group(2)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid range: " + s, e);
+        }
+    }
+
+    private static String formatTime(double t) {
+        return t == UNSPECIFIED ? "" : String.format(Locale.ROOT, "%.3f", t);
+    }
+
+    @Override
+    public String toString() {
+        if (mNow) {
+            return NPT + "=" + NOW + "-";
+        }
+
+        return NPT + "=" + formatTime(mStart) + "-" + formatTime(mEnd);
+    }
+}
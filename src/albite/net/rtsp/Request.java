@@ -12,13 +12,13 @@ public class Request extends Message {
 
     public enum Method {
         DESCRIBE, // Stateless
-        ANNOUNCE, // N/A on the server
+        ANNOUNCE, // Stateless, carries the description of a stream to publish
         OPTIONS, // Stateless
         SETUP, // Initializes a session if none already running
         PLAY, // Requires an active session
-        PAUSE, // Requires an active session. N/A on the server
-        RECORD, // Requires an active session. N/A on the server
-        GET_PARAMETER, // Requires an active session. N/A on the server
+        PAUSE, // Requires an active session
+        RECORD, // Requires an active session
+        GET_PARAMETER, // Keeps a session alive, or reads statistics
         SET_PARAMETER, // Requires an active session. N/A on the server
         REDIRECT, // Requires an active session. N/A on the server
         TEARDOWN, // Destroys the session
@@ -100,6 +100,11 @@ public class Request extends Message {
         return mDescription;
     }
 
+    // For sending the request again elsewhere, e.g. after a redirect
+    void setUri(URI uri) {
+        mDescription = new Description(mDescription.getMethod(), uri);
+    }
+
     public String getUserAgent() {
         return getOptionalHeader(HEADER_USER_AGENT);
     }
@@ -110,9 +115,13 @@ public class Request extends Message {
     }
 
     public static Request readFromStream(InputStream in) throws IOException {
+        return readFromStream(in, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    public static Request readFromStream(InputStream in, int maxBodySize) throws IOException {
         Request r = new Request();
         try {
-            r.mDescription = Description.fromString(fill(r, in));
+            r.mDescription = Description.fromString(fill(r, in, maxBodySize));
         } catch (URISyntaxException e) {
             throw new IOException(e);
         }
@@ -191,8 +191,12 @@ public class Response extends Message {
     }
 
     public static Response readFromStream(InputStream in) throws IOException {
+        return readFromStream(in, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    public static Response readFromStream(InputStream in, int maxBodySize) throws IOException {
         Response r = new Response();
-        r.mStatus = Status.fromString(fill(r, in));
+        r.mStatus = Status.fromString(fill(r, in, maxBodySize));
         return r;
     }
 
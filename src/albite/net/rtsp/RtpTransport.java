@@ -13,10 +13,15 @@ public class RtpTransport {
     public static final String RTP_TCP = "RTP/AVP/TCP";
 
     public static final String PARAMETER_CLIENT_PORT = "client_port";
+    public static final String PARAMETER_INTERLEAVED = "interleaved";
+    public static final String PARAMETER_MODE = "mode";
     public static final String PARAMETER_SERVER_PORT = "server_port";
     public static final String PARAMETER_SOURCE = "source";
     public static final String PARAMETER_UNICAST = "unicast";
 
+    public static final String MODE_RECORD = "record";
+
+    private String mProtocol = RTP_UDP;
     private final Map<String, String> mParameters = new HashMap<>();
 
     public RtpTransport() {
@@ -32,15 +37,13 @@ public class RtpTransport {
         // Lower transport
         String transport = params[0];
 
-        if (transport.equals(RTP_TCP)) {
-            throw new IOException("RTP over TCP is not supported");
-        }
-
-        if (!transport.equals(RTP_DEFAULT) && !transport.equals(RTP_UDP)) {
+        if (!transport.equals(RTP_DEFAULT) && !transport.equals(RTP_UDP)
+                && !transport.equals(RTP_TCP)) {
             throw new IOException("Transport type is not valid: " + s);
         }
 
         RtpTransport rtp = new RtpTransport();
+        rtp.mProtocol = transport.equals(RTP_TCP) ? RTP_TCP : RTP_UDP;
 
         // We have at least one param
         for (int i = 1; i < params.length; i++) {
@@ -63,7 +66,7 @@ public class RtpTransport {
     @Override
     public String toString() {
         String[] params = new String[mParameters.size() + 1];
-        params[0] = RTP_UDP;
+        params[0] = mProtocol;
 
         int i = 1;
         for (Map.Entry<String, String> entry : mParameters.entrySet()) {
@@ -85,6 +88,31 @@ public class RtpTransport {
         mParameters.put(PARAMETER_UNICAST, null);
     }
 
+    // RTP and RTCP carried on the RTSP connection, each frame prefixed with
+    // '$', the channel and the length
+    public boolean isInterleaved() {
+        return RTP_TCP.equals(mProtocol);
+    }
+
+    public int[] getInterleavedChannels() {
+        return getRtpPortPair(PARAMETER_INTERLEAVED);
+    }
+
+    public void setInterleavedChannels(int rtp, int rtcp) {
+        mProtocol = RTP_TCP;
+        setRtpPortPair(PARAMETER_INTERLEAVED, rtp, rtcp);
+    }
+
+    // Whether the client is going to send (RECORD) rather than receive
+    public boolean isRecord() {
+        String mode = mParameters.get(PARAMETER_MODE);
+        return mode != null && mode.replace("\"", "").equalsIgnoreCase(MODE_RECORD);
+    }
+
+    public void setRecord() {
+        mParameters.put(PARAMETER_MODE, MODE_RECORD);
+    }
+
     private int[] getRtpPortPair(String key) {
         if (!mParameters.containsKey(key)) {
             return null;
@@ -1,46 +1,140 @@
 package albite.net.rtsp;
 
+import albite.net.rtp.UdpPortPair;
+import albite.util.BufferPool;
+import albite.util.FlightEvent;
+import albite.util.Log;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class RtspClient implements Closeable {
 
+    private static final String TAG = "RtspClient";
     private static final int CONNECTION_TIMEOUT_MS = 5000;
 
-    private final InetSocketAddress mAddress;
-    private final URI mUri;
+    // Redirects followed in a row before giving up
+    public static final int MAX_REDIRECTS = 5;
+
+    // Runs the concurrent parts of open(). Each request uses its own
+    // connection, so the threads only wait on the network.
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(BufferPool.flushingCaches(r), TAG);
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Redirects move the client to another server
+    private volatile InetSocketAddress mAddress;
+    private volatile URI mUri;
     private String mSession;
+    private int mSessionTimeout = -1;
     private int mSequenceNumber = 1;
+    private int mMaxBodySize = Message.DEFAULT_MAX_BODY_SIZE;
+
+    // Optional
+    private volatile DescriptionCache mDescriptionCache;
+    private volatile Connection.Connector mConnector = SocketConnection.CONNECTOR;
+
+    // Smoothed over the TCP handshakes of the requests, or -1
+    private volatile long mRoundTripNanos = -1;
 
     // PLAY
     // TEARDOWN
     public RtspClient(URI uri) {
         mUri = uri;
-        mAddress = new InetSocketAddress(uri.getHost(), uri.getPort());
+        mAddress = getAddress(uri);
     }
 
-    public Response transfer(Request request) throws IOException {
-        return transfer(request, CONNECTION_TIMEOUT_MS);
+    private static InetSocketAddress getAddress(URI uri) {
+        return new InetSocketAddress(uri.getHost(),
+                uri.getPort() < 0 ? Constants.RTSP_PORT : uri.getPort());
     }
 
-    public Response transfer(Request request, int connectTimeout) throws IOException {
-        Socket socket = new Socket();
+    public URI getUri() {
+        return mUri;
+    }
 
-        try {
-            socket.bind(null);
-            socket.connect(mAddress, connectTimeout);
+    // Of the server the requests go to, after any redirects
+    InetSocketAddress getAddress() {
+        return mAddress;
+    }
 
-            // Write the request
-            request.send(socket.getOutputStream());
+    public synchronized String getSession() {
+        return mSession;
+    }
 
-            // Read the response
-            Response response = Response.readFromStream(socket.getInputStream());
+    // In seconds, as given by the server, or -1. The session has to be
+    // kept alive with a request (e.g. OPTIONS) at least this often.
+    public synchronized int getSessionTimeout() {
+        return mSessionTimeout;
+    }
+
+    // The round trip to the server, as estimated from the time it takes
+    // to connect (a TCP handshake being one round trip), or -1 before the
+    // first request
+    public long getRoundTripNanos() {
+        return mRoundTripNanos;
+    }
+
+    // Descriptions are taken from the cache, and revalidated with the
+    // server when they are older than its TTL (e.g. DescriptionCache.shared()).
+    // Null disables caching.
+    public void setDescriptionCache(DescriptionCache cache) {
+        mDescriptionCache = cache;
+    }
+
+    public DescriptionCache getDescriptionCache() {
+        return mDescriptionCache;
+    }
 
-            // Validate the response
-            if (response.getStatus().getKind() != Response.Status.Kind.SUCCESS) {
+    // How the connections for the requests are made: over TCP by
+    // default, or e.g. through a LoopbackTransport
+    public void setConnector(Connection.Connector connector) {
+        mConnector = connector;
+    }
+
+    // Responses with a larger body fail without the body being read
+    public void setMaxBodySize(int maxBodySize) {
+        mMaxBodySize = maxBodySize;
+    }
+
+    public Response transfer(Request request) throws IOException {
+        return transfer(request, CONNECTION_TIMEOUT_MS);
+    }
+
+    // Follows redirects, up to MAX_REDIRECTS in a row
+    public Response transfer(Request request, int connectTimeout) throws IOException {
+        for (int redirects = 0;; redirects++) {
+            Response response = exchange(request, connectTimeout);
+
+            int code = response.getStatus().getCode();
+            if (response.getStatus().getKind() == Response.Status.Kind.REDIRECTION
+                    && code != Response.Status.NOT_MODIFIED.getCode()) {
+                String location = response.getOptionalHeader(Message.HEADER_LOCATION);
+                if (location == null || redirects >= MAX_REDIRECTS) {
+                    throw new RtspException(response.getStatus(), location == null
+                            ? "Redirected without a location" : "Too many redirects");
+                }
+
+                request.setUri(follow(request.getDescription().getUri(), location));
+                continue;
+            }
+
+            // Validate the response. Not Modified is only ever the answer
+            // to a conditional request, which is expecting it.
+            if (response.getStatus().getKind() != Response.Status.Kind.SUCCESS
+                    && code != Response.Status.NOT_MODIFIED.getCode()) {
                 throw new RtspException(response.getStatus(),
                         "Tranfser failed: " + response.getStatus().toString());
             }
@@ -52,19 +146,71 @@ public class RtspClient implements Closeable {
             // Generally, the session MUST be set only in SETUP,
             // however not all servers comply, and Wowza sets it early in
             // DESCRIBE. So we should allow for that.
-            if (mSession != null && !mSession.equals(response.getSession())) {
-                throw new IOException("The session was changed");
-            } else if (mSession == null) {
-                mSession = response.getSession();
+            synchronized (this) {
+                if (mSession != null && !mSession.equals(response.getSession())) {
+                    throw new IOException("The session was changed");
+                } else if (mSession == null) {
+                    mSession = response.getSession();
+                }
+
+                if (response.getSessionTimeout() >= 0) {
+                    mSessionTimeout = response.getSessionTimeout();
+                }
             }
 
+            return response;
+        }
+    }
+
+    private Response exchange(Request request, int connectTimeout) throws IOException {
+        FlightEvent.Instance event = RtspEvents.CLIENT_REQUEST.begin();
+        Response response = null;
+        Connection connection = null;
+
+        try {
+            long connecting = System.nanoTime();
+            connection = mConnector.connect(mAddress, connectTimeout);
+            updateRoundTrip(System.nanoTime() - connecting);
+
+            // Write the request
+            request.send(connection.getOutputStream());
+
+            // Read the response
+            response = Response.readFromStream(connection.getInputStream(), mMaxBodySize);
             return response;
         } finally {
-            socket.close();
+            if (connection != null) {
+                connection.close();
+            }
+            RtspEvents.clientRequest(event, request, response);
         }
     }
 
-    private Request createRequest(Request.Method method, URI uri) {
+    // Smoothed as TCP does (RFC 6298)
+    private synchronized void updateRoundTrip(long sample) {
+        long rtt = mRoundTripNanos;
+        mRoundTripNanos = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+    }
+
+    // The rest of the requests go to the server the client was redirected
+    // to: the base URI moves to the location if it was the base that was
+    // redirected, or else to the location's server
+    private synchronized URI follow(URI from, String location) throws IOException {
+        URI to = from.resolve(location);
+        Log.i(TAG, "Redirected from " + from + " to " + to);
+
+        try {
+            mUri = from.equals(mUri) ? to
+                    : new URI(to.getScheme(), to.getAuthority(), mUri.getPath(), mUri.getQuery(), null);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        mAddress = getAddress(mUri);
+        return to;
+    }
+
+    private synchronized Request createRequest(Request.Method method, URI uri) {
         Request.Description desc = new Request.Description(method, uri);
         Request request = new Request(desc, mSequenceNumber++, mSession);
         // We do not support persistant connections
@@ -105,14 +251,68 @@ public class RtspClient implements Closeable {
         return response;
     }
 
-    public String requestDescribeSdp() throws IOException {
-        Message message = requestDescribe(new String[]{Message.MIME_TYPE_SDP});
+    // Through the description cache, if there is one
+    private Message describeSdp() throws IOException {
+        DescriptionCache cache = mDescriptionCache;
+        if (cache == null) {
+            return checkSdp(requestDescribe(new String[]{Message.MIME_TYPE_SDP}));
+        }
+
+        URI uri = mUri;
+        Request request = createRequest(Request.Method.DESCRIBE, uri);
+        request.setHeader(Message.HEADER_ACCEPT, Message.MIME_TYPE_SDP);
+
+        Response cached = cache.get(uri, request);
+        if (cached != null && request.getOptionalHeader(Message.HEADER_IF_NONE_MATCH) == null
+                && request.getOptionalHeader(Message.HEADER_IF_MODIFIED_SINCE) == null) {
+            return cached;
+        }
+
+        Response response = transfer(request);
+        if (response.getStatus().getCode() != Response.Status.NOT_MODIFIED.getCode()) {
+            if (response.getBody() == null) {
+                throw new IOException("DESCRIBE reponse has no body");
+            }
+            checkSdp(response);
+        }
+
+        Response described = cache.put(uri, response);
+        if (described == null) {
+            // Not modified, but gone from the cache since
+            cache.remove(uri);
+            return checkSdp(requestDescribe(new String[]{Message.MIME_TYPE_SDP}));
+        }
+
+        return described;
+    }
+
+    private static Message checkSdp(Message message) throws IOException {
         String contentType = message.getOptionalHeader(Message.HEADER_CONTENT_TYPE);
         if (contentType != null && !contentType.equals(Message.MIME_TYPE_SDP)) {
             throw new IOException("Returned type for DESCRIBE is not SDP: " + contentType);
         }
+        return message;
+    }
 
-        return new String(message.getBody());
+    public String requestDescribeSdp() throws IOException {
+        return new String(describeSdp().getBody());
+    }
+
+    public SessionDescription requestDescription() throws IOException {
+        Message message = describeSdp();
+
+        // Control URIs are relative to the Content-Base, if given
+        URI base = mUri;
+        String contentBase = message.getOptionalHeader(Message.HEADER_CONTENT_BASE);
+        if (contentBase != null) {
+            try {
+                base = new URI(contentBase);
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid Content-Base: " + contentBase, e);
+            }
+        }
+
+        return SessionDescription.parse(message.getBody(), base);
     }
 
     public RtpTransport requestRtpUnicastSetup(int clientRtpPort) throws IOException {
@@ -143,11 +343,247 @@ public class RtspClient implements Closeable {
     }
 
     public void requestPlay(URI uri) throws IOException {
+        requestPlay(uri, null);
+    }
+
+    public Range requestPlay(Range range) throws IOException {
+        return requestPlay(mUri, range);
+    }
+
+    // Returns the range the server is actually going to play, if it said so
+    public Range requestPlay(URI uri, Range range) throws IOException {
         Request request = createRequest(Request.Method.PLAY, uri);
-        // Note: Range not supported for now
+        if (range != null) {
+            request.setHeader(Message.HEADER_RANGE, range.toString());
+        }
+
+        Response response = transfer(request);
+
+        String r = response.getOptionalHeader(Message.HEADER_RANGE);
+        if (r != null) {
+            try {
+                return Range.fromString(r);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+        }
+
+        return null;
+    }
+
+    public void requestPause() throws IOException {
+        requestPause(mUri);
+    }
+
+    public void requestPause(URI uri) throws IOException {
+        Request request = createRequest(Request.Method.PAUSE, uri);
         transfer(request);
     }
 
+    // Publishes a stream: SETUP each media with a record transport,
+    // then RECORD
+    public void requestAnnounce(SessionDescription description) throws IOException {
+        Request request = createRequest(Request.Method.ANNOUNCE, mUri);
+        request.setBody(description.toBytes());
+        request.setHeader(Message.HEADER_CONTENT_TYPE, Message.MIME_TYPE_SDP);
+        transfer(request);
+    }
+
+    public void requestRecord() throws IOException {
+        requestRecord(mUri);
+    }
+
+    public void requestRecord(URI uri) throws IOException {
+        Request request = createRequest(Request.Method.RECORD, uri);
+        transfer(request);
+    }
+
+    // Keeps the session alive
+    public void requestKeepAlive() throws IOException {
+        transfer(createRequest(Request.Method.GET_PARAMETER, mUri));
+    }
+
+    // Of the session, or of the server if there's no session yet. Without
+    // names, all of the server's parameters are returned.
+    public Map<String, String> requestParameters(String... names) throws IOException {
+        Request request = createRequest(Request.Method.GET_PARAMETER, mUri);
+        if (names.length > 0) {
+            request.setBody((String.join("\r\n", names) + "\r\n").getBytes(Message.CHARSET));
+            request.setHeader(Message.HEADER_CONTENT_TYPE, Message.MIME_TYPE_PARAMETERS);
+        }
+
+        Response response = transfer(request);
+
+        // name: value
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (response.getBody() != null) {
+            for (String line : new String(response.getBody(), Message.CHARSET).split("\r?\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    parameters.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+            }
+        }
+        return parameters;
+    }
+
+    public ClientSession open() throws IOException {
+        return open(null);
+    }
+
+    // Does the whole handshake: DESCRIBE, a SETUP for each media in the
+    // description, each with its own freshly bound port pair, and PLAY.
+    // The first SETUP establishes the session, the rest go concurrently.
+    public ClientSession open(Range range) throws IOException {
+        long start = System.nanoTime();
+        SessionDescription description = requestDescription();
+        long described = System.nanoTime();
+
+        List<ClientSession.Track> tracks = new ArrayList<>();
+        boolean opened = false;
+
+        try {
+            for (SessionDescription.Media media : description.getMedia()) {
+                tracks.add(new ClientSession.Track(
+                        media, media.getControlUri(), UdpPortPair.openEphemeral()));
+            }
+
+            if (tracks.isEmpty()) {
+                throw new IOException("No media in description");
+            }
+
+            setupTracks(tracks);
+            long setUp = System.nanoTime();
+
+            URI control = description.getSessionControlUri();
+            Range played = requestPlay(control != null ? control : mUri, range);
+            long playing = System.nanoTime();
+
+            ClientSession session = new ClientSession(this, description, tracks);
+            session.setRange(played);
+            session.setTimings(described - start, setUp - described, playing - setUp);
+            Log.i(TAG, "Opened " + session);
+
+            opened = true;
+            return session;
+        } finally {
+            if (!opened) {
+                ClientSession.closePorts(tracks);
+
+                if (getSession() != null) {
+                    try {
+                        requestTearDown();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed tearing down a half open session", e);
+                    }
+                }
+            }
+        }
+    }
+
+    // The first SETUP establishes the session, the rest go concurrently
+    private void setupTracks(List<ClientSession.Track> tracks) throws IOException {
+        setupTrack(tracks.get(0));
+
+        List<Future<RtpTransport>> setups = new ArrayList<>();
+        for (ClientSession.Track track : tracks.subList(1, tracks.size())) {
+            setups.add(EXECUTOR.submit(() -> setupTrack(track)));
+        }
+
+        for (Future<RtpTransport> setup : setups) {
+            try {
+                setup.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during SETUP", e);
+            }
+        }
+    }
+
+    // Picks a session up again after the connection to the server was
+    // lost. If the server still has the session playing, a keep-alive is
+    // all it takes. If not, the tracks are set up again on the same
+    // ports, from the description the session was opened with, and
+    // played. Returns whether the session had to be set up again.
+    boolean resume(ClientSession session) throws IOException {
+        String id = getSession();
+        if (id != null) {
+            if (session.isPlaying()) {
+                Boolean alive = isAlive();
+                if (alive == Boolean.TRUE) {
+                    return false;
+                }
+
+                if (alive == null) {
+                    // Whatever is left of it goes
+                    tearDownQuietly();
+                }
+                Log.i(TAG, "Session " + id + " is gone, setting it up again");
+            } else {
+                // Set up half way by the last attempt
+                tearDownQuietly();
+                Log.i(TAG, "Session " + id + " was not played, setting it up again");
+            }
+
+            synchronized (this) {
+                mSession = null;
+            }
+        }
+
+        session.setPlaying(false);
+        setupTracks(session.getTracks());
+
+        URI control = session.getDescription().getSessionControlUri();
+        requestPlay(control != null ? control : mUri, null);
+        session.setPlaying(true);
+        return true;
+    }
+
+    // Whether the server still has the session, or null if it can't
+    // tell: servers that don't take GET_PARAMETER only get an OPTIONS,
+    // which shows they are up, but says nothing of the session
+    private Boolean isAlive() throws IOException {
+        try {
+            requestKeepAlive();
+            return Boolean.TRUE;
+        } catch (RtspException e) {
+            int code = e.getStatus().getCode();
+            if (code == Response.Status.SESSION_NOT_FOUND.getCode()) {
+                return Boolean.FALSE;
+            }
+
+            if (code != Response.Status.METHOD_NOT_ALLOWED.getCode()
+                    && code != Response.Status.NOT_IMPLEMENTED.getCode()) {
+                throw e;
+            }
+        }
+
+        requestOptions();
+        return null;
+    }
+
+    private void tearDownQuietly() {
+        try {
+            requestTearDown();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed tearing down session " + getSession(), e);
+        }
+    }
+
+    private RtpTransport setupTrack(ClientSession.Track track) throws IOException {
+        RtpTransport clientTransport = new RtpTransport();
+        clientTransport.setUnicast();
+        clientTransport.setClientRtpPortPair(
+                track.getPorts().getRtpPort(), track.getPorts().getRtcpPort());
+
+        RtpTransport serverTransport = requestSetup(track.getUri(), clientTransport);
+        track.setServerTransport(serverTransport);
+        return serverTransport;
+    }
+
     private void requestTearDown() throws IOException {
         Request request = createRequest(Request.Method.TEARDOWN, mUri);
         transfer(request);
@@ -0,0 +1,156 @@
+package albite.net.rtsp;
+
+import albite.util.FlightEvent;
+
+// The events servers and clients record with Java Flight Recorder. Each
+// helper takes the instance begin() returned, which is null unless the
+// event is being recorded.
+final class RtspEvents {
+
+    private static final String[] CATEGORY = {"Albite", "RTSP"};
+
+    static final FlightEvent ACCEPT = FlightEvent.builder("albite.rtsp.Accept", "RTSP Accept")
+            .category(CATEGORY)
+            .description("A connection accepted by a server worker")
+            .field("remoteAddress", String.class, "Remote Address")
+            .field("worker", int.class, "Worker")
+            .build();
+
+    static final FlightEvent REQUEST_PARSE = FlightEvent.builder("albite.rtsp.RequestParse", "RTSP Request Parse")
+            .category(CATEGORY)
+            .description("Reading a request off a server connection")
+            .field("method", String.class, "Method")
+            .field("uri", String.class, "URI")
+            .field("session", String.class, "Session")
+            .field("contentLength", long.class, "Content Length")
+            .build();
+
+    static final FlightEvent LISTENER = FlightEvent.builder("albite.rtsp.ListenerCall", "RTSP Listener Call")
+            .category(CATEGORY)
+            .description("A call to the listener of a server")
+            .field("callback", String.class, "Callback")
+            .field("session", String.class, "Session")
+            .field("uri", String.class, "URI")
+            .build();
+
+    static final FlightEvent RESPONSE_SEND = FlightEvent.builder("albite.rtsp.ResponseSend", "RTSP Response Send")
+            .category(CATEGORY)
+            .description("Writing a response to a server connection")
+            .field("method", String.class, "Method")
+            .field("status", int.class, "Status")
+            .field("session", String.class, "Session")
+            .build();
+
+    static final FlightEvent SESSION_CREATED = FlightEvent.builder("albite.rtsp.SessionCreated", "RTSP Session Created")
+            .category(CATEGORY)
+            .field("session", String.class, "Session")
+            .field("client", String.class, "Client")
+            .build();
+
+    static final FlightEvent SESSION_CLOSED = FlightEvent.builder("albite.rtsp.SessionClosed", "RTSP Session Closed")
+            .category(CATEGORY)
+            .field("session", String.class, "Session")
+            .field("client", String.class, "Client")
+            .field("lifetime", long.class, "Lifetime (ms)")
+            .build();
+
+    static final FlightEvent SESSION_STATS = FlightEvent.builder("albite.rtsp.SessionStats", "RTSP Session Statistics")
+            .category(CATEGORY)
+            .description("What a track of a session has sent so far, recorded periodically")
+            .field("session", String.class, "Session")
+            .field("track", String.class, "Track")
+            .field("state", String.class, "State")
+            .field("packetsSent", long.class, "Packets Sent")
+            .field("bytesSent", long.class, "Bytes Sent")
+            .field("packetsFailed", long.class, "Packets Failed")
+            .build();
+
+    static final FlightEvent CLIENT_REQUEST = FlightEvent.builder("albite.rtsp.ClientRequest", "RTSP Client Request")
+            .category(CATEGORY)
+            .description("A request of a client, from connecting to reading the response")
+            .field("method", String.class, "Method")
+            .field("uri", String.class, "URI")
+            .field("status", int.class, "Status")
+            .build();
+
+    private RtspEvents() {
+    }
+
+    private static String toString(Object o) {
+        return o == null ? null : o.toString();
+    }
+
+    static void accept(FlightEvent.Instance event, Object remoteAddress, int worker) {
+        if (event != null) {
+            event.set(0, toString(remoteAddress)).set(1, worker).commit();
+        }
+    }
+
+    static void requestParsed(FlightEvent.Instance event, Request request) {
+        if (event != null) {
+            event.set(0, request.getDescription().getMethod().name())
+                    .set(1, toString(request.getDescription().getUri()))
+                    .set(2, request.getSession())
+                    .set(3, request.getContentLength())
+                    .commit();
+        }
+    }
+
+    static void listenerCalled(FlightEvent.Instance event, String callback, String session, Object uri) {
+        if (event != null) {
+            event.set(0, callback).set(1, session).set(2, toString(uri)).commit();
+        }
+    }
+
+    static void responseSent(FlightEvent.Instance event, Request request, Response response) {
+        if (event != null) {
+            event.set(0, request.getDescription().getMethod().name())
+                    .set(1, response.getStatus().getCode())
+                    .set(2, response.getSession())
+                    .commit();
+        }
+    }
+
+    static void sessionCreated(RtspSession session) {
+        FlightEvent.Instance event = SESSION_CREATED.begin();
+        if (event != null) {
+            event.set(0, session.getId()).set(1, toString(session.getClientAddress())).commit();
+        }
+    }
+
+    static void sessionClosed(RtspSession session) {
+        FlightEvent.Instance event = SESSION_CLOSED.begin();
+        if (event != null) {
+            event.set(0, session.getId())
+                    .set(1, toString(session.getClientAddress()))
+                    .set(2, session.getAgeNanos() / 1000000)
+                    .commit();
+        }
+    }
+
+    static void sessionStats(RtspSession session) {
+        for (RtspSession.Track track : session.getTracks()) {
+            FlightEvent.Instance event = SESSION_STATS.begin();
+            if (event == null) {
+                return;
+            }
+
+            event.set(0, session.getId())
+                    .set(1, toString(track.getUri()))
+                    .set(2, session.getState().name())
+                    .set(3, track.getPacketsSent())
+                    .set(4, track.getBytesSent())
+                    .set(5, track.getPacketsFailed())
+                    .commit();
+        }
+    }
+
+    static void clientRequest(FlightEvent.Instance event, Request request, Response response) {
+        if (event != null) {
+            event.set(0, request.getDescription().getMethod().name())
+                    .set(1, toString(request.getDescription().getUri()))
+                    .set(2, response == null ? 0 : response.getStatus().getCode())
+                    .commit();
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package albite.net.rtsp;
+
+import albite.net.rtp.KeyframeDetector;
+import albite.net.rtp.LiveStream;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.RtpSource;
+import albite.util.BufferPool;
+import albite.util.Log;
+import albite.util.PooledBuffer;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+
+// Restreams a single upstream RTSP source to any number of viewers of an
+// RtspServer. The upstream is only pulled while there are viewers: it is
+// opened on the first PLAY, reopened with a backoff if it fails, and torn
+// down once there have been no viewers for the idle timeout.
+//
+// Received packets are shared by all viewers, each one getting a reference
+// to the same pooled buffer. To serve a relay, set it as the source factory
+// of the server and answer DESCRIBE from the listener with describe(uri).
+public class RtspRelay implements RtpSource.Factory, Closeable {
+
+    private static final String TAG = "RtspRelay";
+
+    // Media i is set up as <base>/trackID=i
+    public static final String TRACK_PREFIX = SessionDescription.TRACK_PREFIX;
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10000;
+
+    // An upstream that sends nothing for this long is reopened
+    private static final long RECEIVE_TIMEOUT_MS = 5000;
+
+    // Most servers expire sessions after 60 s without a request
+    private static final long KEEPALIVE_INTERVAL_MS = 30000;
+
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private static final int SELECT_TIMEOUT_MS = 500;
+
+    private static final BufferPool POOL = BufferPool.direct();
+
+    private final URI mUpstream;
+
+    // Fetched on first DESCRIBE / SETUP and kept, as the streams are
+    // made after it
+    private final Object mDescriptionLock = new Object();
+    private volatile SessionDescription mDescription;
+    private volatile LiveStream[] mStreams;
+
+    private final Object mLock = new Object();
+    private int mViewers = 0;
+    private long mIdleSince = System.nanoTime();
+    private Thread mPuller;
+    private boolean mClosed = false;
+
+    private volatile long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private volatile long mConnects;
+    private volatile long mFailures;
+    private volatile long mPacketsReceived;
+
+    public RtspRelay(URI upstream) {
+        mUpstream = upstream;
+    }
+
+    public URI getUpstream() {
+        return mUpstream;
+    }
+
+    public void setIdleTimeout(long timeoutMs) {
+        mIdleTimeoutMs = timeoutMs;
+    }
+
+    // The upstream description, fetched once
+    public SessionDescription getDescription() throws IOException {
+        synchronized (mDescriptionLock) {
+            if (mDescription == null) {
+                SessionDescription description = new RtspClient(mUpstream).requestDescription();
+                List<SessionDescription.Media> media = description.getMedia();
+
+                LiveStream[] streams = new LiveStream[media.size()];
+                for (int i = 0; i < streams.length; i++) {
+                    streams[i] = new LiveStream(mUpstream + "#" + i,
+                            KeyframeDetector.forEncoding(media.get(i).getEncoding()), LiveStream.DEFAULT_GOP_CACHE_SIZE);
+                }
+
+                mStreams = streams;
+                mDescription = description;
+                Log.i(TAG, "Relaying " + streams.length + " streams from " + mUpstream);
+            }
+
+            return mDescription;
+        }
+    }
+
+    // The upstream description as served from base
+    public byte[] describe(URI base) throws IOException {
+        return getDescription().withControls(TRACK_PREFIX, base).toBytes();
+    }
+
+    public LiveStream getStream(int index) {
+        LiveStream[] streams = mStreams;
+        return streams == null || index >= streams.length ? null : streams[index];
+    }
+
+    @Override
+    public RtpSource createSource(URI uri) throws IOException {
+        String path = uri.getPath();
+        int i = path == null ? -1 : path.lastIndexOf('/' + TRACK_PREFIX);
+        if (i < 0) {
+            throw new FileNotFoundException("Not a relayed track: " + uri);
+        }
+
+        int index;
+        try {
+            index = Integer.parseInt(path.substring(i + 1 + TRACK_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("Not a relayed track: " + uri);
+        }
+
+        getDescription();
+        LiveStream stream = getStream(index);
+        if (stream == null) {
+            throw new FileNotFoundException("No such track: " + uri);
+        }
+
+        return new Viewer(stream.newSource());
+    }
+
+    // Counts the viewers that are playing, to know when to pull
+    private class Viewer implements RtpSource {
+
+        private final RtpSource mSource;
+        private boolean mPlaying = false;
+
+        Viewer(RtpSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public synchronized void start(RtpSink sink) throws IOException {
+            mSource.start(sink);
+
+            if (!mPlaying) {
+                mPlaying = true;
+                viewerStarted();
+            }
+        }
+
+        @Override
+        public synchronized void pause() {
+            mSource.pause();
+
+            if (mPlaying) {
+                mPlaying = false;
+                viewerStopped();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            pause();
+        }
+    }
+
+    private void viewerStarted() throws IOException {
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IOException("Relay is closed");
+            }
+
+            mViewers++;
+
+            if (mPuller == null) {
+                mPuller = new Thread(BufferPool.flushingCaches(this::pull), TAG);
+                mPuller.setDaemon(true);
+                mPuller.start();
+            }
+        }
+    }
+
+    private void viewerStopped() {
+        synchronized (mLock) {
+            if (--mViewers == 0) {
+                mIdleSince = System.nanoTime();
+            }
+        }
+    }
+
+    // Whether the puller should stop. When it says so, the puller is
+    // already gone as far as new viewers are concerned.
+    private boolean shouldStop() {
+        synchronized (mLock) {
+            boolean idle = mViewers == 0
+                    && System.nanoTime() - mIdleSince >= mIdleTimeoutMs * 1000000;
+
+            if (mClosed || idle) {
+                mPuller = null;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private void pull() {
+        Backoff backoff = new Backoff(MIN_BACKOFF_MS, MAX_BACKOFF_MS);
+
+        while (!shouldStop()) {
+            long delay;
+
+            try (ClientSession session = new RtspClient(mUpstream).open()) {
+                mConnects++;
+                backoff.reset();
+                Log.i(TAG, "Pulling " + session);
+
+                if (receive(session)) {
+                    Log.i(TAG, "Stopped pulling from " + mUpstream);
+                    return;
+                }
+                delay = backoff.next();
+            } catch (IOException e) {
+                mFailures++;
+                delay = backoff.next();
+                Log.w(TAG, "Failed pulling from " + mUpstream
+                        + ", retrying in " + delay + " ms", e);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // Only close() interrupts
+            }
+        }
+    }
+
+    // Returns true once the puller should stop, or throws if the upstream
+    // failed and should be reopened
+    private boolean receive(ClientSession session) throws IOException {
+        try (Selector selector = Selector.open()) {
+            List<ClientSession.Track> tracks = session.getTracks();
+            for (int i = 0; i < tracks.size(); i++) {
+                LiveStream stream = getStream(i);
+                if (stream == null) {
+                    Log.w(TAG, "Upstream has more tracks than it described: " + mUpstream);
+                    break;
+                }
+
+                DatagramChannel channel = tracks.get(i).getPorts().getRtpChannel();
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, stream);
+            }
+
+            long lastPacket = System.nanoTime();
+            long lastKeepalive = lastPacket;
+
+            while (!shouldStop()) {
+                selector.select(SELECT_TIMEOUT_MS);
+                long now = System.nanoTime();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    int count = drain((DatagramChannel) key.channel(), (LiveStream) key.attachment());
+                    if (count > 0) {
+                        lastPacket = now;
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (now - lastPacket > RECEIVE_TIMEOUT_MS * 1000000) {
+                    throw new IOException("Upstream stopped sending");
+                }
+
+                if (now - lastKeepalive > KEEPALIVE_INTERVAL_MS * 1000000) {
+                    session.getClient().requestOptions();
+                    lastKeepalive = now;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    // Reads all pending packets straight into pooled buffers, which are
+    // then shared by the viewers
+    private int drain(DatagramChannel channel, LiveStream stream) throws IOException {
+        int count = 0;
+
+        while (true) {
+            PooledBuffer buffer = POOL.allocate(BufferPool.SIZE_PACKET);
+
+            try {
+                if (channel.receive(buffer.buffer()) == null) {
+                    return count;
+                }
+
+                buffer.buffer().flip();
+                count++;
+                mPacketsReceived++;
+
+                if (buffer.buffer().remaining() >= RtpPacket.HEADER_SIZE) {
+                    stream.publish(RtpPacket.wrap(buffer));
+                }
+            } finally {
+                // Viewers retain the packets they keep
+                buffer.release();
+            }
+        }
+    }
+
+    public int getViewerCount() {
+        synchronized (mLock) {
+            return mViewers;
+        }
+    }
+
+    public boolean isPulling() {
+        synchronized (mLock) {
+            return mPuller != null;
+        }
+    }
+
+    public long getConnectCount() {
+        return mConnects;
+    }
+
+    public long getFailureCount() {
+        return mFailures;
+    }
+
+    public long getPacketsReceived() {
+        return mPacketsReceived;
+    }
+
+    @Override
+    public void close() {
+        Thread puller;
+
+        synchronized (mLock) {
+            mClosed = true;
+            puller = mPuller;
+        }
+
+        if (puller != null) {
+            puller.interrupt();
+            try {
+                puller.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        LiveStream[] streams = mStreams;
+        if (streams != null) {
+            for (LiveStream stream : streams) {
+                stream.close();
+            }
+        }
+    }
+}
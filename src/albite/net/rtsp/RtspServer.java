@@ -1,43 +1,180 @@
 package albite.net.rtsp;
 
+import albite.net.rtp.CountingSink;
+import albite.net.rtp.LiveStream;
+import albite.net.rtp.LiveStreams;
+import albite.net.rtp.PacedSink;
+import albite.net.rtp.PortAllocator;
+import albite.net.rtp.RetransmittingSink;
+import albite.net.rtp.RtcpNack;
+import albite.net.rtp.RtcpReport;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.RtpSource;
+import albite.net.rtp.Scheduler;
+import albite.net.rtp.SharedUdpSocket;
+import albite.net.rtp.UdpIngest;
+import albite.net.rtp.UdpPortPair;
+import albite.net.rtp.UdpSink;
+import albite.util.BufferPool;
+import albite.util.FlightEvent;
 import albite.util.Log;
+import albite.util.PooledBuffer;
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RtspServer implements Closeable {
 
     private static final String TAG = "RtspServer";
-    private static final int SERVER_ACCEPT_TIMEOUT_MS = 5000;
     private static final int CLIENT_READ_TIMEOUT_MS = 15000;
 
+    // How long to wait for a client to close its end after the response,
+    // and how much of what it still sends to read meanwhile
+    private static final int CLIENT_LINGER_TIMEOUT_MS = 1000;
+    private static final int CLIENT_LINGER_BYTES = 64 * 1024;
+
+    // How long close() waits for the requests being handled
+    private static final long CLOSE_DRAIN_TIMEOUT_MS = 1000;
+
+    // Connections handled at once by each worker. More wait their turn.
+    private static final int MAX_HANDLERS = 64;
+    private static final long HANDLER_IDLE_TIMEOUT_MS = 30000;
+
+    // The system's default: workers only accept, so connections don't
+    // wait long on the socket
+    private static final int SERVER_BACKLOG = 0;
+
+    // Only in the API from Java 9 on, and not on every platform
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+
     private static final boolean DEBUG = false;
 
+    // Seconds, as advertised in the Session header of SETUP responses.
+    // Off by default: the server only hears of sessions through RTSP and
+    // the RTCP on its own ports, so a client that keeps a session alive
+    // otherwise (e.g. RTCP to ports chosen by the listener) would have
+    // it torn down while playing.
+    public static final int DEFAULT_SESSION_TIMEOUT = 0;
+
+    private static final long EXPIRY_INTERVAL_NS = 1000000000L;
+
+    // How often the statistics of sessions are recorded, when they are
+    private static final long STATS_INTERVAL_NS = 5000000000L;
+
     public interface Listener {
 
         void onRequestError(Throwable tr);
 
         byte[] onRequestDescription(String[] accept) throws IOException;
 
+        // For listeners serving more than one stream.
+        // A SessionDescription can be serialized with toBytes().
+        default byte[] onRequestDescription(URI uri, String[] accept) throws IOException {
+            return onRequestDescription(accept);
+        }
+
         String createSession();
 
+        // Returns the server RTP / RTCP ports, or null to have the server
+        // pick them: a shared socket if there are any, or else a pair from
+        // the PortAllocator
         int[] onSetupUnicast(String session, URI uri, int rtpPort, int rtcpPort) throws IOException;
 
         void onPlay(String session, URI uri) throws IOException;
 
+        // The range is null if none was requested. Returns the range that
+        // will actually be played, which is echoed back to the client.
+        default Range onPlay(String session, URI uri, Range range) throws IOException {
+            onPlay(session, uri);
+            return range;
+        }
+
+        default void onPause(String session, URI uri) throws IOException {
+        }
+
+        // Publishing is refused unless the listener accepts it
+        default void onAnnounce(URI uri, SessionDescription description) throws IOException {
+            throw new RtspException(Response.Status.FORBIDDEN, "Publishing is not enabled");
+        }
+
+        default void onRecord(String session, URI uri) throws IOException {
+        }
+
         void onTeardown(String session) throws IOException;
     }
 
     private static final Request.Method[] METHODS = {
         Request.Method.OPTIONS,
         Request.Method.DESCRIBE,
+        Request.Method.ANNOUNCE,
         Request.Method.SETUP,
         Request.Method.PLAY,
+        Request.Method.PAUSE,
+        Request.Method.RECORD,
+        Request.Method.GET_PARAMETER,
         Request.Method.TEARDOWN,};
 
+    // GET_PARAMETER names, of the server when there's no session
+    public static final String PARAMETER_SESSIONS = "sessions";
+    public static final String PARAMETER_SESSIONS_CREATED = "sessions_created";
+    public static final String PARAMETER_SESSIONS_EXPIRED = "sessions_expired";
+    public static final String PARAMETER_PUBLICATIONS = "publications";
+    public static final String PARAMETER_REQUESTS = "requests";
+    public static final String PARAMETER_ERRORS = "errors";
+
+    // Of a session
+    public static final String PARAMETER_STATE = "state";
+    public static final String PARAMETER_TRACKS = "tracks";
+    public static final String PARAMETER_IDLE = "idle";
+    public static final String PARAMETER_PACKETS_LOST = "packets_lost";
+    public static final String PARAMETER_FRACTION_LOST = "fraction_lost";
+    public static final String PARAMETER_JITTER = "jitter";
+
+    // Of both
+    public static final String PARAMETER_PACKETS_SENT = "packets_sent";
+    public static final String PARAMETER_BYTES_SENT = "bytes_sent";
+    public static final String PARAMETER_PACKETS_FAILED = "packets_failed";
+
+    private static final Set<String> SERVER_PARAMETERS = new HashSet<>(Arrays.asList(
+            PARAMETER_SESSIONS, PARAMETER_SESSIONS_CREATED, PARAMETER_SESSIONS_EXPIRED,
+            PARAMETER_PUBLICATIONS, PARAMETER_REQUESTS, PARAMETER_ERRORS,
+            PARAMETER_PACKETS_SENT, PARAMETER_BYTES_SENT, PARAMETER_PACKETS_FAILED));
+
+    private static final Set<String> SESSION_PARAMETERS = new HashSet<>(Arrays.asList(
+            PARAMETER_STATE, PARAMETER_TRACKS, PARAMETER_IDLE,
+            PARAMETER_PACKETS_SENT, PARAMETER_BYTES_SENT, PARAMETER_PACKETS_FAILED,
+            PARAMETER_PACKETS_LOST, PARAMETER_FRACTION_LOST, PARAMETER_JITTER));
+
     private static final String METHOD_NAMES;
 
     static {
@@ -51,37 +188,576 @@ public class RtspServer implements Closeable {
     }
 
     private final Listener mListener;
-    private final ServerSocket mServer;
-    private final ServerThread mThread;
+    private final Connection.Acceptor[] mAcceptors;
+    private final ServerThread[] mThreads;
+    private final Thread mExpiryThread = new Thread(this::runExpiry, TAG + "-Expiry");
+    private final Set<InterleavedReceiver> mReceivers = ConcurrentHashMap.newKeySet();
+
+    // The connections of the handlers, and of those the ones with no
+    // request in flight: still to send it, or lingering after the response
+    private final Set<Connection> mConnections = ConcurrentHashMap.newKeySet();
+    private final Set<Connection> mIdleConnections = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch mReady;
+    private final CountDownLatch mClosed = new CountDownLatch(1);
+    private final Map<String, RtspSession> mSessions = new ConcurrentHashMap<>();
+
+    // Pacing for the RTP output of sessions (optional)
+    private volatile Scheduler mPacingScheduler;
+    private volatile long mPacingBitRate;
+    private volatile int mPacingBurst;
+
+    // Retransmission of NACKed packets (optional)
+    private volatile int mRetransmissionHistory;
+    private volatile long mRetransmissionBitRate;
+    private volatile int mRetransmissionBurst;
+
+    // Media for the tracks of sessions (optional)
+    private volatile RtpSource.Factory mSourceFactory;
+
+    private volatile int mMaxBodySize = Message.DEFAULT_MAX_BODY_SIZE;
+
+    // Streams published with ANNOUNCE / RECORD, by path. Their media are
+    // served from the live streams.
+    private final Map<String, Publication> mPublications = new ConcurrentHashMap<>();
+    private final LiveStreams mLiveStreams = new LiveStreams();
+    private UdpIngest mUdpIngest;
+
+    private volatile PortAllocator mPortAllocator;
+    private volatile SharedUdpSocket[] mSharedSockets;
+    private volatile int mSessionTimeout = DEFAULT_SESSION_TIMEOUT;
+    private volatile LoadBalancer mLoadBalancer;
+
+    // Server-wide statistics. They take no locks, so that monitoring
+    // doesn't hold up requests or media.
+    private final LongAdder mRequests = new LongAdder();
+    private final LongAdder mErrors = new LongAdder();
+    private final LongAdder mSessionsCreated = new LongAdder();
+    private final LongAdder mSessionsExpired = new LongAdder();
+
+    // Sent by sessions that are gone
+    private final LongAdder mClosedPacketsSent = new LongAdder();
+    private final LongAdder mClosedBytesSent = new LongAdder();
+    private final LongAdder mClosedPacketsFailed = new LongAdder();
 
     public RtspServer(Listener listener, int port) throws IOException {
-        mListener = listener;
-        mServer = new ServerSocket(port, 1); // Handle one client per request
-        mServer.setSoTimeout(SERVER_ACCEPT_TIMEOUT_MS);
-        mThread = new ServerThread();
+        this(listener, port, 1);
+    }
+
+    // Each worker accepts on a thread of its own, and handles requests on
+    // up to MAX_HANDLERS threads of its own, so that clients slow to send
+    // their requests don't hold up the others. Where SO_REUSEPORT is
+    // supported, every worker listens on a socket of its own bound to the
+    // same port, and the kernel spreads connections between them.
+    // Otherwise they all accept from the one socket.
+    //
+    // The requests of a session are handled one at a time, whichever
+    // worker they come to.
+    public RtspServer(Listener listener, int port, int workers) throws IOException {
+        this(listener, bindAll(port, workers), workers);
+    }
+
+    // Takes the connections from the acceptor instead of listening on a
+    // port, e.g. for running over a LoopbackTransport. The acceptor is
+    // closed with the server.
+    public RtspServer(Listener listener, Connection.Acceptor acceptor, int workers) {
+        this(listener, new Connection.Acceptor[]{acceptor}, workers);
+    }
+
+    private RtspServer(Listener listener, Connection.Acceptor[] acceptors, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid worker count: " + workers);
+        }
+
+        mListener = new TracedListener(listener);
+        mAcceptors = acceptors;
+
+        mReady = new CountDownLatch(workers);
+        mThreads = new ServerThread[workers];
+        for (int i = 0; i < workers; i++) {
+            mThreads[i] = new ServerThread(mAcceptors[i % mAcceptors.length], i);
+        }
+
+        if (workers > 1) {
+            Log.i(TAG, String.format("%d workers on %d sockets", workers, mAcceptors.length));
+        }
+    }
+
+    private static Connection.Acceptor[] bindAll(int port, int workers) throws IOException {
+        boolean reusePort = workers > 1 && isReusePortSupported();
+
+        ServerSocket[] servers = new ServerSocket[reusePort ? workers : 1];
+        try {
+            for (int i = 0; i < servers.length; i++) {
+                // The rest join the port the first one got
+                servers[i] = bind(i == 0 ? port : servers[0].getLocalPort(), SERVER_BACKLOG, reusePort);
+            }
+        } catch (IOException e) {
+            for (ServerSocket server : servers) {
+                if (server != null) {
+                    server.close();
+                }
+            }
+            throw e;
+        }
+
+        Connection.Acceptor[] acceptors = new Connection.Acceptor[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            acceptors[i] = SocketConnection.acceptor(servers[i]);
+        }
+        return acceptors;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static ServerSocket bind(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            if (reusePort) {
+                channel.setOption(SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), backlog);
+
+            return channel.socket();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
     }
 
+    // Returns once every worker is accepting
     public void start() {
-        mThread.start();
+        mExpiryThread.setDaemon(true);
+        mExpiryThread.start();
+
+        for (ServerThread thread : mThreads) {
+            thread.start();
+        }
+
+        try {
+            mReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
+    public boolean isReady() {
+        return mReady.getCount() == 0 && mClosed.getCount() > 0;
+    }
+
+    // Stops accepting at once, closes the connections that have no
+    // request in flight, gives the requests being handled up to
+    // CLOSE_DRAIN_TIMEOUT_MS to finish (closing their connections after
+    // that) and then tears down the sessions that are left, telling the
+    // listener as a TEARDOWN would.
     @Override
     public void close() throws IOException {
+        mClosed.countDown();
+
+        for (Connection.Acceptor acceptor : mAcceptors) {
+            try {
+                acceptor.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing server socket", e);
+            }
+        }
+
+        closeAll(mIdleConnections);
+
         try {
-            mThread.requestExitAndWait();
+            for (ServerThread thread : mThreads) {
+                thread.join();
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_DRAIN_TIMEOUT_MS);
+            if (!awaitHandlers(deadline)) {
+                Log.w(TAG, "Requests still being handled, closing their connections");
+                closeAll(mConnections);
+                awaitHandlers(deadline + TimeUnit.MILLISECONDS.toNanos(CLOSE_DRAIN_TIMEOUT_MS));
+            }
+
+            mExpiryThread.join();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (RtspSession session : mSessions.values()) {
+            if (mSessions.remove(session.getId(), session)) {
+                teardown(session);
+            }
+        }
+
+        // Their sessions are gone already
+        for (InterleavedReceiver receiver : mReceivers) {
+            receiver.close();
+        }
+
+        synchronized (this) {
+            if (mUdpIngest != null) {
+                mUdpIngest.close();
+                mUdpIngest = null;
+            }
+        }
+    }
+
+    private boolean awaitHandlers(long deadline) throws InterruptedException {
+        for (ServerThread thread : mThreads) {
+            if (!thread.mHandlers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeAll(Set<Connection> connections) {
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing client socket", e);
+            }
         }
     }
 
     public InetAddress getLocalAddress() {
-        return mServer.getInetAddress();
+        return mAcceptors[0].getLocalAddress().getAddress();
     }
 
     public int getLocalPort() {
-        return mServer.getLocalPort();
+        return mAcceptors[0].getLocalAddress().getPort();
+    }
+
+    public int getWorkerCount() {
+        return mThreads.length;
+    }
+
+    // The number of listening sockets: one per worker with SO_REUSEPORT,
+    // or else one for all
+    public int getSocketCount() {
+        return mAcceptors.length;
     }
 
-    private Response handle(Request request) throws IOException {
+    // Paces the RTP output of sessions set up after this call. The scheduler
+    // is shared by all sessions and is not owned by the server.
+    public void setPacing(Scheduler scheduler, long bitsPerSecond, int burstBytes) {
+        mPacingBitRate = bitsPerSecond;
+        mPacingBurst = burstBytes;
+        mPacingScheduler = scheduler;
+    }
+
+    public void disablePacing() {
+        mPacingScheduler = null;
+    }
+
+    // Keeps the last historySize packets of each track set up after this
+    // call, and sends them again when the client NACKs them, at up to the
+    // rate on top of the stream. Only sessions on the shared UDP sockets
+    // get NACKs, as only those have their RTCP received. Clients send
+    // NACKs if the description has "a=rtcp-fb:<format> nack".
+    public void setRetransmission(int historySize, long bitsPerSecond, int burstBytes) {
+        mRetransmissionBitRate = bitsPerSecond;
+        mRetransmissionBurst = burstBytes;
+        mRetransmissionHistory = historySize;
+    }
+
+    public void disableRetransmission() {
+        mRetransmissionHistory = 0;
+    }
+
+    // When set, each track gets a source on SETUP, which is started on PLAY
+    // and sends its media through the track sink
+    public void setSourceFactory(RtpSource.Factory factory) {
+        mSourceFactory = factory;
+    }
+
+    // Requests with a larger body get 413 without the body being read
+    public void setMaxBodySize(int maxBodySize) {
+        mMaxBodySize = maxBodySize;
+    }
+
+    // Server ports for sessions whose listener doesn't pick them. Pairs
+    // are given back on TEARDOWN or when the session expires.
+    public void setPortAllocator(PortAllocator allocator) {
+        mPortAllocator = allocator;
+    }
+
+    public PortAllocator getPortAllocator() {
+        return mPortAllocator;
+    }
+
+    // Has the sessions whose listener doesn't pick ports all send from the
+    // same few sockets, spread by session, instead of binding a pair each.
+    // RTCP from a client keeps its session alive. The sockets are not owned
+    // by the server. Recording sessions still get a pair of their own.
+    public void setSharedUdpSockets(SharedUdpSocket... sockets) {
+        mSharedSockets = sockets == null || sockets.length == 0 ? null : sockets.clone();
+    }
+
+    private SharedUdpSocket getSharedSocket(String session) {
+        SharedUdpSocket[] sockets = mSharedSockets;
+        if (sockets == null) {
+            return null;
+        }
+        return sockets[(session.hashCode() & 0x7fffffff) % sockets.length];
+    }
+
+    // Sessions without a request (or RTCP on the shared sockets) for this
+    // long are torn down, and clients are told to send keep-alives. Only
+    // for clients that do. 0 means sessions never expire.
+    public void setSessionTimeout(int seconds) {
+        mSessionTimeout = seconds;
+    }
+
+    public int getSessionTimeout() {
+        return mSessionTimeout;
+    }
+
+    public RtspSession getSession(String session) {
+        return mSessions.get(session);
+    }
+
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    // Makes this server a front door, that redirects the DESCRIBE and
+    // SETUP of new sessions to the node the balancer picks for the
+    // stream. Streams published here are still served here. Null stops
+    // redirecting.
+    public void setLoadBalancer(LoadBalancer balancer) {
+        mLoadBalancer = balancer;
+    }
+
+    public LoadBalancer getLoadBalancer() {
+        return mLoadBalancer;
+    }
+
+    public Publication getPublication(String path) {
+        return mPublications.get(path);
+    }
+
+    // The media of published streams, by path (<publication>/trackID=<n>)
+    public LiveStreams getLiveStreams() {
+        return mLiveStreams;
+    }
+
+    private synchronized UdpIngest getUdpIngest() throws IOException {
+        if (mUdpIngest == null) {
+            mUdpIngest = new UdpIngest();
+        }
+        return mUdpIngest;
+    }
+
+    // Returns the sink for sending the RTP packets of a track to the client.
+    // It is opened on first use, bound to the server RTP port that was
+    // returned from the listener during SETUP.
+    public RtpSink openSink(String session, URI uri) throws IOException {
+        RtspSession s = mSessions.get(session);
+        if (s == null) {
+            throw new RtspException(Response.Status.SESSION_NOT_FOUND, session);
+        }
+
+        RtspSession.Track track = s.getTrack(uri);
+        if (track == null) {
+            throw new RtspException(Response.Status.NOT_FOUND, uri.toString());
+        }
+
+        synchronized (track) {
+            RtpSink sink = track.getSink();
+            if (sink == null) {
+                UdpPortPair ports = track.getPorts();
+                sink = ports != null
+                        ? new UdpSink(ports.getRtpChannel(), s.getClientRtpAddress(track))
+                        : UdpSink.open(track.getServerRtpPortPair()[0], s.getClientRtpAddress(track));
+
+                CountingSink counter = new CountingSink(sink);
+                sink = paced(counter);
+                track.setSink(sink, counter);
+            }
+
+            return sink;
+        }
+    }
+
+    private RtpSink paced(RtpSink sink) {
+        Scheduler scheduler = mPacingScheduler;
+        if (scheduler != null) {
+            return new PacedSink(sink, scheduler, mPacingBitRate, mPacingBurst);
+        }
+        return sink;
+    }
+
+    // Checks the session state before the request reaches the listener.
+    // Returns an error response or null if the request may go ahead.
+    private Response checkState(Request request) {
+        Request.Method method = request.getDescription().getMethod();
+        String id = request.getSession();
+        RtspSession.State state;
+
+        if (id == null) {
+            state = RtspSession.State.INIT;
+        } else {
+            RtspSession session = mSessions.get(id);
+            if (session == null) {
+                return new Response(Response.Status.SESSION_NOT_FOUND,
+                        request.getSequenceNumber(), id);
+            }
+            state = session.getState();
+        }
+
+        boolean valid;
+        switch (method) {
+            case PLAY:
+            case PAUSE:
+            case RECORD:
+            case TEARDOWN:
+                valid = state != RtspSession.State.INIT;
+                break;
+
+            default:
+                valid = true;
+        }
+
+        if (!valid) {
+            return new Response(Response.Status.METHOD_NOT_VALID_IN_THIS_STATE,
+                    request.getSequenceNumber(), id);
+        }
+
+        return null;
+    }
+
+    // Tears down the sessions that haven't been heard of for the timeout
+    private void expireSessions() {
+        int timeout = mSessionTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+
+        long limit = timeout * 1000000000L;
+        for (RtspSession session : mSessions.values()) {
+            if (session.getIdleNanos() > limit && !session.isConnectionBound()
+                    && mSessions.remove(session.getId(), session)) {
+                Log.i(TAG, "Session expired: " + session);
+                mSessionsExpired.increment();
+                teardown(session);
+            }
+        }
+    }
+
+    // For sessions that end without a TEARDOWN
+    private void teardown(RtspSession session) {
+        try {
+            mListener.onTeardown(session.getId());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed tearing down session " + session, e);
+        }
+
+        closeSession(session);
+    }
+
+    private void runExpiry() {
+        long lastStats = System.nanoTime();
+
+        try {
+            while (!mClosed.await(EXPIRY_INTERVAL_NS, TimeUnit.NANOSECONDS)) {
+                expireSessions();
+
+                long now = System.nanoTime();
+                if (now - lastStats >= STATS_INTERVAL_NS) {
+                    lastStats = now;
+                    if (RtspEvents.SESSION_STATS.isEnabled()) {
+                        for (RtspSession session : mSessions.values()) {
+                            RtspEvents.sessionStats(session);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private Response handle(Request request, InetAddress client) throws IOException {
+        Response response = handleCounted(request, client);
+
+        mRequests.increment();
+        if (response.getStatus().getKind() != Response.Status.Kind.SUCCESS
+                && response.getStatus().getCode() != Response.Status.NOT_MODIFIED.getCode()) {
+            mErrors.increment();
+        }
+
+        return response;
+    }
+
+    private Response handleCounted(Request request, InetAddress client) throws IOException {
+        if (request.getContentLength() > mMaxBodySize) {
+            return new Response(Response.Status.REQUEST_ENTITY_TOO_LARGE,
+                    request.getSequenceNumber(), request.getSession());
+        }
+
+        // Any request on a session keeps it alive
+        String id = request.getSession();
+        RtspSession session = id == null ? null : mSessions.get(id);
+        if (session != null) {
+            session.touch();
+        }
+
+        Response response;
+        if (session != null) {
+            synchronized (session) {
+                response = dispatch(request, client);
+            }
+        } else {
+            response = dispatch(request, client);
+        }
+
+        if (request.getDescription().getMethod() == Request.Method.SETUP
+                && response.getStatus().getKind() == Response.Status.Kind.SUCCESS
+                && mSessionTimeout > 0) {
+            response.setSession(response.getSession(), mSessionTimeout);
+        }
+
+        return response;
+    }
+
+    private Response dispatch(Request request, InetAddress client) throws IOException {
+        Response redirect = redirect(request);
+        if (redirect != null) {
+            return redirect;
+        }
+
+        switch (request.getDescription().getMethod()) {
+            case SETUP:
+            case PLAY:
+            case PAUSE:
+            case RECORD:
+            case GET_PARAMETER:
+            case TEARDOWN:
+                Response error = checkState(request);
+                if (error != null) {
+                    return error;
+                }
+        }
+
         try {
             switch (request.getDescription().getMethod()) {
                 case OPTIONS:
@@ -90,12 +766,24 @@ public class RtspServer implements Closeable {
                 case DESCRIBE:
                     return handleDescribe(request);
 
+                case ANNOUNCE:
+                    return handleAnnounce(request);
+
                 case SETUP:
-                    return handleSetup(request);
+                    return handleSetup(request, client);
 
                 case PLAY:
                     return handlePlay(request);
 
+                case PAUSE:
+                    return handlePause(request);
+
+                case RECORD:
+                    return handleRecord(request);
+
+                case GET_PARAMETER:
+                    return handleGetParameter(request);
+
                 case TEARDOWN:
                     return handleTeardown(request);
             }
@@ -103,6 +791,10 @@ public class RtspServer implements Closeable {
             // The listener wants to return a custom error
             Log.e(TAG, "Returning custom RTSP response: " + e.getStatus());
             return new Response(e.getStatus(), request.getSequenceNumber(), request.getSession());
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "No media for " + request.getDescription().getUri());
+            return new Response(Response.Status.NOT_FOUND,
+                    request.getSequenceNumber(), request.getSession());
         } catch (Throwable tr) {
             // Server error
             Log.e(TAG, "Failed handling request", tr);
@@ -127,41 +819,250 @@ public class RtspServer implements Closeable {
         // Parse the accepted types
         String[] accept = null;
 
-        String s = request.getOptionalHeader(Message.HEADER_CONTENT_TYPE);
+        String s = request.getOptionalHeader(Message.HEADER_ACCEPT);
         if (s != null) {
             accept = s.split("\\s*,\\s*");
         }
 
-        byte[] body = mListener.onRequestDescription(accept);
-        return Response.respondWithSuccess(request, body);
+        URI uri = request.getDescription().getUri();
+        Publication publication = mPublications.get(uri.getPath());
+        byte[] body = publication != null
+                ? publication.describe(uri)
+                : mListener.onRequestDescription(uri, accept);
+        // Clients that have the description already don't get it again
+        String tag = entityTag(body);
+        if (tag.equals(request.getOptionalHeader(Message.HEADER_IF_NONE_MATCH))) {
+            Response response = new Response(Response.Status.NOT_MODIFIED,
+                    request.getSequenceNumber(), request.getSession());
+            response.setHeader(Message.HEADER_ETAG, tag);
+            return response;
+        }
+
+        Response response = Response.respondWithSuccess(request, body);
+        response.setHeader(Message.HEADER_ETAG, tag);
+
+        // Relative control URIs in the description are relative to this
+        response.setHeader(Message.HEADER_CONTENT_BASE, uri.toString());
+        return response;
+    }
+
+    // Descriptions have no modification time, so they are told apart by
+    // a digest of their content
+    private static String entityTag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+            StringBuilder tag = new StringBuilder("\"");
+            for (int i = 0; i < 8; i++) {
+                tag.append(String.format("%02x", digest[i]));
+            }
+            return tag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
     }
 
-    private Response handleSetup(Request request) throws IOException {
+    private Response handleSetup(Request request, InetAddress client) throws IOException {
         String t = request.getRequiredHeader(Message.HEADER_TRANSPORT);
         RtpTransport clientTransport = RtpTransport.fromString(t);
 
+        URI uri = request.getDescription().getUri();
+        if (clientTransport.isRecord()) {
+            for (Publication publication : mPublications.values()) {
+                int index = publication.indexOf(uri);
+                if (index >= 0) {
+                    return handleSetupRecord(request, client, clientTransport, publication, index);
+                }
+            }
+
+            throw new RtspException(Response.Status.NOT_FOUND, "Not announced: " + uri);
+        }
+
+        if (clientTransport.isInterleaved()) {
+            // Only publishers may use the connection for media
+            throw new RtspException(Response.Status.UNSUPPORTED_TRANSPORT, t);
+        }
+
         if (!clientTransport.isUnicast()) {
             throw new IOException("Only unicast is supported");
         }
 
+        // Look up the media first, there's no point in setting up otherwise
+        RtpSource source = null;
+        LiveStream live = mLiveStreams.get(uri);
+        RtpSource.Factory factory = mSourceFactory;
+        if (live != null) {
+            source = live.newSource();
+        } else if (factory != null) {
+            source = factory.createSource(uri);
+        }
+
+        try {
+            if (!request.containsHeader(Message.HEADER_SESSION)) {
+                // Create the session
+                request.setHeader(Message.HEADER_SESSION, mListener.createSession());
+            }
+
+            int[] clientRtpPorts = clientTransport.getClientRtpPortPair();
+            int[] serverRtpPorts = mListener.onSetupUnicast(
+                    request.getSession(), uri,
+                    clientRtpPorts[0], clientRtpPorts[1]);
+
+            UdpPortPair ports = null;
+            SharedUdpSocket shared = null;
+            if (serverRtpPorts == null) {
+                shared = getSharedSocket(request.getSession());
+                if (shared != null) {
+                    serverRtpPorts = new int[]{shared.getRtpPort(), shared.getRtcpPort()};
+                } else {
+                    ports = allocatePorts();
+                    serverRtpPorts = new int[]{ports.getRtpPort(), ports.getRtcpPort()};
+                }
+            }
+
+            RtspSession session = getOrCreateSession(request.getSession(), client);
+            RtspSession.Track track = session.addTrack(uri, clientRtpPorts, serverRtpPorts);
+            track.setPorts(ports);
+
+            if (shared != null) {
+                CountingSink counter = new CountingSink(shared.newSink(
+                        session.getClientRtpAddress(track),
+                        new InetSocketAddress(client, clientRtpPorts[1]),
+                        (address, packet) -> {
+                            // RTCP keeps the session alive
+                            session.touch();
+
+                            RtcpReport report = RtcpReport.parse(packet);
+                            if (report != null) {
+                                track.setReport(report);
+
+                                RtpSource adapting = track.getSource();
+                                if (adapting instanceof RtpSource.Adaptive) {
+                                    ((RtpSource.Adaptive) adapting).onReport(report);
+                                }
+                            }
+
+                            RetransmittingSink retransmitter = track.getRetransmitter();
+                            if (retransmitter != null) {
+                                int[] lost = RtcpNack.parse(packet);
+                                if (lost.length > 0) {
+                                    retransmitter.onNack(lost);
+                                }
+                            }
+                        }));
+
+                RtpSink sink = counter;
+                int history = mRetransmissionHistory;
+                if (history > 0) {
+                    RetransmittingSink retransmitter = new RetransmittingSink(counter,
+                            history, mRetransmissionBitRate, mRetransmissionBurst);
+                    track.setRetransmitter(retransmitter);
+                    sink = retransmitter;
+                }
+                track.setSink(paced(sink), counter);
+            }
+            track.setSource(source);
+            source = null;
+
+            return respondToSetup(request, clientRtpPorts, serverRtpPorts);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    private UdpPortPair allocatePorts() throws IOException {
+        PortAllocator allocator = mPortAllocator;
+        if (allocator == null) {
+            throw new IOException("No server ports given and no port allocator");
+        }
+
+        try {
+            return allocator.allocate();
+        } catch (BindException e) {
+            Log.w(TAG, "Out of server ports: " + allocator, e);
+            throw new RtspException(Response.Status.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+
+    // The publisher sends the media either over UDP, to ports bound here,
+    // or interleaved on the connection it sends RECORD on
+    private Response handleSetupRecord(Request request, InetAddress client,
+            RtpTransport clientTransport, Publication publication, int index)
+            throws IOException {
+
         if (!request.containsHeader(Message.HEADER_SESSION)) {
-            // Create the session
             request.setHeader(Message.HEADER_SESSION, mListener.createSession());
         }
 
+        String id = request.getSession();
+        if (!publication.setPublisher(id)) {
+            throw new RtspException(Response.Status.FORBIDDEN,
+                    "Already being published: " + publication.getPath());
+        }
+
+        URI uri = request.getDescription().getUri();
+        LiveStream stream = publication.getStream(index);
+        RtspSession session = getOrCreateSession(id, client);
+        session.setPublication(publication);
+
+        if (clientTransport.isInterleaved()) {
+            int[] channels = clientTransport.getInterleavedChannels();
+            if (channels == null) {
+                channels = new int[]{2 * index, 2 * index + 1};
+            }
+
+            RtspSession.Track track = session.addTrack(uri, channels, channels);
+            track.setRecord(stream, channels, null);
+
+            RtpTransport serverTransport = new RtpTransport();
+            serverTransport.setUnicast();
+            serverTransport.setInterleavedChannels(channels[0], channels[1]);
+            serverTransport.setRecord();
+
+            Response response = Response.respondWithSuccess(request);
+            response.setHeader(Message.HEADER_TRANSPORT, serverTransport.toString());
+            return response;
+        }
+
         int[] clientRtpPorts = clientTransport.getClientRtpPortPair();
         int[] serverRtpPorts = mListener.onSetupUnicast(
-                request.getSession(),
-                request.getDescription().getUri(),
-                clientRtpPorts[0], clientRtpPorts[1]);
+                id, uri, clientRtpPorts[0], clientRtpPorts[1]);
 
+        UdpPortPair ports;
+        if (serverRtpPorts == null) {
+            ports = allocatePorts();
+            serverRtpPorts = new int[]{ports.getRtpPort(), ports.getRtcpPort()};
+        } else {
+            ports = UdpPortPair.open(serverRtpPorts[0]);
+        }
+
+        UdpIngest ingest;
+        try {
+            ingest = getUdpIngest();
+            ingest.add(ports.getRtpChannel(), stream);
+        } catch (IOException e) {
+            ports.close();
+            throw e;
+        }
+
+        RtspSession.Track track = session.addTrack(uri, clientRtpPorts, serverRtpPorts);
+        track.setPorts(ports);
+        track.setRecord(stream, null, () -> ingest.remove(ports.getRtpChannel()));
+
+        return respondToSetup(request, clientRtpPorts, serverRtpPorts);
+    }
+
+    private Response respondToSetup(Request request,
+            int[] clientRtpPorts, int[] serverRtpPorts) {
         // Prepare the server transport response
         RtpTransport serverTransport = new RtpTransport();
         serverTransport.setClientRtpPortPair(
                 clientRtpPorts[0], clientRtpPorts[1]);
         serverTransport.setServerRtpPortPair(
                 serverRtpPorts[0], serverRtpPorts[1]);
-        serverTransport.setSource(mServer.getInetAddress());
+        serverTransport.setSource(getLocalAddress());
 
         Response response = Response.respondWithSuccess(request);
         response.setHeader(Message.HEADER_TRANSPORT, serverTransport.toString());
@@ -170,95 +1071,662 @@ public class RtspServer implements Closeable {
     }
 
     private Response handlePlay(Request request) throws IOException {
-        // TODO: Add support for ranges
-        String session = request.getSession();
-        mListener.onPlay(session, request.getDescription().getUri());
+        Range range = null;
+
+        String r = request.getOptionalHeader(Message.HEADER_RANGE);
+        if (r != null) {
+            try {
+                range = Range.fromString(r);
+            } catch (IllegalArgumentException e) {
+                throw new RtspException(Response.Status.INVALID_RANGE, r);
+            }
+        }
+
+        // The state was already checked, so the session exists
+        RtspSession session = mSessions.get(request.getSession());
+        URI uri = request.getDescription().getUri();
+        range = mListener.onPlay(session.getId(), uri, range);
+        range = startSources(session, uri, range);
+        session.setState(RtspSession.State.PLAYING);
+
+        Response response = Response.respondWithSuccess(request);
+        if (range != null) {
+            response.setHeader(Message.HEADER_RANGE, range.toString());
+        }
+        return response;
+    }
+
+    // PLAY may be for a single track or for the whole (aggregate) session.
+    // Returns the range as adjusted by seeking, e.g. to a keyframe. Only
+    // seekable sources stop at the end of the range, so the end is left
+    // out if any other source was started.
+    private Range startSources(RtspSession session, URI uri, Range range) throws IOException {
+        RtspSession.Track single = session.getTrack(uri);
+        Range effective = range;
+        boolean adjusted = false;
+        boolean unbounded = false;
+
+        for (RtspSession.Track track : session.getTracks()) {
+            if (single != null && track != single) {
+                continue;
+            }
+
+            RtpSource source = track.getSource();
+            if (source == null) {
+                continue;
+            }
+
+            if (source instanceof RtpSource.Seekable) {
+                RtpSource.Seekable seekable = (RtpSource.Seekable) source;
+                double start = Range.UNSPECIFIED;
+                if (range != null && range.hasStart()) {
+                    if (range.getStart() > seekable.getDuration()) {
+                        throw new RtspException(Response.Status.INVALID_RANGE, range.toString());
+                    }
+                    start = seekable.seek(range.getStart());
+                }
+
+                // A PLAY without an end plays to the end
+                double end = seekable.setEnd(range != null && range.hasEnd()
+                        ? range.getEnd() : Range.UNSPECIFIED);
+
+                if (range != null && !range.isNow() && !adjusted) {
+                    // All tracks play what the first one could
+                    effective = new Range(range.hasStart() ? start : Range.UNSPECIFIED,
+                            range.hasEnd() ? end : Range.UNSPECIFIED);
+                    adjusted = true;
+                }
+            } else {
+                unbounded = true;
+            }
+
+            source.start(openSink(session.getId(), track.getUri()));
+        }
+
+        if (unbounded && effective != null && effective.hasEnd()) {
+            effective = new Range(effective.getStart());
+        }
+        return effective;
+    }
+
+    // Sources only stop sending, the sinks (sockets, buffers) are kept,
+    // so that a following PLAY resumes at once
+    private Response handlePause(Request request) throws IOException {
+        RtspSession session = mSessions.get(request.getSession());
+        URI uri = request.getDescription().getUri();
+        mListener.onPause(session.getId(), uri);
+
+        RtspSession.Track single = session.getTrack(uri);
+        for (RtspSession.Track track : session.getTracks()) {
+            RtpSource source = track.getSource();
+            if (source != null && (single == null || track == single)) {
+                source.pause();
+            }
+        }
+
+        session.setState(RtspSession.State.READY);
+        return Response.respondWithSuccess(request);
+    }
+
+    private Response handleAnnounce(Request request) throws IOException {
+        String type = request.getOptionalHeader(Message.HEADER_CONTENT_TYPE);
+        if (type != null && !type.startsWith(Message.MIME_TYPE_SDP)) {
+            throw new RtspException(Response.Status.UNSUPPORTED_MEDIA_TYPE, type);
+        }
+
+        byte[] body = request.readBody();
+        if (body == null) {
+            throw new RtspException(Response.Status.BAD_REQUEST, "No description");
+        }
+
+        URI uri = request.getDescription().getUri();
+        SessionDescription description;
+        try {
+            description = SessionDescription.parse(body, uri);
+        } catch (IOException e) {
+            throw new RtspException(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+
+        if (description.getMedia().isEmpty()) {
+            throw new RtspException(Response.Status.BAD_REQUEST, "No media in description");
+        }
+
+        mListener.onAnnounce(uri, description);
+
+        Publication publication = new Publication(uri, description);
+        String path = publication.getPath();
+        Publication old = mPublications.putIfAbsent(path, publication);
+        if (old != null) {
+            // An announcement that was never set up may be replaced
+            if (old.getPublisher() != null || !mPublications.replace(path, old, publication)) {
+                publication.close();
+                throw new RtspException(Response.Status.FORBIDDEN, "Already being published: " + path);
+            }
+
+            unpublish(old);
+        }
+
+        for (int i = 0; i < publication.getStreamCount(); i++) {
+            mLiveStreams.add(publication.getTrackPath(i), publication.getStream(i));
+        }
+
+        Log.i(TAG, "Announced " + publication);
+        return Response.respondWithSuccess(request);
+    }
+
+    private Response handleRecord(Request request) throws IOException {
+        RtspSession session = mSessions.get(request.getSession());
+        if (session.getPublication() == null) {
+            throw new RtspException(Response.Status.METHOD_NOT_VALID_IN_THIS_STATE,
+                    "Not set up for recording");
+        }
+
+        mListener.onRecord(session.getId(), request.getDescription().getUri());
+        session.setState(RtspSession.State.RECORDING);
         return Response.respondWithSuccess(request);
     }
 
+    // The tracks of a stream go with it
+    private static String getStreamPath(URI uri) {
+        String path = uri.getPath();
+        int track = path.lastIndexOf("/" + SessionDescription.TRACK_PREFIX);
+        return track < 0 ? path : path.substring(0, track);
+    }
+
+    // Returns null if the request is handled here
+    private Response redirect(Request request) throws IOException {
+        LoadBalancer balancer = mLoadBalancer;
+        Request.Method method = request.getDescription().getMethod();
+        if (balancer == null
+                || !(method == Request.Method.DESCRIBE
+                || (method == Request.Method.SETUP && request.getSession() == null))) {
+            return null;
+        }
+
+        URI uri = request.getDescription().getUri();
+        String path = getStreamPath(uri);
+        if (mPublications.containsKey(path)) {
+            return null;
+        }
+
+        NodeDirectory.Node node = balancer.choose(path);
+        if (node == null) {
+            return new Response(Response.Status.SERVICE_UNAVAILABLE,
+                    request.getSequenceNumber(), request.getSession());
+        }
+
+        URI base = node.getUri();
+        URI location;
+        try {
+            location = new URI(base.getScheme(), base.getAuthority(),
+                    uri.getPath(), uri.getQuery(), null);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        Response response = new Response(Response.Status.MOVED_TEMPORARILY,
+                request.getSequenceNumber(), request.getSession());
+        response.setHeader(Message.HEADER_LOCATION, location.toString());
+        return response;
+    }
+
+    // Without a body, it only keeps the session alive (like any request
+    // on the session). Otherwise, the body lists the parameters to return,
+    // of the session or of the server if there's no session. An empty
+    // body without a session returns all the server's parameters.
+    private Response handleGetParameter(Request request) throws IOException {
+        String id = request.getSession();
+        byte[] body = request.readBody();
+
+        List<String> names = new ArrayList<>();
+        if (body != null) {
+            for (String line : new String(body, Message.CHARSET).split("\r?\n")) {
+                String name = line.trim();
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+
+        if (names.isEmpty() && id != null) {
+            return Response.respondWithSuccess(request);
+        }
+
+        Set<String> known = id == null ? SERVER_PARAMETERS : SESSION_PARAMETERS;
+        for (String name : names) {
+            if (!known.contains(name)) {
+                throw new RtspException(Response.Status.PARAMETER_NOT_UNDERSTOOD, name);
+            }
+        }
+
+        Map<String, Object> values = id == null ? getStatistics() : getStatistics(id);
+        if (values == null) {
+            throw new RtspException(Response.Status.SESSION_NOT_FOUND, id);
+        }
+
+        // Values that aren't known (e.g. loss without RTCP) are left out
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            if (names.isEmpty() || names.contains(value.getKey())) {
+                out.append(value.getKey()).append(": ").append(value.getValue()).append("\r\n");
+            }
+        }
+
+        Response response = Response.respondWithSuccess(
+                request, out.toString().getBytes(Message.CHARSET));
+        response.setHeader(Message.HEADER_CONTENT_TYPE, Message.MIME_TYPE_PARAMETERS);
+        return response;
+    }
+
+    // The server-wide counters, as returned by GET_PARAMETER
+    public Map<String, Object> getStatistics() {
+        long packetsSent = mClosedPacketsSent.sum();
+        long bytesSent = mClosedBytesSent.sum();
+        long packetsFailed = mClosedPacketsFailed.sum();
+        for (RtspSession session : mSessions.values()) {
+            for (RtspSession.Track track : session.getTracks()) {
+                packetsSent += track.getPacketsSent();
+                bytesSent += track.getBytesSent();
+                packetsFailed += track.getPacketsFailed();
+            }
+        }
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(PARAMETER_SESSIONS, mSessions.size());
+        values.put(PARAMETER_SESSIONS_CREATED, mSessionsCreated.sum());
+        values.put(PARAMETER_SESSIONS_EXPIRED, mSessionsExpired.sum());
+        values.put(PARAMETER_PUBLICATIONS, mPublications.size());
+        values.put(PARAMETER_REQUESTS, mRequests.sum());
+        values.put(PARAMETER_ERRORS, mErrors.sum());
+        values.put(PARAMETER_PACKETS_SENT, packetsSent);
+        values.put(PARAMETER_BYTES_SENT, bytesSent);
+        values.put(PARAMETER_PACKETS_FAILED, packetsFailed);
+        return values;
+    }
+
+    // The counters of a session, summed over its tracks, or null if there
+    // is no such session. Loss and jitter are only there if the client's
+    // RTCP reaches the server (i.e. with shared sockets).
+    public Map<String, Object> getStatistics(String id) {
+        RtspSession session = mSessions.get(id);
+        if (session == null) {
+            return null;
+        }
+
+        List<RtspSession.Track> tracks = session.getTracks();
+        long packetsSent = 0;
+        long bytesSent = 0;
+        long packetsFailed = 0;
+        long packetsLost = 0;
+        int fractionLost = 0;
+        long jitter = 0;
+        boolean reported = false;
+
+        for (RtspSession.Track track : tracks) {
+            packetsSent += track.getPacketsSent();
+            bytesSent += track.getBytesSent();
+            packetsFailed += track.getPacketsFailed();
+
+            RtcpReport report = track.getReport();
+            if (report != null) {
+                reported = true;
+                packetsLost += report.getCumulativeLost();
+                fractionLost = Math.max(fractionLost, report.getFractionLost());
+                jitter = Math.max(jitter, report.getJitter());
+            }
+        }
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(PARAMETER_STATE, session.getState());
+        values.put(PARAMETER_TRACKS, tracks.size());
+        values.put(PARAMETER_IDLE, session.getIdleNanos() / 1000000000L);
+        values.put(PARAMETER_PACKETS_SENT, packetsSent);
+        values.put(PARAMETER_BYTES_SENT, bytesSent);
+        values.put(PARAMETER_PACKETS_FAILED, packetsFailed);
+        if (reported) {
+            values.put(PARAMETER_PACKETS_LOST, packetsLost);
+            values.put(PARAMETER_FRACTION_LOST, fractionLost);
+            values.put(PARAMETER_JITTER, jitter);
+        }
+        return values;
+    }
+
     private Response handleTeardown(Request request) throws IOException {
         String session = request.getSession();
         mListener.onTeardown(session);
+
+        RtspSession s = mSessions.remove(session);
+        if (s != null) {
+            closeSession(s);
+        }
+
         return Response.respondWithSuccess(request);
     }
 
-    private class ServerThread extends Thread {
+    private RtspSession getOrCreateSession(String id, InetAddress client) {
+        return mSessions.computeIfAbsent(id, i -> {
+            RtspSession session = new RtspSession(i, client);
+            mSessionsCreated.increment();
+            RtspEvents.sessionCreated(session);
+            return session;
+        });
+    }
+
+    private void closeSession(RtspSession session) {
+        // The tracks are gone once closed
+        for (RtspSession.Track track : session.getTracks()) {
+            mClosedPacketsSent.add(track.getPacketsSent());
+            mClosedBytesSent.add(track.getBytesSent());
+            mClosedPacketsFailed.add(track.getPacketsFailed());
+        }
 
-        private boolean mExitRequested = false;
+        session.close();
+        RtspEvents.sessionClosed(session);
 
-        public void requestExitAndWait() throws IOException, InterruptedException {
-            mExitRequested = true;
-            join();
+        Publication publication = session.getPublication();
+        if (publication != null && mPublications.remove(publication.getPath(), publication)) {
+            unpublish(publication);
+            Log.i(TAG, "Stopped publishing " + publication);
+        }
+    }
+
+    private void unpublish(Publication publication) {
+        for (int i = 0; i < publication.getStreamCount(); i++) {
+            mLiveStreams.remove(publication.getTrackPath(i));
+        }
+        publication.close();
+    }
+
+    // Whether the connection now carries the interleaved media of a
+    // publisher, and is to be handed to a receiver
+    private RtspSession getInterleavedPublisher(Request request, Response response) {
+        if (request.getDescription().getMethod() != Request.Method.RECORD
+                || response.getStatus().getKind() != Response.Status.Kind.SUCCESS) {
+            return null;
+        }
+
+        RtspSession session = mSessions.get(request.getSession());
+        if (session == null) {
+            return null;
+        }
+
+        for (RtspSession.Track track : session.getTracks()) {
+            if (track.getInterleavedChannels() != null) {
+                return session;
+            }
+        }
+
+        return null;
+    }
+
+    // Reads the interleaved frames of a publisher off its connection,
+    // along with any requests (e.g. TEARDOWN) it sends in between. Reading
+    // only as fast as the packets are published pushes back on the
+    // publisher through TCP flow control.
+    private class InterleavedReceiver extends Thread {
+
+        private final Connection mConnection;
+        private final MessageInput mInput;
+        private final RtspSession mSession;
+
+        // By channel
+        private final LiveStream[] mStreams = new LiveStream[256];
+
+        InterleavedReceiver(Connection connection, MessageInput input, RtspSession session) {
+            super(TAG + "-" + session.getId());
+            setDaemon(true);
+            mConnection = connection;
+            mInput = input;
+            mSession = session;
+
+            for (RtspSession.Track track : session.getTracks()) {
+                int[] channels = track.getInterleavedChannels();
+                if (channels != null && channels[0] < mStreams.length) {
+                    mStreams[channels[0]] = track.getStream();
+                }
+            }
+        }
+
+        // Ends the receiver by closing the connection under it
+        void close() {
+            try {
+                mConnection.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed closing publisher socket", e);
+            }
+
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         @Override
         public void run() {
-            while (true) {
-                Socket client;
-
-                if (mExitRequested) {
-                    try {
-                        Log.i(TAG, "Exiting");
-                        mServer.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, "Failed closing server socket", e);
+            try {
+                OutputStream out = mConnection.getOutputStream();
+
+                while (true) {
+                    int b = mInput.peek();
+                    if (b < 0) {
+                        break;
                     }
 
-                    return;
+                    if (b == '$') {
+                        readFrame();
+                        continue;
+                    }
+
+                    Request request = Request.readFromStream(mInput, mMaxBodySize);
+                    Response response = handle(request, mConnection.getRemoteAddress().getAddress());
+                    response.send(out);
+
+                    if (request.getDescription().getMethod() == Request.Method.TEARDOWN) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                if (!mConnection.isClosed()) {
+                    Log.w(TAG, "Publisher connection failed for " + mSession, e);
+                }
+            } finally {
+                mReceivers.remove(this);
+
+                // The publisher is gone with its connection
+                if (mSessions.remove(mSession.getId(), mSession)) {
+                    closeSession(mSession);
                 }
 
-                // Using an accept without a timeout would be preferrable,
-                // however, it is *OBVIOUS* that a ServerSocket would be
-                // used from two threads, one that would block on accept()
-                // the other that would call close() when the server socket
-                // has to be closed.
-                // However, the socket methods are NOT synchronized,
-                // therefore explicit synchronization is needed.
-                // Unfortunately, accept() does not release the lock,
-                // meaning close() would not be called, which makes this
-                // unusable.
+                mInput.release();
                 try {
-                    client = mServer.accept();
+                    mConnection.close();
                 } catch (IOException e) {
-                    continue;
+                    Log.w(TAG, "Failed closing publisher socket", e);
                 }
 
+                BufferPool.flushThreadCaches();
+            }
+        }
+
+        // '$', channel, 16 bit length, data
+        private void readFrame() throws IOException {
+            mInput.read();
+            int channel = mInput.read();
+            int high = mInput.read();
+            int low = mInput.read();
+            if (low < 0) {
+                throw new EOFException("EOF in interleaved frame header");
+            }
+
+            int length = (high << 8) | low;
+            PooledBuffer buffer = BufferPool.heap().allocate(length);
+
+            try {
+                mInput.readFully(buffer.buffer().array(), buffer.buffer().arrayOffset(), length);
+
+                LiveStream stream = mStreams[channel];
+                if (stream != null && length >= RtpPacket.HEADER_SIZE) {
+                    stream.publish(RtpPacket.wrap(buffer));
+                }
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    // Closing with input left unread would reset the connection, and the
+    // client could lose the response. Instead the output is shut down, and
+    // whatever the client still sends is read until it closes its end.
+    private static void closeGracefully(Connection client) {
+        try {
+            client.shutdownOutput();
+            client.setReadTimeout(CLIENT_LINGER_TIMEOUT_MS);
+
+            InputStream in = client.getInputStream();
+            byte[] b = new byte[1024];
+            int total = 0;
+            for (int n; total < CLIENT_LINGER_BYTES && (n = in.read(b)) >= 0;) {
+                total += n;
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+
+        try {
+            client.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed closing client socket", e);
+        }
+    }
+
+    // Accepts the connections of a socket and hands them to handlers of
+    // its own, so that a slow or idle client only holds up one handler
+    private class ServerThread extends Thread {
+
+        private final Connection.Acceptor mAcceptor;
+        private final int mIndex;
+        private final ThreadPoolExecutor mHandlers;
+
+        ServerThread(Connection.Acceptor acceptor, int index) {
+            super(TAG + "-" + index);
+            mAcceptor = acceptor;
+            mIndex = index;
+
+            AtomicInteger count = new AtomicInteger();
+            mHandlers = new ThreadPoolExecutor(MAX_HANDLERS, MAX_HANDLERS,
+                    HANDLER_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    r -> {
+                        Thread t = new Thread(BufferPool.flushingCaches(r),
+                                getName() + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            mHandlers.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void run() {
+            mReady.countDown();
+
+            while (true) {
+                Connection client;
+
+                // Closing the acceptor ends the accept at once
                 try {
-                    client.setSoTimeout(CLIENT_READ_TIMEOUT_MS);
+                    client = mAcceptor.accept();
+                } catch (ClosedChannelException e) {
+                    Log.i(TAG, "Exiting");
+                    break;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed accepting", e);
+                    continue;
+                }
 
-                    // Read the request
-                    Request request = Request.readFromStream(client.getInputStream());
+                RtspEvents.accept(RtspEvents.ACCEPT.begin(), client.getRemoteAddress(), mIndex);
+                mHandlers.execute(() -> serve(client));
+            }
 
-                    if (DEBUG) {
-                        Log.d(TAG, "Recieved request: " + request);
-                    }
+            // The requests being handled finish, see close()
+            mHandlers.shutdown();
+        }
 
-                    // Handle it to get a response
-                    Response response = handle(request);
+        private void serve(Connection client) {
+            // The body of the request (if any) is left on the connection,
+            // so that handlers may stream it
+            MessageInput input = null;
+            boolean handedOff = false;
 
-                    if (DEBUG) {
-                        Log.d(TAG, "Sending response: " + response);
-                    }
+            mConnections.add(client);
+            idle(client);
+
+            try {
+                client.setReadTimeout(CLIENT_READ_TIMEOUT_MS);
+
+                // Read the request
+                input = new MessageInput(client.getInputStream());
+                FlightEvent.Instance event = RtspEvents.REQUEST_PARSE.begin();
+                Request request = Request.readFromStream(input, mMaxBodySize);
+                mIdleConnections.remove(client);
+                RtspEvents.requestParsed(event, request);
 
-                    // Do not support persistent connections
-                    response.setNonPersistent();
+                if (DEBUG) {
+                    Log.d(TAG, "Recieved request: " + request);
+                }
+
+                // Handle it to get a response
+                Response response = handle(request, client.getRemoteAddress().getAddress());
+
+                if (DEBUG) {
+                    Log.d(TAG, "Sending response: " + response);
+                }
 
-                    // Send the response
+                RtspSession publisher = getInterleavedPublisher(request, response);
+                if (publisher != null) {
+                    // The connection carries the media from now on
+                    event = RtspEvents.RESPONSE_SEND.begin();
                     response.send(client.getOutputStream());
+                    RtspEvents.responseSent(event, request, response);
+                    InterleavedReceiver receiver = new InterleavedReceiver(client, input, publisher);
+                    mReceivers.add(receiver);
+                    receiver.start();
+                    handedOff = true;
+                    return;
+                }
 
-                    // FIXME: Wait for the client to read the response, before
-                    // closing the socket, or it would get and EOF before it
-                    // had read the data. Sounds fishy given this is TCP.
-                    Thread.sleep(500);
-                } catch (Throwable tr) {
-                    Log.w(TAG, "Failed responding to request", tr);
-                    mListener.onRequestError(tr);
-                } finally {
-                    try {
-                        client.close();
-                    } catch (IOException e) {
-                        Log.w(TAG, "Failed closing client socket", e);
+                // Do not support persistent connections
+                response.setNonPersistent();
+
+                // Send the response
+                event = RtspEvents.RESPONSE_SEND.begin();
+                response.send(client.getOutputStream());
+                RtspEvents.responseSent(event, request, response);
+            } catch (Throwable tr) {
+                Log.w(TAG, "Failed responding to request", tr);
+                mListener.onRequestError(tr);
+            } finally {
+                if (!handedOff) {
+                    if (input != null) {
+                        input.release();
                     }
+
+                    idle(client);
+                    closeGracefully(client);
+                }
+
+                mIdleConnections.remove(client);
+                mConnections.remove(client);
+            }
+        }
+
+        // Once closing, idle connections are closed at once
+        private void idle(Connection client) {
+            mIdleConnections.add(client);
+            if (mClosed.getCount() == 0) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing client socket", e);
                 }
             }
         }
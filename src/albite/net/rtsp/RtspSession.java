@@ -0,0 +1,297 @@
+package albite.net.rtsp;
+
+import albite.net.rtp.CountingSink;
+import albite.net.rtp.LiveStream;
+import albite.net.rtp.RetransmittingSink;
+import albite.net.rtp.RtcpReport;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.RtpSource;
+import albite.net.rtp.UdpPortPair;
+import albite.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The server-side state of a session, created by SETUP and destroyed
+// by TEARDOWN. A session may hold several tracks (e.g. audio & video),
+// one per SETUP.
+public class RtspSession {
+
+    private static final String TAG = "RtspSession";
+
+    public static class Track {
+
+        private final URI mUri;
+        private final int[] mClientPorts;
+        private final int[] mServerPorts;
+        private RtpSink mSink;
+        private RtpSource mSource;
+
+        // Counts what the sink sends to the client
+        private CountingSink mCounter;
+
+        // Sends NACKed packets again, if the server does
+        private RetransmittingSink mRetransmitter;
+
+        // The last the client reported on receiving the track
+        private volatile RtcpReport mReport;
+
+        // The server ports, if they were allocated by the server
+        private UdpPortPair mPorts;
+
+        // For tracks being recorded: where the received packets go, the
+        // interleaved channels (if any) and what receives over UDP (if so)
+        private LiveStream mStream;
+        private int[] mInterleaved;
+        private Closeable mIngest;
+
+        Track(URI uri, int[] clientPorts, int[] serverPorts) {
+            mUri = uri;
+            mClientPorts = clientPorts;
+            mServerPorts = serverPorts;
+        }
+
+        public URI getUri() {
+            return mUri;
+        }
+
+        public int[] getClientRtpPortPair() {
+            return mClientPorts.clone();
+        }
+
+        public int[] getServerRtpPortPair() {
+            return mServerPorts.clone();
+        }
+
+        public synchronized RtpSink getSink() {
+            return mSink;
+        }
+
+        synchronized void setSink(RtpSink sink, CountingSink counter) {
+            mSink = sink;
+            mCounter = counter;
+        }
+
+        // Packets sent to the client, 0 before the sink is opened
+        public long getPacketsSent() {
+            CountingSink counter = getCounter();
+            return counter == null ? 0 : counter.getPacketsSent();
+        }
+
+        public long getBytesSent() {
+            CountingSink counter = getCounter();
+            return counter == null ? 0 : counter.getBytesSent();
+        }
+
+        public long getPacketsFailed() {
+            CountingSink counter = getCounter();
+            return counter == null ? 0 : counter.getPacketsFailed();
+        }
+
+        private synchronized CountingSink getCounter() {
+            return mCounter;
+        }
+
+        // Null unless the server retransmits
+        public synchronized RetransmittingSink getRetransmitter() {
+            return mRetransmitter;
+        }
+
+        synchronized void setRetransmitter(RetransmittingSink retransmitter) {
+            mRetransmitter = retransmitter;
+        }
+
+        // Null unless the server receives the client's RTCP
+        public RtcpReport getReport() {
+            return mReport;
+        }
+
+        void setReport(RtcpReport report) {
+            mReport = report;
+        }
+
+        public synchronized UdpPortPair getPorts() {
+            return mPorts;
+        }
+
+        synchronized void setPorts(UdpPortPair ports) {
+            mPorts = ports;
+        }
+
+        public synchronized RtpSource getSource() {
+            return mSource;
+        }
+
+        synchronized void setSource(RtpSource source) {
+            mSource = source;
+        }
+
+        public synchronized LiveStream getStream() {
+            return mStream;
+        }
+
+        public synchronized int[] getInterleavedChannels() {
+            return mInterleaved == null ? null : mInterleaved.clone();
+        }
+
+        synchronized void setRecord(LiveStream stream, int[] interleaved, Closeable ingest) {
+            mStream = stream;
+            mInterleaved = interleaved;
+            mIngest = ingest;
+        }
+
+        synchronized void close() {
+            if (mIngest != null) {
+                try {
+                    mIngest.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing ingest for " + mUri, e);
+                }
+                mIngest = null;
+            }
+
+            // The source goes first, so that it stops using the sink
+            if (mSource != null) {
+                try {
+                    mSource.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing source for " + mUri, e);
+                }
+                mSource = null;
+            }
+
+            if (mSink != null) {
+                try {
+                    mSink.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing sink for " + mUri, e);
+                }
+                mSink = null;
+            }
+
+            // Gives the pair back to the allocator
+            if (mPorts != null) {
+                try {
+                    mPorts.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed closing ports " + mPorts + " for " + mUri, e);
+                }
+                mPorts = null;
+            }
+        }
+    }
+
+    // A session only exists once it's been set up, so a session object is
+    // never in the INIT state, unless it's been torn down already
+    public enum State {
+        INIT,
+        READY,
+        PLAYING,
+        RECORDING,
+    }
+
+    private final String mId;
+    private final InetAddress mClientAddress;
+    private State mState = State.READY;
+    private final Map<URI, Track> mTracks = new LinkedHashMap<>();
+    private Publication mPublication;
+
+    private final long mCreated = System.nanoTime();
+
+    // Of the last request, for expiring sessions the client forgot about
+    private volatile long mLastActivity = mCreated;
+
+    RtspSession(String id, InetAddress clientAddress) {
+        mId = id;
+        mClientAddress = clientAddress;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public InetAddress getClientAddress() {
+        return mClientAddress;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    synchronized void setState(State state) {
+        mState = state;
+    }
+
+    public synchronized Track getTrack(URI uri) {
+        return mTracks.get(uri);
+    }
+
+    public synchronized List<Track> getTracks() {
+        return new ArrayList<>(mTracks.values());
+    }
+
+    void touch() {
+        mLastActivity = System.nanoTime();
+    }
+
+    public long getIdleNanos() {
+        return System.nanoTime() - mLastActivity;
+    }
+
+    public long getAgeNanos() {
+        return System.nanoTime() - mCreated;
+    }
+
+    // Whether the session lives as long as an RTSP connection (e.g. of an
+    // interleaved publisher) rather than expiring
+    synchronized boolean isConnectionBound() {
+        for (Track track : mTracks.values()) {
+            if (track.getInterleavedChannels() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Set for the session of a publisher
+    public synchronized Publication getPublication() {
+        return mPublication;
+    }
+
+    synchronized void setPublication(Publication publication) {
+        mPublication = publication;
+    }
+
+    InetSocketAddress getClientRtpAddress(Track track) {
+        return new InetSocketAddress(mClientAddress, track.mClientPorts[0]);
+    }
+
+    synchronized Track addTrack(URI uri, int[] clientPorts, int[] serverPorts) {
+        Track track = new Track(uri, clientPorts, serverPorts);
+        Track old = mTracks.put(uri, track);
+        if (old != null) {
+            // Setting up the same track again changes its transport
+            old.close();
+        }
+        return track;
+    }
+
+    synchronized void close() {
+        mState = State.INIT;
+        for (Track track : mTracks.values()) {
+            track.close();
+        }
+        mTracks.clear();
+    }
+
+    @Override
+    public String toString() {
+        return mId;
+    }
+}
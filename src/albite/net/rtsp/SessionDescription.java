@@ -0,0 +1,625 @@
+package albite.net.rtsp;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// An SDP session description (RFC 4566). Parsing is a single pass that
+// only records where each line is and where the media sections start.
+// Attributes, rtpmaps, bandwidths, etc. are parsed on access, and
+// skipped if malformed. Only the media lines are checked up front, as
+// they are needed to make any sense of the description.
+public final class SessionDescription {
+
+    public static final String ATTRIBUTE_CONTROL = "control";
+    public static final String ATTRIBUTE_RTPMAP = "rtpmap";
+    public static final String ATTRIBUTE_FMTP = "fmtp";
+
+    public static final String BANDWIDTH_AS = "AS";
+
+    public static final int PAYLOAD_TYPE_MP2T = 33;
+    public static final String ENCODING_MP2T = "MP2T";
+
+    // The usual media control prefix, i.e. media i is at <base>/trackID=i
+    public static final String TRACK_PREFIX = "trackID=";
+
+    private static final String NEW_LINE = "\r\n";
+    private static final String CONTROL_AGGREGATE = "*";
+
+    public static final class RtpMap {
+
+        private final int mPayloadType;
+        private final String mEncoding;
+        private final int mClockRate;
+        private final int mChannels;
+
+        RtpMap(int payloadType, String encoding, int clockRate, int channels) {
+            mPayloadType = payloadType;
+            mEncoding = encoding;
+            mClockRate = clockRate;
+            mChannels = channels;
+        }
+
+        public int getPayloadType() {
+            return mPayloadType;
+        }
+
+        public String getEncoding() {
+            return mEncoding;
+        }
+
+        public int getClockRate() {
+            return mClockRate;
+        }
+
+        public int getChannels() {
+            return mChannels;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s/%d", mPayloadType, mEncoding, mClockRate)
+                    + (mChannels > 1 ? "/" + mChannels : "");
+        }
+    }
+
+    // A range of lines: the session section or a media section
+    private class Section {
+
+        final int mFirst;
+        final int mLast; // exclusive
+
+        Section(int first, int last) {
+            mFirst = first;
+            mLast = last;
+        }
+
+        // The value of the first line of the type or null
+        String value(char type) {
+            for (int i = mFirst; i < mLast; i++) {
+                if (type(i) == type) {
+                    return lineValue(i);
+                }
+            }
+            return null;
+        }
+
+        String attribute(String name) {
+            for (int i = mFirst; i < mLast; i++) {
+                if (type(i) == 'a' && isAttribute(i, name)) {
+                    return attributeValue(i, name);
+                }
+            }
+            return null;
+        }
+
+        List<String> attributes(String name) {
+            List<String> values = new ArrayList<>();
+            for (int i = mFirst; i < mLast; i++) {
+                if (type(i) == 'a' && isAttribute(i, name)) {
+                    values.add(attributeValue(i, name));
+                }
+            }
+            return values;
+        }
+
+        int bandwidth(String type) {
+            for (int i = mFirst; i < mLast; i++) {
+                if (type(i) == 'b') {
+                    String b = lineValue(i);
+                    int colon = b.indexOf(':');
+                    if (colon > 0 && b.regionMatches(true, 0, type, 0, colon)
+                            && colon == type.length()) {
+                        int bandwidth = parseInt(b.substring(colon + 1).trim());
+                        if (bandwidth >= 0) {
+                            return bandwidth;
+                        }
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    public final class Media {
+
+        private final Section mSection;
+
+        // Parsed on first use
+        private String[] mFields;
+        private Map<Integer, RtpMap> mRtpMaps;
+
+        Media(Section section) throws IOException {
+            mSection = section;
+
+            String[] f = fields();
+            if (f.length < 3 || parsePort(f[1]) < 0) {
+                throw new IOException("Invalid SDP media: " + lineValue(section.mFirst));
+            }
+        }
+
+        // m=<media> <port> <proto> <fmt> ...
+        private String[] fields() {
+            if (mFields == null) {
+                mFields = lineValue(mSection.mFirst).trim().split(" +");
+            }
+            return mFields;
+        }
+
+        public String getType() {
+            return fields()[0];
+        }
+
+        public int getPort() {
+            return parsePort(fields()[1]);
+        }
+
+        public String getProtocol() {
+            return fields()[2];
+        }
+
+        // The RTP payload types. Formats that aren't are left out.
+        public int[] getFormats() {
+            String[] f = fields();
+            int[] formats = new int[f.length - 3];
+            int count = 0;
+            for (int i = 3; i < f.length; i++) {
+                int format = parseInt(f[i]);
+                if (format >= 0) {
+                    formats[count++] = format;
+                }
+            }
+            return count == formats.length ? formats : Arrays.copyOf(formats, count);
+        }
+
+        public String getAttribute(String name) {
+            return mSection.attribute(name);
+        }
+
+        public List<String> getAttributes(String name) {
+            return mSection.attributes(name);
+        }
+
+        public int getBandwidth(String type) {
+            return mSection.bandwidth(type);
+        }
+
+        public String getConnection() {
+            String c = mSection.value('c');
+            return c != null ? c : mSession.value('c');
+        }
+
+        public String getControl() {
+            return getAttribute(ATTRIBUTE_CONTROL);
+        }
+
+        // The URI to SETUP this media with
+        public URI getControlUri() throws IOException {
+            String control = getControl();
+            if (control == null) {
+                // A single media description may use the session URI
+                return getSessionControlUri();
+            }
+
+            return resolve(getSessionControlUri(), control);
+        }
+
+        public synchronized RtpMap getRtpMap(int payloadType) {
+            if (mRtpMaps == null) {
+                mRtpMaps = new HashMap<>();
+
+                // a=rtpmap:<payload type> <encoding name>/<clock rate>[/<params>]
+                for (String map : getAttributes(ATTRIBUTE_RTPMAP)) {
+                    int space = map.indexOf(' ');
+                    if (space < 0) {
+                        continue;
+                    }
+
+                    String[] parts = map.substring(space + 1).trim().split("/");
+                    if (parts.length < 2) {
+                        continue;
+                    }
+
+                    int pt = parseInt(map.substring(0, space));
+                    int clockRate = parseInt(parts[1]);
+                    int channels = parts.length > 2 ? parseInt(parts[2]) : 1;
+                    if (pt < 0 || clockRate < 0 || channels < 0) {
+                        continue;
+                    }
+
+                    mRtpMaps.put(pt, new RtpMap(pt, parts[0], clockRate, channels));
+                }
+            }
+
+            return mRtpMaps.get(payloadType);
+        }
+
+        // The encoding name of the first format, or null if unknown. Static
+        // payload types usually come without an rtpmap.
+        public String getEncoding() {
+            int[] formats = getFormats();
+            if (formats.length == 0) {
+                return null;
+            }
+
+            RtpMap map = getRtpMap(formats[0]);
+            if (map != null) {
+                return map.getEncoding();
+            }
+
+            return formats[0] == PAYLOAD_TYPE_MP2T ? ENCODING_MP2T : null;
+        }
+
+        // a=fmtp:<format> <format specific parameters>
+        public String getFormatParameters(int payloadType) {
+            String prefix = Integer.toString(payloadType);
+            for (String fmtp : getAttributes(ATTRIBUTE_FMTP)) {
+                if (fmtp.startsWith(prefix) && fmtp.length() > prefix.length()
+                        && fmtp.charAt(prefix.length()) == ' ') {
+                    return fmtp.substring(prefix.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return lineValue(mSection.mFirst);
+        }
+    }
+
+    private final String mText;
+    private final URI mBase;
+
+    // Start / end offsets of each line and its type character
+    private final int[] mLines;
+    private final int mLineCount;
+
+    private final Section mSession;
+    private final List<Media> mMedia;
+
+    private SessionDescription(String text, URI base) throws IOException {
+        mText = text;
+        mBase = base;
+
+        int[] lines = new int[64];
+        int count = 0;
+        List<Integer> mediaStarts = new ArrayList<>();
+
+        int length = text.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            int next = end + 1;
+            if (end > start && text.charAt(end - 1) == '\r') {
+                end--;
+            }
+
+            if (end > start) {
+                // <type>=<value>
+                if (end - start < 2 || text.charAt(start + 1) != '=') {
+                    throw new IOException("Invalid SDP line: " + text.substring(start, end));
+                }
+
+                if (2 * count == lines.length) {
+                    int[] grown = new int[lines.length * 2];
+                    System.arraycopy(lines, 0, grown, 0, lines.length);
+                    lines = grown;
+                }
+
+                if (text.charAt(start) == 'm') {
+                    mediaStarts.add(count);
+                }
+
+                lines[2 * count] = start;
+                lines[2 * count + 1] = end;
+                count++;
+            }
+
+            start = next;
+        }
+
+        if (count == 0 || type(text, lines, 0) != 'v') {
+            throw new IOException("SDP must start with v=");
+        }
+
+        mLines = lines;
+        mLineCount = count;
+
+        int sessionEnd = mediaStarts.isEmpty() ? count : mediaStarts.get(0);
+        mSession = new Section(0, sessionEnd);
+
+        List<Media> media = new ArrayList<>(mediaStarts.size());
+        for (int i = 0; i < mediaStarts.size(); i++) {
+            int last = i + 1 < mediaStarts.size() ? mediaStarts.get(i + 1) : count;
+            media.add(new Media(new Section(mediaStarts.get(i), last)));
+        }
+        mMedia = Collections.unmodifiableList(media);
+    }
+
+    // The base is used for resolving relative control URIs. It should be
+    // the Content-Base of the DESCRIBE response or its request URI.
+    public static SessionDescription parse(String sdp, URI base) throws IOException {
+        return new SessionDescription(sdp, base);
+    }
+
+    public static SessionDescription parse(String sdp) throws IOException {
+        return parse(sdp, null);
+    }
+
+    public static SessionDescription parse(byte[] sdp, URI base) throws IOException {
+        return parse(new String(sdp, Message.CHARSET), base);
+    }
+
+    // A non-negative decimal, or -1
+    private static int parseInt(String s) {
+        if (s.isEmpty() || s.length() > 9) {
+            return -1;
+        }
+
+        int value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // <port>[/<number of ports>], or -1
+    private static int parsePort(String s) {
+        int slash = s.indexOf('/');
+        int port = parseInt(slash < 0 ? s : s.substring(0, slash));
+        return port <= 0xffff ? port : -1;
+    }
+
+    private static char type(String text, int[] lines, int line) {
+        return text.charAt(lines[2 * line]);
+    }
+
+    private char type(int line) {
+        return type(mText, mLines, line);
+    }
+
+    private String lineValue(int line) {
+        return mText.substring(mLines[2 * line] + 2, mLines[2 * line + 1]);
+    }
+
+    // a=<name> or a=<name>:<value>
+    private boolean isAttribute(int line, String name) {
+        int start = mLines[2 * line] + 2;
+        int end = mLines[2 * line + 1];
+        int nameEnd = start + name.length();
+
+        return nameEnd <= end
+                && mText.regionMatches(start, name, 0, name.length())
+                && (nameEnd == end || mText.charAt(nameEnd) == ':');
+    }
+
+    private String attributeValue(int line, String name) {
+        int start = mLines[2 * line] + 2 + name.length();
+        int end = mLines[2 * line + 1];
+        return start < end ? mText.substring(start + 1, end) : "";
+    }
+
+    private static URI resolve(URI base, String control) throws IOException {
+        try {
+            URI uri = new URI(control);
+            if (uri.isAbsolute() || base == null) {
+                return uri;
+            }
+
+            if (CONTROL_AGGREGATE.equals(control)) {
+                return base;
+            }
+
+            // Relative controls are meant to be below the base, which
+            // is usually given without a trailing slash
+            String b = base.toString();
+            if (!b.endsWith("/")) {
+                base = new URI(b + "/");
+            }
+
+            return base.resolve(uri);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid control URI: " + control, e);
+        }
+    }
+
+    public URI getBaseUri() {
+        return mBase;
+    }
+
+    public String getOrigin() {
+        return mSession.value('o');
+    }
+
+    public String getSessionName() {
+        return mSession.value('s');
+    }
+
+    public String getConnection() {
+        return mSession.value('c');
+    }
+
+    public String getAttribute(String name) {
+        return mSession.attribute(name);
+    }
+
+    public List<String> getAttributes(String name) {
+        return mSession.attributes(name);
+    }
+
+    public int getBandwidth(String type) {
+        return mSession.bandwidth(type);
+    }
+
+    public String getControl() {
+        return getAttribute(ATTRIBUTE_CONTROL);
+    }
+
+    // The URI for aggregate control of the session (e.g. PLAY)
+    public URI getSessionControlUri() throws IOException {
+        String control = getControl();
+        return control == null ? mBase : resolve(mBase, control);
+    }
+
+    public List<Media> getMedia() {
+        return mMedia;
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public byte[] toBytes() {
+        try {
+            return mText.getBytes(Message.CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A copy to be served under another base, e.g. by a relay: the session
+    // is controlled with "*" and media i with "<prefix><i>", so that no
+    // control points back to where the description came from
+    public SessionDescription withControls(String mediaPrefix, URI base) throws IOException {
+        StringBuilder sdp = new StringBuilder(mText.length() + 64);
+        int media = -1;
+
+        for (int i = 0; i < mLineCount; i++) {
+            char type = type(i);
+
+            if (type == 'a' && isAttribute(i, ATTRIBUTE_CONTROL)) {
+                continue;
+            }
+
+            if (type == 'm' && media < 0) {
+                // End of the session section
+                appendControl(sdp, CONTROL_AGGREGATE);
+            }
+
+            sdp.append(mText, mLines[2 * i], mLines[2 * i + 1]).append(NEW_LINE);
+
+            if (type == 'm') {
+                media++;
+                appendControl(sdp, mediaPrefix + media);
+            }
+        }
+
+        if (media < 0) {
+            appendControl(sdp, CONTROL_AGGREGATE);
+        }
+
+        return parse(sdp.toString(), base);
+    }
+
+    private static void appendControl(StringBuilder sdp, String control) {
+        sdp.append("a=").append(ATTRIBUTE_CONTROL).append(':').append(control).append(NEW_LINE);
+    }
+
+    @Override
+    public String toString() {
+        return mText;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // Builds a description on the server side. Lines are kept in the order
+    // they were added, within the session section or the last media.
+    public static final class Builder {
+
+        private final StringBuilder mSession = new StringBuilder("v=0" + NEW_LINE);
+        private final StringBuilder mMedia = new StringBuilder();
+        private StringBuilder mCurrent = mSession;
+
+        private Builder() {
+        }
+
+        public Builder line(char type, String value) {
+            mCurrent.append(type).append('=').append(value).append(NEW_LINE);
+            return this;
+        }
+
+        public Builder origin(String username, long sessionId, long version, String address) {
+            return line('o', String.format("%s %d %d IN %s %s", username, sessionId, version,
+                    address.contains(":") ? "IP6" : "IP4", address));
+        }
+
+        public Builder sessionName(String name) {
+            return line('s', name);
+        }
+
+        public Builder connection(String address) {
+            return line('c', (address.contains(":") ? "IN IP6 " : "IN IP4 ") + address);
+        }
+
+        public Builder time(long start, long stop) {
+            return line('t', start + " " + stop);
+        }
+
+        public Builder bandwidth(String type, int kbps) {
+            return line('b', type + ":" + kbps);
+        }
+
+        public Builder attribute(String name) {
+            return line('a', name);
+        }
+
+        public Builder attribute(String name, String value) {
+            return line('a', name + ":" + value);
+        }
+
+        public Builder control(String control) {
+            return attribute(ATTRIBUTE_CONTROL, control);
+        }
+
+        // Starts a media section. Anything added after it belongs to it.
+        public Builder media(String type, int port, String protocol, int... formats) {
+            mCurrent = mMedia;
+            StringBuilder m = new StringBuilder();
+            m.append(type).append(' ').append(port).append(' ').append(protocol);
+            for (int f : formats) {
+                m.append(' ').append(f);
+            }
+            return line('m', m.toString());
+        }
+
+        public Builder rtpMap(int payloadType, String encoding, int clockRate) {
+            return attribute(ATTRIBUTE_RTPMAP,
+                    String.format("%d %s/%d", payloadType, encoding, clockRate));
+        }
+
+        public Builder formatParameters(int payloadType, String parameters) {
+            return attribute(ATTRIBUTE_FMTP, payloadType + " " + parameters);
+        }
+
+        public SessionDescription build() {
+            return build(null);
+        }
+
+        public SessionDescription build(URI base) {
+            try {
+                return parse(mSession.toString() + mMedia, base);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package albite.net.rtsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// A connection over TCP
+final class SocketConnection implements Connection {
+
+    static final Connector CONNECTOR = (address, timeoutMillis) -> {
+        Socket socket = new Socket();
+        try {
+            socket.bind(null);
+            socket.connect(address, timeoutMillis);
+            return new SocketConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    };
+
+    private final Socket mSocket;
+
+    SocketConnection(Socket socket) {
+        mSocket = socket;
+    }
+
+    // Accepts through the server socket's channel, so that closing the
+    // socket ends an accept at once
+    static Acceptor acceptor(ServerSocket server) {
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                return new SocketConnection(server.getChannel().accept().socket());
+            }
+
+            @Override
+            public InetSocketAddress getLocalAddress() {
+                return (InetSocketAddress) server.getLocalSocketAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) mSocket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public void setReadTimeout(int millis) throws IOException {
+        mSocket.setSoTimeout(millis);
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        mSocket.shutdownOutput();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mSocket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    @Override
+    public String toString() {
+        return mSocket.toString();
+    }
+}
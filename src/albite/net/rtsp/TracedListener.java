@@ -0,0 +1,123 @@
+package albite.net.rtsp;
+
+import albite.util.FlightEvent;
+import java.io.IOException;
+import java.net.URI;
+
+// Times the calls to the listener of a server, so that slow listener code
+// shows up in flight recordings
+final class TracedListener implements RtspServer.Listener {
+
+    private final RtspServer.Listener mListener;
+
+    TracedListener(RtspServer.Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void onRequestError(Throwable tr) {
+        mListener.onRequestError(tr);
+    }
+
+    @Override
+    public byte[] onRequestDescription(String[] accept) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            return mListener.onRequestDescription(accept);
+        } finally {
+            RtspEvents.listenerCalled(event, "onRequestDescription", null, null);
+        }
+    }
+
+    @Override
+    public byte[] onRequestDescription(URI uri, String[] accept) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            return mListener.onRequestDescription(uri, accept);
+        } finally {
+            RtspEvents.listenerCalled(event, "onRequestDescription", null, uri);
+        }
+    }
+
+    @Override
+    public String createSession() {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        String session = null;
+        try {
+            session = mListener.createSession();
+            return session;
+        } finally {
+            RtspEvents.listenerCalled(event, "createSession", session, null);
+        }
+    }
+
+    @Override
+    public int[] onSetupUnicast(String session, URI uri, int rtpPort, int rtcpPort) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            return mListener.onSetupUnicast(session, uri, rtpPort, rtcpPort);
+        } finally {
+            RtspEvents.listenerCalled(event, "onSetupUnicast", session, uri);
+        }
+    }
+
+    @Override
+    public void onPlay(String session, URI uri) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            mListener.onPlay(session, uri);
+        } finally {
+            RtspEvents.listenerCalled(event, "onPlay", session, uri);
+        }
+    }
+
+    @Override
+    public Range onPlay(String session, URI uri, Range range) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            return mListener.onPlay(session, uri, range);
+        } finally {
+            RtspEvents.listenerCalled(event, "onPlay", session, uri);
+        }
+    }
+
+    @Override
+    public void onPause(String session, URI uri) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            mListener.onPause(session, uri);
+        } finally {
+            RtspEvents.listenerCalled(event, "onPause", session, uri);
+        }
+    }
+
+    @Override
+    public void onAnnounce(URI uri, SessionDescription description) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            mListener.onAnnounce(uri, description);
+        } finally {
+            RtspEvents.listenerCalled(event, "onAnnounce", null, uri);
+        }
+    }
+
+    @Override
+    public void onRecord(String session, URI uri) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            mListener.onRecord(session, uri);
+        } finally {
+            RtspEvents.listenerCalled(event, "onRecord", session, uri);
+        }
+    }
+
+    @Override
+    public void onTeardown(String session) throws IOException {
+        FlightEvent.Instance event = RtspEvents.LISTENER.begin();
+        try {
+            mListener.onTeardown(session);
+        } finally {
+            RtspEvents.listenerCalled(event, "onTeardown", session, null);
+        }
+    }
+}
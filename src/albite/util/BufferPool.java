@@ -0,0 +1,294 @@
+package albite.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A pool of buffers carved out of big slabs, so that steady-state I/O
+// does not produce garbage. Requests are rounded up to a size class and
+// served from a small per-thread cache first, falling back to a shared
+// free list, which is refilled / drained in batches.
+//
+// The caches are bounded in bytes, so a thread holds on to few of the
+// big buffers. Threads that come and go (e.g. per connection) should
+// call flushThreadCaches() before they end, or their cached buffers
+// are lost to the pool.
+//
+// Leak detection is enabled with -Dalbite.bufferpool.debug=true: the
+// pool then keeps track of every outstanding buffer and where it was
+// allocated.
+public final class BufferPool {
+
+    private static final String TAG = "BufferPool";
+
+    // An MTU-sized RTP packet
+    public static final int SIZE_PACKET = 2048;
+    // An RTSP control message
+    public static final int SIZE_CONTROL = 4096;
+    // An interleaved chunk / large datagram
+    public static final int SIZE_CHUNK = 65536;
+
+    private static final int[] DEFAULT_SIZES = {SIZE_PACKET, SIZE_CONTROL, SIZE_CHUNK};
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+    // Per size class, whichever is less
+    private static final int CACHE_SIZE = 64;
+    private static final int CACHE_BYTES = 256 * 1024;
+
+    public static final boolean DEBUG = Boolean.getBoolean("albite.bufferpool.debug");
+
+    // For the data path (RTP packets, channels)
+    private static final BufferPool DIRECT = new BufferPool(true, DEFAULT_SIZES);
+    // For the control path, which goes through socket streams and thus
+    // needs buffers backed by arrays
+    private static final BufferPool HEAP = new BufferPool(false, DEFAULT_SIZES);
+
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    // Gives the buffers cached by the calling thread back to the shared
+    // pools. For threads that are about to end.
+    public static void flushThreadCaches() {
+        DIRECT.flushCache();
+        HEAP.flushCache();
+    }
+
+    // Runs the task, then flushes the caches of the thread it ran on. For
+    // the threads of executors and the like, which come and go.
+    public static Runnable flushingCaches(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } finally {
+                flushThreadCaches();
+            }
+        };
+    }
+
+    final class SizeClass {
+
+        private final int mSize;
+        private final int mIndex;
+        private final int mCacheSize;
+        private final int mBatchSize;
+        private final ArrayDeque<PooledBuffer> mFree = new ArrayDeque<>();
+        private int mSlabs = 0;
+
+        SizeClass(int size, int index) {
+            mSize = size;
+            mIndex = index;
+            mCacheSize = Math.max(2, Math.min(CACHE_SIZE, CACHE_BYTES / size));
+            mBatchSize = mCacheSize / 2;
+        }
+
+        // Moves up to count buffers from the shared list to the cache,
+        // allocating a new slab if needed
+        private synchronized void refill(Cache cache, int count) {
+            if (mFree.isEmpty()) {
+                allocateSlab();
+            }
+
+            for (int i = 0; i < count && !mFree.isEmpty(); i++) {
+                cache.push(mIndex, mFree.pop());
+            }
+        }
+
+        private synchronized void drain(Cache cache, int count) {
+            for (int i = 0; i < count; i++) {
+                mFree.push(cache.pop(mIndex));
+            }
+        }
+
+        private void allocateSlab() {
+            int count = Math.max(1, SLAB_SIZE / mSize);
+            ByteBuffer slab = mDirect
+                    ? ByteBuffer.allocateDirect(count * mSize)
+                    : ByteBuffer.allocate(count * mSize);
+
+            for (int i = 0; i < count; i++) {
+                slab.limit((i + 1) * mSize);
+                slab.position(i * mSize);
+                mFree.push(new PooledBuffer(this, slab.slice()));
+            }
+
+            mSlabs++;
+            mCapacity.addAndGet((long) count * mSize);
+        }
+
+        void recycle(PooledBuffer buffer) {
+            if (DEBUG) {
+                mOutstanding.remove(buffer);
+                buffer.mAllocationTrace = null;
+            }
+
+            Cache cache = mCaches.get();
+            if (cache.size(mIndex) == mCacheSize) {
+                drain(cache, mBatchSize);
+            }
+            cache.push(mIndex, buffer);
+        }
+
+        PooledBuffer allocate() {
+            Cache cache = mCaches.get();
+            if (cache.size(mIndex) == 0) {
+                refill(cache, mBatchSize);
+            }
+            return cache.pop(mIndex);
+        }
+    }
+
+    // Per-thread stacks of free buffers, one per size class
+    private static final class Cache {
+
+        private final PooledBuffer[][] mBuffers;
+        private final int[] mSizes;
+
+        Cache(SizeClass[] classes) {
+            mBuffers = new PooledBuffer[classes.length][];
+            for (int i = 0; i < classes.length; i++) {
+                mBuffers[i] = new PooledBuffer[classes[i].mCacheSize];
+            }
+            mSizes = new int[classes.length];
+        }
+
+        int size(int index) {
+            return mSizes[index];
+        }
+
+        void push(int index, PooledBuffer buffer) {
+            mBuffers[index][mSizes[index]++] = buffer;
+        }
+
+        PooledBuffer pop(int index) {
+            PooledBuffer buffer = mBuffers[index][--mSizes[index]];
+            mBuffers[index][mSizes[index]] = null;
+            return buffer;
+        }
+    }
+
+    private final boolean mDirect;
+    private final SizeClass[] mClasses;
+    private final ThreadLocal<Cache> mCaches;
+
+    private final AtomicLong mCapacity = new AtomicLong();
+    private final AtomicLong mUnpooled = new AtomicLong();
+    private final Set<PooledBuffer> mOutstanding = ConcurrentHashMap.newKeySet();
+
+    public BufferPool(boolean direct, int... sizes) {
+        mDirect = direct;
+        mClasses = new SizeClass[sizes.length];
+
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0 && sizes[i] <= sizes[i - 1]) {
+                throw new IllegalArgumentException("Size classes must be increasing");
+            }
+            mClasses[i] = new SizeClass(sizes[i], i);
+        }
+
+        mCaches = ThreadLocal.withInitial(() -> new Cache(mClasses));
+    }
+
+    // Gives the buffers cached by the calling thread back to the shared
+    // lists
+    public void flushCache() {
+        Cache cache = mCaches.get();
+        for (SizeClass c : mClasses) {
+            if (cache.size(c.mIndex) > 0) {
+                c.drain(cache, cache.size(c.mIndex));
+            }
+        }
+        mCaches.remove();
+    }
+
+    // Buffers in the shared lists, in bytes
+    public long getFreeBytes() {
+        long bytes = 0;
+        for (SizeClass c : mClasses) {
+            synchronized (c) {
+                bytes += (long) c.mFree.size() * c.mSize;
+            }
+        }
+        return bytes;
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    public int getMaxPooledSize() {
+        return mClasses[mClasses.length - 1].mSize;
+    }
+
+    // The returned buffer has a reference count of one, and its limit
+    // set to the requested size. Requests larger than the biggest class
+    // are allocated outside the pool.
+    public PooledBuffer allocate(int size) {
+        PooledBuffer buffer = null;
+
+        for (SizeClass c : mClasses) {
+            if (size <= c.mSize) {
+                buffer = c.allocate();
+                buffer.reset();
+                break;
+            }
+        }
+
+        if (buffer == null) {
+            mUnpooled.incrementAndGet();
+            buffer = PooledBuffer.wrap(mDirect
+                    ? ByteBuffer.allocateDirect(size)
+                    : ByteBuffer.allocate(size));
+        }
+
+        buffer.buffer().limit(size);
+
+        if (DEBUG && buffer.isPooled()) {
+            buffer.mAllocationTrace = new Throwable("Allocated here");
+            buffer.mAllocationTime = System.currentTimeMillis();
+            mOutstanding.add(buffer);
+        }
+
+        return buffer;
+    }
+
+    // Total bytes held in slabs
+    public long getCapacity() {
+        return mCapacity.get();
+    }
+
+    public long getUnpooledAllocations() {
+        return mUnpooled.get();
+    }
+
+    // Only available in debug mode
+    public int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+
+    // Logs (and returns) buffers that have been out for longer than the age.
+    // Only available in debug mode.
+    public List<PooledBuffer> reportLeaks(long minAgeMs) {
+        List<PooledBuffer> leaks = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (PooledBuffer buffer : mOutstanding) {
+            Throwable trace = buffer.mAllocationTrace;
+            if (trace != null && now - buffer.mAllocationTime >= minAgeMs) {
+                leaks.add(buffer);
+                Log.w(TAG, String.format("Possible leak of a %d byte buffer (refs: %d)",
+                        buffer.capacity(), buffer.getReferenceCount()), trace);
+            }
+        }
+
+        return leaks;
+    }
+}
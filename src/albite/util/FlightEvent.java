@@ -0,0 +1,266 @@
+package albite.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// An event type for Java Flight Recorder. Event types are defined at run
+// time through jdk.jfr.EventFactory, so that the code builds for Java 8
+// and runs where there is no JFR, with events that are never enabled.
+//
+// An event that isn't being recorded costs a check of its type:
+//
+//     FlightEvent.Instance event = TYPE.begin();
+//     ...
+//     if (event != null) {
+//         event.set(0, value).commit();
+//     }
+//
+// The duration of an event is from begin() to commit().
+public final class FlightEvent {
+
+    private static final String TAG = "FlightEvent";
+
+    private static final MethodHandle CREATE;
+    private static final MethodHandle NEW_EVENT;
+    private static final MethodHandle GET_EVENT_TYPE;
+    private static final MethodHandle IS_ENABLED;
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle SET;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle NEW_ANNOTATION;
+    private static final MethodHandle NEW_FIELD;
+
+    private static final Class<? extends Annotation> NAME;
+    private static final Class<? extends Annotation> LABEL;
+    private static final Class<? extends Annotation> DESCRIPTION;
+    private static final Class<? extends Annotation> CATEGORY;
+
+    static {
+        MethodHandle create = null;
+        MethodHandle newEvent = null;
+        MethodHandle getEventType = null;
+        MethodHandle isEnabled = null;
+        MethodHandle begin = null;
+        MethodHandle set = null;
+        MethodHandle commit = null;
+        MethodHandle newAnnotation = null;
+        MethodHandle newField = null;
+        Class<? extends Annotation> name = null;
+        Class<? extends Annotation> label = null;
+        Class<? extends Annotation> description = null;
+        Class<? extends Annotation> category = null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> eventType = Class.forName("jdk.jfr.EventType");
+            Class<?> annotation = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> field = Class.forName("jdk.jfr.ValueDescriptor");
+
+            // All typed as Object, so that they may be called exactly
+            create = lookup.findStatic(factory, "create",
+                    MethodType.methodType(factory, List.class, List.class))
+                    .asType(MethodType.methodType(Object.class, List.class, List.class));
+            newEvent = lookup.findVirtual(factory, "newEvent", MethodType.methodType(event))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            getEventType = lookup.findVirtual(factory, "getEventType", MethodType.methodType(eventType))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            isEnabled = lookup.findVirtual(eventType, "isEnabled", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            set = lookup.findVirtual(event, "set",
+                    MethodType.methodType(void.class, int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+            commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            newAnnotation = lookup.findConstructor(annotation,
+                    MethodType.methodType(void.class, Class.class, Object.class))
+                    .asType(MethodType.methodType(Object.class, Class.class, Object.class));
+            newField = lookup.findConstructor(field,
+                    MethodType.methodType(void.class, Class.class, String.class, List.class))
+                    .asType(MethodType.methodType(Object.class, Class.class, String.class, List.class));
+
+            name = Class.forName("jdk.jfr.Name").asSubclass(Annotation.class);
+            label = Class.forName("jdk.jfr.Label").asSubclass(Annotation.class);
+            description = Class.forName("jdk.jfr.Description").asSubclass(Annotation.class);
+            category = Class.forName("jdk.jfr.Category").asSubclass(Annotation.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // No JFR
+            create = null;
+        }
+
+        CREATE = create;
+        NEW_EVENT = newEvent;
+        GET_EVENT_TYPE = getEventType;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        SET = set;
+        COMMIT = commit;
+        NEW_ANNOTATION = newAnnotation;
+        NEW_FIELD = newField;
+        NAME = name;
+        LABEL = label;
+        DESCRIPTION = description;
+        CATEGORY = category;
+    }
+
+    // Whether JFR is there at all
+    public static boolean isAvailable() {
+        return CREATE != null;
+    }
+
+    public static class Builder {
+
+        private final String mName;
+        private final String mLabel;
+        private String mDescription;
+        private String[] mCategory;
+        private final List<String> mFieldNames = new ArrayList<>();
+        private final List<String> mFieldLabels = new ArrayList<>();
+        private final List<Class<?>> mFieldTypes = new ArrayList<>();
+
+        private Builder(String name, String label) {
+            mName = name;
+            mLabel = label;
+        }
+
+        public Builder description(String description) {
+            mDescription = description;
+            return this;
+        }
+
+        public Builder category(String... category) {
+            mCategory = category;
+            return this;
+        }
+
+        // A primitive or a String. Fields are set by their index, in the
+        // order they were added.
+        public Builder field(String name, Class<?> type, String label) {
+            mFieldNames.add(name);
+            mFieldTypes.add(type);
+            mFieldLabels.add(label);
+            return this;
+        }
+
+        public FlightEvent build() {
+            if (CREATE == null) {
+                return new FlightEvent(mName, null, null);
+            }
+
+            try {
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(NEW_ANNOTATION.invokeExact((Class<?>) NAME, (Object) mName));
+                annotations.add(NEW_ANNOTATION.invokeExact((Class<?>) LABEL, (Object) mLabel));
+                if (mDescription != null) {
+                    annotations.add(NEW_ANNOTATION.invokeExact((Class<?>) DESCRIPTION, (Object) mDescription));
+                }
+                if (mCategory != null) {
+                    annotations.add(NEW_ANNOTATION.invokeExact((Class<?>) CATEGORY, (Object) mCategory));
+                }
+
+                List<Object> fields = new ArrayList<>();
+                for (int i = 0; i < mFieldNames.size(); i++) {
+                    List<Object> fieldAnnotations = Collections.singletonList(
+                            NEW_ANNOTATION.invokeExact((Class<?>) LABEL, (Object) mFieldLabels.get(i)));
+                    fields.add(NEW_FIELD.invokeExact(
+                            (Class<?>) mFieldTypes.get(i), mFieldNames.get(i), (List<?>) fieldAnnotations));
+                }
+
+                Object factory = CREATE.invokeExact((List<?>) annotations, (List<?>) fields);
+                return new FlightEvent(mName, factory, GET_EVENT_TYPE.invokeExact(factory));
+            } catch (Throwable tr) {
+                Log.w(TAG, "Failed defining event " + mName, tr);
+                return new FlightEvent(mName, null, null);
+            }
+        }
+    }
+
+    // The name is what the event is recorded as (e.g. com.example.Request),
+    // the label what it is shown as
+    public static Builder builder(String name, String label) {
+        return new Builder(name, label);
+    }
+
+    // An event being timed, which is recorded on commit
+    public static final class Instance {
+
+        private final Object mEvent;
+
+        private Instance(Object event) {
+            mEvent = event;
+        }
+
+        public Instance set(int index, Object value) {
+            try {
+                SET.invokeExact(mEvent, index, value);
+            } catch (Throwable tr) {
+                Log.w(TAG, "Failed setting field " + index, tr);
+            }
+            return this;
+        }
+
+        public void commit() {
+            try {
+                COMMIT.invokeExact(mEvent);
+            } catch (Throwable tr) {
+                Log.w(TAG, "Failed committing event", tr);
+            }
+        }
+    }
+
+    private final String mName;
+    private final Object mFactory;
+    private final Object mType;
+
+    private FlightEvent(String name, Object factory, Object type) {
+        mName = name;
+        mFactory = factory;
+        mType = type;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // Whether the event is being recorded right now
+    public boolean isEnabled() {
+        if (mType == null) {
+            return false;
+        }
+
+        try {
+            return (boolean) IS_ENABLED.invokeExact(mType);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
+    // Returns null if the event is not being recorded
+    public Instance begin() {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        try {
+            Object event = NEW_EVENT.invokeExact(mFactory);
+            BEGIN.invokeExact(event);
+            return new Instance(event);
+        } catch (Throwable tr) {
+            Log.w(TAG, "Failed beginning event " + mName, tr);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
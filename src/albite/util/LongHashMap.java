@@ -0,0 +1,145 @@
+package albite.util;
+
+import java.util.Arrays;
+
+// A hash map with primitive long keys, using open addressing with linear
+// probing, so lookups neither box the key nor chase pointers. Removal
+// shifts the following entries back instead of leaving tombstones.
+//
+// Not thread-safe.
+public final class LongHashMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize = 0;
+    private int mMask;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int capacity) {
+        int size = Integer.highestOneBit(Math.max(4, (int) (capacity / LOAD_FACTOR)) - 1) << 1;
+        mKeys = new long[size];
+        mValues = new Object[size];
+        mMask = size - 1;
+    }
+
+    // Spreads keys such as addresses, that differ in a few bits only
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int indexOf(long key) {
+        for (int i = hash(key) & mMask;; i = (i + 1) & mMask) {
+            if (mValues[i] == null) {
+                return -1;
+            }
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) mValues[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    // Values may not be null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+
+        int i = hash(key) & mMask;
+        for (; mValues[i] != null; i = (i + 1) & mMask) {
+            if (mKeys[i] == key) {
+                V old = (V) mValues[i];
+                mValues[i] = value;
+                return old;
+            }
+        }
+
+        mKeys[i] = key;
+        mValues[i] = value;
+
+        if (++mSize > mKeys.length * LOAD_FACTOR) {
+            resize(mKeys.length * 2);
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+
+        V old = (V) mValues[i];
+        mSize--;
+
+        // Move back any entry of the same run that would no longer be
+        // found past the hole
+        int hole = i;
+        for (int j = (i + 1) & mMask; mValues[j] != null; j = (j + 1) & mMask) {
+            int home = hash(mKeys[j]) & mMask;
+            if (((j - home) & mMask) >= ((j - hole) & mMask)) {
+                mKeys[hole] = mKeys[j];
+                mValues[hole] = mValues[j];
+                hole = j;
+            }
+        }
+
+        mValues[hole] = null;
+        return old;
+    }
+
+    private void resize(int size) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+
+        mKeys = new long[size];
+        mValues = new Object[size];
+        mMask = size - 1;
+        mSize = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                int j = hash(keys[i]) & mMask;
+                while (mValues[j] != null) {
+                    j = (j + 1) & mMask;
+                }
+                mKeys[j] = keys[i];
+                mValues[j] = values[i];
+                mSize++;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+}
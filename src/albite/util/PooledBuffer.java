@@ -0,0 +1,78 @@
+package albite.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A reference counted buffer from a BufferPool. Whoever holds on to a
+// buffer past the call it was given in must retain() it, and release()
+// it when done. The buffer goes back to the pool when the count drops
+// to zero and must not be touched after that.
+public final class PooledBuffer {
+
+    private final BufferPool.SizeClass mSizeClass;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mReferences = new AtomicInteger();
+
+    // Only used in debug mode
+    volatile Throwable mAllocationTrace;
+    volatile long mAllocationTime;
+
+    PooledBuffer(BufferPool.SizeClass sizeClass, ByteBuffer buffer) {
+        mSizeClass = sizeClass;
+        mBuffer = buffer;
+    }
+
+    // Wraps a buffer that is not part of any pool, e.g. a mapped file region
+    public static PooledBuffer wrap(ByteBuffer buffer) {
+        PooledBuffer b = new PooledBuffer(null, buffer);
+        b.mReferences.set(1);
+        return b;
+    }
+
+    void reset() {
+        mBuffer.clear();
+        mReferences.set(1);
+    }
+
+    public ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    public int capacity() {
+        return mBuffer.capacity();
+    }
+
+    public boolean isPooled() {
+        return mSizeClass != null;
+    }
+
+    public int getReferenceCount() {
+        return mReferences.get();
+    }
+
+    public PooledBuffer retain() {
+        for (;;) {
+            int count = mReferences.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+
+            if (mReferences.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int count = mReferences.decrementAndGet();
+
+        if (count < 0) {
+            mReferences.incrementAndGet();
+            throw new IllegalStateException("Buffer released too many times");
+        }
+
+        if (count == 0 && mSizeClass != null) {
+            mSizeClass.recycle(this);
+        }
+    }
+}
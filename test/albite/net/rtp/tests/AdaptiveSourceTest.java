@@ -0,0 +1,191 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.AdaptationController;
+import albite.net.rtp.AdaptiveSource;
+import albite.net.rtp.KeyframeDetector;
+import albite.net.rtp.LiveStream;
+import albite.net.rtp.RtcpReport;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdaptiveSourceTest {
+
+    // H.264 NAL unit types
+    private static final int IDR = 5;
+    private static final int SLICE = 1;
+
+    private static final int HIGH_SSRC = 1111;
+    private static final int LOW_SSRC = 2222;
+
+    private static class CollectingSink implements RtpSink {
+
+        final List<Integer> mSequenceNumbers = new ArrayList<>();
+        final List<Integer> mSsrcs = new ArrayList<>();
+        final List<Integer> mSizes = new ArrayList<>();
+        final List<Long> mTimestamps = new ArrayList<>();
+
+        @Override
+        public void send(RtpPacket packet) throws IOException {
+            mTimestamps.add(packet.getTimestamp());
+            mSequenceNumbers.add(packet.getSequenceNumber());
+            mSsrcs.add(packet.getSsrc());
+            mSizes.add(packet.getLength());
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static RtpPacket packet(int seq, int ssrc, int nalType, int size) {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + size);
+        RtpPacket.writeHeader(b, false, 96, seq, 3000L * seq, ssrc);
+        b.put(RtpPacket.HEADER_SIZE, (byte) (0x60 | nalType));
+        return new RtpPacket(b);
+    }
+
+    private static RtcpReport report(int fractionLost) {
+        return RtcpReport.parse(RtcpReportTest.receiverReport(0, fractionLost, 0, 0));
+    }
+
+    // One frame of each rendition, the high one at 1000 bytes and the
+    // low one at 100
+    private static void publish(LiveStream high, LiveStream low, int seq, int nalType) {
+        high.publish(packet(seq, HIGH_SSRC, nalType, 1000));
+        low.publish(packet(seq, LOW_SSRC, nalType, 100));
+    }
+
+    // The renditions switched to are started in the background
+    private static void awaitSubscribers(LiveStream stream, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && stream.getSubscriberCount() != count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, stream.getSubscriberCount());
+    }
+
+    @Test
+    public void testSwitch() throws Exception {
+        LiveStream high = new LiveStream("high");
+        LiveStream low = new LiveStream("low");
+
+        // Steps up as soon as the reports are clean
+        AdaptiveSource source = AdaptiveSource.of(KeyframeDetector.H264,
+                new AdaptationController(0.05, 0.01, 0, 0, 0), high, low);
+        CollectingSink sink = new CollectingSink();
+        source.start(sink);
+
+        publish(high, low, 0, IDR);
+        publish(high, low, 1, SLICE);
+        assertEquals(0, source.getCurrent());
+
+        // 10% loss: the low rendition starts, but only goes out from its
+        // next keyframe
+        source.onReport(report(26));
+        assertEquals(1, source.getPending());
+        awaitSubscribers(low, 1);
+        publish(high, low, 2, SLICE);
+        assertEquals(0, source.getCurrent());
+
+        publish(high, low, 3, IDR);
+        assertEquals(1, source.getCurrent());
+        assertEquals(-1, source.getPending());
+        assertEquals(0, high.getSubscriberCount());
+        publish(high, low, 4, SLICE);
+
+        // Clean again: back up at the next keyframe of the high one
+        source.onReport(report(0));
+        assertEquals(0, source.getPending());
+        awaitSubscribers(high, 1);
+        publish(high, low, 5, SLICE);
+        publish(high, low, 6, IDR);
+        assertEquals(0, source.getCurrent());
+        assertEquals(2, source.getSwitchCount());
+
+        // The frame switched at went out from both renditions, the old
+        // one having been first
+        int[] sizes = {1000, 1000, 1000, 1000, 100, 100, 100, 1000};
+        assertEquals(sizes.length, sink.mSizes.size());
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(RtpPacket.HEADER_SIZE + sizes[i], (int) sink.mSizes.get(i));
+
+            // One stream, as far as the client can tell
+            assertEquals(sink.mSsrcs.get(0), sink.mSsrcs.get(i));
+            assertEquals((sink.mSequenceNumbers.get(0) + i) & 0xffff,
+                    (int) sink.mSequenceNumbers.get(i));
+        }
+
+        source.close();
+        assertEquals(0, high.getSubscriberCount());
+        assertEquals(0, low.getSubscriberCount());
+    }
+
+    @Test
+    public void testGopCachedRenditions() throws Exception {
+        LiveStream high = new LiveStream("high", KeyframeDetector.H264, LiveStream.DEFAULT_GOP_CACHE_SIZE);
+        LiveStream low = new LiveStream("low", KeyframeDetector.H264, LiveStream.DEFAULT_GOP_CACHE_SIZE);
+        publish(high, low, 0, IDR);
+        publish(high, low, 1, SLICE);
+        publish(high, low, 2, SLICE);
+
+        AdaptiveSource source = AdaptiveSource.of(KeyframeDetector.H264,
+                new AdaptationController(0.05, 0.01, 0, 0, 0), high, low);
+        CollectingSink sink = new CollectingSink();
+        source.start(sink);
+
+        // The low rendition bursts its GOP, which was played already
+        source.onReport(report(26));
+        awaitSubscribers(low, 1);
+        assertEquals(0, source.getCurrent());
+        assertEquals(1, source.getPending());
+
+        publish(high, low, 3, SLICE);
+        publish(high, low, 4, IDR);
+        publish(high, low, 5, SLICE);
+        assertEquals(1, source.getCurrent());
+
+        // The burst of the high one, then the live packets up to the new
+        // keyframe, from which on the low one
+        int[] sizes = {1000, 1000, 1000, 1000, 1000, 100, 100};
+        assertEquals(sizes.length, sink.mSizes.size());
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(RtpPacket.HEADER_SIZE + sizes[i], (int) sink.mSizes.get(i));
+        }
+
+        // Time never goes back
+        for (int i = 1; i < sink.mTimestamps.size(); i++) {
+            assertTrue(sink.mTimestamps.get(i) >= sink.mTimestamps.get(i - 1));
+        }
+
+        source.close();
+        high.close();
+        low.close();
+    }
+
+    @Test
+    public void testHysteresis() {
+        AdaptationController controller = new AdaptationController(0.05, 0.01, 60000, 0, 0);
+
+        assertEquals(1, controller.update(report(26), 0, 3));
+        assertEquals(2, controller.update(report(26), 1, 3));
+        assertEquals(2, controller.update(report(26), 2, 3));
+
+        // Clean, but not for long enough
+        assertEquals(2, controller.update(report(0), 2, 3));
+
+        // Between the thresholds: stays
+        assertEquals(2, controller.update(report(5), 2, 3));
+
+        // Too much jitter at 90 kHz
+        AdaptationController jitter = new AdaptationController(0.05, 0.01, 0, 100, 90000);
+        assertEquals(0, jitter.update(RtcpReport.parse(
+                RtcpReportTest.receiverReport(0, 0, 0, 900)), 0, 2));
+        assertEquals(1, jitter.update(RtcpReport.parse(
+                RtcpReportTest.receiverReport(0, 0, 0, 90000)), 0, 2));
+    }
+}
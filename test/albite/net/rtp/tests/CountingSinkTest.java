@@ -0,0 +1,41 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.CountingSink;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.UdpSink;
+import albite.util.PooledBuffer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CountingSinkTest {
+
+    private static final int PACKETS = 10;
+
+    @Test
+    public void testClosedPort() throws Exception {
+        // A port nobody listens on any more
+        InetSocketAddress target;
+        try (DatagramChannel closed = DatagramChannel.open()) {
+            closed.bind(new InetSocketAddress("localhost", 0));
+            target = (InetSocketAddress) closed.getLocalAddress();
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE);
+        RtpPacket.writeHeader(b, false, 33, 0, 0, 1234);
+
+        try (CountingSink sink = new CountingSink(UdpSink.open(0, target))) {
+            for (int i = 0; i < PACKETS; i++) {
+                sink.send(new RtpPacket((PooledBuffer) null, b.duplicate()));
+                Thread.sleep(10);
+            }
+
+            // The port being closed comes back as an ICMP error for
+            // the sends after the first
+            assertTrue(sink.getPacketsFailed() > 0);
+            assertEquals(PACKETS, sink.getPacketsSent() + sink.getPacketsFailed());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.KeyframeDetector;
+import albite.net.rtp.LiveStream;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.RtpSource;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LiveStreamTest {
+
+    // H.264 NAL unit types
+    private static final int IDR = 5;
+    private static final int SLICE = 1;
+
+    private static class CollectingSink implements RtpSink {
+
+        final List<Integer> mSequenceNumbers = new ArrayList<>();
+
+        @Override
+        public void send(RtpPacket packet) throws IOException {
+            mSequenceNumbers.add(packet.getSequenceNumber());
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static RtpPacket packet(int seq, long timestamp, int nalType) {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + 100);
+        RtpPacket.writeHeader(b, false, 96, seq, timestamp, 1234);
+        b.put(RtpPacket.HEADER_SIZE, (byte) (0x60 | nalType));
+        return new RtpPacket(b);
+    }
+
+    @Test
+    public void testGopBurst() throws IOException {
+        LiveStream stream = new LiveStream("test", KeyframeDetector.H264,
+                LiveStream.DEFAULT_GOP_CACHE_SIZE);
+
+        // Nothing is cached before the first keyframe
+        stream.publish(packet(0, 0, SLICE));
+        assertEquals(0, stream.getCachedPackets());
+
+        stream.publish(packet(1, 3000, IDR));
+        stream.publish(packet(2, 3000, IDR));
+        stream.publish(packet(3, 6000, SLICE));
+        assertEquals(3, stream.getCachedPackets());
+
+        // A new viewer gets the GOP, then the live packets
+        CollectingSink sink = new CollectingSink();
+        RtpSource source = stream.newSource();
+        source.start(sink);
+        stream.publish(packet(4, 9000, SLICE));
+        assertEquals(Arrays.asList(1, 2, 3, 4), sink.mSequenceNumbers);
+
+        // A new keyframe starts a new GOP
+        stream.publish(packet(5, 12000, IDR));
+        assertEquals(1, stream.getCachedPackets());
+
+        source.pause();
+        assertEquals(0, stream.getSubscriberCount());
+        stream.publish(packet(6, 15000, SLICE));
+        assertEquals(5, sink.mSequenceNumbers.size());
+
+        stream.close();
+    }
+
+    // Holds up the first packet until let go
+    private static class SlowSink extends CollectingSink {
+
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public void send(RtpPacket packet) throws IOException {
+            mEntered.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            synchronized (this) {
+                super.send(packet);
+            }
+        }
+    }
+
+    @Test
+    public void testSlowSubscriber() throws Exception {
+        LiveStream stream = new LiveStream("test", KeyframeDetector.H264,
+                LiveStream.DEFAULT_GOP_CACHE_SIZE);
+        stream.publish(packet(1, 3000, IDR));
+        stream.publish(packet(2, 6000, SLICE));
+        stream.publish(packet(3, 9000, SLICE));
+
+        CollectingSink fast = new CollectingSink();
+        stream.newSource().start(fast);
+
+        SlowSink slow = new SlowSink();
+        Thread joining = new Thread(() -> {
+            try {
+                stream.newSource().start(slow);
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        joining.start();
+        assertTrue(slow.mEntered.await(1, TimeUnit.SECONDS));
+
+        // The burst doesn't hold up the publisher or the other viewers
+        Thread publisher = new Thread(() -> {
+            stream.publish(packet(4, 12000, SLICE));
+            stream.publish(packet(5, 15000, SLICE));
+        });
+        publisher.start();
+        publisher.join(1000);
+        assertFalse(publisher.isAlive());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), fast.mSequenceNumbers);
+
+        // The live packets follow the burst
+        slow.mRelease.countDown();
+        joining.join(1000);
+        stream.publish(packet(6, 18000, SLICE));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), slow.mSequenceNumbers);
+        assertEquals(2, stream.getSubscriberCount());
+
+        stream.close();
+    }
+
+    @Test
+    public void testOverflow() {
+        // Room for two packets only
+        LiveStream stream = new LiveStream("test", KeyframeDetector.H264,
+                2 * (RtpPacket.HEADER_SIZE + 100));
+
+        stream.publish(packet(0, 0, IDR));
+        stream.publish(packet(1, 3000, SLICE));
+        assertEquals(2, stream.getCachedPackets());
+
+        // The GOP no longer fits and is dropped until the next keyframe
+        stream.publish(packet(2, 6000, SLICE));
+        assertEquals(0, stream.getCachedPackets());
+        stream.publish(packet(3, 9000, SLICE));
+        assertEquals(0, stream.getCachedPackets());
+        stream.publish(packet(4, 12000, IDR));
+        assertEquals(1, stream.getCachedPackets());
+
+        stream.close();
+    }
+}
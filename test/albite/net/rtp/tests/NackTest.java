@@ -0,0 +1,128 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.NackGenerator;
+import albite.net.rtp.PacketHistory;
+import albite.net.rtp.RetransmittingSink;
+import albite.net.rtp.RtcpNack;
+import albite.net.rtp.RtcpReport;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.Scheduler;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NackTest {
+
+    private static class CollectingSink implements RtpSink {
+
+        final List<Integer> mSequenceNumbers = new ArrayList<>();
+
+        @Override
+        public synchronized void send(RtpPacket packet) throws IOException {
+            mSequenceNumbers.add(packet.getSequenceNumber());
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static RtpPacket packet(int seq) {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + 100);
+        RtpPacket.writeHeader(b, false, 96, seq, 3000L * seq, 1234);
+        return new RtpPacket(b);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        // Across the wrap, and more than 16 apart
+        int[] lost = {65534, 65535, 0, 15, 16, 40};
+        ByteBuffer b = ByteBuffer.allocate(RtcpNack.getMaxSize(lost.length));
+        RtcpNack.write(b, 1, 1234, lost, lost.length);
+        b.flip();
+
+        // Three entries in a compound packet
+        assertEquals(8 + 12 + 3 * 4, b.remaining());
+        assertNull(RtcpReport.parse(b));
+        assertArrayEquals(lost, RtcpNack.parse(b));
+        assertEquals(0, b.position());
+
+        assertEquals(0, RtcpNack.parse(RtcpReportTest.receiverReport(1, 0, 0, 0)).length);
+    }
+
+    @Test
+    public void testHistory() {
+        PacketHistory history = new PacketHistory(3);
+        assertEquals(4, history.getCapacity());
+
+        for (int seq = 65533; seq < 65533 + 6; seq++) {
+            history.add(packet(seq & 0xffff));
+        }
+
+        // Overwritten by 3 and 4
+        assertNull(history.get(65533));
+        assertNull(history.get(65534));
+        assertEquals(65535, history.get(65535).getSequenceNumber());
+        assertEquals(2, history.get(2).getSequenceNumber());
+        assertNull(history.get(5));
+    }
+
+    @Test
+    public void testRetransmission() throws Exception {
+        CollectingSink wire = new CollectingSink();
+        RetransmittingSink sender = new RetransmittingSink(wire, 64, 8000, 150);
+
+        Scheduler scheduler = new Scheduler();
+        try (DatagramChannel server = DatagramChannel.open();
+                DatagramChannel client = DatagramChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            client.bind(new InetSocketAddress("localhost", 0));
+
+            NackGenerator receiver = new NackGenerator(client,
+                    (InetSocketAddress) server.getLocalAddress(), scheduler);
+            receiver.setReorderNanos(50000000L);
+
+            // 3 and 4 get lost on the way, 1 is only late
+            for (int seq = 0; seq < 8; seq++) {
+                sender.send(packet(seq));
+            }
+            for (int seq : new int[]{0, 2, 1, 5, 6, 7}) {
+                receiver.onPacket(packet(seq));
+            }
+            assertEquals(2, receiver.getMissingCount());
+
+            ByteBuffer nack = ByteBuffer.allocate(1500);
+            server.receive(nack);
+            nack.flip();
+            int[] lost = RtcpNack.parse(nack);
+            assertArrayEquals(new int[]{3, 4}, lost);
+
+            // Only one of them fits in the burst
+            sender.onNack(lost);
+            assertEquals(1, sender.getPacketsRetransmitted());
+            assertEquals(1, sender.getPacketsLimited());
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 3), wire.mSequenceNumbers);
+
+            receiver.onPacket(packet(3));
+            assertEquals(1, receiver.getMissingCount());
+            // As was 1, by arriving late
+            assertEquals(2, receiver.getPacketsRecovered());
+
+            // Gone from the history
+            sender.onNack(new int[]{100});
+            assertEquals(1, sender.getPacketsMissed());
+
+            receiver.close();
+            sender.close();
+        } finally {
+            scheduler.close();
+        }
+    }
+}
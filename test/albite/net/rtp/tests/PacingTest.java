@@ -0,0 +1,124 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.PacedSink;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.Scheduler;
+import albite.net.rtp.TokenBucket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PacingTest {
+
+    private static final int PACKET_SIZE = 1000;
+
+    private static class CollectingSink implements RtpSink {
+
+        final List<Long> mTimes = new ArrayList<>();
+
+        @Override
+        public synchronized void send(RtpPacket packet) throws IOException {
+            mTimes.add(System.nanoTime());
+            notifyAll();
+        }
+
+        synchronized void await(int count, long timeoutMs) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMs;
+            while (mTimes.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static RtpPacket packet(int size) {
+        return new RtpPacket(ByteBuffer.allocate(size));
+    }
+
+    @Test
+    public void testTokenBucket() {
+        // 1000 bytes per second, burst of 2000
+        TokenBucket bucket = new TokenBucket(1000, 2000, 0);
+
+        assertTrue(bucket.tryConsume(PACKET_SIZE, 0));
+        assertTrue(bucket.tryConsume(PACKET_SIZE, 0));
+        assertFalse(bucket.tryConsume(PACKET_SIZE, 0));
+
+        // Another packet is allowed after a second
+        assertEquals(1000000000L, bucket.delayFor(PACKET_SIZE, 0));
+        assertEquals(500000000L, bucket.delayFor(PACKET_SIZE, 500000000L));
+        assertTrue(bucket.tryConsume(PACKET_SIZE, 1000000000L));
+
+        // Tokens never accumulate past the burst
+        assertTrue(bucket.tryConsume(2000, 100000000000L));
+        assertFalse(bucket.tryConsume(1, 100000000000L));
+    }
+
+    @Test
+    public void testPacedSink() throws IOException, InterruptedException {
+        Scheduler scheduler = new Scheduler();
+        CollectingSink collector = new CollectingSink();
+
+        // 80 kbit/s = 10 packets per second, only 2 may go at once
+        PacedSink sink = new PacedSink(collector, scheduler, 80000, 2 * PACKET_SIZE);
+
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                sink.send(packet(PACKET_SIZE));
+            }
+
+            collector.await(5, 5000);
+            assertEquals(5, collector.mTimes.size());
+
+            // The burst goes out at once, the rest ~100ms apart
+            long elapsedMs = (collector.mTimes.get(4) - start) / 1000000;
+            assertTrue("Packets not paced: " + elapsedMs, elapsedMs >= 250);
+
+            assertEquals(5, sink.getPacketsSent());
+            assertEquals(3, sink.getPacketsDelayed());
+            assertTrue(sink.getMaxPacingDelayNanos() >= 250000000L);
+        } finally {
+            sink.close();
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testGopBurstQueued() throws IOException {
+        Scheduler scheduler = new Scheduler();
+        CollectingSink collector = new CollectingSink();
+
+        // A GOP of 2 MB arrives at once
+        PacedSink sink = new PacedSink(collector, scheduler, 80000, PACKET_SIZE);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                sink.send(packet(PACKET_SIZE));
+            }
+            assertEquals(0, sink.getPacketsDropped());
+            assertEquals(1999, sink.getQueuedPackets());
+        } finally {
+            sink.close();
+        }
+
+        // Bounded in bytes as well
+        sink = new PacedSink(collector, scheduler, 80000, PACKET_SIZE, 100, 10 * PACKET_SIZE);
+        try {
+            for (int i = 0; i < 20; i++) {
+                sink.send(packet(PACKET_SIZE));
+            }
+            assertEquals(10, sink.getQueuedPackets());
+            assertEquals(9, sink.getPacketsDropped());
+        } finally {
+            sink.close();
+            scheduler.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.PortAllocator;
+import albite.net.rtp.UdpPortPair;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PortAllocatorTest {
+
+    @Test
+    public void testReserve() {
+        // 75 pairs: more than a word, the odd first port is rounded up
+        PortAllocator allocator = new PortAllocator(39999, 40150);
+        assertEquals(40000, allocator.getFirstPort());
+        assertEquals(75, allocator.getCapacity());
+
+        Set<Integer> ports = new HashSet<>();
+        for (int i = 0; i < allocator.getCapacity(); i++) {
+            int port = allocator.reserve();
+            assertEquals(0, port % 2);
+            assertTrue(port >= 40000 && port < 40150);
+            assertTrue(ports.add(port));
+        }
+
+        assertEquals(-1, allocator.reserve());
+        assertEquals(1, allocator.getExhaustedCount());
+
+        // A released pair is handed out again
+        allocator.release(40100);
+        assertEquals(40100, allocator.reserve());
+        assertEquals(75, allocator.getAllocatedCount());
+        assertEquals(75, allocator.getPeakAllocatedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        PortAllocator allocator = new PortAllocator(40000, 40009);
+        int port = allocator.reserve();
+        allocator.release(port);
+        allocator.release(port);
+    }
+
+    @Test
+    public void testConcurrentReserve() throws InterruptedException {
+        PortAllocator allocator = new PortAllocator(20000, 29999);
+        int threadCount = 8;
+        int perThread = allocator.getCapacity() / threadCount;
+
+        List<List<Integer>> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            List<Integer> result = new ArrayList<>();
+            results.add(result);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    result.add(allocator.reserve());
+                }
+            }));
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Set<Integer> ports = new HashSet<>();
+        for (List<Integer> result : results) {
+            for (int port : result) {
+                assertTrue(port > 0);
+                assertTrue("Pair handed out twice: " + port, ports.add(port));
+            }
+        }
+        assertEquals(threadCount * perThread, allocator.getAllocatedCount());
+    }
+
+    @Test
+    public void testAllocate() throws IOException {
+        PortAllocator allocator = new PortAllocator(47000, 47039);
+
+        UdpPortPair ports = allocator.allocate();
+        assertEquals(ports.getRtpPort() + 1, ports.getRtcpPort());
+        assertTrue(ports.getRtpChannel().socket().isBound());
+        assertEquals(1, allocator.getAllocatedCount());
+
+        // Closing gives the pair back, once
+        ports.close();
+        ports.close();
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+
+    @Test
+    public void testTakenOutside() throws IOException {
+        PortAllocator allocator = new PortAllocator(47100, 47139);
+
+        // The RTCP port of the first pair is someone else's
+        try (DatagramChannel taken = DatagramChannel.open()) {
+            taken.bind(new InetSocketAddress(47101));
+
+            try (UdpPortPair ports = allocator.allocate()) {
+                assertEquals(47102, ports.getRtpPort());
+                assertEquals(1, allocator.getBindFailureCount());
+
+                // The taken pair is given back, for next time
+                assertEquals(1, allocator.getAllocatedCount());
+            }
+        }
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+}
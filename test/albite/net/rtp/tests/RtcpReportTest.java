@@ -0,0 +1,74 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.RtcpReport;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RtcpReportTest {
+
+    // A receiver report with one block, as 32 bit words
+    static ByteBuffer receiverReport(int ssrc, int fractionLost, int cumulativeLost, int jitter) {
+        ByteBuffer b = ByteBuffer.allocate(32);
+        b.put((byte) 0x81).put((byte) RtcpReport.TYPE_RECEIVER_REPORT).putShort((short) 7);
+        b.putInt(0x11111111);
+        b.putInt(ssrc);
+        b.putInt((fractionLost << 24) | (cumulativeLost & 0xffffff));
+        b.putInt(0x00010064);
+        b.putInt(jitter);
+        b.putInt(0);
+        b.putInt(0);
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void testReceiverReport() {
+        ByteBuffer packet = receiverReport(0x1234, 64, 100, 300);
+        RtcpReport report = RtcpReport.parse(packet);
+
+        assertNotNull(report);
+        assertEquals(0x1234, report.getSsrc());
+        assertEquals(64, report.getFractionLost());
+        assertEquals(100, report.getCumulativeLost());
+        assertEquals(0x00010064, report.getHighestSequence());
+        assertEquals(300, report.getJitter());
+        assertEquals(0, packet.position());
+    }
+
+    @Test
+    public void testNegativeLoss() {
+        // Duplicates make the cumulative loss negative
+        assertEquals(-2, RtcpReport.parse(receiverReport(1, 0, -2, 0)).getCumulativeLost());
+    }
+
+    @Test
+    public void testCompound() {
+        // An SDES before the RR is skipped
+        ByteBuffer rr = receiverReport(0x1234, 0, 5, 0);
+        ByteBuffer b = ByteBuffer.allocate(12 + rr.remaining());
+        b.put((byte) 0x81).put((byte) 202).putShort((short) 2);
+        b.putInt(0x11111111);
+        b.put((byte) 1).put((byte) 2).put((byte) 'a').put((byte) 0);
+        b.put(rr);
+        b.flip();
+
+        assertEquals(5, RtcpReport.parse(b).getCumulativeLost());
+    }
+
+    @Test
+    public void testMalformed() {
+        assertNull(RtcpReport.parse(ByteBuffer.allocate(4)));
+
+        // Length past the end
+        ByteBuffer b = receiverReport(1, 0, 0, 0);
+        b.limit(20);
+        assertNull(RtcpReport.parse(b));
+
+        // A report without blocks
+        ByteBuffer empty = ByteBuffer.allocate(8);
+        empty.put((byte) 0x80).put((byte) RtcpReport.TYPE_RECEIVER_REPORT).putShort((short) 1);
+        empty.flip();
+        assertNull(RtcpReport.parse(empty));
+    }
+}
@@ -0,0 +1,156 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.KeyframeDetector;
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.SegmentRecorder;
+import albite.net.rtp.TsFile;
+import albite.net.rtp.UdpIngest;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SegmentRecorderTest {
+
+    private static final long SEGMENT_MILLIS = 100;
+
+    // An RTP packet of two TS packets, the first with the random access
+    // indicator if it's a keyframe
+    private static ByteBuffer packet(int seq, boolean keyframe) {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + 2 * TsFile.PACKET_SIZE);
+        RtpPacket.writeHeader(b, false, 33, seq, 900L * seq, 1234);
+
+        for (int i = 0; i < 2; i++) {
+            int p = RtpPacket.HEADER_SIZE + i * TsFile.PACKET_SIZE;
+            b.put(p, (byte) TsFile.SYNC_BYTE);
+            b.put(p + 1, (byte) 0x01);
+            b.put(p + 2, (byte) seq);
+            if (keyframe && i == 0) {
+                b.put(p + 3, (byte) 0x30);
+                b.put(p + 4, (byte) 1);
+                b.put(p + 5, (byte) 0x40);
+            } else {
+                b.put(p + 3, (byte) 0x10);
+            }
+        }
+
+        return b;
+    }
+
+    private static void await(UdpIngest ingest, int packets) throws InterruptedException {
+        for (int i = 0; i < 50 && ingest.getPacketsReceived() < packets; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(packets, ingest.getPacketsReceived());
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        File directory = Files.createTempDirectory("albite").toFile();
+        directory.deleteOnExit();
+
+        SegmentRecorder recorder = new SegmentRecorder(directory, "cam", ".ts",
+                SEGMENT_MILLIS, KeyframeDetector.MPEG_TS);
+
+        try (UdpIngest ingest = new UdpIngest();
+                DatagramChannel in = DatagramChannel.open();
+                DatagramChannel out = DatagramChannel.open()) {
+            in.bind(new InetSocketAddress("localhost", 0));
+            ingest.add(in, recorder);
+
+            // The first packet comes before any keyframe. The second
+            // keyframe comes after a segment's time.
+            boolean[] keyframes = {false, true, false, false, true, false, false};
+            for (int seq = 0; seq < keyframes.length; seq++) {
+                if (seq == 4) {
+                    await(ingest, seq);
+                    Thread.sleep(SEGMENT_MILLIS + 20);
+                }
+                out.send(packet(seq, keyframes[seq]), in.getLocalAddress());
+            }
+
+            await(ingest, keyframes.length);
+        }
+
+        recorder.close();
+        assertEquals(1, recorder.getPacketsDropped());
+        assertEquals(6, recorder.getPacketsWritten());
+
+        // Each segment in a single write
+        assertEquals(2, recorder.getWriteCount());
+
+        List<SegmentRecorder.Segment> segments = recorder.getSegments();
+        assertEquals(2, segments.size());
+
+        for (int s = 0; s < 2; s++) {
+            SegmentRecorder.Segment segment = segments.get(s);
+            segment.getFile().deleteOnExit();
+            assertEquals(6 * TsFile.PACKET_SIZE, segment.getSize());
+
+            // The payloads, without the RTP headers, in order
+            byte[] data = Files.readAllBytes(segment.getFile().toPath());
+            assertEquals(6 * TsFile.PACKET_SIZE, data.length);
+            for (int i = 0; i < 6; i++) {
+                assertEquals(TsFile.SYNC_BYTE, data[i * TsFile.PACKET_SIZE] & 0xff);
+                assertEquals(1 + 3 * s + i / 2, data[i * TsFile.PACKET_SIZE + 2]);
+            }
+        }
+
+        recorder.getIndexFile().deleteOnExit();
+        List<SegmentRecorder.Segment> index = SegmentRecorder.readIndex(recorder.getIndexFile());
+        assertEquals(2, index.size());
+        for (int s = 0; s < 2; s++) {
+            assertEquals(segments.get(s).getFile(), index.get(s).getFile());
+            assertEquals(segments.get(s).getStartMillis(), index.get(s).getStartMillis());
+        }
+
+        SegmentRecorder.Segment last = index.get(1);
+        assertSame(last, SegmentRecorder.find(index, last.getStartMillis()));
+        assertNull(SegmentRecorder.find(index, last.getEndMillis()));
+        assertNull(SegmentRecorder.find(index, index.get(0).getStartMillis() - 1));
+    }
+
+    @Test
+    public void testSlowDisk() throws Exception {
+        File directory = Files.createTempDirectory("albite").toFile();
+        directory.deleteOnExit();
+
+        // The disk is stuck until let go
+        CountDownLatch stuck = new CountDownLatch(1);
+        Executor writer = task -> new Thread(() -> {
+            try {
+                stuck.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            task.run();
+        }).start();
+
+        // A batch per packet
+        SegmentRecorder recorder = new SegmentRecorder(directory, "cam", ".ts",
+                60000, KeyframeDetector.MPEG_TS, 2 * TsFile.PACKET_SIZE, writer);
+
+        // Sending doesn't wait for the disk, and drops what it can't keep
+        for (int seq = 0; seq < 10; seq++) {
+            recorder.send(new RtpPacket(packet(seq, seq == 0)));
+        }
+        assertEquals(0, recorder.getPacketsWritten());
+        assertEquals(2, recorder.getPacketsDropped());
+
+        stuck.countDown();
+        recorder.close();
+        assertEquals(8, recorder.getPacketsWritten());
+
+        List<SegmentRecorder.Segment> segments = recorder.getSegments();
+        assertEquals(1, segments.size());
+        segments.get(0).getFile().deleteOnExit();
+        recorder.getIndexFile().deleteOnExit();
+        assertEquals(16 * TsFile.PACKET_SIZE, segments.get(0).getFile().length());
+    }
+}
@@ -0,0 +1,109 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.SharedUdpSocket;
+import java.io.Closeable;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SharedUdpSocketTest {
+
+    private static final int PACKETS = 100;
+
+    private static RtpPacket packet(int seq) {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + 10);
+        RtpPacket.writeHeader(b, false, 96, seq, 0, 1234);
+        return new RtpPacket(b);
+    }
+
+    private static DatagramChannel receiver() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("localhost", 0));
+        channel.socket().setSoTimeout(5000);
+        return channel;
+    }
+
+    private static InetSocketAddress address(DatagramChannel channel) throws Exception {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    @Test
+    public void testSinks() throws Exception {
+        try (SharedUdpSocket socket = SharedUdpSocket.openEphemeral();
+                DatagramChannel a = receiver();
+                DatagramChannel b = receiver()) {
+
+            RtpSink sinkA = socket.newSink(address(a));
+            RtpSink sinkB = socket.newSink(address(b));
+
+            Thread[] threads = new Thread[2];
+            RtpSink[] sinks = {sinkA, sinkB};
+            for (int t = 0; t < threads.length; t++) {
+                RtpSink sink = sinks[t];
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < PACKETS; i++) {
+                        try {
+                            sink.send(packet(i));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            for (DatagramChannel channel : new DatagramChannel[]{a, b}) {
+                for (int i = 0; i < PACKETS; i++) {
+                    DatagramPacket p = new DatagramPacket(new byte[2048], 2048);
+                    channel.socket().receive(p);
+                    assertEquals(socket.getRtpPort(), p.getPort());
+                }
+            }
+
+            assertEquals(2 * PACKETS, socket.getPacketsSent());
+            assertTrue(socket.getBatchCount() <= 2 * PACKETS);
+
+            sinkA.close();
+            sinkB.close();
+        }
+    }
+
+    @Test
+    public void testRtcpDemux() throws Exception {
+        try (SharedUdpSocket socket = SharedUdpSocket.openEphemeral();
+                DatagramChannel a = receiver();
+                DatagramChannel b = receiver();
+                DatagramChannel stranger = receiver()) {
+
+            BlockingQueue<InetSocketAddress> received = new ArrayBlockingQueue<>(10);
+            RtpSink sink = socket.newSink(address(a), address(a),
+                    (source, packet) -> received.add(source));
+            Closeable registration = socket.addRtcpHandler(address(b),
+                    (source, packet) -> received.add(source));
+            assertEquals(2, socket.getRtcpHandlerCount());
+
+            InetSocketAddress rtcp = new InetSocketAddress("localhost", socket.getRtcpPort());
+            stranger.send(ByteBuffer.wrap(new byte[8]), rtcp);
+            a.send(ByteBuffer.wrap(new byte[8]), rtcp);
+            assertEquals(address(a), received.poll(5, TimeUnit.SECONDS));
+            b.send(ByteBuffer.wrap(new byte[8]), rtcp);
+            assertEquals(address(b), received.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, socket.getRtcpUnknown());
+
+            sink.close();
+            registration.close();
+            assertEquals(0, socket.getRtcpHandlerCount());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.Scheduler;
+import albite.net.rtp.SeekIndex;
+import albite.net.rtp.TsFile;
+import albite.net.rtp.TsFileSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TsFileSourceTest {
+
+    // One PCR every 7 packets, 10 ms apart
+    private static final int RTP_PACKETS = 20;
+    private static final long PCR_STEP = TsFileSource.CLOCK_RATE / 100;
+
+    static File createTsFile(int packets, int pcrInterval, long pcrStep) throws IOException {
+        File file = File.createTempFile("albite", ".ts");
+        file.deleteOnExit();
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < packets; i++) {
+                byte[] p = new byte[TsFile.PACKET_SIZE];
+                p[0] = (byte) TsFile.SYNC_BYTE;
+                p[1] = 0x01; // PID 0x100
+                p[2] = 0x00;
+
+                if (i % pcrInterval == 0) {
+                    long pcr = (i / pcrInterval) * pcrStep;
+                    p[3] = 0x30; // Adaptation field + payload
+                    p[4] = 7;
+                    p[5] = 0x50; // Random access + PCR
+                    p[6] = (byte) (pcr >> 25);
+                    p[7] = (byte) (pcr >> 17);
+                    p[8] = (byte) (pcr >> 9);
+                    p[9] = (byte) (pcr >> 1);
+                    p[10] = (byte) ((pcr & 1) << 7);
+                } else {
+                    p[3] = 0x10; // Payload only
+                }
+
+                out.write(p);
+            }
+        }
+
+        return file;
+    }
+
+    private static class CollectingSink implements RtpSink {
+
+        final List<RtpPacket> mPackets = new ArrayList<>();
+        final List<Long> mTimes = new ArrayList<>();
+        final List<ByteBuffer> mPayloads = new ArrayList<>();
+
+        @Override
+        public synchronized void send(RtpPacket packet) throws IOException {
+            // Kept past send(), so it must be retained
+            mPackets.add(packet.retain());
+            mTimes.add(System.nanoTime());
+            mPayloads.add(packet.getSegment(1));
+            notifyAll();
+        }
+
+        synchronized void await(int count, long timeoutMs) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMs;
+            while (mPackets.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    @Test
+    public void testMapping() throws IOException {
+        File file = createTsFile(RTP_PACKETS * 7, 7, PCR_STEP);
+
+        try (TsFile a = TsFile.open(file); TsFile b = TsFile.open(file)) {
+            // Viewers of the same file share the mapping
+            assertSame(a, b);
+            assertEquals(RTP_PACKETS * 7, a.getPacketCount());
+            assertEquals(PCR_STEP * 2, a.getPcr(14));
+            assertEquals(TsFile.NO_PCR, a.getPcr(15));
+            assertTrue(a.isRandomAccessPoint(7));
+            assertFalse(a.isRandomAccessPoint(8));
+
+            ByteBuffer packets = a.getPackets(RTP_PACKETS * 7 - 3, 7);
+            assertEquals(3 * TsFile.PACKET_SIZE, packets.remaining());
+            assertTrue(packets.isReadOnly());
+        }
+    }
+
+    @Test
+    public void testPacketization() throws IOException, InterruptedException {
+        File file = createTsFile(RTP_PACKETS * 7, 7, PCR_STEP);
+        Scheduler scheduler = new Scheduler();
+        CollectingSink sink = new CollectingSink();
+        TsFileSource source = new TsFileSource(file, scheduler);
+
+        try {
+            source.start(sink);
+            sink.await(RTP_PACKETS, 5000);
+            assertEquals(RTP_PACKETS, sink.mPackets.size());
+            assertTrue(source.isFinished());
+
+            RtpPacket first = sink.mPackets.get(0);
+            for (int i = 0; i < RTP_PACKETS; i++) {
+                RtpPacket p = sink.mPackets.get(i);
+                assertEquals(TsFileSource.PAYLOAD_TYPE, p.getPayloadType());
+                assertEquals(RtpPacket.HEADER_SIZE + 7 * TsFile.PACKET_SIZE, p.getLength());
+                assertEquals((first.getSequenceNumber() + i) & 0xffff, p.getSequenceNumber());
+                assertEquals((first.getTimestamp() + i * PCR_STEP) & 0xffffffffL, p.getTimestamp());
+                assertEquals(TsFile.SYNC_BYTE, sink.mPayloads.get(i).get(0) & 0xff);
+            }
+
+            // Sent in real time: 19 steps of 10 ms
+            long elapsedMs = (sink.mTimes.get(RTP_PACKETS - 1) - sink.mTimes.get(0)) / 1000000;
+            assertTrue("Sent too fast: " + elapsedMs, elapsedMs >= 170);
+        } finally {
+            for (RtpPacket p : sink.mPackets) {
+                p.release();
+            }
+
+            source.close();
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testEnd() throws IOException, InterruptedException {
+        // A random access point every 70 packets, i.e. every 100 ms
+        File file = createTsFile(7000, 70, TsFileSource.CLOCK_RATE / 10);
+        new File(file.getPath() + SeekIndex.EXTENSION).deleteOnExit();
+
+        Scheduler scheduler = new Scheduler();
+        CollectingSink sink = new CollectingSink();
+        TsFileSource source = new TsFileSource(file, scheduler);
+
+        try {
+            // Ends at the following random access point
+            assertEquals(1.0, source.seek(1.0), 0.001);
+            assertEquals(1.3, source.setEnd(1.25), 0.001);
+            assertEquals(9.9, source.setEnd(100), 0.001);
+            assertEquals(1.3, source.setEnd(1.25), 0.001);
+
+            source.start(sink);
+            sink.await(31, 1000);
+            assertEquals(3 * 70 / 7, sink.mPackets.size());
+            assertEquals(13 * 70, source.getPosition());
+            assertFalse(source.isFinished());
+
+            // Then goes on to the end
+            assertEquals(-1, source.setEnd(-1), 0.001);
+            source.start(sink);
+            sink.await(3 * 70 / 7 + 1, 1000);
+            assertTrue(sink.mPackets.size() > 3 * 70 / 7);
+        } finally {
+            for (RtpPacket p : sink.mPackets) {
+                p.release();
+            }
+
+            source.close();
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        // A random access point every 70 packets, i.e. every 100 ms
+        File file = createTsFile(7000, 70, TsFileSource.CLOCK_RATE / 10);
+        File indexFile = new File(file.getPath() + SeekIndex.EXTENSION);
+        indexFile.deleteOnExit();
+
+        Scheduler scheduler = new Scheduler();
+        try (TsFileSource source = new TsFileSource(file, scheduler)) {
+            assertEquals(9.9, source.getDuration(), 0.001);
+
+            // Seeking goes to the preceding random access point
+            assertEquals(2.5, source.seek(2.55), 0.001);
+            assertEquals(25 * 70, source.getPosition());
+            assertEquals(0, source.seek(0), 0.001);
+            assertEquals(0, source.getPosition());
+            assertEquals(9.9, source.seek(100), 0.001);
+        } finally {
+            scheduler.close();
+        }
+
+        // The index is stored and loaded on next use
+        assertTrue(indexFile.isFile());
+        try (TsFile ts = TsFile.open(file)) {
+            SeekIndex index = ts.getSeekIndex();
+            assertEquals(100, index.size());
+            assertEquals(42, index.find(42 * TsFileSource.CLOCK_RATE / 10));
+            assertEquals(42 * 70, index.getPacket(42));
+        }
+    }
+}
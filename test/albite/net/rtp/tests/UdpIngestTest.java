@@ -0,0 +1,91 @@
+package albite.net.rtp.tests;
+
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.UdpIngest;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UdpIngestTest {
+
+    private static final int PACKETS = 100;
+
+    private static void send(DatagramChannel out, SocketAddress to, int seq) throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE);
+        RtpPacket.writeHeader(b, false, 33, seq, 0, 1234);
+        out.send(b, to);
+    }
+
+    @Test
+    public void testFairness() throws Exception {
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+
+        try (UdpIngest ingest = new UdpIngest();
+                DatagramChannel first = DatagramChannel.open();
+                DatagramChannel second = DatagramChannel.open();
+                DatagramChannel out = DatagramChannel.open()) {
+            first.bind(new InetSocketAddress("localhost", 0));
+            second.bind(new InetSocketAddress("localhost", 0));
+
+            // The first holds up the ingest on its first packet
+            ingest.add(first, new RtpSink() {
+                @Override
+                public void send(RtpPacket packet) {
+                    received.add(1);
+                    if (blocked.getCount() > 0) {
+                        blocked.countDown();
+                        try {
+                            unblock.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            ingest.add(second, new RtpSink() {
+                @Override
+                public void send(RtpPacket packet) {
+                    received.add(2);
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+
+            send(out, first.getLocalAddress(), 0);
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            // Meanwhile both get a backlog
+            for (int i = 1; i <= PACKETS; i++) {
+                send(out, first.getLocalAddress(), i);
+                send(out, second.getLocalAddress(), i);
+            }
+            unblock.countDown();
+
+            for (int i = 0; i < 50 && ingest.getPacketsReceived() < 2 * PACKETS + 1; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(2 * PACKETS + 1, ingest.getPacketsReceived());
+
+            // The second doesn't wait for the first to be drained
+            int index = received.indexOf(2);
+            assertTrue("First of the second at " + index, index <= 2 * UdpIngest.MAX_BURST + 1);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtsp.ClientFleet;
+import albite.net.rtsp.ClientSession;
+import albite.net.rtsp.Message;
+import albite.net.rtsp.Response;
+import albite.net.rtsp.RtspException;
+import albite.net.rtsp.RtspServer;
+import albite.util.Log;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClientFleetTest {
+
+    private static final String TAG = "ClientFleetTest";
+
+    private static final String SDP_DESCRIPTION
+            = "v=0\r\n"
+            + "c=IN IP4 127.0.0.1\r\n"
+            + "m=application 0 RTP/AVP 33\r\n";
+
+    private static final int CAMERAS = 6;
+    private static final int MAX_PER_HOST = 2;
+
+    private final AtomicInteger mDescribing = new AtomicInteger();
+    private final AtomicInteger mPeakDescribing = new AtomicInteger();
+    private final AtomicInteger mTeardownCount = new AtomicInteger();
+
+    // The track of the description, which only it can set up
+    private volatile String mTrack = null;
+
+    // A camera that takes its time to describe
+    private final RtspServer.Listener mListener = new RtspServer.Listener() {
+
+        @Override
+        public void onRequestError(Throwable tr) {
+            Log.w(TAG, "Request failed", tr);
+        }
+
+        @Override
+        public byte[] onRequestDescription(String[] accept) throws IOException {
+            mPeakDescribing.accumulateAndGet(mDescribing.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mDescribing.decrementAndGet();
+            }
+            String track = mTrack;
+            return (track == null ? SDP_DESCRIPTION : SDP_DESCRIPTION + "a=control:" + track + "\r\n")
+                    .getBytes(Message.CHARSET);
+        }
+
+        @Override
+        public String createSession() {
+            return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public int[] onSetupUnicast(String session, URI uri, int rtpPort, int rtcpPort)
+                throws IOException {
+            String track = mTrack;
+            if (track != null && !uri.getPath().endsWith(track)) {
+                throw new RtspException(Response.Status.NOT_FOUND, uri.toString());
+            }
+            return new int[]{rtpPort, rtcpPort};
+        }
+
+        @Override
+        public void onPlay(String session, URI uri) {
+        }
+
+        @Override
+        public void onTeardown(String session) {
+            mTeardownCount.incrementAndGet();
+        }
+    };
+
+    private static void await(ClientFleet fleet, ClientFleet.State state, int count)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && fleet.getCount(state) < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(fleet.toString(), count, fleet.getCount(state));
+    }
+
+    @Test
+    public void testFleet() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        int port = server.getLocalPort();
+        RtspServer restarted = null;
+
+        ClientFleet fleet = new ClientFleet(4, MAX_PER_HOST);
+        fleet.setStartSpread(100);
+        fleet.setKeepAliveInterval(50);
+        fleet.setRetryDelays(50, 200);
+        fleet.setDescriptionCache(null);
+
+        AtomicInteger opened = new AtomicInteger();
+        fleet.addListener(new ClientFleet.Listener() {
+            @Override
+            public void onOpened(ClientFleet.Member member, ClientSession session) {
+                opened.incrementAndGet();
+            }
+        });
+
+        try {
+            List<URI> uris = new ArrayList<>();
+            for (int i = 0; i < CAMERAS; i++) {
+                uris.add(new URI("rtsp://localhost:" + port + "/cam" + i));
+            }
+            List<ClientFleet.Member> members = fleet.add(uris);
+
+            await(fleet, ClientFleet.State.PLAYING, CAMERAS);
+            assertEquals(CAMERAS, fleet.getHandshakeCount());
+            assertEquals(CAMERAS, server.getSessionCount());
+
+            // All on one host
+            assertTrue(mPeakDescribing.get() <= MAX_PER_HOST);
+            assertTrue(fleet.getPeakRunningCount() <= MAX_PER_HOST);
+
+            for (int i = 0; i < 50 && fleet.getKeepAliveCount() < 2 * CAMERAS; i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(fleet.getKeepAliveCount() >= 2 * CAMERAS);
+            assertNotNull(members.get(0).getSession());
+
+            // The camera restarts, and forgets the sessions
+            server.close();
+            await(fleet, ClientFleet.State.RETRYING, CAMERAS);
+            assertTrue(fleet.getKeepAliveFailureCount() >= CAMERAS);
+
+            restarted = new RtspServer(mListener, port);
+            restarted.start();
+            await(fleet, ClientFleet.State.PLAYING, CAMERAS);
+            assertEquals(CAMERAS, fleet.getReconnectCount());
+            assertEquals(CAMERAS, restarted.getSessionCount());
+
+            // Listeners are told after the state changes
+            for (int i = 0; i < 50 && opened.get() < 2 * CAMERAS; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(2 * CAMERAS, opened.get());
+
+            fleet.close();
+            assertEquals(CAMERAS, fleet.getCount(ClientFleet.State.CLOSED));
+            assertEquals(0, restarted.getSessionCount());
+        } finally {
+            fleet.close();
+            server.close();
+            if (restarted != null) {
+                restarted.close();
+            }
+        }
+    }
+
+    @Test
+    public void testHosts() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        int port = server.getLocalPort();
+
+        // Two hosts, one job at a time each
+        ClientFleet fleet = new ClientFleet(4, 1);
+        fleet.setStartSpread(1);
+        fleet.setKeepAliveInterval(60000);
+        fleet.setDescriptionCache(null);
+
+        try {
+            List<URI> uris = new ArrayList<>();
+            for (int i = 0; i < CAMERAS; i++) {
+                uris.add(new URI("rtsp://localhost:" + port + "/cam" + i));
+                uris.add(new URI("rtsp://127.0.0.1:" + port + "/cam" + i));
+            }
+            fleet.add(uris);
+
+            await(fleet, ClientFleet.State.PLAYING, 2 * CAMERAS);
+            assertEquals(2 * CAMERAS, server.getSessionCount());
+            assertEquals(2, fleet.getPeakRunningCount());
+            assertEquals(0, fleet.getQueuedCount());
+        } finally {
+            fleet.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testChangedDescription() throws Exception {
+        mTrack = "trackA";
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        int port = server.getLocalPort();
+        RtspServer restarted = null;
+
+        ClientFleet fleet = new ClientFleet();
+        fleet.setStartSpread(1);
+        fleet.setKeepAliveInterval(50);
+        fleet.setRetryDelays(50, 200);
+        fleet.setDescriptionCache(null);
+
+        try {
+            ClientFleet.Member member = fleet.add(new URI("rtsp://localhost:" + port + "/cam"));
+            await(fleet, ClientFleet.State.PLAYING, 1);
+
+            // The camera comes back with other tracks: the session can't
+            // be set up again, only opened anew
+            server.close();
+            await(fleet, ClientFleet.State.RETRYING, 1);
+            mTrack = "trackB";
+            restarted = new RtspServer(mListener, port);
+            restarted.start();
+
+            await(fleet, ClientFleet.State.PLAYING, 1);
+            assertEquals(2, fleet.getHandshakeCount());
+            assertEquals(0, fleet.getReconnectCount());
+            assertTrue(member.getSession().getTracks().get(0).getUri().getPath().endsWith("trackB"));
+            assertEquals(1, restarted.getSessionCount());
+        } finally {
+            fleet.close();
+            server.close();
+            if (restarted != null) {
+                restarted.close();
+            }
+        }
+    }
+}
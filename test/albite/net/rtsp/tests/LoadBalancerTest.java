@@ -0,0 +1,102 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtsp.LoadBalancer;
+import albite.net.rtsp.NodeDirectory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LoadBalancerTest {
+
+    private static class TestNode implements NodeDirectory.Node {
+
+        final URI mUri;
+        int mLoad;
+
+        TestNode(String uri) {
+            mUri = URI.create(uri);
+        }
+
+        @Override
+        public URI getUri() {
+            return mUri;
+        }
+
+        @Override
+        public int getLoad() {
+            return mLoad;
+        }
+    }
+
+    private final List<TestNode> mNodes = new ArrayList<>();
+    private final NodeDirectory mDirectory = () -> mNodes;
+
+    private Map<String, NodeDirectory.Node> place(LoadBalancer balancer, int streams) {
+        Map<String, NodeDirectory.Node> placement = new HashMap<>();
+        for (int i = 0; i < streams; i++) {
+            placement.put("/cam" + i, balancer.choose("/cam" + i));
+        }
+        return placement;
+    }
+
+    @Test
+    public void testConsistent() {
+        LoadBalancer balancer = new LoadBalancer(mDirectory);
+        assertNull(balancer.choose("/cam"));
+
+        for (int i = 0; i < 4; i++) {
+            mNodes.add(new TestNode("rtsp://node" + i));
+        }
+
+        Map<String, NodeDirectory.Node> before = place(balancer, 1000);
+
+        // All nodes get a fair share
+        for (TestNode node : mNodes) {
+            long count = before.values().stream().filter(n -> n == node).count();
+            assertTrue(node.mUri + ": " + count, count > 150 && count < 350);
+        }
+
+        // The same again, with loads equal
+        assertEquals(before, place(balancer, 1000));
+
+        // Only the streams of a new node move, to the new node
+        TestNode added = new TestNode("rtsp://node4");
+        mNodes.add(added);
+        Map<String, NodeDirectory.Node> after = place(balancer, 1000);
+
+        int moved = 0;
+        for (String stream : before.keySet()) {
+            if (before.get(stream) != after.get(stream)) {
+                assertSame(added, after.get(stream));
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved, moved > 100 && moved < 300);
+    }
+
+    @Test
+    public void testBoundedLoad() {
+        for (int i = 0; i < 4; i++) {
+            mNodes.add(new TestNode("rtsp://node" + i));
+        }
+
+        LoadBalancer balancer = new LoadBalancer(mDirectory);
+        TestNode home = (TestNode) balancer.choose("/popular");
+
+        // The viewers of a popular stream spill over once its node is
+        // busier than the others by more than the load factor
+        home.mLoad = 100;
+        NodeDirectory.Node spill = balancer.choose("/popular");
+        assertNotSame(home, spill);
+
+        // Back to home once the others are as busy
+        for (TestNode node : mNodes) {
+            node.mLoad = 100;
+        }
+        assertSame(home, balancer.choose("/popular"));
+    }
+}
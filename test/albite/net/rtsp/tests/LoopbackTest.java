@@ -0,0 +1,131 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtsp.ClientSession;
+import albite.net.rtsp.LoopbackTransport;
+import albite.net.rtsp.Message;
+import albite.net.rtsp.Request;
+import albite.net.rtsp.RtspClient;
+import albite.net.rtsp.RtspServer;
+import albite.util.Log;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LoopbackTest {
+
+    private static final String TAG = "LoopbackTest";
+
+    private static final String SDP_DESCRIPTION
+            = "v=0\r\n"
+            + "c=IN IP4 127.0.0.1\r\n"
+            + "m=application 0 RTP/AVP 33\r\n";
+
+    private final AtomicInteger mPlayCount = new AtomicInteger();
+    private final AtomicInteger mTeardownCount = new AtomicInteger();
+
+    private final RtspServer.Listener mListener = new RtspServer.Listener() {
+
+        @Override
+        public void onRequestError(Throwable tr) {
+            Log.w(TAG, "Request failed", tr);
+        }
+
+        @Override
+        public byte[] onRequestDescription(String[] accept) throws IOException {
+            return SDP_DESCRIPTION.getBytes(Message.CHARSET);
+        }
+
+        @Override
+        public String createSession() {
+            return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public int[] onSetupUnicast(String session, URI uri, int rtpPort, int rtcpPort) {
+            return new int[]{rtpPort, rtcpPort};
+        }
+
+        @Override
+        public void onPlay(String session, URI uri) {
+            mPlayCount.incrementAndGet();
+        }
+
+        @Override
+        public void onTeardown(String session) {
+            mTeardownCount.incrementAndGet();
+        }
+    };
+
+    private static RtspClient connect(LoopbackTransport transport, RtspServer server)
+            throws Exception {
+        RtspClient client = new RtspClient(new URI("rtsp://localhost:" + server.getLocalPort() + "/"));
+        client.setConnector(transport);
+        client.setDescriptionCache(null);
+        return client;
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        RtspServer server = new RtspServer(mListener, transport.bind(0), 2);
+        server.start();
+
+        try {
+            RtspClient client = connect(transport, server);
+            assertTrue(Arrays.asList(client.requestOptions()).contains(Request.Method.DESCRIBE));
+            assertEquals(SDP_DESCRIPTION, client.requestDescribeSdp());
+
+            try (ClientSession session = client.open()) {
+                assertNotNull(session.getSession());
+                assertEquals(1, mPlayCount.get());
+                assertEquals(1, server.getSessionCount());
+            }
+            assertEquals(1, mTeardownCount.get());
+            assertEquals(0, server.getSessionCount());
+        } finally {
+            server.close();
+        }
+
+        // Nothing listens on the port any more
+        RtspClient client = connect(transport, server);
+        try {
+            client.requestOptions();
+            fail();
+        } catch (ConnectException expected) {
+        }
+    }
+
+    @Test
+    public void testSlowLink() throws Exception {
+        long latency = TimeUnit.MILLISECONDS.toNanos(20);
+        LoopbackTransport transport = new LoopbackTransport(latency, 64 * 1024, 0.3, 1);
+        RtspServer server = new RtspServer(mListener, transport.bind(0), 1);
+        server.start();
+
+        try {
+            RtspClient client = connect(transport, server);
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(SDP_DESCRIPTION, client.requestDescribeSdp());
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // A handshake, and the request and the response
+            assertTrue(client.getRoundTripNanos() >= 2 * latency);
+            assertTrue(elapsed >= 10 * 4 * latency);
+
+            // Lost, but delivered late
+            assertTrue(transport.getLossCount() > 0);
+            assertTrue(elapsed >= 10 * 4 * latency
+                    + transport.getLossCount() * LoopbackTransport.LOSS_PENALTY_NANOS / 2);
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtsp.Message;
+import albite.net.rtsp.Request;
+import albite.net.rtsp.Response;
+import albite.net.rtsp.RtspException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageTest {
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes(Message.CHARSET);
+    }
+
+    private static Request request(int bodyLength) throws URISyntaxException {
+        Request.Description desc = new Request.Description(
+                Request.Method.SET_PARAMETER, new URI("rtsp://localhost/stream"));
+        Request request = new Request(desc, 3, "session");
+
+        request.setBody(new Message.BodyProducer() {
+            @Override
+            public long getLength() {
+                return bodyLength;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                for (int i = 0; i < bodyLength; i++) {
+                    out.write('a' + i % 26);
+                }
+            }
+        });
+
+        return request;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, URISyntaxException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request(10000).send(out);
+
+        Request r = Request.readFromStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Request.Method.SET_PARAMETER, r.getDescription().getMethod());
+        assertEquals(3, r.getSequenceNumber());
+        assertEquals("session", r.getSession());
+        assertEquals(10000, r.getContentLength());
+
+        byte[] body = r.getBody();
+        assertEquals(10000, body.length);
+        assertEquals('z', body[25]);
+
+        InputStream in = r.getBodyStream();
+        assertEquals('a', in.read());
+    }
+
+    @Test
+    public void testBodyTooLarge() throws IOException {
+        // The body is never sent, so this would block or fail with EOF
+        // if the parser tried to allocate and read it
+        byte[] message = bytes("RTSP/1.0 200 OK\r\n"
+                + "CSeq: 1\r\n"
+                + "Content-Length: 2000000000\r\n"
+                + "\r\n");
+
+        try {
+            Response.readFromStream(new ByteArrayInputStream(message), 4096);
+            fail("Body larger than the maximum accepted");
+        } catch (RtspException e) {
+            assertEquals(Response.Status.REQUEST_ENTITY_TOO_LARGE.getCode(),
+                    e.getStatus().getCode());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooManyHeaders() throws IOException {
+        StringBuilder sb = new StringBuilder("RTSP/1.0 200 OK\r\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("X-Header-").append(i).append(": value\r\n");
+        }
+        sb.append("\r\n");
+
+        Response.readFromStream(new ByteArrayInputStream(bytes(sb.toString())));
+    }
+}
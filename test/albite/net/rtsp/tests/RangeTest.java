@@ -0,0 +1,46 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtsp.Range;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RangeTest {
+
+    @Test
+    public void testParsing() {
+        Range r = Range.fromString("npt=10-");
+        assertEquals(10, r.getStart(), 0);
+        assertFalse(r.hasEnd());
+
+        r = Range.fromString("npt=0:01:30.5-0:02:00");
+        assertEquals(90.5, r.getStart(), 0);
+        assertEquals(120, r.getEnd(), 0);
+
+        r = Range.fromString("npt = -20");
+        assertFalse(r.hasStart());
+        assertEquals(20, r.getEnd(), 0);
+
+        assertTrue(Range.fromString("npt=now-").isNow());
+    }
+
+    @Test
+    public void testFormatting() {
+        assertEquals("npt=1.500-", new Range(1.5).toString());
+        assertEquals("npt=0.000-10.000", new Range(0, 10).toString());
+        assertEquals("npt=now-", Range.now().toString());
+
+        Range r = Range.fromString(new Range(12.25, 30).toString());
+        assertEquals(12.25, r.getStart(), 0);
+        assertEquals(30, r.getEnd(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        Range.fromString("smpte=10:07:00-10:07:33:05.01");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBackwards() {
+        Range.fromString("npt=20-10");
+    }
+}
@@ -0,0 +1,224 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.UdpPortPair;
+import albite.net.rtsp.ClientSession;
+import albite.net.rtsp.Message;
+import albite.net.rtsp.Request;
+import albite.net.rtsp.Response;
+import albite.net.rtsp.RtpTransport;
+import albite.net.rtsp.RtspClient;
+import albite.net.rtsp.RtspException;
+import albite.net.rtsp.RtspServer;
+import albite.net.rtsp.SessionDescription;
+import albite.util.Log;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RtspRecordTest {
+
+    private static final String TAG = "RtspRecordTest";
+
+    private static final int PACKETS = 5;
+    private static final int PAYLOAD_SIZE = 100;
+
+    private static final SessionDescription DESCRIPTION = SessionDescription.builder()
+            .sessionName("Encoder")
+            .media("video", 0, "RTP/AVP", 96)
+            .rtpMap(96, "H264", 90000)
+            .control("streamid=0")
+            .build();
+
+    private final RtspServer.Listener mListener = new RtspServer.Listener() {
+
+        @Override
+        public void onRequestError(Throwable tr) {
+            Log.w(TAG, "Request failed", tr);
+        }
+
+        @Override
+        public byte[] onRequestDescription(String[] accept) throws IOException {
+            throw new RtspException(Response.Status.NOT_FOUND);
+        }
+
+        @Override
+        public void onAnnounce(URI uri, SessionDescription description) throws IOException {
+            Log.i(TAG, "Announced " + uri + ":\n" + description);
+        }
+
+        @Override
+        public String createSession() {
+            return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public int[] onSetupUnicast(String session, URI uri, int rtpPort, int rtcpPort) throws IOException {
+            try (UdpPortPair ports = UdpPortPair.openEphemeral()) {
+                return new int[]{ports.getRtpPort(), ports.getRtcpPort()};
+            }
+        }
+
+        @Override
+        public void onPlay(String session, URI uri) throws IOException {
+        }
+
+        @Override
+        public void onTeardown(String session) throws IOException {
+        }
+    };
+
+    private static byte[] packet(int seq) {
+        ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + PAYLOAD_SIZE);
+        RtpPacket.writeHeader(b, false, 96, seq, 3000 * seq, 1234);
+        b.put(RtpPacket.HEADER_SIZE, (byte) (seq == 0 ? 0x65 : 0x41));
+        return b.array();
+    }
+
+    private static void receive(ClientSession viewer, int count) throws IOException {
+        DatagramSocket socket = viewer.getTracks().get(0).getPorts().getRtpChannel().socket();
+        socket.setSoTimeout(5000);
+
+        for (int i = 0; i < count; i++) {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            assertEquals(RtpPacket.HEADER_SIZE + PAYLOAD_SIZE, packet.getLength());
+        }
+    }
+
+    private static void awaitUnpublished(RtspServer server, String path) throws InterruptedException {
+        for (int i = 0; i < 50 && server.getPublication(path) != null; i++) {
+            Thread.sleep(100);
+        }
+        assertNull(server.getPublication(path));
+        assertEquals(0, server.getLiveStreams().size());
+    }
+
+    @Test
+    public void testAnnounceMalformed() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+
+        try {
+            URI uri = new URI("rtsp://localhost:" + server.getLocalPort() + "/live/cam");
+            Request announce = new Request(new Request.Description(Request.Method.ANNOUNCE, uri),
+                    1, null, "v=0\r\nm=video ninety RTP/AVP 96\r\n".getBytes(Message.CHARSET));
+            announce.setHeader(Message.HEADER_CONTENT_TYPE, Message.MIME_TYPE_SDP);
+
+            try {
+                new RtspClient(uri).transfer(announce);
+                fail("Announced a malformed description");
+            } catch (RtspException e) {
+                assertEquals(Response.Status.BAD_REQUEST.getCode(), e.getStatus().getCode());
+            }
+            assertNull(server.getPublication("/live/cam"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRecordUdp() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+
+        try {
+            URI uri = new URI("rtsp://localhost:" + server.getLocalPort() + "/live/cam");
+            RtspClient publisher = new RtspClient(uri);
+            publisher.requestAnnounce(DESCRIPTION);
+            assertNotNull(server.getPublication("/live/cam"));
+
+            RtpTransport transport = new RtpTransport();
+            transport.setUnicast();
+            transport.setClientRtpPort(5000);
+            transport.setRecord();
+            RtpTransport serverTransport = publisher.requestSetup(
+                    new URI(uri + "/streamid=0"), transport);
+            publisher.requestRecord();
+
+            // Only one publisher at a time
+            try {
+                new RtspClient(uri).requestSetup(new URI(uri + "/trackID=0"), transport);
+                fail("Set up a second publisher");
+            } catch (RtspException e) {
+                assertEquals(Response.Status.FORBIDDEN.getCode(), e.getStatus().getCode());
+            }
+
+            try (ClientSession viewer = new RtspClient(uri).open();
+                    DatagramChannel channel = DatagramChannel.open()) {
+
+                InetSocketAddress target = new InetSocketAddress("localhost",
+                        serverTransport.getServerRtpPortPair()[0]);
+                for (int i = 0; i < PACKETS; i++) {
+                    channel.send(ByteBuffer.wrap(packet(i)), target);
+                }
+
+                receive(viewer, PACKETS);
+            }
+
+            publisher.close();
+            awaitUnpublished(server, "/live/cam");
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRecordInterleaved() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+
+        try {
+            URI uri = new URI("rtsp://localhost:" + server.getLocalPort() + "/live/cam");
+            RtspClient publisher = new RtspClient(uri);
+            publisher.requestAnnounce(DESCRIPTION);
+
+            RtpTransport transport = new RtpTransport();
+            transport.setUnicast();
+            transport.setInterleavedChannels(0, 1);
+            transport.setRecord();
+            RtpTransport serverTransport = publisher.requestSetup(
+                    new URI(uri + "/streamid=0"), transport);
+            assertTrue(serverTransport.isInterleaved());
+            assertArrayEquals(new int[]{0, 1}, serverTransport.getInterleavedChannels());
+
+            try (ClientSession viewer = new RtspClient(uri).open();
+                    Socket socket = new Socket("localhost", server.getLocalPort())) {
+
+                // RECORD on the connection that is going to carry the media
+                Request record = new Request(new Request.Description(Request.Method.RECORD, uri),
+                        100, publisher.getSession());
+                OutputStream out = socket.getOutputStream();
+                record.send(out);
+                Response response = Response.readFromStream(socket.getInputStream());
+                assertEquals(Response.Status.OK.getCode(), response.getStatus().getCode());
+
+                // Cached and sent to the viewer
+                for (int i = 0; i < PACKETS; i++) {
+                    byte[] p = packet(i);
+                    out.write(new byte[]{'$', 0, (byte) (p.length >> 8), (byte) p.length});
+                    out.write(p);
+                }
+                out.flush();
+
+                receive(viewer, PACKETS);
+                assertEquals(PACKETS, server.getLiveStreams()
+                        .get("/live/cam/trackID=0").getCachedPackets());
+            }
+
+            // Closing the connection ends the publication
+            awaitUnpublished(server, "/live/cam");
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtp.RtpPacket;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.RtpSource;
+import albite.net.rtp.UdpPortPair;
+import albite.net.rtsp.ClientSession;
+import albite.net.rtsp.Message;
+import albite.net.rtsp.RtspClient;
+import albite.net.rtsp.RtspRelay;
+import albite.net.rtsp.RtspServer;
+import albite.net.rtsp.SessionDescription;
+import albite.util.Log;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RtspRelayTest {
+
+    private static final String TAG = "RtspRelayTest";
+
+    private static final String UPSTREAM_SDP
+            = "v=0\r\n"
+            + "s=Camera\r\n"
+            + "a=control:rtsp://camera.invalid/stream\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=control:rtsp://camera.invalid/stream/video\r\n";
+
+    private static final int PACKETS = 5;
+
+    private final AtomicInteger mUpstreamTeardowns = new AtomicInteger();
+
+    private class Listener implements RtspServer.Listener {
+
+        private final RtspRelay mRelay;
+
+        Listener(RtspRelay relay) {
+            mRelay = relay;
+        }
+
+        @Override
+        public void onRequestError(Throwable tr) {
+            Log.w(TAG, "Request failed", tr);
+        }
+
+        @Override
+        public byte[] onRequestDescription(String[] accept) throws IOException {
+            return UPSTREAM_SDP.getBytes(Message.CHARSET);
+        }
+
+        @Override
+        public byte[] onRequestDescription(URI uri, String[] accept) throws IOException {
+            return mRelay != null ? mRelay.describe(uri) : onRequestDescription(accept);
+        }
+
+        @Override
+        public String createSession() {
+            return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public int[] onSetupUnicast(String session, URI uri, int rtpPort, int rtcpPort) throws IOException {
+            // Any free pair will do, the sink binds it later
+            try (UdpPortPair ports = UdpPortPair.openEphemeral()) {
+                return new int[]{ports.getRtpPort(), ports.getRtcpPort()};
+            }
+        }
+
+        @Override
+        public void onPlay(String session, URI uri) throws IOException {
+        }
+
+        @Override
+        public void onTeardown(String session) throws IOException {
+            if (mRelay == null) {
+                mUpstreamTeardowns.incrementAndGet();
+            }
+        }
+    }
+
+    // Sends a keyframe and a few more packets on start
+    private static class CameraSource implements RtpSource {
+
+        @Override
+        public void start(RtpSink sink) throws IOException {
+            for (int i = 0; i < PACKETS; i++) {
+                ByteBuffer b = ByteBuffer.allocate(RtpPacket.HEADER_SIZE + 100);
+                RtpPacket.writeHeader(b, false, 96, i, 3000 * i, 1234);
+                b.put(RtpPacket.HEADER_SIZE, (byte) (i == 0 ? 0x65 : 0x41));
+                sink.send(new RtpPacket(b));
+            }
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testRelay() throws Exception {
+        RtspServer upstream = new RtspServer(new Listener(null), 0);
+        upstream.setSourceFactory(uri -> new CameraSource());
+        upstream.start();
+
+        URI upstreamUri = new URI("rtsp://localhost:" + upstream.getLocalPort() + "/stream");
+        RtspRelay relay = new RtspRelay(upstreamUri);
+        relay.setIdleTimeout(0);
+
+        RtspServer server = new RtspServer(new Listener(relay), 0);
+        server.setSourceFactory(relay);
+        server.start();
+
+        try {
+            URI uri = new URI("rtsp://localhost:" + server.getLocalPort() + "/relay");
+
+            // Nothing is pulled before the first viewer
+            SessionDescription description = new RtspClient(uri).requestDescription();
+            assertEquals(uri, description.getSessionControlUri());
+            assertEquals(new URI(uri + "/" + RtspRelay.TRACK_PREFIX + "0"),
+                    description.getMedia().get(0).getControlUri());
+            assertFalse(relay.isPulling());
+
+            try (ClientSession session = new RtspClient(uri).open()) {
+                assertEquals(1, relay.getViewerCount());
+                assertTrue(relay.isPulling());
+
+                DatagramSocket socket = session.getTracks().get(0)
+                        .getPorts().getRtpChannel().socket();
+                socket.setSoTimeout(5000);
+
+                for (int i = 0; i < PACKETS; i++) {
+                    DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                    socket.receive(packet);
+                    assertEquals(RtpPacket.HEADER_SIZE + 100, packet.getLength());
+                }
+
+                assertEquals(1, relay.getConnectCount());
+                assertEquals(PACKETS, relay.getPacketsReceived());
+                assertEquals(PACKETS, relay.getStream(0).getCachedPackets());
+            }
+
+            // The upstream is torn down once there are no viewers
+            assertEquals(0, relay.getViewerCount());
+            for (int i = 0; i < 50 && relay.isPulling(); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(relay.isPulling());
+            for (int i = 0; i < 50 && mUpstreamTeardowns.get() == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(1, mUpstreamTeardowns.get());
+        } finally {
+            server.close();
+            relay.close();
+            upstream.close();
+        }
+    }
+}
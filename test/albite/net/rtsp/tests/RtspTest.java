@@ -1,17 +1,42 @@
 package albite.net.rtsp.tests;
 
+import albite.net.rtp.PortAllocator;
+import albite.net.rtp.RtpSink;
+import albite.net.rtp.RtpSource;
+import albite.net.rtp.SharedUdpSocket;
+import albite.net.rtsp.ClientSession;
+import albite.net.rtsp.DescriptionCache;
+import albite.net.rtsp.LoadBalancer;
+import albite.net.rtsp.LocalNodeDirectory;
 import albite.net.rtsp.Message;
+import albite.net.rtsp.Range;
 import albite.net.rtsp.Request;
+import albite.net.rtsp.Response;
 import albite.net.rtsp.RtpTransport;
 import albite.net.rtsp.RtspClient;
+import albite.net.rtsp.RtspException;
 import albite.net.rtsp.RtspServer;
 import albite.util.Log;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -26,6 +51,15 @@ public class RtspTest {
 
     private static final int SERVER_RTP_PORT = 1234;
 
+    private final AtomicInteger mPlayCount = new AtomicInteger();
+    private final AtomicInteger mTeardownCount = new AtomicInteger();
+
+    // Whether the server is to allocate its own ports
+    private volatile boolean mAllocatePorts = false;
+
+    // Whether PLAY is to fail
+    private volatile boolean mFailPlay = false;
+
     private final RtspServer.Listener mListener = new RtspServer.Listener() {
         private static final String TAG = "RtspTest.Listener";
 
@@ -60,6 +94,10 @@ public class RtspTest {
             Log.i(TAG, String.format("[%s] Received unicast client setup (%d, %d) for %s",
                     session, rtpPort, rtcpPort, uri));
 
+            if (mAllocatePorts) {
+                return null;
+            }
+
             // For simplicity, imagine the server has the same ports
             return new int[]{rtpPort, rtcpPort};
         }
@@ -67,11 +105,21 @@ public class RtspTest {
         @Override
         public void onPlay(String session, URI uri) throws IOException {
             Log.i(TAG, String.format("[%s] Received PLAY for %s", session, uri));
+            if (mFailPlay) {
+                throw new IOException("Failing PLAY");
+            }
+            mPlayCount.incrementAndGet();
+        }
+
+        @Override
+        public void onPause(String session, URI uri) throws IOException {
+            Log.i(TAG, String.format("[%s] Received PAUSE for %s", session, uri));
         }
 
         @Override
         public void onTeardown(String session) throws IOException {
             Log.i(TAG, String.format("[%s] Teardown", session));
+            mTeardownCount.incrementAndGet();
         }
     };
 
@@ -92,6 +140,7 @@ public class RtspTest {
             Request.Method.DESCRIBE,
             Request.Method.SETUP,
             Request.Method.PLAY,
+            Request.Method.PAUSE,
             Request.Method.TEARDOWN,};
 
         for (Request.Method m : requiredMethods) {
@@ -140,6 +189,10 @@ public class RtspTest {
                     Thread.sleep(5000);
                 } catch (InterruptedException e) {
                 }
+
+                // Pause and resume
+                client.requestPause();
+                client.requestPlay();
             } finally {
                 client.close();
             }
@@ -147,4 +200,657 @@ public class RtspTest {
             server.close();
         }
     }
+
+    @Test
+    public void testOpen() throws IOException, URISyntaxException {
+        RtspServer server = new RtspServer(mListener, 0);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        server.start();
+
+        try {
+            try (ClientSession session = new RtspClient(uri).open()) {
+                assertNotNull(session.getSession());
+                assertEquals(1, session.getTracks().size());
+                assertEquals(1, mPlayCount.get());
+
+                ClientSession.Track track = session.getTracks().get(0);
+                assertEquals(33, track.getMedia().getFormats()[0]);
+                assertEquals(track.getPorts().getRtpPort(),
+                        track.getServerTransport().getClientRtpPortPair()[0]);
+
+                assertTrue(session.getDescribeNanos() > 0);
+                assertTrue(session.getTotalNanos() >= session.getSetupNanos());
+                Log.i(TAG, "Opened " + session);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void assertStatus(Response.Status expected, RtspException e) {
+        assertEquals(expected.getCode(), e.getStatus().getCode());
+    }
+
+    @Test
+    public void testInvalidState() throws IOException, URISyntaxException {
+        RtspServer server = new RtspServer(mListener, 0);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        server.start();
+
+        try {
+            // PLAY before SETUP
+            try {
+                new RtspClient(uri).requestPlay();
+                fail("PLAY without a session succeeded");
+            } catch (RtspException e) {
+                assertStatus(Response.Status.METHOD_NOT_VALID_IN_THIS_STATE, e);
+            }
+
+            // PAUSE for an unknown session
+            try {
+                Request request = new Request(
+                        new Request.Description(Request.Method.PAUSE, uri), 1, "unknown");
+                new RtspClient(uri).transfer(request);
+                fail("PAUSE for an unknown session succeeded");
+            } catch (RtspException e) {
+                assertStatus(Response.Status.SESSION_NOT_FOUND, e);
+            }
+
+            // None of these should have reached the listener
+            assertEquals(0, mPlayCount.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSessionExpiry() throws IOException, URISyntaxException, InterruptedException {
+        RtspServer server = new RtspServer(mListener, 0);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        PortAllocator allocator = new PortAllocator(46000, 46099);
+        server.setPortAllocator(allocator);
+
+        // Off unless asked for
+        assertEquals(0, server.getSessionTimeout());
+        server.setSessionTimeout(1);
+        mAllocatePorts = true;
+        server.start();
+
+        try {
+            RtspClient client = new RtspClient(uri);
+            RtpTransport serverTransport = client.requestRtpUnicastSetup(SERVER_RTP_PORT);
+
+            int port = serverTransport.getServerRtpPortPair()[0];
+            assertTrue(port >= allocator.getFirstPort() && port < allocator.getLastPort());
+            assertEquals(1, allocator.getAllocatedCount());
+            assertEquals(1, client.getSessionTimeout());
+
+            // No keepalive for longer than the timeout
+            Thread.sleep(2500);
+
+            try {
+                client.requestPlay();
+                fail("PLAY on an expired session succeeded");
+            } catch (RtspException e) {
+                assertStatus(Response.Status.SESSION_NOT_FOUND, e);
+            }
+
+            assertEquals(0, allocator.getAllocatedCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSharedUdp() throws IOException, URISyntaxException {
+        RtspServer server = new RtspServer(mListener, 0);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        mAllocatePorts = true;
+
+        try (SharedUdpSocket socket = SharedUdpSocket.openEphemeral()) {
+            server.setSharedUdpSockets(socket);
+            server.start();
+
+            // Both sessions send from the same ports
+            RtspClient first = new RtspClient(uri);
+            RtspClient second = new RtspClient(uri);
+            assertEquals(socket.getRtpPort(),
+                    first.requestRtpUnicastSetup(SERVER_RTP_PORT).getServerRtpPortPair()[0]);
+            assertEquals(socket.getRtpPort(),
+                    second.requestRtpUnicastSetup(SERVER_RTP_PORT + 2).getServerRtpPortPair()[0]);
+            assertEquals(2, socket.getRtcpHandlerCount());
+
+            first.close();
+            second.close();
+            assertEquals(0, socket.getRtcpHandlerCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testWorkers() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0, 4);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        assertEquals(4, server.getWorkerCount());
+        Log.i(TAG, server.getSocketCount() + " listening sockets");
+        server.start();
+
+        try {
+            // More clients than workers, all at once
+            List<Throwable> errors = new CopyOnWriteArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                threads.add(new Thread(() -> {
+                    try (ClientSession session = new RtspClient(uri).open()) {
+                        assertNotNull(session.getSession());
+                    } catch (Throwable tr) {
+                        errors.add(tr);
+                    }
+                }));
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(errors.toString(), errors.isEmpty());
+            assertEquals(8, mPlayCount.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testIdleClients() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        List<Socket> idle = new ArrayList<>();
+
+        try {
+            // Connected, but never sending a request
+            for (int i = 0; i < 4; i++) {
+                idle.add(new Socket("localhost", server.getLocalPort()));
+            }
+
+            long start = System.nanoTime();
+            RtspClient client = new RtspClient(new URI("rtsp://localhost:" + server.getLocalPort()));
+            assertTrue(Arrays.asList(client.requestOptions()).contains(Request.Method.DESCRIBE));
+            assertTrue(System.nanoTime() - start < 5000000000L);
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        assertFalse(server.isReady());
+        server.start();
+        assertTrue(server.isReady());
+
+        // Left set up
+        new RtspClient(uri).requestRtpUnicastSetup(SERVER_RTP_PORT);
+        assertEquals(0, mTeardownCount.get());
+
+        // Connected, but sending nothing or half a request
+        try (Socket idle = new Socket("localhost", server.getLocalPort());
+                Socket partial = new Socket("localhost", server.getLocalPort())) {
+            partial.getOutputStream().write("OPTIONS * RTSP/1.0\r\n".getBytes(Message.CHARSET));
+            Thread.sleep(100);
+            assertTrue(idle.isConnected());
+
+            long start = System.nanoTime();
+            server.close();
+            long elapsed = (System.nanoTime() - start) / 1000000;
+
+            Log.i(TAG, "Closed in " + elapsed + " ms");
+            assertTrue(elapsed < 1000);
+            assertFalse(server.isReady());
+            assertEquals(1, mTeardownCount.get());
+        }
+    }
+
+    @Test
+    public void testGetParameter() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort());
+        mAllocatePorts = true;
+
+        try (SharedUdpSocket socket = SharedUdpSocket.openEphemeral();
+                DatagramChannel rtcp = DatagramChannel.open()) {
+            server.setSharedUdpSockets(socket);
+            server.start();
+
+            RtspClient client = new RtspClient(uri);
+            client.requestRtpUnicastSetup(SERVER_RTP_PORT);
+            client.requestKeepAlive();
+
+            Map<String, String> parameters = client.requestParameters(
+                    RtspServer.PARAMETER_STATE, RtspServer.PARAMETER_PACKETS_SENT);
+            assertEquals("READY", parameters.get(RtspServer.PARAMETER_STATE));
+            assertEquals("0", parameters.get(RtspServer.PARAMETER_PACKETS_SENT));
+
+            try {
+                client.requestParameters("unknown");
+                fail("Returned an unknown parameter");
+            } catch (RtspException e) {
+                assertStatus(Response.Status.PARAMETER_NOT_UNDERSTOOD, e);
+            }
+
+            // A receiver report from the client's RTCP port
+            rtcp.bind(new InetSocketAddress("localhost", SERVER_RTP_PORT + 1));
+            ByteBuffer report = ByteBuffer.allocate(32);
+            report.put((byte) 0x81).put((byte) 201).putShort((short) 7);
+            report.putInt(1).putInt(2).putInt((25 << 24) | 7).putInt(100).putInt(40);
+            report.putInt(0).putInt(0);
+            report.flip();
+            rtcp.send(report, new InetSocketAddress("localhost", socket.getRtcpPort()));
+
+            for (int i = 0; i < 50 && !parameters.containsKey(RtspServer.PARAMETER_JITTER); i++) {
+                Thread.sleep(20);
+                parameters = client.requestParameters(
+                        RtspServer.PARAMETER_PACKETS_LOST, RtspServer.PARAMETER_JITTER);
+            }
+            assertEquals("7", parameters.get(RtspServer.PARAMETER_PACKETS_LOST));
+            assertEquals("40", parameters.get(RtspServer.PARAMETER_JITTER));
+
+            // Server-wide, without a session
+            Map<String, String> statistics = new RtspClient(uri).requestParameters();
+            assertEquals("1", statistics.get(RtspServer.PARAMETER_SESSIONS));
+            assertEquals("1", statistics.get(RtspServer.PARAMETER_SESSIONS_CREATED));
+            assertEquals("1", statistics.get(RtspServer.PARAMETER_ERRORS));
+            assertTrue(Long.parseLong(statistics.get(RtspServer.PARAMETER_REQUESTS)) >= 4);
+
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        int port = server.getLocalPort();
+        URI uri = new URI("rtsp://localhost:" + port);
+        RtspServer[] restarted = new RtspServer[1];
+
+        try (ClientSession session = new RtspClient(uri).open()) {
+            String id = session.getSession();
+            assertEquals(1, mPlayCount.get());
+
+            // Still there: a keep-alive does
+            assertFalse(session.reconnect(1));
+            assertEquals(id, session.getSession());
+            assertEquals(1, mPlayCount.get());
+
+            // The server goes away, and comes back without the session
+            server.close();
+            try {
+                session.reconnect(1);
+                fail("Reconnected to nothing");
+            } catch (IOException e) {
+                assertFalse(e instanceof RtspException);
+            }
+
+            Thread restart = new Thread(() -> {
+                try {
+                    Thread.sleep(300);
+                    restarted[0] = new RtspServer(mListener, port);
+                    restarted[0].start();
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed restarting the server", e);
+                }
+            });
+            restart.start();
+
+            // Set up again, from the description it had
+            assertTrue(session.reconnect(10));
+            restart.join();
+            assertNotNull(session.getSession());
+            assertTrue(!id.equals(session.getSession()));
+            assertEquals(2, mPlayCount.get());
+            assertEquals(2, session.getReconnectCount());
+            assertEquals(1, restarted[0].getSessionCount());
+        } finally {
+            server.close();
+            if (restarted[0] != null) {
+                restarted[0].close();
+            }
+        }
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        int port = server.getLocalPort();
+        URI uri = new URI("rtsp://localhost:" + port);
+        RtspServer restarted = null;
+
+        CountDownLatch lost = new CountDownLatch(1);
+        CountDownLatch reconnected = new CountDownLatch(1);
+        AtomicInteger setUp = new AtomicInteger();
+
+        try {
+            try (ClientSession session = new RtspClient(uri).open()) {
+                session.watch(50, new ClientSession.Listener() {
+                    @Override
+                    public void onLost(ClientSession session, IOException e) {
+                        lost.countDown();
+                    }
+
+                    @Override
+                    public void onReconnected(ClientSession session, boolean again) {
+                        if (again) {
+                            setUp.incrementAndGet();
+                        }
+                        reconnected.countDown();
+                    }
+                });
+
+                // The server goes away, and comes back without the session
+                server.close();
+                assertTrue(lost.await(5, TimeUnit.SECONDS));
+                restarted = new RtspServer(mListener, port);
+                restarted.start();
+
+                // Nobody calls reconnect()
+                assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+                assertEquals(1, setUp.get());
+                assertEquals(2, mPlayCount.get());
+                assertEquals(1, session.getReconnectCount());
+                assertEquals(1, restarted.getSessionCount());
+            }
+            assertEquals(0, restarted.getSessionCount());
+        } finally {
+            server.close();
+            if (restarted != null) {
+                restarted.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReconnectAfterFailedPlay() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        int port = server.getLocalPort();
+        URI uri = new URI("rtsp://localhost:" + port);
+        RtspServer restarted = null;
+
+        try (ClientSession session = new RtspClient(uri).open()) {
+            server.close();
+            restarted = new RtspServer(mListener, port);
+            restarted.start();
+
+            // Set up again, but not played
+            mFailPlay = true;
+            try {
+                session.reconnect(1);
+                fail("Played");
+            } catch (RtspException expected) {
+            }
+            assertEquals(1, restarted.getSessionCount());
+
+            // The server has the half set up session, which isn't enough
+            mFailPlay = false;
+            assertTrue(session.reconnect(1));
+            assertEquals(2, mPlayCount.get());
+            assertEquals(1, restarted.getSessionCount());
+        } finally {
+            server.close();
+            if (restarted != null) {
+                restarted.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReconnectWithoutGetParameter() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+
+        try (ServerSocket proxy = new ServerSocket(0)) {
+            Thread thread = new Thread(() -> refuseGetParameter(proxy, server.getLocalPort()));
+            thread.setDaemon(true);
+            thread.start();
+
+            URI uri = new URI("rtsp://localhost:" + proxy.getLocalPort());
+            try (ClientSession session = new RtspClient(uri).open()) {
+                String id = session.getSession();
+
+                // The server being up says nothing of the session
+                assertTrue(session.reconnect(1));
+                assertTrue(!id.equals(session.getSession()));
+                assertEquals(2, mPlayCount.get());
+                assertEquals(1, server.getSessionCount());
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    // Stands for a server that doesn't take GET_PARAMETER, passing all
+    // other requests on to the server on port
+    private static void refuseGetParameter(ServerSocket proxy, int port) {
+        while (!proxy.isClosed()) {
+            try (Socket client = proxy.accept();
+                    Socket server = new Socket("localhost", port)) {
+                InputStream in = client.getInputStream();
+                InputStream upstream = server.getInputStream();
+                String request;
+                while ((request = readMessage(in)) != null) {
+                    if (request.startsWith(Request.Method.GET_PARAMETER.name())) {
+                        Matcher m = Pattern.compile("CSeq: *(\\d+)").matcher(request);
+                        m.find();
+                        client.getOutputStream().write(("RTSP/1.0 405 Method Not Allowed\r\n"
+                                + "CSeq: " + m.group(1) + "\r\n\r\n").getBytes(Message.CHARSET));
+                    } else {
+                        server.getOutputStream().write(request.getBytes(Message.CHARSET));
+                        client.getOutputStream().write(
+                                readMessage(upstream).getBytes(Message.CHARSET));
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Proxy connection closed: " + e);
+            }
+        }
+    }
+
+    private static String readMessage(InputStream in) throws IOException {
+        StringBuilder message = new StringBuilder();
+        int length = 0;
+        for (;;) {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return null;
+                }
+                line.append((char) c);
+            }
+            message.append(line).append('\n');
+
+            String header = line.toString().trim();
+            if (header.isEmpty()) {
+                break;
+            }
+            if (header.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(header.substring(15).trim());
+            }
+        }
+
+        for (int i = 0; i < length; i++) {
+            message.append((char) in.read());
+        }
+        return message.toString();
+    }
+
+    @Test
+    public void testDescriptionCache() throws Exception {
+        RtspServer server = new RtspServer(mListener, 0);
+        server.start();
+        URI uri = new URI("rtsp://localhost:" + server.getLocalPort() + "/cam");
+
+        try {
+            // Always revalidated
+            DescriptionCache revalidating = new DescriptionCache(10, 0);
+            for (int i = 0; i < 3; i++) {
+                RtspClient client = new RtspClient(uri);
+                client.setDescriptionCache(revalidating);
+                assertEquals(SDP_DESCRIPTION, client.requestDescribeSdp());
+            }
+            assertEquals(1, revalidating.getMissCount());
+            assertEquals(2, revalidating.getRevalidationCount());
+
+            // Not Modified isn't an error
+            assertEquals("0", new RtspClient(uri).requestParameters()
+                    .get(RtspServer.PARAMETER_ERRORS));
+
+            // Used as it is within the TTL
+            DescriptionCache cache = new DescriptionCache(1, 60000);
+            RtspClient client = new RtspClient(uri);
+            client.setDescriptionCache(cache);
+            client.requestDescription();
+            assertEquals(1, client.requestDescription().getMedia().size());
+            assertEquals(1, cache.getHitCount());
+
+            // Bounded
+            RtspClient other = new RtspClient(new URI(uri + "2"));
+            other.setDescriptionCache(cache);
+            other.requestDescribeSdp();
+            assertEquals(1, cache.size());
+            client.requestDescribeSdp();
+            assertEquals(3, cache.getMissCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRedirect() throws Exception {
+        RtspServer frontDoor = new RtspServer(mListener, 0);
+        RtspServer[] nodes = {new RtspServer(mListener, 0), new RtspServer(mListener, 0)};
+        LocalNodeDirectory directory = new LocalNodeDirectory();
+        for (RtspServer node : nodes) {
+            directory.add(node);
+            node.start();
+        }
+        frontDoor.setLoadBalancer(new LoadBalancer(directory));
+        frontDoor.start();
+
+        try {
+            URI uri = new URI("rtsp://localhost:" + frontDoor.getLocalPort() + "/live/cam");
+            RtspClient client = new RtspClient(uri);
+
+            try (ClientSession session = client.open()) {
+                // The client moved to the node, where the session is
+                assertNotNull(session.getSession());
+                assertTrue(client.getUri().getPort() != frontDoor.getLocalPort());
+                assertEquals("/live/cam", client.getUri().getPath());
+                assertEquals(0, frontDoor.getSessionCount());
+                assertEquals(1, nodes[0].getSessionCount() + nodes[1].getSessionCount());
+            }
+
+            // Redirecting to itself
+            LocalNodeDirectory loop = new LocalNodeDirectory();
+            loop.add(frontDoor);
+            frontDoor.setLoadBalancer(new LoadBalancer(loop));
+
+            try {
+                new RtspClient(uri).requestDescribeSdp();
+                fail("Followed redirects forever");
+            } catch (RtspException e) {
+                assertStatus(Response.Status.MOVED_TEMPORARILY, e);
+            }
+        } finally {
+            frontDoor.close();
+            for (RtspServer node : nodes) {
+                node.close();
+            }
+        }
+    }
+
+    // Sends nothing
+    private static class StillSource implements RtpSource {
+
+        @Override
+        public void start(RtpSink sink) {
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Seekable to whole seconds, as if there were a keyframe every second
+    private static class ClipSource extends StillSource implements RtpSource.Seekable {
+
+        volatile double mEnd;
+
+        @Override
+        public double seek(double seconds) {
+            return Math.floor(seconds);
+        }
+
+        @Override
+        public double setEnd(double seconds) {
+            mEnd = seconds;
+            return seconds < 0 ? -1 : Math.ceil(seconds);
+        }
+
+        @Override
+        public double getDuration() {
+            return 60;
+        }
+    }
+
+    @Test
+    public void testBoundedRange() throws Exception {
+        ClipSource clip = new ClipSource();
+        RtspServer server = new RtspServer(mListener, 0);
+        server.setSourceFactory(uri -> uri.getPath().endsWith("/clip") ? clip : new StillSource());
+        server.start();
+
+        try {
+            URI base = new URI("rtsp://localhost:" + server.getLocalPort());
+            RtspClient client = new RtspClient(base.resolve("/clip"));
+            client.requestRtpUnicastSetup(SERVER_RTP_PORT);
+
+            // The source stops at the end, and the range says where
+            Range range = client.requestPlay(new Range(10.5, 20.5));
+            assertEquals(10, range.getStart(), 0.001);
+            assertEquals(21, range.getEnd(), 0.001);
+            assertEquals(20.5, clip.mEnd, 0.001);
+
+            // Without an end, to the end
+            client.requestPause();
+            range = client.requestPlay(new Range(30));
+            assertFalse(range.hasEnd());
+            assertEquals(-1, clip.mEnd, 0.001);
+            client.close();
+
+            // A live source can't stop there, so the end is not promised
+            client = new RtspClient(base.resolve("/live"));
+            client.requestRtpUnicastSetup(SERVER_RTP_PORT);
+            range = client.requestPlay(new Range(10, 20));
+            assertFalse(range.hasEnd());
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
 }
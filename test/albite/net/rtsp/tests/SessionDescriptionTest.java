@@ -0,0 +1,146 @@
+package albite.net.rtsp.tests;
+
+import albite.net.rtsp.SessionDescription;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionDescriptionTest {
+
+    private static final String SDP
+            = "v=0\r\n"
+            + "o=- 1 1 IN IP4 10.0.0.1\r\n"
+            + "s=Camera\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "t=0 0\r\n"
+            + "a=control:*\r\n"
+            + "a=range:npt=0-\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "b=AS:2000\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=fmtp:96 packetization-mode=1;profile-level-id=42e01f\r\n"
+            + "a=control:trackID=1\r\n"
+            + "m=audio 0 RTP/AVP 97 0\r\n"
+            + "a=rtpmap:97 MPEG4-GENERIC/48000/2\r\n"
+            + "a=control:rtsp://10.0.0.1/live/audio\r\n"
+            + "a=recvonly\r\n";
+
+    @Test
+    public void testParsing() throws IOException, URISyntaxException {
+        URI base = new URI("rtsp://10.0.0.1/live");
+        SessionDescription sdp = SessionDescription.parse(SDP, base);
+
+        assertEquals("Camera", sdp.getSessionName());
+        assertEquals("IN IP4 0.0.0.0", sdp.getConnection());
+        assertEquals("npt=0-", sdp.getAttribute("range"));
+        assertEquals(base, sdp.getSessionControlUri());
+
+        List<SessionDescription.Media> media = sdp.getMedia();
+        assertEquals(2, media.size());
+
+        SessionDescription.Media video = media.get(0);
+        assertEquals("video", video.getType());
+        assertEquals("RTP/AVP", video.getProtocol());
+        assertArrayEquals(new int[]{96}, video.getFormats());
+        assertEquals(2000, video.getBandwidth(SessionDescription.BANDWIDTH_AS));
+        assertEquals("H264", video.getRtpMap(96).getEncoding());
+        assertEquals(90000, video.getRtpMap(96).getClockRate());
+        assertEquals("packetization-mode=1;profile-level-id=42e01f",
+                video.getFormatParameters(96));
+        assertEquals("IN IP4 0.0.0.0", video.getConnection());
+        assertEquals(new URI("rtsp://10.0.0.1/live/trackID=1"), video.getControlUri());
+
+        SessionDescription.Media audio = media.get(1);
+        assertArrayEquals(new int[]{97, 0}, audio.getFormats());
+        assertEquals(2, audio.getRtpMap(97).getChannels());
+        assertNull(audio.getRtpMap(0));
+        assertEquals(-1, audio.getBandwidth(SessionDescription.BANDWIDTH_AS));
+        assertEquals("", audio.getAttribute("recvonly"));
+        assertNull(audio.getAttribute("recv"));
+        assertEquals(new URI("rtsp://10.0.0.1/live/audio"), audio.getControlUri());
+    }
+
+    @Test
+    public void testSingleMediaWithoutControl() throws IOException, URISyntaxException {
+        URI base = new URI("rtsp://localhost/a.ts");
+        SessionDescription sdp = SessionDescription.parse(
+                "v=0\nc=IN IP4 127.0.0.1\nm=application 0 RTP/AVP 33\n", base);
+
+        assertEquals(base, sdp.getMedia().get(0).getControlUri());
+    }
+
+    @Test
+    public void testBuilder() throws IOException, URISyntaxException {
+        SessionDescription sdp = SessionDescription.builder()
+                .origin("-", 1, 1, "10.0.0.1")
+                .sessionName("Camera")
+                .connection("0.0.0.0")
+                .time(0, 0)
+                .control("*")
+                .media("video", 0, "RTP/AVP", 96)
+                .rtpMap(96, "H264", 90000)
+                .formatParameters(96, "packetization-mode=1")
+                .control("trackID=1")
+                .build(new URI("rtsp://10.0.0.1/live"));
+
+        // Serializing and parsing gives the same description
+        SessionDescription parsed = SessionDescription.parse(
+                new String(sdp.toBytes(), "UTF-8"), sdp.getBaseUri());
+
+        assertEquals("- 1 1 IN IP4 10.0.0.1", parsed.getOrigin());
+        assertEquals(1, parsed.getMedia().size());
+        assertEquals("packetization-mode=1", parsed.getMedia().get(0).getFormatParameters(96));
+        assertEquals(new URI("rtsp://10.0.0.1/live/trackID=1"),
+                parsed.getMedia().get(0).getControlUri());
+    }
+
+    @Test
+    public void testWithControls() throws IOException, URISyntaxException {
+        SessionDescription sdp = SessionDescription.parse(SDP, new URI("rtsp://10.0.0.1/live"));
+        URI base = new URI("rtsp://relay/cam");
+        SessionDescription relayed = sdp.withControls("trackID=", base);
+
+        assertEquals(base, relayed.getSessionControlUri());
+        assertEquals(sdp.getMedia().size(), relayed.getMedia().size());
+        for (int i = 0; i < relayed.getMedia().size(); i++) {
+            assertEquals(new URI("rtsp://relay/cam/trackID=" + i),
+                    relayed.getMedia().get(i).getControlUri());
+            assertEquals(sdp.getMedia().get(i).getType(), relayed.getMedia().get(i).getType());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalid() throws IOException {
+        SessionDescription.parse("s=No version\r\n");
+    }
+
+    @Test
+    public void testMalformedNumbers() throws IOException {
+        SessionDescription sdp = SessionDescription.parse("v=0\r\n"
+                + "b=AS:lots\r\n"
+                + "m=video 0 RTP/AVP 96 x 97\r\n"
+                + "b=AS:\r\n"
+                + "a=rtpmap:96 H264/fast\r\n"
+                + "a=rtpmap:97 H264/90000\r\n");
+
+        // Skipped
+        assertEquals(-1, sdp.getBandwidth(SessionDescription.BANDWIDTH_AS));
+        SessionDescription.Media media = sdp.getMedia().get(0);
+        assertEquals(-1, media.getBandwidth(SessionDescription.BANDWIDTH_AS));
+        assertArrayEquals(new int[]{96, 97}, media.getFormats());
+        assertNull(media.getRtpMap(96));
+        assertEquals(90000, media.getRtpMap(97).getClockRate());
+
+        // The media lines are needed
+        for (String m : new String[]{"m=video x RTP/AVP 96", "m=video 99999 RTP/AVP 96", "m=video"}) {
+            try {
+                SessionDescription.parse("v=0\r\n" + m + "\r\n");
+                fail(m);
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
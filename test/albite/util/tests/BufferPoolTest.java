@@ -0,0 +1,104 @@
+package albite.util.tests;
+
+import albite.util.BufferPool;
+import albite.util.PooledBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(true, 1024, 4096);
+
+        PooledBuffer small = pool.allocate(100);
+        assertTrue(small.buffer().isDirect());
+        assertEquals(1024, small.capacity());
+        assertEquals(100, small.buffer().limit());
+
+        PooledBuffer large = pool.allocate(2000);
+        assertEquals(4096, large.capacity());
+
+        // Too big for the pool
+        PooledBuffer huge = pool.allocate(10000);
+        assertFalse(huge.isPooled());
+        assertEquals(1, pool.getUnpooledAllocations());
+
+        small.release();
+        large.release();
+        huge.release();
+    }
+
+    @Test
+    public void testRecycling() {
+        BufferPool pool = new BufferPool(false, 1024);
+
+        PooledBuffer first = pool.allocate(1024);
+        long capacity = pool.getCapacity();
+        first.release();
+
+        // The same thread gets the buffer back from its cache
+        PooledBuffer second = pool.allocate(512);
+        assertSame(first, second);
+        assertEquals(0, second.buffer().position());
+        assertEquals(512, second.buffer().limit());
+
+        // Steady state allocation does not grow the pool
+        for (int i = 0; i < 10000; i++) {
+            pool.allocate(1024).release();
+        }
+        assertEquals(capacity, pool.getCapacity());
+
+        second.release();
+    }
+
+    @Test
+    public void testShortLivedThreads() throws Exception {
+        BufferPool pool = new BufferPool(true, 65536);
+
+        // Each thread takes a few buffers and ends
+        for (int i = 0; i < 100; i++) {
+            Thread t = new Thread(() -> {
+                PooledBuffer[] buffers = new PooledBuffer[4];
+                for (int j = 0; j < buffers.length; j++) {
+                    buffers[j] = pool.allocate(65536);
+                }
+                for (PooledBuffer buffer : buffers) {
+                    buffer.release();
+                }
+                pool.flushCache();
+            });
+            t.start();
+            t.join();
+        }
+
+        // Nothing is left behind in the caches of the dead threads
+        assertEquals(1024 * 1024, pool.getCapacity());
+        assertEquals(pool.getCapacity(), pool.getFreeBytes());
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        BufferPool pool = new BufferPool(true, 1024);
+
+        PooledBuffer buffer = pool.allocate(1024);
+        buffer.retain();
+        assertEquals(2, buffer.getReferenceCount());
+
+        buffer.release();
+        buffer.release();
+        assertEquals(0, buffer.getReferenceCount());
+
+        try {
+            buffer.release();
+            fail("Released a buffer twice");
+        } catch (IllegalStateException e) {
+        }
+
+        try {
+            buffer.retain();
+            fail("Retained a released buffer");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
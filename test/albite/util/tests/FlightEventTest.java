@@ -0,0 +1,45 @@
+package albite.util.tests;
+
+import albite.util.FlightEvent;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlightEventTest {
+
+    private static final FlightEvent EVENT = FlightEvent.builder("albite.test.Event", "Test Event")
+            .category("Albite", "Test")
+            .field("name", String.class, "Name")
+            .field("count", long.class, "Count")
+            .build();
+
+    @Test
+    public void testDisabled() {
+        // Nothing is recording
+        assertFalse(EVENT.isEnabled());
+        assertNull(EVENT.begin());
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        if (!FlightEvent.isAvailable()) {
+            return;
+        }
+
+        // jdk.jfr.Recording is not in the Java 8 API
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, EVENT.getName());
+        recordingClass.getMethod("start").invoke(recording);
+
+        try {
+            assertTrue(EVENT.isEnabled());
+            FlightEvent.Instance event = EVENT.begin();
+            assertNotNull(event);
+            event.set(0, "test").set(1, 42L).commit();
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+        }
+
+        assertFalse(EVENT.isEnabled());
+    }
+}